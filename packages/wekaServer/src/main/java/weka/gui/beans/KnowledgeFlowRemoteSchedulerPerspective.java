@@ -23,9 +23,7 @@ package weka.gui.beans;
 import com.toedter.calendar.JDateChooser;
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
 import org.apache.commons.httpclient.methods.PostMethod;
-import org.apache.commons.httpclient.methods.RequestEntity;
 import org.mortbay.jetty.security.Password;
 import weka.core.Environment;
 import weka.core.Instances;
@@ -35,6 +33,7 @@ import weka.gui.ListSelectorDialog;
 import weka.gui.beans.KnowledgeFlowApp.KFPerspective;
 import weka.gui.beans.KnowledgeFlowApp.MainKFPerspective;
 import weka.gui.beans.xml.XMLBeans;
+import weka.server.Compression;
 import weka.server.ExecuteTaskServlet;
 import weka.server.GetScheduleServlet;
 import weka.server.GetTaskListServlet;
@@ -43,6 +42,7 @@ import weka.server.GetTaskStatusServlet;
 import weka.server.NamedTask;
 import weka.server.RootServlet;
 import weka.server.Schedule;
+import weka.server.SerializedTaskRequestEntity;
 import weka.server.WekaServer;
 import weka.server.WekaServlet;
 import weka.server.WekaTaskMap;
@@ -99,7 +99,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
-import java.util.zip.GZIPInputStream;
 
 /**
  * Class that provides a Knowledge Flow perspective for executing, scheduling
@@ -980,13 +979,13 @@ public class KnowledgeFlowRemoteSchedulerPerspective extends JPanel implements
         boolean errorOccurred = false;
 
         try {
-          byte[] serializedTask = WekaServer.serializeTask(taskToRun);
-          System.out.println("Sending " + serializedTask.length + " bytes...");
 
           String service = ExecuteTaskServlet.CONTEXT_PATH + "/?client=Y";
           post = new PostMethod(constructURL(service));
-          RequestEntity entity = new ByteArrayRequestEntity(serializedTask);
-          post.setRequestEntity(entity);
+          SerializedTaskRequestEntity entity =
+            new SerializedTaskRequestEntity(taskToRun,
+              Compression.forPeer(constructURL("")));
+          entity.attachTo(post);
 
           post.setDoAuthentication(true);
           post.addRequestHeader(new Header("Content-Type",
@@ -1000,6 +999,8 @@ public class KnowledgeFlowRemoteSchedulerPerspective extends JPanel implements
 
           // Execute request
           int result = client.executeMethod(post);
+          Compression.notePeer(constructURL(""), post);
+          System.out.println("Sent " + entity.getBytesWritten() + " bytes...");
           if (result == 401) {
             JOptionPane.showMessageDialog(
               KnowledgeFlowRemoteSchedulerPerspective.this,
@@ -1394,10 +1395,11 @@ public class KnowledgeFlowRemoteSchedulerPerspective extends JPanel implements
 
       try {
         String service = GetTaskResultServlet.CONTEXT_PATH + "/?name=" + taskID
-          + "&client=Y";
+          + "&client=Y&" + GetTaskResultServlet.STREAM_KEY + "=Y";
         post = new PostMethod(constructURL(service));
         post.setDoAuthentication(true);
         post.addRequestHeader(new Header("Content-Type", "text/plain"));
+        Compression.requestCodecs(post);
 
         // Get HTTP client
         HttpClient client = WekaServer.ConnectionManager.getSingleton()
@@ -1412,9 +1414,7 @@ public class KnowledgeFlowRemoteSchedulerPerspective extends JPanel implements
               + "required");
         } else {
           is = post.getResponseBodyAsStream();
-          ObjectInputStream ois = new ObjectInputStream(
-            new BufferedInputStream(new GZIPInputStream(is)));
-          Object response = ois.readObject();
+          Object response = GetTaskResultServlet.readResponse(post);
           if (response.toString().startsWith(WekaServlet.RESPONSE_ERROR)) {
 
             System.err.println("Server returned an error: "
@@ -1690,6 +1690,7 @@ public class KnowledgeFlowRemoteSchedulerPerspective extends JPanel implements
               post = new PostMethod(constructURL(service));
               post.setDoAuthentication(true);
               post.addRequestHeader(new Header("Content-Type", "text/plain"));
+              Compression.requestCodecs(post);
               int result = client.executeMethod(post);
               // System.out.println("[WekaServer] Response from master server : "
               // + result);
@@ -1704,7 +1705,7 @@ public class KnowledgeFlowRemoteSchedulerPerspective extends JPanel implements
                 // the response
                 is = post.getResponseBodyAsStream();
                 ObjectInputStream ois = new ObjectInputStream(
-                  new BufferedInputStream(new GZIPInputStream(is)));
+                  new BufferedInputStream(Compression.decompress(is)));
                 Object response = ois.readObject();
                 if (response.toString().startsWith(WekaServlet.RESPONSE_ERROR)) {
                   theLog.statusMessage("[Remote Excecution]|ERROR: server "
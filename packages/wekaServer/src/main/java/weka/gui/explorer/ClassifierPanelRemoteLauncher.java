@@ -44,8 +44,6 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Random;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import javax.swing.JButton;
 import javax.swing.JDialog;
@@ -54,9 +52,7 @@ import javax.swing.JPanel;
 
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
 import org.apache.commons.httpclient.methods.PostMethod;
-import org.apache.commons.httpclient.methods.RequestEntity;
 import org.mortbay.jetty.security.Password;
 
 import weka.classifiers.AbstractClassifier;
@@ -86,11 +82,21 @@ import weka.experiment.TaskStatusInfo;
 import weka.gui.Logger;
 import weka.gui.TaskLogger;
 import weka.gui.visualize.PlotData2D;
+import weka.server.Compression;
 import weka.server.ExecuteTaskServlet;
 import weka.server.GetTaskResultServlet;
 import weka.server.GetTaskStatusServlet;
+import weka.server.IncrementalStatus;
 import weka.server.NamedTask;
+import weka.server.PersistedFiles;
+import weka.server.PersistedResult;
+import weka.server.Prioritized;
+import weka.server.SerializedInstances;
+import weka.server.SerializedTaskRequestEntity;
 import weka.server.PurgeTaskServlet;
+import weka.server.TaskEventBus;
+import weka.server.TaskEventsServlet;
+import weka.server.TaskPriority;
 import weka.server.WekaServer;
 import weka.server.WekaServlet;
 import weka.server.logging.ServerLogger;
@@ -131,6 +137,12 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
   /** Password to authenticate against the server with */
   protected String m_password;
 
+  /**
+   * URL of the last server found to not accept batch submissions (tasks are
+   * sent to it one at a time)
+   */
+  protected String m_noBatchServer;
+
   /**
    * Construct the panel.
    */
@@ -275,9 +287,44 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
    */
   protected class TaskMonitor {
 
+    /** Longest time to wait for task events in one request (seconds) */
+    protected static final int EVENT_TIMEOUT = 30;
+
+    /**
+     * Wait for status events for the tasks that haven't finished yet
+     * 
+     * @param client the HTTP client to use
+     * @param taskIDs the list of task IDs being monitored
+     * @param finished which tasks have finished
+     * @param last the events returned last time (null for none)
+     * @param timeout the longest time to wait (seconds)
+     * @return the events or null if the server doesn't support task events
+     */
+    protected TaskEventBus.TaskEvents waitForEvents(HttpClient client,
+      List<String> taskIDs, boolean[] finished, TaskEventBus.TaskEvents last,
+      int timeout) {
+      List<String> unfinished = new ArrayList<String>();
+      for (int i = 0; i < taskIDs.size(); i++) {
+        if (!finished[i]) {
+          unfinished.add(taskIDs.get(i));
+        }
+      }
+
+      try {
+        return TaskEventsServlet.getEventsRemote(client,
+          constructURL(TaskEventsServlet.CONTEXT_PATH + "/?client=Y"),
+          unfinished, last, timeout);
+      } catch (Exception ex) {
+        return null;
+      }
+    }
+
     /**
      * Monitor tasks and return a status that indicates whether all finished
-     * without errors or not.
+     * without errors or not. The status of a task is only checked when the
+     * server reports a status change for it. If the server doesn't support
+     * task events then the status of each task is checked every monitoring
+     * interval.
      * 
      * @param taskIDs the list of task IDs to monitor.
      * @return true if all tasks completed successfully
@@ -297,15 +344,54 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
 
       try {
         boolean[] finished = new boolean[taskIDs.size()];
+
+        // find out where the server's events are up to before checking on
+        // the tasks for the first time so that nothing gets missed
+        TaskEventBus.TaskEvents events =
+          waitForEvents(client, taskIDs, finished, null, 0);
+        boolean useEvents = events != null;
+        TaskEventBus.TaskEvents last = events;
+        boolean firstCheck = true;
         while (true) {
           try {
-            Thread.sleep(1000 * interval);
+            boolean[] check = null;
+            if (useEvents && !firstCheck) {
+              events =
+                waitForEvents(client, taskIDs, finished, last, EVENT_TIMEOUT);
+              if (events == null) {
+                // fall back to polling
+                useEvents = false;
+                Thread.sleep(1000 * interval);
+              } else {
+                last = events;
+                if (!events.isReset()) {
+                  check = new boolean[taskIDs.size()];
+                  for (TaskEventBus.TaskEvent e : events.getEvents()) {
+                    if (e.getType() == TaskEventBus.STATUS
+                      || e.getType() == TaskEventBus.REMOVED) {
+                      int index = taskIDs.indexOf(e.getTaskID());
+                      if (index >= 0) {
+                        check[index] = true;
+                      }
+                    }
+                  }
+                }
+              }
+            } else if (!useEvents) {
+              Thread.sleep(1000 * interval);
+            }
+            firstCheck = false;
+
             int numFinished = 0;
             for (int i = 0; i < taskIDs.size(); i++) {
               if (finished[i]) {
                 numFinished++;
                 continue;
               }
+              if (check != null && !check[i]) {
+                // nothing has changed
+                continue;
+              }
               // only check on those that haven't finished yet
               String taskID = taskIDs.get(i);
               String service =
@@ -314,7 +400,9 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
               post = new PostMethod(constructURL(service));
               post.setDoAuthentication(true);
               post.addRequestHeader(new Header("Content-Type", "text/plain"));
+              Compression.requestCodecs(post);
               int result = client.executeMethod(post);
+              Compression.notePeer(constructURL(""), post);
               if (result == 401) {
                 logMessage("Unable to monitor task on server - authentication "
                   + "required");
@@ -325,7 +413,7 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
                 ObjectInputStream ois =
                   SerializationHelper
                     .getObjectInputStream(new BufferedInputStream(
-                      new GZIPInputStream(is)));
+                      Compression.decompress(is)));
                 Object response = ois.readObject();
                 if (response.toString().startsWith(WekaServlet.RESPONSE_ERROR)) {
 
@@ -412,6 +500,7 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
    * @version $Revision: 13506 $
    */
   public abstract static class ClassifierTask implements NamedTask, LogHandler,
+    Prioritized, PersistedFiles, PersistedResult, IncrementalStatus,
     Serializable {
 
     /**
@@ -473,21 +562,7 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
         || m_result.getExecutionStatus() == TaskStatusInfo.FAILED) {
         // once finished or failed set up the status message by
         // pulling current logging info
-        StringBuffer temp = new StringBuffer();
-        List<String> statusCache = m_log.getStatusCache();
-        List<String> logCache = m_log.getLogCache();
-
-        temp.append("@@@ Status messages:\n\n");
-        for (String status : statusCache) {
-          String entry = status + "\n";
-          temp.append(entry);
-        }
-        temp.append("\n@@@ Log messages:\n\n");
-        for (String log : logCache) {
-          String entry = log + "\n";
-          temp.append(entry);
-        }
-        m_result.setStatusMessage(temp.toString());
+        m_result.setStatusMessage(m_log.getStatusText());
       }
 
       return m_result;
@@ -513,6 +588,16 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
       return m_log;
     }
 
+    @Override
+    public int getExecutionStatus() {
+      return m_result.getExecutionStatus();
+    }
+
+    @Override
+    public ServerLogger getServerLog() {
+      return m_log;
+    }
+
     /**
      * Set the name of this task
      * 
@@ -543,6 +628,31 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
         m_result.setTaskResult(null);
       }
     }
+    /**
+     * Explorer tasks are short and have a user waiting on them
+     * 
+     * @return TaskPriority.INTERACTIVE
+     */
+    @Override
+    public TaskPriority getTaskPriority() {
+      return TaskPriority.INTERACTIVE;
+    }
+
+    /**
+     * Utility method to collect those of the supplied files that exist
+     * 
+     * @param files the files to check (may contain nulls)
+     * @return a list of the files that exist
+     */
+    protected static List<File> existingFiles(File... files) {
+      List<File> result = new ArrayList<File>();
+      for (File f : files) {
+        if (f != null && f.exists()) {
+          result.add(f);
+        }
+      }
+      return result;
+    }
   }
 
   /**
@@ -561,6 +671,12 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
     protected Instances m_training;
 
     /** The compressed training data */
+    protected SerializedInstances m_encodedTrain;
+
+    /**
+     * The compressed training data of a task persisted by an older version.
+     * Converted to m_encodedTrain when the task is read back in.
+     */
     protected SerializedObject m_compressedTrain;
 
     /** Latest file used to persist the training data */
@@ -588,10 +704,26 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
       boolean outputModel) throws Exception {
       super(classifier, saveVis, outputCollector, costMatrix);
 
-      m_compressedTrain = new SerializedObject(training, true);
+      m_encodedTrain = new SerializedInstances(training);
       m_outputModel = outputModel;
     }
 
+    /**
+     * Converts the data of a task persisted by an older version
+     * 
+     * @param in the stream to read from
+     * @throws IOException if a problem occurs
+     * @throws ClassNotFoundException if a class can't be found
+     */
+    private void readObject(ObjectInputStream in) throws IOException,
+      ClassNotFoundException {
+      in.defaultReadObject();
+      if (m_compressedTrain != null) {
+        m_encodedTrain = SerializedInstances.valueOf(m_compressedTrain);
+        m_compressedTrain = null;
+      }
+    }
+
     /**
      * Run the task
      */
@@ -599,12 +731,12 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
     public void execute() {
       ObjectOutputStream oos = null;
       try {
-        if (m_compressedTrain == null) {
+        if (m_encodedTrain == null) {
           // loadResources() must have failed
           throw new Exception("Unable to load compressed training data!");
         }
-        m_training = (Instances) m_compressedTrain.getObject();
-        m_compressedTrain = null;
+        m_training = m_encodedTrain.getInstances();
+        m_encodedTrain = null;
 
         ClassifierErrorsPlotInstances plotInstances =
           ExplorerDefaults.getClassifierErrorsPlotInstances();
@@ -666,7 +798,8 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
           m_persistedResult = WekaServer.getTempFile();
           oos =
             new ObjectOutputStream(new BufferedOutputStream(
-              new GZIPOutputStream(new FileOutputStream(m_persistedResult))));
+              Compression.compress(new FileOutputStream(m_persistedResult),
+                Compression.getDefault())));
           oos.writeObject(results);
           oos.flush();
           // successfully saved result - now save memory
@@ -721,7 +854,7 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
       try {
         /*
          * if (m_persistedTrain != null) { // we've already saved previously -
-         * no need to // do so again. Just save memory m_compressedTrain = null;
+         * no need to // do so again. Just save memory m_encodedTrain = null;
          * 
          * return; }
          */
@@ -737,11 +870,11 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
         oos =
           new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(
             m_persistedTrain)));
-        oos.writeObject(m_compressedTrain);
+        oos.writeObject(m_encodedTrain);
         oos.flush();
 
         // save memory
-        m_compressedTrain = null;
+        m_encodedTrain = null;
       } catch (Exception ex) {
         // don't panic, just can't save our resources
         // that's all
@@ -762,13 +895,13 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
      */
     @Override
     public void loadResources() {
-      if (m_persistedTrain != null && m_compressedTrain == null) {
+      if (m_persistedTrain != null && m_encodedTrain == null) {
         ObjectInputStream ois = null;
         try {
           ois =
             SerializationHelper.getObjectInputStream(new FileInputStream(
               m_persistedTrain));
-          m_compressedTrain = (SerializedObject) ois.readObject();
+          m_encodedTrain = SerializedInstances.valueOf(ois.readObject());
         } catch (Exception ex) {
           // OK, we will fail to run now
         } finally {
@@ -798,8 +931,8 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
       ObjectInputStream ois = null;
       try {
         ois =
-          SerializationHelper.getObjectInputStream(new GZIPInputStream(
-            new FileInputStream(m_persistedResult)));
+          SerializationHelper.getObjectInputStream(Compression
+            .decompress(new FileInputStream(m_persistedResult)));
         /*
          * ois = new ObjectInputStream(new BufferedInputStream(new
          * GZIPInputStream( new FileInputStream(m_persistedResult))));
@@ -833,6 +966,26 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
 
       }
     }
+
+    /**
+     * Get the files that this task currently has on disk
+     * 
+     * @return a list of files
+     */
+    @Override
+    public List<File> getPersistedFiles() {
+      return existingFiles(m_persistedTrain, m_persistedResult);
+    }
+
+    /**
+     * Get the file that holds the result of the last execution
+     * 
+     * @return the file or null if there is no persisted result
+     */
+    @Override
+    public File getPersistedResult() {
+      return m_persistedResult;
+    }
   }
 
   /**
@@ -851,6 +1004,12 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
     protected Instances m_train;
 
     /** The compressed training data */
+    protected SerializedInstances m_encodedTrain;
+
+    /**
+     * The compressed training data of a task persisted by an older version.
+     * Converted to m_encodedTrain when the task is read back in.
+     */
     protected SerializedObject m_compressedTrain;
 
     /** The persisted training data */
@@ -900,7 +1059,23 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
       m_testURL = testURL;
       m_testClassIndex = testClassIndex;
 
-      m_compressedTrain = new SerializedObject(train, true);
+      m_encodedTrain = new SerializedInstances(train);
+    }
+
+    /**
+     * Converts the data of a task persisted by an older version
+     * 
+     * @param in the stream to read from
+     * @throws IOException if a problem occurs
+     * @throws ClassNotFoundException if a class can't be found
+     */
+    private void readObject(ObjectInputStream in) throws IOException,
+      ClassNotFoundException {
+      in.defaultReadObject();
+      if (m_compressedTrain != null) {
+        m_encodedTrain = SerializedInstances.valueOf(m_compressedTrain);
+        m_compressedTrain = null;
+      }
     }
 
     /**
@@ -910,7 +1085,7 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
     public void execute() {
       ObjectOutputStream oos = null;
       try {
-        if (m_compressedTrain == null) {
+        if (m_encodedTrain == null) {
           // loadResources() must have failed
           throw new Exception("Unable to load compressed data!");
         }
@@ -935,8 +1110,8 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
         testStructure.setClassIndex(m_testClassIndex);
 
         // decompress the training fold
-        m_train = (Instances) m_compressedTrain.getObject();
-        m_compressedTrain = null;
+        m_train = m_encodedTrain.getInstances();
+        m_encodedTrain = null;
 
         ClassifierErrorsPlotInstances plotInstances =
           ExplorerDefaults.getClassifierErrorsPlotInstances();
@@ -1003,7 +1178,8 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
           m_persistedResult = WekaServer.getTempFile();
           oos =
             new ObjectOutputStream(new BufferedOutputStream(
-              new GZIPOutputStream(new FileOutputStream(m_persistedResult))));
+              Compression.compress(new FileOutputStream(m_persistedResult),
+                Compression.getDefault())));
           oos.writeObject(results);
           oos.flush();
           // successfully saved result - now save memory
@@ -1067,11 +1243,11 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
         oos =
           new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(
             m_persistedData)));
-        oos.writeObject(m_compressedTrain);
+        oos.writeObject(m_encodedTrain);
         oos.flush();
 
         // save memory
-        m_compressedTrain = null;
+        m_encodedTrain = null;
       } catch (Exception ex) {
         // don't panic, just can't save our resources
         // that's all
@@ -1092,13 +1268,13 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
      */
     @Override
     public void loadResources() {
-      if (m_persistedData != null && m_compressedTrain == null) {
+      if (m_persistedData != null && m_encodedTrain == null) {
         ObjectInputStream ois = null;
         try {
           ois =
             SerializationHelper.getObjectInputStream(new FileInputStream(
               m_persistedData));
-          m_compressedTrain = (SerializedObject) ois.readObject();
+          m_encodedTrain = SerializedInstances.valueOf(ois.readObject());
         } catch (Exception ex) {
           // OK, we will fail to run now
         } finally {
@@ -1128,8 +1304,8 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
       ObjectInputStream ois = null;
       try {
         ois =
-          SerializationHelper.getObjectInputStream(new GZIPInputStream(
-            new FileInputStream(m_persistedResult)));
+          SerializationHelper.getObjectInputStream(Compression
+            .decompress(new FileInputStream(m_persistedResult)));
         List results = (List) ois.readObject();
         m_result.setTaskResult(results);
       } finally {
@@ -1159,6 +1335,26 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
 
       }
     }
+
+    /**
+     * Get the files that this task currently has on disk
+     * 
+     * @return a list of files
+     */
+    @Override
+    public List<File> getPersistedFiles() {
+      return existingFiles(m_persistedData, m_persistedResult);
+    }
+
+    /**
+     * Get the file that holds the result of the last execution
+     * 
+     * @return the file or null if there is no persisted result
+     */
+    @Override
+    public File getPersistedResult() {
+      return m_persistedResult;
+    }
   }
 
   /**
@@ -1181,9 +1377,21 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
     protected Instances m_testFold;
 
     /** The compressed training fold */
+    protected SerializedInstances m_encodedTrain;
+
+    /**
+     * The compressed training fold of a task persisted by an older version.
+     * Converted to m_encodedTrain when the task is read back in.
+     */
     protected SerializedObject m_compressedTrain;
 
     /** The compressed test fold */
+    protected SerializedInstances m_encodedTest;
+
+    /**
+     * The compressed test fold of a task persisted by an older version.
+     * Converted to m_encodedTest when the task is read back in.
+     */
     protected SerializedObject m_compressedTest;
 
     /** The persisted training and test folds */
@@ -1214,8 +1422,28 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
 
       super(classifier, saveVis, outputCollector, costMatrix);
 
-      m_compressedTrain = new SerializedObject(trainingFold, true);
-      m_compressedTest = new SerializedObject(testFold, true);
+      m_encodedTrain = new SerializedInstances(trainingFold);
+      m_encodedTest = new SerializedInstances(testFold);
+    }
+
+    /**
+     * Converts the data of a task persisted by an older version
+     * 
+     * @param in the stream to read from
+     * @throws IOException if a problem occurs
+     * @throws ClassNotFoundException if a class can't be found
+     */
+    private void readObject(ObjectInputStream in) throws IOException,
+      ClassNotFoundException {
+      in.defaultReadObject();
+      if (m_compressedTrain != null) {
+        m_encodedTrain = SerializedInstances.valueOf(m_compressedTrain);
+        m_compressedTrain = null;
+      }
+      if (m_compressedTest != null) {
+        m_encodedTest = SerializedInstances.valueOf(m_compressedTest);
+        m_compressedTest = null;
+      }
     }
 
     /**
@@ -1225,14 +1453,14 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
     public void execute() {
       ObjectOutputStream oos = null;
       try {
-        if (m_compressedTrain == null) {
+        if (m_encodedTrain == null) {
           // loadResources() must have failed
           throw new Exception("Unable to load compressed data!");
         }
 
         // decompress the training fold
-        m_trainingFold = (Instances) m_compressedTrain.getObject();
-        m_compressedTrain = null;
+        m_trainingFold = m_encodedTrain.getInstances();
+        m_encodedTrain = null;
 
         ClassifierErrorsPlotInstances plotInstances =
           ExplorerDefaults.getClassifierErrorsPlotInstances();
@@ -1275,8 +1503,8 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
         m_trainingFold = null;
 
         // decompress the test fold
-        m_testFold = (Instances) m_compressedTest.getObject();
-        m_compressedTest = null;
+        m_testFold = m_encodedTest.getInstances();
+        m_encodedTest = null;
         if (m_foldNumber > 0) {
           m_log.logMessage("Testing classifier '" + classifierName
             + "' on fold " + m_foldNumber + " of '" + m_testFold.relationName()
@@ -1311,7 +1539,8 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
           m_persistedResult = WekaServer.getTempFile();
           oos =
             new ObjectOutputStream(new BufferedOutputStream(
-              new GZIPOutputStream(new FileOutputStream(m_persistedResult))));
+              Compression.compress(new FileOutputStream(m_persistedResult),
+                Compression.getDefault())));
           oos.writeObject(results);
           oos.flush();
 
@@ -1368,8 +1597,8 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
       try {
         /*
          * if (m_persistedData != null) { // we've already saved previously - no
-         * need to // do so again. Just save memory m_compressedTrain = null;
-         * m_compressedTest = null;
+         * need to // do so again. Just save memory m_encodedTrain = null;
+         * m_encodedTest = null;
          * 
          * return; }
          */
@@ -1385,13 +1614,13 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
         oos =
           new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(
             m_persistedData)));
-        oos.writeObject(m_compressedTrain);
-        oos.writeObject(m_compressedTest);
+        oos.writeObject(m_encodedTrain);
+        oos.writeObject(m_encodedTest);
         oos.flush();
 
         // save memory
-        m_compressedTrain = null;
-        m_compressedTest = null;
+        m_encodedTrain = null;
+        m_encodedTest = null;
       } catch (Exception ex) {
         // don't panic, just can't save our resources
         // that's all
@@ -1412,15 +1641,15 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
      */
     @Override
     public void loadResources() {
-      if (m_persistedData != null && m_compressedTrain == null
-        && m_compressedTest == null) {
+      if (m_persistedData != null && m_encodedTrain == null
+        && m_encodedTest == null) {
         ObjectInputStream ois = null;
         try {
           ois =
             SerializationHelper.getObjectInputStream(new FileInputStream(
               m_persistedData));
-          m_compressedTrain = (SerializedObject) ois.readObject();
-          m_compressedTest = (SerializedObject) ois.readObject();
+          m_encodedTrain = SerializedInstances.valueOf(ois.readObject());
+          m_encodedTest = SerializedInstances.valueOf(ois.readObject());
         } catch (Exception ex) {
           // OK, we will fail to run now
         } finally {
@@ -1450,8 +1679,8 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
       ObjectInputStream ois = null;
       try {
         ois =
-          SerializationHelper.getObjectInputStream(new GZIPInputStream(
-            new FileInputStream(m_persistedResult)));
+          SerializationHelper.getObjectInputStream(Compression
+            .decompress(new FileInputStream(m_persistedResult)));
         List results = (List) ois.readObject();
         m_result.setTaskResult(results);
       } finally {
@@ -1481,6 +1710,26 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
 
       }
     }
+
+    /**
+     * Get the files that this task currently has on disk
+     * 
+     * @return a list of files
+     */
+    @Override
+    public List<File> getPersistedFiles() {
+      return existingFiles(m_persistedData, m_persistedResult);
+    }
+
+    /**
+     * Get the file that holds the result of the last execution
+     * 
+     * @return the file or null if there is no persisted result
+     */
+    @Override
+    public File getPersistedResult() {
+      return m_persistedResult;
+    }
   }
 
   /**
@@ -2355,7 +2604,7 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
       int numFolds, Random random, boolean saveVis,
       boolean outputPredictionsText, CostMatrix costMatrix) {
 
-      List<String> taskIDs = new ArrayList<String>();
+      List<NamedTask> foldTasks = new ArrayList<NamedTask>();
       for (int fold = 0; fold < numFolds; fold++) {
         statusMessage("Creating splits for fold " + (fold + 1) + "...");
 
@@ -2390,20 +2639,22 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
               outputCollector, costMatrix);
         } catch (Exception ex) {
           ex.printStackTrace();
-          taskIDs = null;
-          break;
+          return null;
         }
         fTask.setName(current.getClass().getSimpleName() + "-CV_fold_"
           + (fold + 1));
-        String taskID = sendTaskToServer(fTask);
-        if (taskID != null && taskID.length() > 0) {
-          taskIDs.add(taskID);
-        } else {
-          // bail out here...
-          taskIDs = null;
-          break;
-        }
+        foldTasks.add(fTask);
+      }
 
+      // send all the folds in one request
+      statusMessage("Sending " + numFolds + " fold tasks to server...");
+      List<String> taskIDs = sendTasksToServer(foldTasks);
+      if (taskIDs == null || taskIDs.size() != foldTasks.size()) {
+        // bail out here...
+        return null;
+      }
+
+      for (int i = 0; i < taskIDs.size(); i++) {
         if (m_classifierPanel.getLog() instanceof TaskLogger) {
           ((TaskLogger) m_classifierPanel.getLog()).taskStarted();
         }
@@ -2453,13 +2704,16 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
     String taskID = null;
 
     try {
-      byte[] serializedTask = WekaServer.serializeTask(task);
 
       String service = ExecuteTaskServlet.CONTEXT_PATH + "/?client=Y";
       String url = constructURL(service);
       post = new PostMethod(url);
-      RequestEntity entity = new ByteArrayRequestEntity(serializedTask);
-      post.setRequestEntity(entity);
+      // serialized as it is sent - the data is compressed already, so it is
+      // only compressed again for servers that expect that
+      SerializedTaskRequestEntity entity =
+        new SerializedTaskRequestEntity(task,
+          Compression.forCompressedPayload(constructURL("")));
+      entity.attachTo(post);
 
       post.setDoAuthentication(true);
       post.addRequestHeader(new Header("Content-Type",
@@ -2472,6 +2726,7 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
         m_password);
 
       int result = client.executeMethod(post);
+      Compression.notePeer(constructURL(""), post);
       if (result == 401) {
         logMessage("Unable to send fold task to server - authentication "
           + "required");
@@ -2508,6 +2763,117 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
     return taskID;
   }
 
+  /**
+   * Send a batch of tasks to the server. The tasks go in one request, or one
+   * request per task if the server predates batch submission.
+   * 
+   * @param tasks the tasks to send
+   * @return the task IDs returned by the server (in the same order as the
+   *         tasks) or null if a problem occurs
+   */
+  protected List<String> sendTasksToServer(List<NamedTask> tasks) {
+    String server = constructURL("");
+    if (!server.equals(m_noBatchServer)) {
+      List<String> taskIDs = sendBatchToServer(tasks);
+      if (taskIDs != null || !server.equals(m_noBatchServer)) {
+        return taskIDs;
+      }
+      logMessage("Server does not accept batch submissions - sending "
+        + "tasks one at a time");
+    }
+
+    List<String> taskIDs = new ArrayList<String>();
+    for (NamedTask t : tasks) {
+      String taskID = sendTaskToServer(t);
+      if (taskID == null) {
+        return null;
+      }
+      taskIDs.add(taskID);
+    }
+    return taskIDs;
+  }
+
+  /**
+   * Send a batch of tasks to the server in one request. Notes the server in
+   * m_noBatchServer if it turns out not to accept batch submissions.
+   * 
+   * @param tasks the tasks to send
+   * @return the task IDs returned by the server (in the same order as the
+   *         tasks) or null if a problem occurs
+   */
+  @SuppressWarnings("unchecked")
+  protected List<String> sendBatchToServer(List<NamedTask> tasks) {
+
+    InputStream is = null;
+    PostMethod post = null;
+    List<String> taskIDs = null;
+
+    try {
+
+      String service = ExecuteTaskServlet.CONTEXT_PATH + "/?client=Y&batch=Y";
+      String url = constructURL(service);
+      post = new PostMethod(url);
+      // serialized as it is sent - the data is compressed already, so it is
+      // only compressed again for servers that expect that
+      SerializedTaskRequestEntity entity =
+        new SerializedTaskRequestEntity(new ArrayList<NamedTask>(tasks),
+          Compression.forCompressedPayload(constructURL("")));
+      entity.attachTo(post);
+
+      post.setDoAuthentication(true);
+      post.addRequestHeader(new Header("Content-Type",
+        "application/octet-stream"));
+
+      // Get HTTP client
+      HttpClient client =
+        WekaServer.ConnectionManager.getSingleton().createHttpClient();
+      WekaServer.ConnectionManager.addCredentials(client, m_username,
+        m_password);
+
+      int result = client.executeMethod(post);
+      Compression.notePeer(constructURL(""), post);
+      if (result == 401) {
+        logMessage("Unable to send fold tasks to server - authentication "
+          + "required");
+      } else {
+        is = post.getResponseBodyAsStream();
+        ObjectInputStream ois = SerializationHelper.getObjectInputStream(is);
+        Object response = ois.readObject();
+        if (response instanceof List) {
+          taskIDs = (List<String>) response;
+        } else if (post
+          .getResponseHeader(ExecuteTaskServlet.BATCH_HEADER) == null
+          && response.toString().contains(
+            ExecuteTaskServlet.NOT_A_TASK_MESSAGE)) {
+          // servers that know about batches answer with the batch header -
+          // older ones reject the list as not being a task
+          m_noBatchServer = constructURL("");
+        } else {
+          logMessage("A problem occurred at the sever : \n" + "\t"
+            + response.toString());
+        }
+      }
+    } catch (Exception ex) {
+      logMessage("An error occurred while sending fold tasks to server: "
+        + ex.getMessage());
+      ex.printStackTrace();
+    } finally {
+      if (is != null) {
+        try {
+          is.close();
+        } catch (Exception e) {
+        }
+      }
+
+      if (post != null) {
+        // Release current connection to the connection pool
+        post.releaseConnection();
+      }
+    }
+
+    return taskIDs;
+  }
+
   /**
    * Purge the supplied tasks from the server
    * 
@@ -2583,10 +2949,12 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
 
     try {
       String service =
-        GetTaskResultServlet.CONTEXT_PATH + "/?name=" + taskID + "&client=Y";
+        GetTaskResultServlet.CONTEXT_PATH + "/?name=" + taskID + "&client=Y"
+          + "&" + GetTaskResultServlet.STREAM_KEY + "=Y";
       post = new PostMethod(constructURL(service));
       post.setDoAuthentication(true);
       post.addRequestHeader(new Header("Content-Type", "text/plain"));
+      Compression.requestCodecs(post);
 
       // Get HTTP client
       HttpClient client =
@@ -2600,10 +2968,7 @@ public class ClassifierPanelRemoteLauncher extends JPanel implements
           + "required");
       } else {
         is = post.getResponseBodyAsStream();
-        ObjectInputStream ois =
-          SerializationHelper.getObjectInputStream(new BufferedInputStream(
-            new GZIPInputStream(is)));
-        Object response = ois.readObject();
+        Object response = GetTaskResultServlet.readResponse(post);
         if (response.toString().startsWith(WekaServlet.RESPONSE_ERROR)) {
 
           logMessage("Server returned an error: "
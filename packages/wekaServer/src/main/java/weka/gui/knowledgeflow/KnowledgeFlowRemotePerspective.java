@@ -52,8 +52,11 @@ import weka.server.GetTaskListServlet;
 import weka.server.GetTaskResultServlet;
 import weka.server.GetTaskStatusServlet;
 import weka.server.JSONProtocol;
+import weka.server.Legacy;
 import weka.server.NamedTask;
 import weka.server.Schedule;
+import weka.server.TaskEventBus;
+import weka.server.TaskEventsServlet;
 import weka.server.WekaServer;
 import weka.server.WekaServlet;
 import weka.server.WekaTaskMap;
@@ -91,6 +94,7 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -439,6 +443,9 @@ public class KnowledgeFlowRemotePerspective extends AbstractPerspective {
     /** Current monitoring interval */
     protected int m_monitorInterval = 15; // 15 seconds
 
+    /** Longest time to wait for task events in one request (seconds) */
+    protected static final int TASK_EVENT_TIMEOUT = 30;
+
     protected String m_username = "";
     protected String m_password = "";
 
@@ -788,6 +795,74 @@ public class KnowledgeFlowRemotePerspective extends AbstractPerspective {
       final LogPanel theLog = addTab(taskName);
 
       Thread monitorThread = new Thread() {
+
+        /** The last task events returned (null if none yet) */
+        protected TaskEventBus.TaskEvents m_lastEvents;
+
+        /** False if the server doesn't support task events */
+        protected boolean m_useEvents = true;
+
+        /**
+         * Wait until the status of the task needs checking. This is as soon
+         * as its execution status changes, or at the end of the monitoring
+         * interval if it has logged anything. If the server doesn't support
+         * task events then this is just the end of the monitoring interval.
+         *
+         * @param client the HTTP client to use
+         * @throws InterruptedException if the thread is interrupted
+         */
+        protected void waitForChange(HttpClient client)
+          throws InterruptedException {
+          long due = System.currentTimeMillis() + m_monitorInterval * 1000L;
+          List<String> ids = new ArrayList<String>();
+          ids.add(taskName);
+          String url =
+            constructURL(TaskEventsServlet.CONTEXT_PATH + "/?"
+              + Legacy.LEGACY_CLIENT_KEY + "=Y");
+
+          boolean logged = false;
+          while (m_useEvents && !isInterrupted()) {
+            int timeout = TASK_EVENT_TIMEOUT;
+            if (logged) {
+              timeout =
+                (int) Math.max(0, (due - System.currentTimeMillis()) / 1000);
+            }
+            TaskEventBus.TaskEvents events = null;
+            try {
+              events =
+                TaskEventsServlet.getEventsRemote(client, url, ids,
+                  m_lastEvents, m_lastEvents == null ? 0 : timeout);
+            } catch (Exception ex) {
+              // fall back to polling
+            }
+            if (events == null) {
+              m_useEvents = false;
+              break;
+            }
+
+            boolean first = m_lastEvents == null;
+            m_lastEvents = events;
+            if (first || events.isReset()) {
+              return;
+            }
+            for (TaskEventBus.TaskEvent e : events.getEvents()) {
+              if (e.getType() == TaskEventBus.STATUS
+                || e.getType() == TaskEventBus.REMOVED) {
+                return;
+              }
+              logged = true;
+            }
+            if (logged && System.currentTimeMillis() >= due) {
+              return;
+            }
+          }
+
+          long wait = due - System.currentTimeMillis();
+          if (wait > 0) {
+            sleep(wait);
+          }
+        }
+
         @Override
         public void run() {
           Schedule sched = getScheduleForTask(taskName);
@@ -813,10 +888,10 @@ public class KnowledgeFlowRemotePerspective extends AbstractPerspective {
                   // sleep until this task's start time
                   sleep(sched.getStartDate().getTime() - now.getTime());
                 } else {
-                  sleep(m_monitorInterval * 1000);
+                  waitForChange(client);
                 }
               } else {
-                sleep(m_monitorInterval * 1000);
+                waitForChange(client);
               }
 
               String service =
@@ -0,0 +1,517 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    Base64Codec.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Random;
+
+import weka.core.SerializationHelper;
+
+/**
+ * Streaming codec for the compressed, base64 encoded objects used by the JSON
+ * protocol. Objects are serialized through gzip through base64 straight onto
+ * a writer, and decoded the same way in reverse from a reader, so the only
+ * memory used beyond the object itself is the stream buffers. The encoding is
+ * standard base64 (with padding and no line breaks), the same as produced by
+ * commons-codec's Base64.encodeBase64().
+ * <p>
+ *
+ * Run main() for a benchmark of encoding and decoding payloads of increasing
+ * size.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class Base64Codec {
+
+  /** The base64 alphabet */
+  protected static final char[] ALPHABET =
+    "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+      .toCharArray();
+
+  /** Maps characters to their value in the alphabet (-1 if not in it) */
+  protected static final int[] VALUES = new int[128];
+
+  static {
+    for (int i = 0; i < VALUES.length; i++) {
+      VALUES[i] = -1;
+    }
+    for (int i = 0; i < ALPHABET.length; i++) {
+      VALUES[ALPHABET[i]] = i;
+    }
+  }
+
+  /** Size of the stream buffers */
+  protected static final int BUFFER_SIZE = 65536;
+
+  /**
+   * Output stream that writes the base64 encoding of the bytes written to it
+   * to a writer. Closing the stream writes any padding and flushes the
+   * writer, but does not close it.
+   */
+  public static class Base64OutputStream extends OutputStream {
+
+    protected Writer m_out;
+
+    /** Encoded characters waiting to be written */
+    protected char[] m_chars = new char[4096];
+    protected int m_numChars;
+
+    /** Bytes waiting to be encoded (up to 3) */
+    protected int m_pending;
+    protected int m_numPending;
+
+    protected boolean m_closed;
+
+    public Base64OutputStream(Writer out) {
+      m_out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      m_pending = (m_pending << 8) | (b & 0xff);
+      if (++m_numPending == 3) {
+        encodePending();
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      int end = off + len;
+      // finish off a partial group
+      while (m_numPending != 0 && off < end) {
+        write(b[off++]);
+      }
+
+      // whole groups
+      while (end - off >= 3) {
+        if (m_numChars + 4 > m_chars.length) {
+          flushChars();
+        }
+        int group =
+          ((b[off] & 0xff) << 16) | ((b[off + 1] & 0xff) << 8)
+            | (b[off + 2] & 0xff);
+        m_chars[m_numChars++] = ALPHABET[(group >>> 18) & 0x3f];
+        m_chars[m_numChars++] = ALPHABET[(group >>> 12) & 0x3f];
+        m_chars[m_numChars++] = ALPHABET[(group >>> 6) & 0x3f];
+        m_chars[m_numChars++] = ALPHABET[group & 0x3f];
+        off += 3;
+      }
+
+      while (off < end) {
+        write(b[off++]);
+      }
+    }
+
+    /**
+     * Encode the pending group of bytes
+     */
+    protected void encodePending() throws IOException {
+      if (m_numChars + 4 > m_chars.length) {
+        flushChars();
+      }
+      int group = m_pending << (8 * (3 - m_numPending));
+      m_chars[m_numChars++] = ALPHABET[(group >>> 18) & 0x3f];
+      m_chars[m_numChars++] = ALPHABET[(group >>> 12) & 0x3f];
+      m_chars[m_numChars++] =
+        m_numPending > 1 ? ALPHABET[(group >>> 6) & 0x3f] : '=';
+      m_chars[m_numChars++] = m_numPending > 2 ? ALPHABET[group & 0x3f] : '=';
+      m_pending = 0;
+      m_numPending = 0;
+    }
+
+    protected void flushChars() throws IOException {
+      m_out.write(m_chars, 0, m_numChars);
+      m_numChars = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      // a partial group can only be written once we know it is the last
+      flushChars();
+      m_out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (m_closed) {
+        return;
+      }
+      m_closed = true;
+      if (m_numPending > 0) {
+        encodePending();
+      }
+      flush();
+    }
+  }
+
+  /**
+   * Input stream that decodes the base64 characters read from a reader.
+   * Whitespace is ignored; decoding stops at padding or the end of the
+   * reader.
+   */
+  public static class Base64InputStream extends InputStream {
+
+    protected Reader m_in;
+
+    /** Characters read but not decoded yet */
+    protected char[] m_chars = new char[4096];
+    protected int m_charPos;
+    protected int m_numChars;
+
+    /** Decoded bytes not handed out yet */
+    protected byte[] m_bytes = new byte[3];
+    protected int m_bytePos;
+    protected int m_numBytes;
+
+    protected boolean m_eof;
+
+    public Base64InputStream(Reader in) {
+      m_in = in;
+    }
+
+    /**
+     * Get the value of the next base64 character
+     *
+     * @return the value, -2 for padding or -1 at the end of the input
+     * @throws IOException if the input contains a character outside the
+     *           alphabet
+     */
+    protected int nextValue() throws IOException {
+      while (true) {
+        if (m_charPos == m_numChars) {
+          m_numChars = m_in.read(m_chars, 0, m_chars.length);
+          m_charPos = 0;
+          if (m_numChars <= 0) {
+            m_numChars = 0;
+            return -1;
+          }
+        }
+        char c = m_chars[m_charPos++];
+        if (c == '=') {
+          return -2;
+        }
+        if (c < VALUES.length && VALUES[c] >= 0) {
+          return VALUES[c];
+        }
+        if (!Character.isWhitespace(c)) {
+          throw new IOException("Illegal base64 character: '" + c + "'");
+        }
+      }
+    }
+
+    /**
+     * Decode the next group of (up to) four characters
+     *
+     * @return false if there is nothing left to decode
+     */
+    protected boolean decodeGroup() throws IOException {
+      if (m_eof) {
+        return false;
+      }
+      int group = 0;
+      int n = 0;
+      while (n < 4) {
+        int v = nextValue();
+        if (v < 0) {
+          m_eof = true;
+          break;
+        }
+        group = (group << 6) | v;
+        n++;
+      }
+      if (n < 2) {
+        return false;
+      }
+      group <<= 6 * (4 - n);
+      m_numBytes = n - 1;
+      m_bytes[0] = (byte) (group >>> 16);
+      m_bytes[1] = (byte) (group >>> 8);
+      m_bytes[2] = (byte) group;
+      m_bytePos = 0;
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (m_bytePos == m_numBytes && !decodeGroup()) {
+        return -1;
+      }
+      return m_bytes[m_bytePos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      int count = 0;
+      while (count < len) {
+        if (m_bytePos == m_numBytes && !decodeGroup()) {
+          break;
+        }
+        int n = Math.min(m_numBytes - m_bytePos, len - count);
+        System.arraycopy(m_bytes, m_bytePos, b, off + count, n);
+        m_bytePos += n;
+        count += n;
+      }
+      return count == 0 ? -1 : count;
+    }
+
+    @Override
+    public void close() throws IOException {
+      m_in.close();
+    }
+  }
+
+  /**
+   * Serialize, gzip compress and base64 encode an object onto a writer. The
+   * writer is flushed but not closed.
+   *
+   * @param toEncode the object to encode
+   * @param out the writer to write to
+   * @throws IOException if a problem occurs
+   */
+  public static void encode(Object toEncode, Writer out) throws IOException {
+    encode(toEncode, out, Compression.GZIP);
+  }
+
+  /**
+   * Serialize, compress and base64 encode an object onto a writer. The writer
+   * is flushed but not closed.
+   *
+   * @param toEncode the object to encode
+   * @param out the writer to write to
+   * @param codec the codec to compress with
+   * @throws IOException if a problem occurs
+   */
+  public static void encode(Object toEncode, Writer out,
+    Compression.Codec codec) throws IOException {
+    ObjectOutputStream oos =
+      new ObjectOutputStream(new BufferedOutputStream(Compression.compress(
+        new Base64OutputStream(out), codec), BUFFER_SIZE));
+    oos.writeObject(toEncode);
+    oos.close();
+  }
+
+  /**
+   * Serialize, compress and base64 encode an object to a string
+   *
+   * @param toEncode the object to encode
+   * @return the encoded object
+   * @throws IOException if a problem occurs
+   */
+  public static String encode(Object toEncode) throws IOException {
+    StringWriter out = new StringWriter();
+    encode(toEncode, out);
+    return out.toString();
+  }
+
+  /**
+   * Decode an object encoded by encode() (with any codec) from a reader
+   *
+   * @param in the reader to read from
+   * @return the decoded object
+   * @throws Exception if a problem occurs
+   */
+  public static Object decode(Reader in) throws Exception {
+    ObjectInputStream ois =
+      SerializationHelper.getObjectInputStream(new BufferedInputStream(
+        Compression.decompress(new BufferedInputStream(new Base64InputStream(
+          in), BUFFER_SIZE)), BUFFER_SIZE));
+    try {
+      return ois.readObject();
+    } finally {
+      ois.close();
+    }
+  }
+
+  /**
+   * Decode an object encoded by encode() from a string
+   *
+   * @param base64 the encoded object
+   * @return the decoded object
+   * @throws Exception if a problem occurs
+   */
+  public static Object decode(String base64) throws Exception {
+    return decode(new StringReader(base64));
+  }
+
+  /**
+   * Writer that just counts the characters written to it
+   */
+  protected static class CountingWriter extends Writer {
+    protected long m_count;
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      m_count += len;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /**
+   * Reader that produces the encoding of an object on the fly (in another
+   * thread), so that the encoding is never held in memory
+   */
+  protected static class EncodingReader extends Reader {
+    protected PipedInputStream m_in;
+    protected byte[] m_buffer = new byte[4096];
+
+    public EncodingReader(final Object toEncode) throws IOException {
+      m_in = new PipedInputStream(BUFFER_SIZE);
+      final PipedOutputStream out = new PipedOutputStream(m_in);
+      Thread t = new Thread("Base64Codec encoder") {
+        @Override
+        public void run() {
+          try {
+            Writer w = new OutputStreamWriter(out, "US-ASCII");
+            encode(toEncode, w);
+            w.close();
+          } catch (IOException ex) {
+            ex.printStackTrace();
+          }
+        }
+      };
+      t.setDaemon(true);
+      t.start();
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+      int n = m_in.read(m_buffer, 0, Math.min(len, m_buffer.length));
+      for (int i = 0; i < n; i++) {
+        cbuf[off + i] = (char) m_buffer[i];
+      }
+      return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+      m_in.close();
+    }
+  }
+
+  /**
+   * Get the peak heap usage since the last call to resetPeakHeap()
+   *
+   * @return the peak heap usage (bytes)
+   */
+  protected static long peakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
+  /**
+   * Reset the peak heap usage
+   */
+  protected static void resetPeakHeap() {
+    System.gc();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        pool.resetPeakUsage();
+      }
+    }
+  }
+
+  /**
+   * Benchmark encoding and decoding payloads of increasing size. Payloads are
+   * encoded onto a writer that discards its output and decoded from a reader
+   * that encodes on the fly, so neither the encoding nor any intermediate
+   * copies of the payload need to be held in memory. The heap used by the
+   * codec (over and above the payload and the decoded copy of it) should
+   * stay flat as the payload grows, and the time taken should grow linearly.
+   *
+   * @param args optional: the largest payload size in MB (default 128)
+   */
+  public static void main(String[] args) {
+    try {
+      int maxMB = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+      Random r = new Random(1);
+
+      System.out.println("Payload (MB)\tEncoded (MB)\tEncode (ms)\t"
+        + "Decode (ms)\tCodec heap (MB)");
+      for (int mb = 1; mb <= maxMB; mb *= 2) {
+        // a payload that is only partially compressible
+        byte[] payload = new byte[mb * 1024 * 1024];
+        for (int i = 0; i < payload.length; i += 4) {
+          payload[i] = (byte) r.nextInt();
+        }
+
+        resetPeakHeap();
+        long base = peakHeap();
+        long start = System.currentTimeMillis();
+        CountingWriter counter = new CountingWriter();
+        encode(payload, counter);
+        long encodeTime = System.currentTimeMillis() - start;
+        long encodeHeap = peakHeap() - base;
+
+        resetPeakHeap();
+        base = peakHeap();
+        start = System.currentTimeMillis();
+        byte[] decoded = (byte[]) decode(new EncodingReader(payload));
+        long decodeTime = System.currentTimeMillis() - start;
+        if (decoded.length != payload.length) {
+          throw new Exception("Decoded payload has the wrong length!");
+        }
+        long decodeHeap = peakHeap() - base - decoded.length;
+        decoded = null;
+
+        System.out.println(mb + "\t\t"
+          + String.format("%.1f", counter.m_count / (1024.0 * 1024.0))
+          + "\t\t" + encodeTime + "\t\t" + decodeTime + "\t\t"
+          + String.format("%.1f", Math.max(encodeHeap, decodeHeap)
+            / (1024.0 * 1024.0)));
+      }
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,395 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    ClusterLoadRegistry.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the load on the slaves of a master server, as reported by the
+ * slaves' heartbeats. Slaves are kept ordered by effective load - the load
+ * reported in the last heartbeat plus the tasks that we have dispatched to the
+ * slave that the heartbeat didn't account for - so that the least loaded slave
+ * can be found without talking to any of them. Slaves that have not sent a
+ * heartbeat within three of their heartbeat intervals are considered stale and
+ * are not used.
+ * <p>
+ * Each hand-off to a slave carries a dispatch token (see sending()), and the
+ * slave's heartbeat includes the token of the last hand-off it had received
+ * when it built its report. Only the hand-offs up to that token are taken as
+ * included in the reported load; the rest still count against the slave.
+ * Tokens include an id that changes whenever the slave is (re)registered or
+ * we restart, so a token from an earlier registration is never trusted.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class ClusterLoadRegistry {
+
+  /** Number of missed heartbeats after which a slave is considered stale */
+  public static final int STALE_HEARTBEATS = 3;
+
+  /**
+   * Load information for a single slave. Instances are immutable so that they
+   * can be held in the sorted set; any change produces a new instance.
+   */
+  public static class SlaveLoad implements Comparable<SlaveLoad> {
+
+    /** The slave (host:port) */
+    protected final String m_slave;
+
+    /** Load reported by the slave */
+    protected final double m_reportedLoad;
+
+    /** Number of execution slots on the slave */
+    protected final int m_numSlots;
+
+    /** Number of running tasks reported by the slave */
+    protected final int m_running;
+
+    /** Number of queued tasks reported by the slave */
+    protected final int m_queued;
+
+    /** The slave's load adjust factor */
+    protected final double m_loadAdjust;
+
+    /** Heartbeat interval of the slave (milliseconds) */
+    protected final long m_interval;
+
+    /** Local time that the heartbeat arrived */
+    protected final long m_reportTime;
+
+    /** Tasks dispatched to the slave (in total) */
+    protected final long m_dispatched;
+
+    /** Hand-offs accounted for by the last heartbeat */
+    protected final long m_acknowledged;
+
+    /** Used to break ties */
+    protected final long m_sequence;
+
+    public SlaveLoad(String slave, double reportedLoad, int numSlots,
+      int running, int queued, double loadAdjust, long interval,
+      long reportTime, long dispatched, long acknowledged, long sequence) {
+      m_slave = slave;
+      m_reportedLoad = reportedLoad;
+      m_numSlots = numSlots > 0 ? numSlots : 1;
+      m_running = running;
+      m_queued = queued;
+      m_loadAdjust = loadAdjust > 0 ? loadAdjust : 1.0;
+      m_interval = interval;
+      m_reportTime = reportTime;
+      m_dispatched = dispatched;
+      m_acknowledged = acknowledged;
+      m_sequence = sequence;
+    }
+
+    public String getSlave() {
+      return m_slave;
+    }
+
+    public double getReportedLoad() {
+      return m_reportedLoad;
+    }
+
+    public int getNumSlots() {
+      return m_numSlots;
+    }
+
+    public int getRunning() {
+      return m_running;
+    }
+
+    public int getQueued() {
+      return m_queued;
+    }
+
+    public long getReportTime() {
+      return m_reportTime;
+    }
+
+    /**
+     * Get the number of tasks dispatched to the slave that its last heartbeat
+     * didn't account for
+     *
+     * @return the number of unacknowledged tasks
+     */
+    public int getDispatchedSinceReport() {
+      return (int) Math.max(0, m_dispatched - m_acknowledged);
+    }
+
+    /**
+     * Get the load, taking into account the tasks that have been dispatched to
+     * the slave that its last heartbeat didn't account for
+     *
+     * @return the effective load
+     */
+    public double getEffectiveLoad() {
+      return m_reportedLoad
+        + (getDispatchedSinceReport() * m_loadAdjust / m_numSlots);
+    }
+
+    /**
+     * Returns true if the slave has missed too many heartbeats
+     *
+     * @param now the current time
+     * @return true if the slave is stale
+     */
+    public boolean isStale(long now) {
+      return now - m_reportTime > STALE_HEARTBEATS * m_interval;
+    }
+
+    @Override
+    public int compareTo(SlaveLoad o) {
+      int result = Double.compare(getEffectiveLoad(), o.getEffectiveLoad());
+      if (result == 0) {
+        result = m_slave.compareTo(o.m_slave);
+      }
+      if (result == 0) {
+        result = m_sequence < o.m_sequence ? -1
+          : (m_sequence == o.m_sequence ? 0 : 1);
+      }
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return m_slave + " (load " + getEffectiveLoad() + ")";
+    }
+  }
+
+  /** Current load information by slave */
+  protected final ConcurrentHashMap<String, SlaveLoad> m_bySlave =
+    new ConcurrentHashMap<String, SlaveLoad>();
+
+  /** Current load information ordered by effective load */
+  protected final ConcurrentSkipListSet<SlaveLoad> m_byLoad =
+    new ConcurrentSkipListSet<SlaveLoad>();
+
+  /** Version counter for load entries */
+  protected final AtomicLong m_sequence = new AtomicLong();
+
+  /**
+   * Counts the tasks dispatched, and the hand-offs sent, to one slave
+   */
+  protected static class DispatchCounter {
+
+    /** Identifies this counter in dispatch tokens */
+    protected final String m_id = UUID.randomUUID().toString();
+
+    /** Tasks dispatched (counted when the slave is chosen) */
+    protected final AtomicLong m_dispatched = new AtomicLong();
+
+    /** Hand-offs sent */
+    protected final AtomicLong m_sent = new AtomicLong();
+  }
+
+  /** Dispatch counters by slave */
+  protected final ConcurrentHashMap<String, DispatchCounter> m_counters =
+    new ConcurrentHashMap<String, DispatchCounter>();
+
+  /**
+   * Get the dispatch counter for a slave
+   *
+   * @param slave the slave (host:port)
+   * @return the counter
+   */
+  protected DispatchCounter getCounter(String slave) {
+    DispatchCounter c = m_counters.get(slave);
+    if (c == null) {
+      DispatchCounter newC = new DispatchCounter();
+      c = m_counters.putIfAbsent(slave, newC);
+      if (c == null) {
+        c = newC;
+      }
+    }
+    return c;
+  }
+
+  /**
+   * Replace the entry for a slave
+   *
+   * @param old the old entry (may be null)
+   * @param updated the new entry
+   * @return true if the old entry was still current
+   */
+  protected boolean replace(SlaveLoad old, SlaveLoad updated) {
+    if (old == null) {
+      if (m_bySlave.putIfAbsent(updated.m_slave, updated) != null) {
+        return false;
+      }
+    } else if (!m_bySlave.replace(updated.m_slave, old, updated)) {
+      return false;
+    }
+
+    m_byLoad.add(updated);
+    if (old != null) {
+      m_byLoad.remove(old);
+    }
+    return true;
+  }
+
+  /**
+   * Record a heartbeat from a slave
+   *
+   * @param slave the slave (host:port)
+   * @param load the load reported by the slave
+   * @param numSlots the number of execution slots on the slave
+   * @param running the number of running tasks on the slave
+   * @param queued the number of queued tasks on the slave
+   * @param loadAdjust the load adjust factor of the slave
+   * @param interval the slave's heartbeat interval (milliseconds)
+   * @param lastReceived the token of the last hand-off the slave had received
+   *          when it built the report (null if it didn't send one, in which
+   *          case all hand-offs sent so far are taken as accounted for)
+   */
+  public void heartbeat(String slave, double load, int numSlots, int running,
+    int queued, double loadAdjust, long interval, String lastReceived) {
+    DispatchCounter c = getCounter(slave);
+    long acknowledged = c.m_sent.get();
+    if (lastReceived != null) {
+      int dot = lastReceived.lastIndexOf('.');
+      acknowledged = 0;
+      if (dot > 0 && lastReceived.substring(0, dot).equals(c.m_id)) {
+        try {
+          acknowledged = Long.parseLong(lastReceived.substring(dot + 1));
+        } catch (NumberFormatException ex) {
+          // nothing acknowledged
+        }
+      }
+    }
+
+    SlaveLoad updated;
+    SlaveLoad old;
+    do {
+      old = m_bySlave.get(slave);
+      updated =
+        new SlaveLoad(slave, load, numSlots, running, queued, loadAdjust,
+          interval, System.currentTimeMillis(), c.m_dispatched.get(),
+          acknowledged, m_sequence.incrementAndGet());
+    } while (!replace(old, updated));
+  }
+
+  /**
+   * Record that a task has been dispatched to a slave
+   *
+   * @param slave the slave (host:port)
+   */
+  public void dispatched(String slave) {
+    getCounter(slave).m_dispatched.incrementAndGet();
+    updateDispatched(slave);
+  }
+
+  /**
+   * Record that a task counted by dispatched() won't be sent after all
+   *
+   * @param slave the slave (host:port)
+   */
+  public void undispatched(String slave) {
+    getCounter(slave).m_dispatched.decrementAndGet();
+    updateDispatched(slave);
+  }
+
+  /**
+   * Get the token to send with a hand-off to a slave. The slave sends back
+   * the token of the last hand-off it received in its heartbeats.
+   *
+   * @param slave the slave (host:port)
+   * @return the token
+   */
+  public String sending(String slave) {
+    DispatchCounter c = getCounter(slave);
+    return c.m_id + "." + c.m_sent.incrementAndGet();
+  }
+
+  /**
+   * Bring the dispatched count of a slave's load entry up to date
+   *
+   * @param slave the slave (host:port)
+   */
+  protected void updateDispatched(String slave) {
+    DispatchCounter c = getCounter(slave);
+    while (true) {
+      SlaveLoad old = m_bySlave.get(slave);
+      if (old == null) {
+        return;
+      }
+      SlaveLoad updated =
+        new SlaveLoad(old.m_slave, old.m_reportedLoad, old.m_numSlots,
+          old.m_running, old.m_queued, old.m_loadAdjust, old.m_interval,
+          old.m_reportTime, c.m_dispatched.get(), old.m_acknowledged,
+          m_sequence.incrementAndGet());
+      if (replace(old, updated)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Forget about a slave
+   *
+   * @param slave the slave (host:port)
+   */
+  public void remove(String slave) {
+    SlaveLoad old = m_bySlave.remove(slave);
+    if (old != null) {
+      m_byLoad.remove(old);
+    }
+    m_counters.remove(slave);
+  }
+
+  /**
+   * Get the current load information for a slave
+   *
+   * @param slave the slave (host:port)
+   * @return the load information or null if the slave has not sent a
+   *         heartbeat
+   */
+  public SlaveLoad getLoad(String slave) {
+    return m_bySlave.get(slave);
+  }
+
+  /**
+   * Returns true if the slave has sent a heartbeat recently enough for its
+   * load information to be used
+   *
+   * @param slave the slave (host:port)
+   * @return true if the slave's load information is current
+   */
+  public boolean isCurrent(String slave) {
+    SlaveLoad l = m_bySlave.get(slave);
+    return l != null && !l.isStale(System.currentTimeMillis());
+  }
+
+  /**
+   * Iterate over the slaves in ascending order of effective load. Stale
+   * entries are included (check with SlaveLoad.isStale()).
+   *
+   * @return an iterator over the load information
+   */
+  public Iterator<SlaveLoad> ascendingLoad() {
+    return m_byLoad.iterator();
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    ClusterMonitor.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Keeps a snapshot of the state of a server's slaves and tasks up to date in
+ * the background, so that the status page doesn't have to talk to every slave
+ * and look at every task each time it is shown. Slave loads come from the
+ * slaves' heartbeats where these are current; other slaves are asked for
+ * their load through the server's SlaveLoadPoller. Next execution times of
+ * scheduled tasks are only recomputed when a task's last execution changes
+ * (or the time computed has passed). Tasks that have not been recovered yet
+ * are not loaded - their indexed status is used instead.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class ClusterMonitor {
+
+  /** Default time between refreshes of the snapshot (milliseconds) */
+  public static final long DEFAULT_REFRESH_INTERVAL = 5000;
+
+  /**
+   * A next execution time and what it was computed from
+   */
+  protected static class NextExecution {
+    protected Schedule m_schedule;
+    protected Date m_lastExecution;
+    protected Date m_next;
+  }
+
+  /** The server */
+  protected WekaServer m_server;
+
+  /** The server's tasks */
+  protected WekaTaskMap m_taskMap;
+
+  /** The current snapshot */
+  protected volatile ClusterSnapshot m_snapshot;
+
+  /** Next execution times computed by the last refresh, keyed by task */
+  protected Map<String, NextExecution> m_nextExecutions =
+    new HashMap<String, NextExecution>();
+
+  /** Time between refreshes (milliseconds) */
+  protected long m_refreshInterval = DEFAULT_REFRESH_INTERVAL;
+
+  /** The thread that refreshes the snapshot */
+  protected Thread m_refreshThread;
+
+  /**
+   * Constructor
+   *
+   * @param server the server
+   * @param taskMap the server's tasks
+   */
+  public ClusterMonitor(WekaServer server, WekaTaskMap taskMap) {
+    m_server = server;
+    m_taskMap = taskMap;
+  }
+
+  /**
+   * Set the time between refreshes of the snapshot
+   *
+   * @param interval the interval (milliseconds)
+   */
+  public void setRefreshInterval(long interval) {
+    m_refreshInterval = interval;
+  }
+
+  /**
+   * Get the time between refreshes of the snapshot
+   *
+   * @return the interval (milliseconds)
+   */
+  public long getRefreshInterval() {
+    return m_refreshInterval;
+  }
+
+  /**
+   * Get the current snapshot. Builds one if there isn't one yet.
+   *
+   * @return the snapshot
+   */
+  public ClusterSnapshot getSnapshot() {
+    ClusterSnapshot snapshot = m_snapshot;
+    if (snapshot == null) {
+      snapshot = refresh();
+    }
+    return snapshot;
+  }
+
+  /**
+   * Get the last snapshot built, without building one if there isn't one
+   *
+   * @return the snapshot or null if none has been built yet
+   */
+  public ClusterSnapshot getLastSnapshot() {
+    return m_snapshot;
+  }
+
+  /**
+   * Build a new snapshot
+   *
+   * @return the new snapshot
+   */
+  public synchronized ClusterSnapshot refresh() {
+    long start = System.currentTimeMillis();
+
+    List<ClusterSnapshot.SlaveState> slaves =
+      new ArrayList<ClusterSnapshot.SlaveState>();
+    ClusterLoadRegistry registry = m_server.getClusterLoadRegistry();
+    Map<String, ClusterLoadRegistry.SlaveLoad> reported =
+      new HashMap<String, ClusterLoadRegistry.SlaveLoad>();
+    List<String> toPoll = new ArrayList<String>();
+    Set<String> allSlaves = new TreeSet<String>(m_server.getSlaves());
+    for (String slave : allSlaves) {
+      ClusterLoadRegistry.SlaveLoad load = registry.getLoad(slave);
+      if (load != null && !load.isStale(start)) {
+        reported.put(slave, load);
+      } else {
+        toPoll.add(slave);
+      }
+    }
+    SlaveLoadPoller.Result polled =
+      toPoll.size() > 0 ? m_server.getLoadPoller().poll(toPoll) : null;
+    for (String slave : allSlaves) {
+      ClusterLoadRegistry.SlaveLoad load = reported.get(slave);
+      if (load != null) {
+        slaves.add(new ClusterSnapshot.SlaveState(slave, load
+          .getReportedLoad(), true));
+      } else {
+        slaves.add(new ClusterSnapshot.SlaveState(slave, polled
+          .getLoad(slave), false));
+      }
+    }
+
+    Map<String, NextExecution> nextExecutions =
+      new HashMap<String, NextExecution>();
+    List<ClusterSnapshot.TaskState> tasks =
+      new ArrayList<ClusterSnapshot.TaskState>();
+    for (WekaTaskMap.WekaTaskEntry entry : m_taskMap.getTaskList()) {
+      NamedTask task = m_taskMap.getLoadedTask(entry);
+      Date lastExecution = entry.getLastExecution();
+      int status = -1;
+      Date next = null;
+      if (task == null) {
+        status = m_taskMap.getIndexedStatus(entry);
+      } else {
+        status = WekaServer.getExecutionStatus(task);
+        if (task instanceof Scheduled) {
+          NextExecution n =
+            nextExecution(entry.toString(), ((Scheduled) task).getSchedule(),
+              lastExecution, start);
+          nextExecutions.put(entry.toString(), n);
+          next = n.m_next;
+        }
+      }
+
+      tasks.add(new ClusterSnapshot.TaskState(entry, lastExecution, next,
+        status, task != null));
+    }
+    // forget about tasks that have gone
+    m_nextExecutions = nextExecutions;
+
+    m_snapshot =
+      new ClusterSnapshot(start, System.currentTimeMillis() - start, slaves,
+        tasks);
+    return m_snapshot;
+  }
+
+  /**
+   * Get the next execution time of a scheduled task, reusing the time
+   * computed by the last refresh if nothing has changed since
+   *
+   * @param key the name---ID of the task
+   * @param schedule the task's schedule
+   * @param lastExecution the last execution time of the task
+   * @param now the current time
+   * @return the next execution time
+   */
+  protected NextExecution nextExecution(String key, Schedule schedule,
+    Date lastExecution, long now) {
+    NextExecution n = m_nextExecutions.get(key);
+    if (n != null
+      && n.m_schedule == schedule
+      && (n.m_lastExecution == null ? lastExecution == null : n.m_lastExecution
+        .equals(lastExecution)) && n.m_next != null
+      && n.m_next.getTime() > now) {
+      return n;
+    }
+
+    n = new NextExecution();
+    n.m_schedule = schedule;
+    n.m_lastExecution = lastExecution;
+    n.m_next = schedule != null ? schedule.nextExecution(lastExecution) : null;
+    return n;
+  }
+
+  /**
+   * Start the thread that refreshes the snapshot
+   */
+  public synchronized void start() {
+    if (m_refreshThread != null) {
+      return;
+    }
+
+    m_refreshThread = new Thread("WekaServer cluster monitor") {
+      @Override
+      public void run() {
+        while (!isInterrupted()) {
+          try {
+            refresh();
+          } catch (Exception ex) {
+            System.err.println("[WekaServer] Problem refreshing the cluster "
+              + "snapshot (" + ex.getMessage() + ")");
+          }
+          try {
+            Thread.sleep(m_refreshInterval);
+          } catch (InterruptedException ie) {
+            break;
+          }
+        }
+      }
+    };
+    m_refreshThread.setPriority(Thread.MIN_PRIORITY);
+    m_refreshThread.setDaemon(true);
+    m_refreshThread.start();
+  }
+
+  /**
+   * Stop the thread that refreshes the snapshot
+   */
+  public synchronized void stop() {
+    if (m_refreshThread != null) {
+      m_refreshThread.interrupt();
+      m_refreshThread = null;
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    ClusterSnapshot.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The state of a server's slaves and tasks at a point in time, as shown on
+ * the status page. Snapshots are built in the background by a ClusterMonitor
+ * and never change once built, so any number of requests can share one.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class ClusterSnapshot {
+
+  /**
+   * The state of a slave
+   */
+  public static class SlaveState {
+
+    /** The slave (host:port) */
+    protected final String m_slave;
+
+    /** The load of the slave (-1 if it could not be contacted) */
+    protected final double m_load;
+
+    /** True if the load comes from the slave's last heartbeat */
+    protected final boolean m_fromHeartbeat;
+
+    public SlaveState(String slave, double load, boolean fromHeartbeat) {
+      m_slave = slave;
+      m_load = load;
+      m_fromHeartbeat = fromHeartbeat;
+    }
+
+    public String getSlave() {
+      return m_slave;
+    }
+
+    public double getLoad() {
+      return m_load;
+    }
+
+    public boolean isFromHeartbeat() {
+      return m_fromHeartbeat;
+    }
+
+    /**
+     * Returns true if the slave could be contacted
+     *
+     * @return true if the slave is OK
+     */
+    public boolean isOK() {
+      return m_load >= 0;
+    }
+  }
+
+  /**
+   * The state of a task
+   */
+  public static class TaskState {
+
+    /** The entry for the task */
+    protected final WekaTaskMap.WekaTaskEntry m_entry;
+
+    /** The server the task was last handed to */
+    protected final String m_server;
+
+    /** Last execution time of the task (may be null) */
+    protected final Date m_lastExecution;
+
+    /** Next execution time of the task (null if not scheduled) */
+    protected final Date m_nextExecution;
+
+    /** Execution status of the task (-1 if not known) */
+    protected final int m_status;
+
+    /** False if the task has not been loaded (recovered) yet */
+    protected final boolean m_loaded;
+
+    public TaskState(WekaTaskMap.WekaTaskEntry entry, Date lastExecution,
+      Date nextExecution, int status, boolean loaded) {
+      m_entry = entry;
+      m_server = entry.getServer();
+      m_lastExecution = lastExecution;
+      m_nextExecution = nextExecution;
+      m_status = status;
+      m_loaded = loaded;
+    }
+
+    public WekaTaskMap.WekaTaskEntry getEntry() {
+      return m_entry;
+    }
+
+    public String getServer() {
+      return m_server;
+    }
+
+    public Date getLastExecution() {
+      return m_lastExecution;
+    }
+
+    public Date getNextExecution() {
+      return m_nextExecution;
+    }
+
+    public int getStatus() {
+      return m_status;
+    }
+
+    public boolean isLoaded() {
+      return m_loaded;
+    }
+  }
+
+  /** Time the snapshot was taken */
+  protected final long m_time;
+
+  /** Time taken to build the snapshot (milliseconds) */
+  protected final long m_buildTime;
+
+  /** The slaves */
+  protected final List<SlaveState> m_slaves;
+
+  /** The tasks, in the order of the task list */
+  protected final List<TaskState> m_tasks;
+
+  /**
+   * Constructor
+   *
+   * @param time the time the snapshot was taken
+   * @param buildTime the time taken to build the snapshot (milliseconds)
+   * @param slaves the state of the slaves
+   * @param tasks the state of the tasks
+   */
+  public ClusterSnapshot(long time, long buildTime, List<SlaveState> slaves,
+    List<TaskState> tasks) {
+    m_time = time;
+    m_buildTime = buildTime;
+    m_slaves = Collections.unmodifiableList(slaves);
+    m_tasks = Collections.unmodifiableList(tasks);
+  }
+
+  /**
+   * Get the time the snapshot was taken
+   *
+   * @return the time (milliseconds since the epoch)
+   */
+  public long getTime() {
+    return m_time;
+  }
+
+  /**
+   * Get the time taken to build the snapshot
+   *
+   * @return the time (milliseconds)
+   */
+  public long getBuildTime() {
+    return m_buildTime;
+  }
+
+  public List<SlaveState> getSlaves() {
+    return m_slaves;
+  }
+
+  public List<TaskState> getTasks() {
+    return m_tasks;
+  }
+}
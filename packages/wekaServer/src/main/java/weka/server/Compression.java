@@ -0,0 +1,1058 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/*
+ *    Compression.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+
+/**
+ * The compression used for tasks, results and status sent between clients,
+ * masters and slaves, and for results persisted to disk. There are three
+ * codecs: "none", "fast" (an LZ77 block codec in the style of LZ4 - much
+ * faster than gzip for a somewhat lower ratio) and "gzip" (at a selectable
+ * level). A compressed stream identifies its codec in its first bytes - gzip
+ * streams start with the gzip magic number, the others with "WKC" and the id
+ * of the codec - so a reader never needs to be told which codec was used, and
+ * gzip streams written by older versions (and older peers) can still be read.
+ * <p>
+ * Which codec is used for a transfer is negotiated with headers: every
+ * response from the server lists the codecs it accepts (most preferred first)
+ * in an X-Weka-Accept-Codec header, a client can send the same header with a
+ * request to say what it would like a response compressed with, and the codec
+ * a response uses is named in an X-Weka-Codec header. A peer that sends no
+ * header is assumed to only understand gzip. The codec accepted by each peer
+ * is remembered so that later requests sent to it can use it.
+ * <p>
+ * The raw and compressed bytes and the time spent compressing and
+ * decompressing (excluding the I/O underneath) are recorded in the server
+ * metrics for each codec.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class Compression {
+
+  /** Header listing the codecs accepted, most preferred first */
+  public static final String ACCEPT_HEADER = "X-Weka-Accept-Codec";
+
+  /** Header naming the codec used for a response */
+  public static final String CODEC_HEADER = "X-Weka-Codec";
+
+  /** Size of the blocks compressed by the fast codec */
+  protected static final int BLOCK_SIZE = 64 * 1024;
+
+  /** Number of bits in the hash of the fast codec's match finder */
+  protected static final int HASH_LOG = 14;
+
+  /** Set in a block's compressed length when the block is stored raw */
+  protected static final int STORED = 0x80000000;
+
+  /**
+   * A compression codec
+   */
+  public abstract static class Codec {
+
+    /** The name of the codec (as used in headers) */
+    protected final String m_name;
+
+    /** The id written after the magic bytes (-1 for gzip) */
+    protected final int m_id;
+
+    protected Codec(String name, int id) {
+      m_name = name;
+      m_id = id;
+    }
+
+    /**
+     * Get the name of the codec as used in headers
+     *
+     * @return the name
+     */
+    public String getName() {
+      return m_name;
+    }
+
+    /**
+     * Wrap a stream so that what is written to it is compressed
+     *
+     * @param out the stream to write the compressed bytes to
+     * @return the compressing stream
+     * @throws IOException if a problem occurs
+     */
+    protected abstract OutputStream wrap(OutputStream out) throws IOException;
+
+    /**
+     * Wrap a stream so that what is read from it is decompressed
+     *
+     * @param in the stream to read the compressed bytes from (positioned
+     *          after the magic bytes)
+     * @return the decompressing stream
+     * @throws IOException if a problem occurs
+     */
+    protected abstract InputStream unwrap(InputStream in) throws IOException;
+
+    @Override
+    public String toString() {
+      return m_name;
+    }
+  }
+
+  /**
+   * gzip at a given level
+   */
+  protected static class GzipCodec extends Codec {
+    protected final int m_level;
+
+    protected GzipCodec(int level) {
+      super("gzip", -1);
+      m_level = level;
+    }
+
+    @Override
+    protected OutputStream wrap(OutputStream out) throws IOException {
+      return new GZIPOutputStream(out, 8192) {
+        {
+          def.setLevel(m_level);
+        }
+      };
+    }
+
+    @Override
+    protected InputStream unwrap(InputStream in) throws IOException {
+      return new GZIPInputStream(in, 8192);
+    }
+
+    @Override
+    public String toString() {
+      return m_name + "-" + m_level;
+    }
+  }
+
+  /** No compression */
+  public static final Codec NONE = new Codec("none", 0) {
+    @Override
+    protected OutputStream wrap(OutputStream out) {
+      return out;
+    }
+
+    @Override
+    protected InputStream unwrap(InputStream in) {
+      return in;
+    }
+  };
+
+  /** The fast block codec */
+  public static final Codec FAST = new Codec("fast", 1) {
+    @Override
+    protected OutputStream wrap(OutputStream out) {
+      return new FastOutputStream(out);
+    }
+
+    @Override
+    protected InputStream unwrap(InputStream in) {
+      return new FastInputStream(in);
+    }
+  };
+
+  /** gzip at the default level (what older versions always used) */
+  public static final Codec GZIP = new GzipCodec(6);
+
+  /** The codec to use when the other end accepts it, and for spill files */
+  protected static volatile Codec s_default = FAST;
+
+  /** The codec to send each peer (host:port), as negotiated */
+  protected static final ConcurrentHashMap<String, Codec> s_peers =
+    new ConcurrentHashMap<String, Codec>();
+
+  /** The codecs accepted by each peer that has said what it accepts */
+  protected static final ConcurrentHashMap<String, String> s_peerAccepts =
+    new ConcurrentHashMap<String, String>();
+
+  /**
+   * Get a codec by name: "none", "fast", "gzip" or "gzip-" followed by a
+   * level between 1 and 9
+   *
+   * @param name the name of the codec
+   * @return the codec
+   * @throws IllegalArgumentException if the name is not recognised
+   */
+  public static Codec forName(String name) {
+    String n = name.trim().toLowerCase(Locale.ENGLISH);
+    if (n.equals(NONE.getName())) {
+      return NONE;
+    }
+    if (n.equals(FAST.getName())) {
+      return FAST;
+    }
+    if (n.equals(GZIP.getName())) {
+      return GZIP;
+    }
+    if (n.startsWith(GZIP.getName() + "-")) {
+      try {
+        int level = Integer.parseInt(n.substring(5));
+        if (level >= 1 && level <= 9) {
+          return new GzipCodec(level);
+        }
+      } catch (NumberFormatException ex) {
+        // fall through
+      }
+    }
+    throw new IllegalArgumentException("Unknown codec '" + name + "'");
+  }
+
+  /**
+   * Set the codec to use when the other end accepts it, and for spill files
+   *
+   * @param codec the codec
+   */
+  public static void setDefault(Codec codec) {
+    s_default = codec;
+  }
+
+  public static Codec getDefault() {
+    return s_default;
+  }
+
+  /**
+   * Get the codecs accepted by this end, most preferred first, as sent in the
+   * X-Weka-Accept-Codec header
+   *
+   * @return the list of codec names
+   */
+  public static String getAcceptedCodecs() {
+    StringBuilder b = new StringBuilder(s_default.getName());
+    for (Codec c : new Codec[] { FAST, GZIP, NONE }) {
+      if (!c.getName().equals(s_default.getName())) {
+        b.append(", ").append(c.getName());
+      }
+    }
+    return b.toString();
+  }
+
+  /**
+   * Choose the codec to send to a peer, given the codecs it accepts
+   *
+   * @param accepted the value of the peer's X-Weka-Accept-Codec header (may be
+   *          null)
+   * @return the first codec listed that is known, or gzip if there is none
+   */
+  public static Codec negotiate(String accepted) {
+    if (accepted != null) {
+      for (String name : accepted.split(",")) {
+        name = name.trim().toLowerCase(Locale.ENGLISH);
+        int semi = name.indexOf(';');
+        if (semi >= 0) {
+          name = name.substring(0, semi).trim();
+        }
+        if (name.equals(s_default.getName())) {
+          // our own default carries the configured gzip level
+          return s_default;
+        }
+        if (name.equals(FAST.getName())) {
+          return FAST;
+        }
+        if (name.equals(GZIP.getName())) {
+          return GZIP;
+        }
+        if (name.equals(NONE.getName())) {
+          return NONE;
+        }
+      }
+    }
+    return GZIP;
+  }
+
+  /**
+   * Check whether a codec is listed in an X-Weka-Accept-Codec header
+   *
+   * @param accepted the value of the header (may be null, in which case only
+   *          gzip is accepted)
+   * @param codec the codec
+   * @return true if the codec is accepted
+   */
+  public static boolean accepts(String accepted, Codec codec) {
+    if (accepted == null) {
+      return codec.getName().equals(GZIP.getName());
+    }
+    for (String name : accepted.split("[,;]")) {
+      if (name.trim().equalsIgnoreCase(codec.getName())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Choose the codec for a response, given the request, and name it in the
+   * response
+   *
+   * @param accepted the value of the request's X-Weka-Accept-Codec header
+   *          (may be null)
+   * @param response the response
+   * @return the codec to compress the response with
+   */
+  public static Codec negotiate(String accepted, HttpServletResponse response) {
+    Codec codec = negotiate(accepted);
+    response.setHeader(CODEC_HEADER, codec.getName());
+    return codec;
+  }
+
+  /**
+   * Ask for a response to be compressed with one of the codecs accepted here
+   *
+   * @param method the request
+   */
+  public static void requestCodecs(HttpMethod method) {
+    method.setRequestHeader(ACCEPT_HEADER, getAcceptedCodecs());
+  }
+
+  /**
+   * Remember the codecs accepted by a peer, as listed in a response from it
+   *
+   * @param peer the peer (host:port)
+   * @param method the executed request
+   */
+  public static void notePeer(String peer, HttpMethod method) {
+    Header h = method.getResponseHeader(ACCEPT_HEADER);
+    s_peers.put(peer, negotiate(h != null ? h.getValue() : null));
+    if (h != null) {
+      s_peerAccepts.put(peer, h.getValue());
+    } else {
+      s_peerAccepts.remove(peer);
+    }
+  }
+
+  /**
+   * Get the codec to send a peer. This is gzip until a response from the peer
+   * has said what it accepts.
+   *
+   * @param peer the peer (host:port)
+   * @return the codec
+   */
+  public static Codec forPeer(String peer) {
+    Codec codec = s_peers.get(peer);
+    return codec != null ? codec : GZIP;
+  }
+
+  /**
+   * Get the codec to send a peer something that is mostly compressed already,
+   * so compressing it again gains little. This is no compression if the peer
+   * has said it accepts that, otherwise gzip.
+   *
+   * @param peer the peer
+   * @return the codec
+   */
+  public static Codec forCompressedPayload(String peer) {
+    return accepts(s_peerAccepts.get(peer), NONE) ? NONE : GZIP;
+  }
+
+  /**
+   * Wrap a stream so that what is written to it is compressed with the given
+   * codec. Closing the returned stream closes the underlying one.
+   *
+   * @param out the stream to write the compressed bytes to
+   * @param codec the codec
+   * @return the compressing stream
+   * @throws IOException if a problem occurs
+   */
+  public static OutputStream compress(OutputStream out, Codec codec)
+    throws IOException {
+    Meter meter = new Meter(codec, "compress");
+    MeteredOutputStream inner = new MeteredOutputStream(out, meter, false);
+    if (codec.m_id >= 0) {
+      inner.write(new byte[] { 'W', 'K', 'C', (byte) codec.m_id });
+    }
+    return new MeteredOutputStream(codec.wrap(inner), meter, true);
+  }
+
+  /**
+   * Wrap a stream so that what is read from it is decompressed, using the
+   * codec identified by the first bytes of the stream
+   *
+   * @param in the stream to read the compressed bytes from
+   * @return the decompressing stream
+   * @throws IOException if the stream is empty or its codec is not recognised
+   */
+  public static InputStream decompress(InputStream in) throws IOException {
+    PushbackInputStream pb = new PushbackInputStream(in, 4);
+    byte[] magic = new byte[4];
+    int n = readFully(pb, magic, 0, 2);
+    Codec codec = null;
+    if (n == 2 && magic[0] == (byte) 0x1f && magic[1] == (byte) 0x8b) {
+      pb.unread(magic, 0, 2);
+      codec = GZIP;
+    } else {
+      n += readFully(pb, magic, n, 4 - n);
+      codec = n == 4 ? forMagic(magic) : null;
+      if (codec == null) {
+        throw n == 0 ? new EOFException("Empty compressed stream")
+          : new IOException("Unrecognised compressed stream");
+      }
+    }
+
+    Meter meter = new Meter(codec, "decompress");
+    meter.m_compressed += n;
+    return new MeteredInputStream(codec.unwrap(new MeteredInputStream(pb,
+      meter, false)), meter, true);
+  }
+
+  /**
+   * Wrap a stream so that what is read from it is decompressed with the codec
+   * named in a request's X-Weka-Codec header. Requests from older versions
+   * don't have the header, and are always gzipped.
+   *
+   * @param in the stream to read the compressed bytes from
+   * @param codecName the value of the X-Weka-Codec header (may be null)
+   * @return the decompressing stream
+   * @throws IOException if the codec is not known, or the stream was not
+   *           compressed with it
+   */
+  public static InputStream decompress(InputStream in, String codecName)
+    throws IOException {
+    Codec codec = GZIP;
+    if (codecName != null) {
+      try {
+        codec = forName(codecName);
+      } catch (IllegalArgumentException ex) {
+        throw new IOException(ex.getMessage());
+      }
+    }
+
+    int n = 0;
+    if (codec.m_id >= 0) {
+      byte[] magic = new byte[4];
+      n = readFully(in, magic, 0, 4);
+      if (n < 4 || forMagic(magic) != codec) {
+        throw new IOException("Stream is not compressed with '"
+          + codec.getName() + "'");
+      }
+    }
+
+    Meter meter = new Meter(codec, "decompress");
+    meter.m_compressed += n;
+    return new MeteredInputStream(codec.unwrap(new MeteredInputStream(in,
+      meter, false)), meter, true);
+  }
+
+  /**
+   * Identify the codec that a file was compressed with
+   *
+   * @param file the file
+   * @return the codec, or null if it is not recognised
+   * @throws IOException if the file can't be read
+   */
+  public static Codec detect(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      byte[] magic = new byte[4];
+      int n = readFully(in, magic, 0, 4);
+      if (n >= 2 && magic[0] == (byte) 0x1f && magic[1] == (byte) 0x8b) {
+        return GZIP;
+      }
+      return n == 4 ? forMagic(magic) : null;
+    } finally {
+      in.close();
+    }
+  }
+
+  protected static Codec forMagic(byte[] magic) {
+    if (magic[0] != 'W' || magic[1] != 'K' || magic[2] != 'C') {
+      return null;
+    }
+    for (Codec c : new Codec[] { NONE, FAST }) {
+      if (magic[3] == c.m_id) {
+        return c;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Read until the buffer is full or the stream ends
+   *
+   * @return the number of bytes read
+   */
+  protected static int readFully(InputStream in, byte[] b, int off, int len)
+    throws IOException {
+    int total = 0;
+    while (total < len) {
+      int n = in.read(b, off + total, len - total);
+      if (n < 0) {
+        break;
+      }
+      total += n;
+    }
+    return total;
+  }
+
+  /**
+   * Counts the bytes on either side of a codec and the time spent in it, and
+   * records them in the metrics when the stream is done with
+   */
+  protected static class Meter {
+    protected final Codec m_codec;
+    protected final String m_op;
+    protected long m_raw;
+    protected long m_compressed;
+    protected long m_outerNanos;
+    protected long m_innerNanos;
+    protected boolean m_recorded;
+
+    protected Meter(Codec codec, String op) {
+      m_codec = codec;
+      m_op = op;
+    }
+
+    protected synchronized void record() {
+      if (m_recorded) {
+        return;
+      }
+      m_recorded = true;
+      ServerMetrics metrics = ServerMetrics.getSingleton();
+      String name = m_codec.getName();
+      metrics.counter("weka_server_codec_raw_bytes_total",
+        "Uncompressed bytes passed through each codec", "codec", name, "op",
+        m_op).add(m_raw);
+      metrics.counter("weka_server_codec_compressed_bytes_total",
+        "Compressed bytes passed through each codec", "codec", name, "op",
+        m_op).add(m_compressed);
+      metrics.histogram("weka_server_codec_seconds",
+        "Time spent compressing or decompressing a stream (excluding I/O)",
+        ServerMetrics.LATENCY_BUCKETS, "codec", name, "op", m_op).observe(
+        Math.max(0, m_outerNanos - m_innerNanos));
+    }
+  }
+
+  /**
+   * Counts and times what is written on one side of a codec
+   */
+  protected static class MeteredOutputStream extends FilterOutputStream {
+    protected final Meter m_meter;
+    protected final boolean m_raw;
+
+    protected MeteredOutputStream(OutputStream out, Meter meter, boolean raw) {
+      super(out);
+      m_meter = meter;
+      m_raw = raw;
+    }
+
+    protected void add(int len, long start) {
+      long nanos = System.nanoTime() - start;
+      if (m_raw) {
+        m_meter.m_raw += len;
+        m_meter.m_outerNanos += nanos;
+      } else {
+        m_meter.m_compressed += len;
+        m_meter.m_innerNanos += nanos;
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      long start = System.nanoTime();
+      out.write(b);
+      add(1, start);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      long start = System.nanoTime();
+      out.write(b, off, len);
+      add(len, start);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      long start = System.nanoTime();
+      out.flush();
+      add(0, start);
+    }
+
+    @Override
+    public void close() throws IOException {
+      long start = System.nanoTime();
+      try {
+        out.close();
+      } finally {
+        add(0, start);
+        if (m_raw) {
+          m_meter.record();
+        }
+      }
+    }
+  }
+
+  /**
+   * Counts and times what is read on one side of a codec
+   */
+  protected static class MeteredInputStream extends FilterInputStream {
+    protected final Meter m_meter;
+    protected final boolean m_raw;
+
+    protected MeteredInputStream(InputStream in, Meter meter, boolean raw) {
+      super(in);
+      m_meter = meter;
+      m_raw = raw;
+    }
+
+    protected void add(int n, long start) {
+      long nanos = System.nanoTime() - start;
+      if (m_raw) {
+        m_meter.m_outerNanos += nanos;
+        if (n < 0) {
+          m_meter.record();
+        } else {
+          m_meter.m_raw += n;
+        }
+      } else {
+        m_meter.m_innerNanos += nanos;
+        m_meter.m_compressed += Math.max(0, n);
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      long start = System.nanoTime();
+      int b = in.read();
+      add(b < 0 ? -1 : 1, start);
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      long start = System.nanoTime();
+      int n = in.read(b, off, len);
+      add(n, start);
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long start = System.nanoTime();
+      long skipped = in.skip(n);
+      add((int) skipped, start);
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        in.close();
+      } finally {
+        if (m_raw) {
+          m_meter.record();
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the fast codec: blocks of up to BLOCK_SIZE bytes, each preceded by
+   * its raw length, its compressed length (with the STORED bit set if the
+   * block didn't compress and is stored raw) and the CRC32 of its raw bytes,
+   * which the reader checks so that a corrupted stream fails rather than
+   * decoding to the wrong data. A raw length of zero ends the stream.
+   */
+  protected static class FastOutputStream extends OutputStream {
+    protected final OutputStream m_out;
+    protected final byte[] m_buf = new byte[BLOCK_SIZE];
+    protected final byte[] m_packed = new byte[maxPacked(BLOCK_SIZE)];
+    protected final int[] m_table = new int[1 << HASH_LOG];
+    protected final byte[] m_header = new byte[12];
+    protected final CRC32 m_crc = new CRC32();
+    protected int m_count;
+    protected boolean m_closed;
+
+    protected FastOutputStream(OutputStream out) {
+      m_out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (m_count == m_buf.length) {
+        writeBlock();
+      }
+      m_buf[m_count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (m_count == m_buf.length) {
+          writeBlock();
+        }
+        int n = Math.min(len, m_buf.length - m_count);
+        System.arraycopy(b, off, m_buf, m_count, n);
+        m_count += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    protected void writeBlock() throws IOException {
+      if (m_count == 0) {
+        return;
+      }
+      int n = compressBlock(m_buf, m_count, m_packed, m_table);
+      m_crc.reset();
+      m_crc.update(m_buf, 0, m_count);
+      putInt(m_header, 8, (int) m_crc.getValue());
+      if (n >= m_count) {
+        writeHeader(m_count, m_count | STORED);
+        m_out.write(m_buf, 0, m_count);
+      } else {
+        writeHeader(m_count, n);
+        m_out.write(m_packed, 0, n);
+      }
+      m_count = 0;
+    }
+
+    protected void writeHeader(int raw, int packed) throws IOException {
+      putInt(m_header, 0, raw);
+      putInt(m_header, 4, packed);
+      m_out.write(m_header, 0, raw == 0 ? 4 : 12);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      writeBlock();
+      m_out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (m_closed) {
+        return;
+      }
+      m_closed = true;
+      try {
+        writeBlock();
+        writeHeader(0, 0);
+      } finally {
+        m_out.close();
+      }
+    }
+  }
+
+  /**
+   * Reads the fast codec
+   */
+  protected static class FastInputStream extends InputStream {
+    protected final InputStream m_in;
+    protected final byte[] m_buf = new byte[BLOCK_SIZE];
+    protected final byte[] m_packed = new byte[maxPacked(BLOCK_SIZE)];
+    protected final byte[] m_header = new byte[4];
+    protected final CRC32 m_crc = new CRC32();
+    protected int m_pos;
+    protected int m_limit;
+    protected boolean m_eof;
+
+    protected FastInputStream(InputStream in) {
+      m_in = in;
+    }
+
+    protected boolean fill() throws IOException {
+      if (m_eof) {
+        return false;
+      }
+      int raw = readInt();
+      if (raw == 0) {
+        m_eof = true;
+        return false;
+      }
+      int packed = readInt();
+      int checksum = readInt();
+      int len = packed & ~STORED;
+      if (raw < 0 || raw > BLOCK_SIZE || len > m_packed.length
+        || ((packed & STORED) != 0 && len != raw)) {
+        throw new IOException("Corrupt compressed stream");
+      }
+      if ((packed & STORED) != 0) {
+        readBlock(m_buf, len);
+      } else {
+        readBlock(m_packed, len);
+        decompressBlock(m_packed, len, m_buf, raw);
+      }
+      m_crc.reset();
+      m_crc.update(m_buf, 0, raw);
+      if ((int) m_crc.getValue() != checksum) {
+        throw new IOException("Corrupt compressed stream: checksum mismatch");
+      }
+      m_pos = 0;
+      m_limit = raw;
+      return true;
+    }
+
+    protected int readInt() throws IOException {
+      readBlock(m_header, 4);
+      return getInt(m_header, 0);
+    }
+
+    protected void readBlock(byte[] b, int len) throws IOException {
+      if (readFully(m_in, b, 0, len) < len) {
+        throw new EOFException("Unexpected end of compressed stream");
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (m_pos == m_limit && !fill()) {
+        return -1;
+      }
+      return m_buf[m_pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (m_pos == m_limit && !fill()) {
+        return -1;
+      }
+      int n = Math.min(len, m_limit - m_pos);
+      System.arraycopy(m_buf, m_pos, b, off, n);
+      m_pos += n;
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return m_limit - m_pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+      m_in.close();
+    }
+  }
+
+  /**
+   * Get the largest size a block can compress to
+   *
+   * @param len the size of the block
+   * @return the largest compressed size
+   */
+  protected static int maxPacked(int len) {
+    return len + len / 255 + 16;
+  }
+
+  protected static void putInt(byte[] b, int off, int v) {
+    b[off] = (byte) (v >>> 24);
+    b[off + 1] = (byte) (v >>> 16);
+    b[off + 2] = (byte) (v >>> 8);
+    b[off + 3] = (byte) v;
+  }
+
+  protected static int getInt(byte[] b, int off) {
+    return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16
+      | (b[off + 2] & 0xff) << 8 | (b[off + 3] & 0xff);
+  }
+
+  protected static int hash(byte[] b, int i) {
+    int v =
+      (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16
+        | (b[i + 3] & 0xff) << 24;
+    return (v * -1640531535) >>> (32 - HASH_LOG);
+  }
+
+  protected static boolean same4(byte[] b, int i, int j) {
+    return b[i] == b[j] && b[i + 1] == b[j + 1] && b[i + 2] == b[j + 2]
+      && b[i + 3] == b[j + 3];
+  }
+
+  /**
+   * Compress a block. The output is a series of sequences, each a token (the
+   * number of literals in the high four bits and the match length less four
+   * in the low four, with 15 meaning more length bytes follow), the literals,
+   * and the two byte offset back to the match. The last sequence is just
+   * literals.
+   *
+   * @param src the block
+   * @param len the length of the block
+   * @param dst where to put the compressed block (at least maxPacked(len)
+   *          long)
+   * @param table the match finder's hash table
+   * @return the length of the compressed block
+   */
+  protected static int compressBlock(byte[] src, int len, byte[] dst,
+    int[] table) {
+    Arrays.fill(table, -1);
+    int ip = 0;
+    int anchor = 0;
+    int op = 0;
+    int limit = len - 4;
+    while (ip <= limit) {
+      int h = hash(src, ip);
+      int ref = table[h];
+      table[h] = ip;
+      if (ref < 0 || ip - ref > 0xffff || !same4(src, ip, ref)) {
+        // step further the longer we go without a match
+        ip += 1 + ((ip - anchor) >>> 6);
+        continue;
+      }
+
+      while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+        ip--;
+        ref--;
+      }
+      int matchLen = 4;
+      while (ip + matchLen < len && src[ip + matchLen] == src[ref + matchLen]) {
+        matchLen++;
+      }
+
+      int token = op;
+      op = writeSequence(src, anchor, ip - anchor, dst, op);
+      dst[op++] = (byte) (ip - ref);
+      dst[op++] = (byte) ((ip - ref) >>> 8);
+      int m = matchLen - 4;
+      if (m >= 15) {
+        dst[token] |= 15;
+        op = writeLength(dst, op, m - 15);
+      } else {
+        dst[token] |= m;
+      }
+
+      ip += matchLen;
+      anchor = ip;
+      if (ip - 2 <= limit) {
+        table[hash(src, ip - 2)] = ip - 2;
+      }
+    }
+
+    return writeSequence(src, anchor, len - anchor, dst, op);
+  }
+
+  /**
+   * Write a token (without its match length) and literals
+   *
+   * @return the position after the literals
+   */
+  protected static int writeSequence(byte[] src, int off, int literals,
+    byte[] dst, int op) {
+    if (literals >= 15) {
+      dst[op++] = (byte) (15 << 4);
+      op = writeLength(dst, op, literals - 15);
+    } else {
+      dst[op++] = (byte) (literals << 4);
+    }
+    System.arraycopy(src, off, dst, op, literals);
+    return op + literals;
+  }
+
+  protected static int writeLength(byte[] dst, int op, int n) {
+    while (n >= 255) {
+      dst[op++] = (byte) 255;
+      n -= 255;
+    }
+    dst[op++] = (byte) n;
+    return op;
+  }
+
+  /**
+   * Decompress a block written by compressBlock()
+   *
+   * @param src the compressed block
+   * @param len the length of the compressed block
+   * @param dst where to put the block
+   * @param raw the length of the block
+   * @throws IOException if the compressed block is corrupt
+   */
+  protected static void decompressBlock(byte[] src, int len, byte[] dst,
+    int raw) throws IOException {
+    int ip = 0;
+    int op = 0;
+    try {
+      while (true) {
+        int token = src[ip++] & 0xff;
+        int literals = token >>> 4;
+        if (literals == 15) {
+          int b;
+          do {
+            b = src[ip++] & 0xff;
+            literals += b;
+          } while (b == 255);
+        }
+        System.arraycopy(src, ip, dst, op, literals);
+        ip += literals;
+        op += literals;
+        if (ip >= len) {
+          break;
+        }
+
+        int offset = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+        ip += 2;
+        int matchLen = token & 15;
+        if (matchLen == 15) {
+          int b;
+          do {
+            b = src[ip++] & 0xff;
+            matchLen += b;
+          } while (b == 255);
+        }
+        matchLen += 4;
+        int ref = op - offset;
+        if (offset == 0 || ref < 0 || op + matchLen > raw) {
+          throw new IOException("Corrupt compressed block");
+        }
+        if (offset >= matchLen) {
+          System.arraycopy(dst, ref, dst, op, matchLen);
+          op += matchLen;
+        } else {
+          // overlapping - the match repeats the bytes it is copying
+          for (int i = 0; i < matchLen; i++) {
+            dst[op++] = dst[ref++];
+          }
+        }
+      }
+    } catch (IndexOutOfBoundsException ex) {
+      throw new IOException("Corrupt compressed block");
+    }
+    if (op != raw || ip != len) {
+      throw new IOException("Corrupt compressed block");
+    }
+  }
+}
@@ -39,12 +39,18 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.zip.GZIPInputStream;
 
 /**
  * Accepts a task for execution. Tasks are added to a Map and may get executed
- * immediately (if unscheduled) or according to their schedule.
+ * immediately (if unscheduled) or according to their schedule. With batch=Y,
+ * the request body holds a list of tasks (a serialized List for legacy clients,
+ * a JSON array for JSON clients) that are all registered in one go, and the
+ * response holds the list of task IDs. The response to a batch submission
+ * carries the X-Weka-Batch header, so that clients can tell this apart from
+ * an older server rejecting the list as not being a task.
  * 
  * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
  * @version $Revision: 13906 $
@@ -54,6 +60,16 @@ public class ExecuteTaskServlet extends WekaServlet {
   /** The context path for this servlet */
   public static final String CONTEXT_PATH = "/weka/executeTask";
 
+  /** Header set on responses to batch submissions */
+  public static final String BATCH_HEADER = "X-Weka-Batch";
+
+  /**
+   * The error message for a submission that is not a task. Older servers
+   * reply with this to a batch submission (a list).
+   */
+  public static final String NOT_A_TASK_MESSAGE =
+    "Submitted task does not implement weka.experiment.Task!";
+
   /**
    * For serialization
    */
@@ -100,6 +116,12 @@ public class ExecuteTaskServlet extends WekaServlet {
     String masterParam = request.getParameter("master");
     boolean fromMaster =
       masterParam != null && masterParam.equalsIgnoreCase("y");
+    String batchParam = request.getParameter("batch");
+    boolean batch = batchParam != null && batchParam.equalsIgnoreCase("y");
+    if (batch) {
+      // before anything is written
+      response.setHeader(BATCH_HEADER, "Y");
+    }
 
     if (clientLegacy) {
       in = request.getInputStream();
@@ -127,64 +149,95 @@ public class ExecuteTaskServlet extends WekaServlet {
     ObjectInputStream ois = null;
     Object task = null;
     WekaTaskEntry entry = null;
+    List<Task> tasks = null;
+    List<WekaTaskEntry> entries = null;
     try {
       if (clientLegacy) {
         // Deserialize the task
-	GZIPInputStream gzi = new GZIPInputStream(in);
-	ois = SerializationHelper.getObjectInputStream(gzi);        
+        // straight off the (possibly chunked) request body - nothing beyond
+        // the stream buffers is held in memory apart from the task itself
+        // (compressed with the codec named in the request - gzip if none is)
+        InputStream decompressed =
+          Compression.decompress(new BufferedInputStream(in, 65536),
+            request.getHeader(Compression.CODEC_HEADER));
+        ois =
+          SerializationHelper.getObjectInputStream(new BufferedInputStream(
+            decompressed, 65536));
 
         task = ois.readObject();
       } else if (clientNew) {
-        // Deserialize the json
-        StringBuilder b = new StringBuilder();
-        String line = "";
-        while ((line = inReader.readLine()) != null) {
-          b.append(line);
+        // Deserialize the json straight off the request body
+        if (batch) {
+          task = JSONProtocol.jsonToNamedTasks(inReader);
+        } else {
+          task = JSONProtocol.jsonToNamedTask(inReader);
         }
-        task = JSONProtocol.jsonToNamedTask(b.toString());
-      }
-
-      if (!(task instanceof Task)) {
-        throw new Exception(
-          "Submitted task does not implement weka.experiment.Task!");
       }
 
-      if (task instanceof NamedTask) {
-        entry = m_taskMap.addTask((NamedTask) task);
+      if (batch) {
+        if (!(task instanceof List)) {
+          throw new Exception("Batch submission does not contain a list of "
+            + "tasks!");
+        }
+        // check everything before registering anything
+        tasks = new ArrayList<Task>();
+        for (Object t : (List<?>) task) {
+          if (!(t instanceof Task)) {
+            // not NOT_A_TASK_MESSAGE - that means batches aren't understood
+            throw new Exception("Batch submission contains an object that "
+              + "does not implement weka.experiment.Task!");
+          }
+          tasks.add((Task) t);
+        }
+        entries = m_taskMap.addTasks(tasks);
       } else {
-        entry = m_taskMap.addTask((Task) task);
-      }
+        if (!(task instanceof Task)) {
+          throw new Exception(NOT_A_TASK_MESSAGE);
+        }
 
-      // set the originating server to this WekaServer instance so that the
-      // logging object
-      // can create the appopriate logging subdirectory (if necessary)
-      entry.setOriginatingServer(m_server.getHostname() + ":"
-        + m_server.getPort());
-      entry.setServer(entry.getOriginatingServer());
-      entry.setCameFromMaster(fromMaster);
-
-      if (task instanceof LogHandler) {
-        ServerLogger sl = new ServerLogger(entry);
-        ((LogHandler) task).setLog(sl);
+        if (task instanceof NamedTask) {
+          entry = m_taskMap.addTask((NamedTask) task);
+        } else {
+          entry = m_taskMap.addTask((Task) task);
+        }
+        tasks = new ArrayList<Task>();
+        tasks.add((Task) task);
+        entries = new ArrayList<WekaTaskEntry>();
+        entries.add(entry);
       }
 
-      if (task instanceof Scheduled) {
-        // make sure we save this task in case we go down...
-        m_server.persistTask(entry, (NamedTask) task);
+      List<String> taskIDs = new ArrayList<String>();
+      for (int i = 0; i < entries.size(); i++) {
+        setUpEntry(entries.get(i), tasks.get(i), fromMaster);
+        taskIDs.add(entries.get(i).toString());
       }
-
-      // ask the task to persist any resources
-      if (task instanceof NamedTask) {
-        ((NamedTask) task).persistResources();
+      String dispatch = request.getParameter("dispatch");
+      if (fromMaster && dispatch != null) {
+        // our next heartbeat's load includes this hand-off
+        m_server.dispatchReceived(dispatch);
       }
 
       // send the task name + id to the client
       if (clientLegacy) {
-        oos.writeObject(entry.toString());
+        if (batch) {
+          oos.writeObject(taskIDs);
+        } else {
+          oos.writeObject(entry.toString());
+        }
         oos.flush();
       } else if (clientNew) {
-        Map<String, Object> responseJ =
-          JSONProtocol.createOKResponseMap(entry.toString());
+        Map<String, Object> responseJ = null;
+        if (batch) {
+          responseJ =
+            JSONProtocol.createOKResponseMap(taskIDs.size()
+              + " tasks accepted");
+          Map<String, Object> payload =
+            JSONProtocol.addPayloadMap(responseJ,
+              JSONProtocol.TASK_ID_LIST_PAYLOAD_ID);
+          payload.put(JSONProtocol.TASK_ID_LIST_PAYLOAD_ID, taskIDs);
+        } else {
+          responseJ = JSONProtocol.createOKResponseMap(entry.toString());
+        }
         String encodedResponse = JSONProtocol.encodeToJSONString(responseJ);
         out.println(encodedResponse);
         out.flush();
@@ -203,6 +256,10 @@ public class ExecuteTaskServlet extends WekaServlet {
       if (clientLegacy) {
         oos.writeObject(WekaServlet.RESPONSE_ERROR + " " + ex.getMessage());
         oos.flush();
+      } else if (clientNew) {
+        out.println(JSONProtocol.encodeToJSONString(JSONProtocol
+          .createErrorResponseMap(ex.getMessage())));
+        out.flush();
       } else {
         out.println("<p><pre>");
         ex.printStackTrace(out);
@@ -231,10 +288,49 @@ public class ExecuteTaskServlet extends WekaServlet {
         out = null;
       }
 
-      // If this task is unscheduled, ask the server to run now
-      if (task != null && entry != null && !(task instanceof Scheduled)) {
-        m_server.executeTask(entry);
+      // If these tasks are unscheduled, ask the server to run them now
+      if (tasks != null && entries != null) {
+        for (int i = 0; i < entries.size(); i++) {
+          if (!(tasks.get(i) instanceof Scheduled)) {
+            m_server.executeTask(entries.get(i));
+          } else {
+            m_server.getScheduleDispatcher().schedule(entries.get(i));
+          }
+        }
       }
     }
   }
+
+  /**
+   * Finish setting up the entry of a newly added task
+   * 
+   * @param entry the entry for the task
+   * @param task the task
+   * @param fromMaster true if the task was sent by our master server
+   */
+  protected void setUpEntry(WekaTaskEntry entry, Task task, boolean fromMaster) {
+    // set the originating server to this WekaServer instance so that the
+    // logging object
+    // can create the appopriate logging subdirectory (if necessary)
+    entry.setOriginatingServer(m_server.getHostname() + ":"
+      + m_server.getPort());
+    entry.setServer(entry.getOriginatingServer());
+    entry.setCameFromMaster(fromMaster);
+    m_taskMap.reindex(entry);
+
+    if (task instanceof LogHandler) {
+      ServerLogger sl = new ServerLogger(entry);
+      ((LogHandler) task).setLog(sl);
+    }
+
+    if (task instanceof Scheduled) {
+      // make sure we save this task in case we go down...
+      m_server.persistTaskDefinition(entry, (NamedTask) task);
+    }
+
+    // ask the task to persist any resources
+    if (task instanceof NamedTask) {
+      ((NamedTask) task).persistResources();
+    }
+  }
 }
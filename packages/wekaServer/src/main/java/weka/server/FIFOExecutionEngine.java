@@ -0,0 +1,90 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    FIFOExecutionEngine.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Execution engine that runs all tasks in arrival order, regardless of their
+ * priority class. This is how the server has always behaved.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class FIFOExecutionEngine implements TaskExecutionEngine {
+
+  /** The underlying executor */
+  protected ThreadPoolExecutor m_executorPool;
+
+  /** Number of execution slots */
+  protected int m_numSlots;
+
+  /**
+   * Constructor
+   *
+   * @param numSlots the number of tasks to execute in parallel
+   */
+  public FIFOExecutionEngine(int numSlots) {
+    m_numSlots = numSlots;
+    m_executorPool =
+      new ThreadPoolExecutor(numSlots, numSlots, 120, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>());
+  }
+
+  @Override
+  public void execute(Runnable toRun, TaskPriority priority) {
+    m_executorPool.execute(toRun);
+  }
+
+  @Override
+  public int getActiveCount() {
+    return m_executorPool.getActiveCount();
+  }
+
+  @Override
+  public int getQueuedCount() {
+    return m_executorPool.getQueue().size();
+  }
+
+  @Override
+  public int getQueuedCount(TaskPriority priority) {
+    // no per-class bookkeeping here
+    return -1;
+  }
+
+  @Override
+  public int getNumSlots() {
+    return m_numSlots;
+  }
+
+  @Override
+  public void shutdown() {
+    m_executorPool.shutdown();
+  }
+
+  @Override
+  public void shutdownNow() {
+    m_executorPool.shutdownNow();
+  }
+}
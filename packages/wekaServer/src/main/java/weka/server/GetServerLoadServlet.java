@@ -29,8 +29,9 @@ import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * Returns the load of this Weka server instance.
@@ -43,6 +44,12 @@ public class GetServerLoadServlet extends WekaServlet {
   /** The context path for this servlet */
   public static final String CONTEXT_PATH = "/weka/serverLoad";
 
+  /** Header listing the slaves that did not report their load in time */
+  public static final String TIMED_OUT_HEADER = "X-Weka-Timed-Out-Slaves";
+
+  /** Response key for the slaves that did not report their load in time */
+  public static final String TIMED_OUT_KEY = "timedOut";
+
   /**
    * For serialization
    */
@@ -99,18 +106,27 @@ public class GetServerLoadServlet extends WekaServlet {
 
     // if we have capacity free (our load factor < 1) then
     // report back our load factor
+    List<String> timedOut = new ArrayList<String>();
     if (loadFactor > 1 && m_server.getSlaves().size() > 0) {
       // Report back the lowest load out of ourself and the
-      // slaves that we have registered
-      Set<String> slaves = m_server.getSlaves();
-      for (String slave : slaves) {
-        double load =
-          RootServlet.getSlaveLoad(slave, m_server.getUsername(),
-            m_server.getPassword());
-        if (load >= 0 && load < loadFactor) {
+      // slaves that we have registered. The slaves are asked
+      // in parallel and any that don't answer in time are skipped
+      SlaveLoadPoller.Result polled =
+        m_server.getLoadPoller().poll(
+          new ArrayList<String>(m_server.getSlaves()));
+      for (double load : polled.getLoads().values()) {
+        if (load < loadFactor) {
           loadFactor = load;
         }
       }
+      timedOut = polled.getTimedOut();
+    }
+    if (timedOut.size() > 0) {
+      StringBuilder b = new StringBuilder();
+      for (String slave : timedOut) {
+        b.append(b.length() > 0 ? "," : "").append(slave);
+      }
+      response.setHeader(TIMED_OUT_HEADER, b.toString());
     }
 
     try {
@@ -125,6 +141,9 @@ public class GetServerLoadServlet extends WekaServlet {
         Map<String, Object> jResponse =
           JSONProtocol.createOKResponseMap("OK. Server load");
         jResponse.put(JSONProtocol.RESPONSE_PAYLOAD_KEY, loadFactor);
+        if (timedOut.size() > 0) {
+          jResponse.put(TIMED_OUT_KEY, timedOut);
+        }
         String encodedResponse = JSONProtocol.encodeToJSONString(jResponse);
         out = response.getWriter();
         out.println(encodedResponse);
@@ -137,7 +156,11 @@ public class GetServerLoadServlet extends WekaServlet {
         out.println("<TITLE>Server Load</TITLE>");
         out.println("</HEAD>");
         out.println("<BODY>\n<H3>");
-        out.println("Load factor: " + loadFactor);
+        out.println("Load factor: " + loadFactor + "</H3>");
+        if (timedOut.size() > 0) {
+          out.println("Slaves that did not report their load in time: "
+            + timedOut + "<p>");
+        }
         out.println("<a href=\"" + RootServlet.CONTEXT_PATH + "\">"
           + "Back to status page</a></br>");
       }
@@ -29,12 +29,35 @@ import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
- * Returns a list of tasks registered with this Weka server instance.
+ * Returns a list of tasks registered with this Weka server instance.<p>
+ * 
+ * Without any further parameters the names of all tasks are returned. The
+ * list can be narrowed down with the following parameters:
+ * <ul>
+ * <li>prefix - tasks with names starting with the prefix</li>
+ * <li>status - tasks with the given execution status</li>
+ * <li>server - tasks last handed to the given host:port</li>
+ * <li>after, before - tasks last executed in the given time range
+ * (yyyy-MM-dd'T'HH:mm:ss)</li>
+ * <li>offset, limit - a page of the (filtered) list</li>
+ * <li>since - only the tasks added, changed or removed since the given
+ * version</li>
+ * </ul>
+ * When any of these are supplied, the response (a map for legacy and JSON
+ * clients) holds the version of the task list, the total number of matching
+ * tasks, the offset and the page of task names. Responses to "since" also hold
+ * the names of removed tasks, and whether the list is a reset (i.e. the
+ * version supplied was too old, and the client should replace its list). The
+ * version of the task list is also returned in a header with every response.
  * 
  * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
  * @version $Revision: 12561 $
@@ -44,6 +67,51 @@ public class GetTaskListServlet extends WekaServlet {
   /** The context path for this servlet */
   public static final String CONTEXT_PATH = "/weka/getTaskList";
 
+  /** Header holding the version of the task list */
+  public static final String VERSION_HEADER = "X-Weka-Task-List-Version";
+
+  /** Parameter for a task name prefix */
+  public static final String PREFIX_KEY = "prefix";
+
+  /** Parameter for an execution status */
+  public static final String STATUS_KEY = "status";
+
+  /** Parameter for a server (host:port) */
+  public static final String SERVER_KEY = "server";
+
+  /** Parameter for the start of a last execution time range */
+  public static final String AFTER_KEY = "after";
+
+  /** Parameter for the end of a last execution time range */
+  public static final String BEFORE_KEY = "before";
+
+  /** Parameter for the offset of a page */
+  public static final String OFFSET_KEY = "offset";
+
+  /** Parameter for the maximum size of a page */
+  public static final String LIMIT_KEY = "limit";
+
+  /** Parameter for the version to return changes since */
+  public static final String SINCE_KEY = "since";
+
+  /** Response key for the version of the task list */
+  public static final String VERSION_KEY = "version";
+
+  /** Response key for the total number of matching tasks */
+  public static final String TOTAL_KEY = "total";
+
+  /** Response key for the names of the tasks */
+  public static final String TASKS_KEY = "tasks";
+
+  /** Response key for the names of removed tasks */
+  public static final String REMOVED_KEY = "removed";
+
+  /** Response key for whether the list replaces the client's list */
+  public static final String RESET_KEY = "reset";
+
+  /** Format for the time range parameters */
+  protected static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
+
   /**
    * For serialization
    */
@@ -59,6 +127,44 @@ public class GetTaskListServlet extends WekaServlet {
     super(taskMap, server);
   }
 
+  /**
+   * Get a parameter, treating an empty value as missing
+   * 
+   * @param request the request
+   * @param key the name of the parameter
+   * @return the value of the parameter or null
+   */
+  protected static String getParameter(HttpServletRequest request, String key) {
+    String value = request.getParameter(key);
+    return value != null && value.trim().length() > 0 ? value.trim() : null;
+  }
+
+  /**
+   * Get the tasks with names that start with a prefix
+   * 
+   * @param taskList the sorted task list
+   * @param prefix the prefix
+   * @return the matching tasks
+   */
+  protected static List<WekaTaskMap.WekaTaskEntry> withPrefix(
+    List<WekaTaskMap.WekaTaskEntry> taskList, String prefix) {
+
+    // the list is sorted by name, so the matches are together
+    int start =
+      Collections.binarySearch(taskList, new WekaTaskMap.WekaTaskEntry(prefix,
+        ""));
+    if (start < 0) {
+      start = -start - 1;
+    }
+    int end = start;
+    while (end < taskList.size()
+      && taskList.get(end).getName().startsWith(prefix)) {
+      end++;
+    }
+
+    return taskList.subList(start, end);
+  }
+
   /**
    * Process a HTTP GET
    * 
@@ -83,6 +189,18 @@ public class GetTaskListServlet extends WekaServlet {
     boolean clientNew =
       clientParamNew != null && clientParamNew.equalsIgnoreCase("y");
 
+    String prefix = getParameter(request, PREFIX_KEY);
+    String status = getParameter(request, STATUS_KEY);
+    String server = getParameter(request, SERVER_KEY);
+    String after = getParameter(request, AFTER_KEY);
+    String before = getParameter(request, BEFORE_KEY);
+    String offset = getParameter(request, OFFSET_KEY);
+    String limit = getParameter(request, LIMIT_KEY);
+    String since = getParameter(request, SINCE_KEY);
+    boolean extended =
+      prefix != null || status != null || server != null || after != null
+        || before != null || offset != null || limit != null || since != null;
+
     response.setStatus(HttpServletResponse.SC_OK);
     if (clientLegacy) {
       response.setContentType("application/octet-stream");
@@ -94,27 +212,94 @@ public class GetTaskListServlet extends WekaServlet {
       response.setContentType("text/html;charset=UTF-8");
     }
 
-    List<WekaTaskMap.WekaTaskEntry> taskList = m_taskMap.getTaskList();
-
-    List<String> taskNames = new ArrayList<String>();
-    for (WekaTaskMap.WekaTaskEntry te : taskList) {
-      taskNames.add(te.toString());
-    }
-
     ObjectOutputStream oos = null;
     PrintWriter out = null;
 
     try {
+      long version = m_taskMap.getVersion();
+      List<WekaTaskMap.WekaTaskEntry> taskList;
+      WekaTaskMap.TaskChanges changes = null;
+      if (since != null) {
+        changes = m_taskMap.getChangesSince(Long.parseLong(since));
+        version = changes.getVersion();
+        taskList = changes.getChanged();
+      } else if (prefix != null) {
+        taskList = withPrefix(m_taskMap.getTaskList(), prefix);
+      } else if (status != null) {
+        taskList = m_taskMap.getTasksWithStatus(Integer.parseInt(status));
+      } else if (server != null) {
+        taskList = m_taskMap.getTasksOnServer(server);
+      } else {
+        taskList = m_taskMap.getTaskList();
+      }
+      response.setHeader(VERSION_HEADER, "" + version);
+
+      // apply whichever filters haven't been applied by the lookup above
+      SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+      Date afterDate = after != null ? sdf.parse(after) : null;
+      Date beforeDate = before != null ? sdf.parse(before) : null;
+      int statusVal = status != null ? Integer.parseInt(status) : -1;
+      List<WekaTaskMap.WekaTaskEntry> filtered =
+        new ArrayList<WekaTaskMap.WekaTaskEntry>();
+      for (WekaTaskMap.WekaTaskEntry te : taskList) {
+        if (prefix != null && !te.getName().startsWith(prefix)) {
+          continue;
+        }
+        if (status != null && m_taskMap.getIndexedStatus(te) != statusVal) {
+          continue;
+        }
+        if (server != null && !server.equals(te.getServer())) {
+          continue;
+        }
+        if (afterDate != null || beforeDate != null) {
+          Date lastExecution = te.getLastExecution();
+          if (lastExecution == null
+            || (afterDate != null && lastExecution.before(afterDate))
+            || (beforeDate != null && lastExecution.after(beforeDate))) {
+            continue;
+          }
+        }
+        filtered.add(te);
+      }
+
+      int total = filtered.size();
+      int start = offset != null ? Math.max(0, Integer.parseInt(offset)) : 0;
+      int end = total;
+      if (limit != null) {
+        end = Math.min(total, start + Math.max(0, Integer.parseInt(limit)));
+      }
+      start = Math.min(start, end);
+
+      List<String> taskNames = new ArrayList<String>();
+      for (WekaTaskMap.WekaTaskEntry te : filtered.subList(start, end)) {
+        taskNames.add(te.toString());
+      }
+
+      Map<String, Object> listing = null;
+      if (extended) {
+        listing = new HashMap<String, Object>();
+        listing.put(VERSION_KEY, version);
+        listing.put(TOTAL_KEY, total);
+        listing.put(OFFSET_KEY, start);
+        listing.put(TASKS_KEY, taskNames);
+        if (changes != null) {
+          listing.put(RESET_KEY, changes.isReset());
+          listing.put(REMOVED_KEY,
+            new ArrayList<String>(changes.getRemoved()));
+        }
+      }
+
       if (clientLegacy) {
         OutputStream outS = response.getOutputStream();
 
         oos = new ObjectOutputStream(new BufferedOutputStream(outS));
-        oos.writeObject(taskNames);
+        oos.writeObject(extended ? listing : taskNames);
         oos.flush();
       } else if (clientNew) {
         Map<String, Object> jResponse =
           JSONProtocol.createOKResponseMap("OK. Task list");
-        jResponse.put(JSONProtocol.RESPONSE_PAYLOAD_KEY, taskNames);
+        jResponse.put(JSONProtocol.RESPONSE_PAYLOAD_KEY, extended ? listing
+          : taskNames);
         String encodedResponse = JSONProtocol.encodeToJSONString(jResponse);
         out = response.getWriter();
         out.println(encodedResponse);
@@ -128,16 +313,53 @@ public class GetTaskListServlet extends WekaServlet {
         out.println("</HEAD>");
         out.println("<BODY>\n<H3>");
         out.println("Task List</H3>");
+        if (extended) {
+          out.println("Tasks " + (total > 0 ? start + 1 : 0) + " to " + end
+            + " of " + total + " (version " + version + ")<p>");
+        }
         for (String task : taskNames) {
           out.println(task + "<br>");
         }
+        if (changes != null) {
+          for (String task : changes.getRemoved()) {
+            out.println("<s>" + task + "</s><br>");
+          }
+        }
         out.println("<p>");
 
+        if (limit != null && changes == null) {
+          String query = request.getQueryString();
+          query = query != null ? query : "";
+          query = query.replaceAll("(^|&)" + OFFSET_KEY + "=[^&]*", "");
+          if (query.length() > 0 && !query.startsWith("&")) {
+            query = "&" + query;
+          }
+          // the requested page size - the last page may hold fewer
+          int pageSize = Math.max(1, Integer.parseInt(limit));
+          if (start > 0) {
+            out.println("<a href=\"" + CONTEXT_PATH + "?" + OFFSET_KEY + "="
+              + Math.max(0, start - pageSize) + query
+              + "\">Previous</a>&nbsp;");
+          }
+          if (end < total) {
+            out.println("<a href=\"" + CONTEXT_PATH + "?" + OFFSET_KEY + "="
+              + end + query + "\">Next</a>");
+          }
+          out.println("<p>");
+        }
+
         out.println("<a href=\"" + RootServlet.CONTEXT_PATH + "\">"
           + "Back to status page</a></br>");
         out.println("</BODY>\n</HTML>\n");
       }
     } catch (Exception ex) {
+      if (clientLegacy && oos == null) {
+        oos =
+          new ObjectOutputStream(new BufferedOutputStream(
+            response.getOutputStream()));
+      } else if (!clientLegacy && out == null) {
+        out = response.getWriter();
+      }
       if (oos != null) {
         oos.writeObject(WekaServlet.RESPONSE_ERROR + " " + ex.getMessage());
         oos.flush();
@@ -23,7 +23,9 @@ package weka.server;
 
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
+import weka.core.SerializationHelper;
 import weka.experiment.TaskStatusInfo;
 
 import javax.servlet.ServletException;
@@ -31,6 +33,13 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
@@ -38,15 +47,29 @@ import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * Get the result of a task (if available). For clients it returns the
  * TaskStatusInfo (which encapsulates the result). So in this case is the same
  * as the GetTaskStatusServlet. For browsers the servlet prints out the result
  * as a string.
+ * <p>
+ * 
+ * Legacy clients can ask for the result to be streamed (stream=Y). If the task
+ * has finished and has persisted its result (see PersistedResult) then the
+ * persisted bytes are sent as they are, rather than being loaded,
+ * deserialized and then serialized and compressed again. The response is
+ * framed as follows: the length of the status frame (an int), the status frame
+ * (the TaskStatusInfo, without the result, serialized and compressed) and then
+ * the persisted result (the result, serialized and compressed). Such responses
+ * carry the RESULT_STREAM_HEADER and support byte ranges, so a client can
+ * resume an interrupted download of a large result. readResponse() reads both
+ * kinds of response.
  * 
  * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
  * @version $Revision: 12561 $
@@ -56,6 +79,16 @@ public class GetTaskResultServlet extends WekaServlet {
   /** The context path for this servlet */
   public static final String CONTEXT_PATH = "/weka/taskResult";
 
+  /** Request parameter used by legacy clients to ask for a streamed result */
+  public static final String STREAM_KEY = "stream";
+
+  /** Header that identifies a streamed result */
+  public static final String RESULT_STREAM_HEADER = "X-Weka-Result-Stream";
+
+  /** Content type of a streamed result */
+  public static final String RESULT_STREAM_CONTENT_TYPE =
+    "application/x-weka-result-stream";
+
   /**
    * For serialization
    */
@@ -95,8 +128,12 @@ public class GetTaskResultServlet extends WekaServlet {
       jsonClientParam != null && jsonClientParam.equalsIgnoreCase("y");
     boolean clientLegacy =
       clientParamLegacy != null && clientParamLegacy.equalsIgnoreCase("y");
+    String streamParam = request.getParameter(STREAM_KEY);
+    boolean stream =
+      clientLegacy && streamParam != null && streamParam.equalsIgnoreCase("y");
 
     response.setStatus(HttpServletResponse.SC_OK);
+    String accepted = request.getHeader(Compression.ACCEPT_HEADER);
     if (clientLegacy) {
       response.setContentType("application/octet-stream");
     } else {
@@ -117,7 +154,8 @@ public class GetTaskResultServlet extends WekaServlet {
           OutputStream outS = response.getOutputStream();
           oos =
             new ObjectOutputStream(new BufferedOutputStream(
-              new GZIPOutputStream(outS)));
+              Compression.compress(outS,
+                Compression.negotiate(accepted, response))));
           oos.writeObject(errorResult);
           oos.flush();
         } else if (clientNew) {
@@ -148,9 +186,17 @@ public class GetTaskResultServlet extends WekaServlet {
         if (te.getServer().equals(
           m_server.getHostname() + ":" + m_server.getPort())) {
 
-          // ask the task to load it (if they have persisted it to save memory)
-          task.loadResult();
-          status = task.getTaskStatus();
+          if (stream && sendPersistedResult(request, response, task)) {
+            return;
+          }
+
+          status = getCachedResult(te, task);
+          if (status == null) {
+            // ask the task to load it (if they have persisted it to save
+            // memory)
+            task.loadResult();
+            status = task.getTaskStatus();
+          }
         } else {
           // need to ask the slave for it (and handle error if slave is down...)
           String slave = te.getServer();
@@ -166,7 +212,8 @@ public class GetTaskResultServlet extends WekaServlet {
           // send status (and result if ready) back to client
           oos =
             new ObjectOutputStream(new BufferedOutputStream(
-              new GZIPOutputStream(outS)));
+              Compression.compress(outS,
+                Compression.negotiate(accepted, response))));
           oos.writeObject(status);
           oos.flush();
 
@@ -175,14 +222,11 @@ public class GetTaskResultServlet extends WekaServlet {
           // result now
           task.freeMemory();
         } else if (clientNew) {
-          Map<String, Object> responseMap =
-            JSONProtocol.createOKResponseMap("OK. TaskResult");
-          Map<String, Object> taskInfoMap =
-            JSONProtocol.taskStatusInfoToJsonMap(status, true);
-          responseMap.put(JSONProtocol.RESPONSE_PAYLOAD_KEY, taskInfoMap);
-          String responseJ = JSONProtocol.encodeToJSONString(responseMap);
+          // the result is encoded straight onto the response
           out = response.getWriter();
-          out.println(responseJ);
+          JSONProtocol.writeTaskStatusInfoResponse(out, "OK. TaskResult",
+            status, Compression.negotiate(accepted, response));
+          out.println();
           out.flush();
         } else {
           out = response.getWriter();
@@ -253,6 +297,273 @@ public class GetTaskResultServlet extends WekaServlet {
     }
   }
 
+  /**
+   * Get the result of a finished task that has persisted its result from the
+   * server's result cache. The task itself is left alone (its result is not
+   * loaded).
+   * 
+   * @param entry the entry for the task
+   * @param task the task
+   * @return a TaskStatusInfo for the task encapsulating the result, or null if
+   *         the task has no persisted result
+   * @throws Exception if the result can't be loaded
+   */
+  protected TaskStatusInfo getCachedResult(WekaTaskMap.WekaTaskEntry entry,
+    NamedTask task) throws Exception {
+    if (!(task instanceof PersistedResult)) {
+      return null;
+    }
+    File resultFile = ((PersistedResult) task).getPersistedResult();
+    TaskStatusInfo status = task.getTaskStatus();
+    if (resultFile == null || !resultFile.exists() || status == null
+      || status.getExecutionStatus() != TaskStatusInfo.FINISHED) {
+      return null;
+    }
+
+    TaskStatusInfo result = new TaskStatusInfo();
+    result.setExecutionStatus(status.getExecutionStatus());
+    result.setStatusMessage(status.getStatusMessage());
+    try {
+      result.setTaskResult(m_server.getResultCache().getResult(
+        entry.toString(), resultFile));
+    } catch (FileNotFoundException ex) {
+      // purged since
+      return null;
+    }
+
+    return result;
+  }
+
+  /**
+   * Send the persisted result of a finished task to a legacy client without
+   * loading it. The status frame is built in memory and the persisted result
+   * is transferred straight from the file channel to the response. Honours a
+   * single byte range (Range and If-Range headers) over the whole response.
+   * The result is only sent this way if the client accepts the codec it was
+   * persisted with.
+   * 
+   * @param request the request
+   * @param response the response
+   * @param task the task
+   * @return true if the result was sent; false if the task has no persisted
+   *         result or the client doesn't accept its codec (in which case
+   *         nothing has been written to the response)
+   * @throws IOException if a problem occurs
+   */
+  protected boolean sendPersistedResult(HttpServletRequest request,
+    HttpServletResponse response, NamedTask task) throws IOException {
+    if (!(task instanceof PersistedResult)) {
+      return false;
+    }
+    File resultFile = ((PersistedResult) task).getPersistedResult();
+    TaskStatusInfo status = task.getTaskStatus();
+    if (resultFile == null || status == null
+      || status.getExecutionStatus() != TaskStatusInfo.FINISHED) {
+      return false;
+    }
+
+    FileInputStream fis = null;
+    try {
+      fis = new FileInputStream(resultFile);
+    } catch (FileNotFoundException ex) {
+      // not persisted (or purged since)
+      return false;
+    }
+
+    try {
+      Compression.Codec codec = Compression.detect(resultFile);
+      if (codec == null
+        || !Compression.accepts(request.getHeader(Compression.ACCEPT_HEADER),
+          codec)) {
+        return false;
+      }
+
+      FileChannel channel = fis.getChannel();
+      byte[] frame = statusFrame(status, codec);
+      long length = frame.length + channel.size();
+      String etag =
+        "\"" + Integer.toHexString(Arrays.hashCode(frame)) + "-"
+          + Long.toHexString(resultFile.lastModified()) + "-"
+          + Long.toHexString(length) + "\"";
+
+      long first = 0;
+      long last = length - 1;
+      String range = request.getHeader("Range");
+      String ifRange = request.getHeader("If-Range");
+      if (range != null && (ifRange == null || ifRange.equals(etag))) {
+        long[] r = null;
+        try {
+          r = parseRange(range, length);
+        } catch (NumberFormatException ex) {
+          // malformed (or multiple) ranges - send the lot
+          r = new long[] { first, last };
+        }
+        if (r == null) {
+          response
+            .setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+          response.setHeader("Content-Range", "bytes */" + length);
+          response.setHeader("Content-Length", "0");
+          return true;
+        }
+        if (r[0] != first || r[1] != last) {
+          first = r[0];
+          last = r[1];
+          response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+          response.setHeader("Content-Range", "bytes " + first + "-" + last
+            + "/" + length);
+        }
+      }
+
+      response.setContentType(RESULT_STREAM_CONTENT_TYPE);
+      response.setHeader(RESULT_STREAM_HEADER, "1");
+      response.setHeader(Compression.CODEC_HEADER, codec.getName());
+      response.setHeader("Accept-Ranges", "bytes");
+      response.setHeader("ETag", etag);
+      response.setHeader("Content-Length", "" + (last - first + 1));
+
+      OutputStream outS = response.getOutputStream();
+      long pos = first;
+      if (pos < frame.length) {
+        int n = (int) Math.min(frame.length - pos, last - pos + 1);
+        outS.write(frame, (int) pos, n);
+        pos += n;
+      }
+      if (pos <= last) {
+        WritableByteChannel target = Channels.newChannel(outS);
+        long filePos = pos - frame.length;
+        long remaining = last - pos + 1;
+        while (remaining > 0) {
+          long n = channel.transferTo(filePos, remaining, target);
+          if (n <= 0) {
+            break;
+          }
+          filePos += n;
+          remaining -= n;
+        }
+      }
+      outS.flush();
+    } finally {
+      fis.close();
+    }
+
+    return true;
+  }
+
+  /**
+   * Build the status frame of a streamed result: the length of the
+   * TaskStatusInfo (without its result) followed by the TaskStatusInfo
+   * serialized and compressed in the same way as a normal response
+   * 
+   * @param status the status of the task
+   * @param codec the codec to compress with
+   * @return the frame
+   * @throws IOException if a problem occurs
+   */
+  protected static byte[] statusFrame(TaskStatusInfo status,
+    Compression.Codec codec) throws IOException {
+    TaskStatusInfo copy = new TaskStatusInfo();
+    copy.setExecutionStatus(status.getExecutionStatus());
+    copy.setStatusMessage(status.getStatusMessage());
+
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ObjectOutputStream oos =
+      new ObjectOutputStream(new BufferedOutputStream(Compression.compress(
+        bos, codec)));
+    oos.writeObject(copy);
+    oos.close();
+
+    ByteArrayOutputStream frame = new ByteArrayOutputStream(bos.size() + 4);
+    DataOutputStream dos = new DataOutputStream(frame);
+    dos.writeInt(bos.size());
+    bos.writeTo(dos);
+    dos.flush();
+
+    return frame.toByteArray();
+  }
+
+  /**
+   * Parse a Range header. Only a single range of bytes is supported.
+   * 
+   * @param range the value of the header
+   * @param length the length of the response
+   * @return the first and last byte positions of the range or null if the
+   *         range can't be satisfied
+   * @throws NumberFormatException if the range is malformed or is for more
+   *           than one range
+   */
+  protected static long[] parseRange(String range, long length) {
+    range = range.trim();
+    if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+      throw new NumberFormatException("unsupported range: " + range);
+    }
+    String spec = range.substring(6).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      throw new NumberFormatException("malformed range: " + range);
+    }
+    String firstS = spec.substring(0, dash).trim();
+    String lastS = spec.substring(dash + 1).trim();
+
+    long first;
+    long last = length - 1;
+    if (firstS.length() == 0) {
+      // suffix range - the last n bytes
+      long suffix = Long.parseLong(lastS);
+      if (suffix <= 0 || length == 0) {
+        return null;
+      }
+      first = Math.max(0, length - suffix);
+    } else {
+      first = Long.parseLong(firstS);
+      if (lastS.length() > 0) {
+        long l = Long.parseLong(lastS);
+        if (l < first) {
+          throw new NumberFormatException("malformed range: " + range);
+        }
+        last = Math.min(l, last);
+      }
+      if (first >= length) {
+        return null;
+      }
+    }
+
+    return new long[] { first, last };
+  }
+
+  /**
+   * Read the response to a request for a task result made by a legacy client.
+   * Handles both streamed (stream=Y) and normal responses.
+   * 
+   * @param method the executed request
+   * @return the TaskStatusInfo for the task (encapsulating the result), or an
+   *         error message from the server
+   * @throws Exception if a problem occurs
+   */
+  public static Object readResponse(HttpMethod method) throws Exception {
+    InputStream is = method.getResponseBodyAsStream();
+    if (method.getResponseHeader(RESULT_STREAM_HEADER) == null) {
+      ObjectInputStream ois =
+        SerializationHelper.getObjectInputStream(new BufferedInputStream(
+          Compression.decompress(is)));
+      return ois.readObject();
+    }
+
+    DataInputStream dis = new DataInputStream(new BufferedInputStream(is));
+    byte[] frame = new byte[dis.readInt()];
+    dis.readFully(frame);
+    ObjectInputStream ois =
+      SerializationHelper.getObjectInputStream(Compression
+        .decompress(new ByteArrayInputStream(frame)));
+    TaskStatusInfo status = (TaskStatusInfo) ois.readObject();
+
+    ois =
+      SerializationHelper.getObjectInputStream(new BufferedInputStream(
+        Compression.decompress(dis)));
+    status.setTaskResult(ois.readObject());
+
+    return status;
+  }
+
   protected static TaskStatusInfo getResultRemote(WekaServer server,
     String slave, String remoteTaskID, String origTaskID) {
 
@@ -265,9 +576,11 @@ public class GetTaskResultServlet extends WekaServlet {
       url = url.replace(" ", "%20");
       url += CONTEXT_PATH;
       url += "/?name=" + URLEncoder.encode(remoteTaskID, "UTF-8") + "&client=Y";
+      url += "&" + STREAM_KEY + "=Y";
       post = new PostMethod(url);
       post.setDoAuthentication(true);
       post.addRequestHeader(new Header("Content-Type", "text/plain"));
+      Compression.requestCodecs(post);
 
       // Get HTTP client
       HttpClient client =
@@ -277,6 +590,7 @@ public class GetTaskResultServlet extends WekaServlet {
 
       // Execute request
       int result = client.executeMethod(post);
+      Compression.notePeer(slave, post);
       // System.out.println("[WekaServer] Response from master server : " +
       // result);
       if (result == 401) {
@@ -286,10 +600,7 @@ public class GetTaskResultServlet extends WekaServlet {
 
         // the response
         is = post.getResponseBodyAsStream();
-        ObjectInputStream ois =
-          new ObjectInputStream(
-            new BufferedInputStream(new GZIPInputStream(is)));
-        Object response = ois.readObject();
+        Object response = readResponse(post);
         if (response.toString().startsWith(WekaServlet.RESPONSE_ERROR)) {
           System.err
             .println("[WekaServer] A problem occurred while "
@@ -25,6 +25,7 @@ import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.methods.PostMethod;
 import weka.experiment.TaskStatusInfo;
+import weka.server.logging.ServerLogger;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -39,8 +40,6 @@ import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.URLEncoder;
 import java.util.Map;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * Get the status of a task.
@@ -53,6 +52,19 @@ public class GetTaskStatusServlet extends WekaServlet {
   /** The context path for this servlet */
   public static final String CONTEXT_PATH = "/weka/taskStatus";
 
+  /**
+   * Request parameter asking for only the status and log lines logged after
+   * the line with the given sequence number
+   */
+  public static final String SINCE_KEY = "since";
+
+  /**
+   * Response header holding the sequence number of the last status or log
+   * line in the status message - pass it back as the since parameter to get
+   * only the lines logged after it
+   */
+  public static final String SEQUENCE_HEADER = "X-Weka-Status-Sequence";
+
   /**
    * For serialization
    */
@@ -92,11 +104,23 @@ public class GetTaskStatusServlet extends WekaServlet {
       clientParamLegacy != null && clientParamLegacy.equalsIgnoreCase("y");
     boolean clientNew =
       jsonClientParam != null && jsonClientParam.equalsIgnoreCase("y");
+    long since = -1;
+    if (request.getParameter(SINCE_KEY) != null) {
+      try {
+        since = Long.parseLong(request.getParameter(SINCE_KEY));
+      } catch (NumberFormatException ex) {
+        // send everything
+      }
+    }
 
     response.setStatus(HttpServletResponse.SC_OK);
+    Compression.Codec codec = Compression.GZIP;
     if (clientLegacy) {
       response.setCharacterEncoding("UTF-8");
       response.setContentType("application/octet-stream");
+      codec =
+        Compression.negotiate(request.getHeader(Compression.ACCEPT_HEADER),
+          response);
     }
     if (clientNew) {
       response.setContentType("application/json");
@@ -118,7 +142,7 @@ public class GetTaskStatusServlet extends WekaServlet {
           OutputStream outS = response.getOutputStream();
           oos =
             new ObjectOutputStream(new BufferedOutputStream(
-              new GZIPOutputStream(outS)));
+              Compression.compress(outS, codec)));
           oos.writeObject(errorResult);
           oos.flush();
         } else if (clientNew) {
@@ -143,23 +167,48 @@ public class GetTaskStatusServlet extends WekaServlet {
         }
       } else {
         TaskStatusInfo status = null;
+        String sequence = null;
 
         WekaTaskMap.WekaTaskEntry te = m_taskMap.getTaskKey(taskName);
 
         if (te.getServer().equals(
           m_server.getHostname() + ":" + m_server.getPort())) {
-          TaskStatusInfo temp_status = task.getTaskStatus();
+          ServerLogger log =
+            task instanceof IncrementalStatus ? ((IncrementalStatus) task)
+              .getServerLog() : null;
 
           // make sure we only send back status stuff (and not a result object)
           status = new TaskStatusInfo();
-          status.setExecutionStatus(temp_status.getExecutionStatus());
-          status.setStatusMessage(temp_status.getStatusMessage());
-
+          if (log != null && since >= 0) {
+            // carry on from the last line sent - every line before it has
+            // been sent by now
+            long[] lastSent = new long[1];
+            status.setExecutionStatus(((IncrementalStatus) task)
+              .getExecutionStatus());
+            status.setStatusMessage(log.getStatusTextSince(since, lastSent));
+            sequence = "" + lastSent[0];
+          } else {
+            if (log != null) {
+              // read before the text is built, so the text holds at least
+              // the lines up to here (later ones may be sent again)
+              sequence = "" + log.getLastSequence();
+            }
+            TaskStatusInfo temp_status = task.getTaskStatus();
+            status.setExecutionStatus(temp_status.getExecutionStatus());
+            status.setStatusMessage(temp_status.getStatusMessage());
+          }
         } else {
           // need to ask the slave for it (and handle error if slave is down...)
           String slave = te.getServer();
           String remoteTaskID = te.getRemoteID();
-          status = getStatusRemote(m_server, slave, remoteTaskID, taskName);
+          String[] remoteSequence = new String[1];
+          status =
+            getStatusRemote(m_server, slave, remoteTaskID, taskName, since,
+              remoteSequence);
+          sequence = remoteSequence[0];
+        }
+        if (sequence != null) {
+          response.setHeader(SEQUENCE_HEADER, sequence);
         }
 
         if (clientLegacy) {
@@ -168,15 +217,20 @@ public class GetTaskStatusServlet extends WekaServlet {
           // send status back to client
           oos =
             new ObjectOutputStream(new BufferedOutputStream(
-              new GZIPOutputStream(outS)));
+              Compression.compress(outS, codec)));
           oos.writeObject(status);
           oos.flush();
         } else if (clientNew) {
           // send the status back to the client
           Map<String, Object> responseJ =
             JSONProtocol.createOKResponseMap("OK. TaskStatus");
-          responseJ.put(JSONProtocol.RESPONSE_PAYLOAD_KEY,
-            JSONProtocol.taskStatusInfoToJsonMap(status, false));
+          Map<String, Object> statusJ =
+            JSONProtocol.taskStatusInfoToJsonMap(status, false);
+          if (sequence != null) {
+            statusJ.put(JSONProtocol.TASK_STATUS_INFO_SEQUENCE_KEY,
+              Long.valueOf(sequence));
+          }
+          responseJ.put(JSONProtocol.RESPONSE_PAYLOAD_KEY, statusJ);
           String encodedResponse = JSONProtocol.encodeToJSONString(responseJ);
           out = response.getWriter();
           out.println(encodedResponse);
@@ -255,8 +309,22 @@ public class GetTaskStatusServlet extends WekaServlet {
     }
   }
 
+  /**
+   * Get the status of a task from the slave that is executing it
+   *
+   * @param server the server asking
+   * @param slave the slave (host:port)
+   * @param remoteTaskID the ID of the task on the slave
+   * @param origTaskID the ID of the task on this server
+   * @param since only get the lines logged after this sequence number (-1 for
+   *          the full status message)
+   * @param sequence if not null, the first element is set to the sequence
+   *          number of the last line sent by the slave (if it sent one)
+   * @return the status of the task or null if it couldn't be retrieved
+   */
   protected static TaskStatusInfo getStatusRemote(WekaServer server,
-    String slave, String remoteTaskID, String origTaskID) {
+    String slave, String remoteTaskID, String origTaskID, long since,
+    String[] sequence) {
 
     InputStream is = null;
     PostMethod post = null;
@@ -267,9 +335,13 @@ public class GetTaskStatusServlet extends WekaServlet {
       url = url.replace(" ", "%20");
       url += CONTEXT_PATH;
       url += "/?name=" + URLEncoder.encode(remoteTaskID, "UTF-8") + "&client=Y";
+      if (since >= 0) {
+        url += "&" + SINCE_KEY + "=" + since;
+      }
       post = new PostMethod(url);
       post.setDoAuthentication(true);
       post.addRequestHeader(new Header("Content-Type", "text/plain"));
+      Compression.requestCodecs(post);
 
       // Get HTTP client
       HttpClient client =
@@ -279,6 +351,7 @@ public class GetTaskStatusServlet extends WekaServlet {
 
       // Execute request
       int result = client.executeMethod(post);
+      Compression.notePeer(slave, post);
       // System.out.println("[WekaServer] Response from master server : " +
       // result);
       if (result == 401) {
@@ -286,11 +359,16 @@ public class GetTaskStatusServlet extends WekaServlet {
           + origTaskID + "' - authentication required.\n");
       } else {
 
+        Header sequenceHeader = post.getResponseHeader(SEQUENCE_HEADER);
+        if (sequence != null && sequenceHeader != null) {
+          sequence[0] = sequenceHeader.getValue();
+        }
+
         // the response
         is = post.getResponseBodyAsStream();
         ObjectInputStream ois =
-          new ObjectInputStream(
-            new BufferedInputStream(new GZIPInputStream(is)));
+          new ObjectInputStream(new BufferedInputStream(
+            Compression.decompress(is)));
         Object response = ois.readObject();
         if (response.toString().startsWith(WekaServlet.RESPONSE_ERROR)) {
           System.err
@@ -339,8 +417,18 @@ public class GetTaskStatusServlet extends WekaServlet {
    * @return a string description of the status
    */
   public static String taskStatusInfoToString(TaskStatusInfo status) {
+    return statusToString(status.getExecutionStatus());
+  }
+
+  /**
+   * Converts an execution status code to a string description.
+   * 
+   * @param status the execution status code to convert
+   * @return a string description of the status
+   */
+  public static String statusToString(int status) {
     String executionStatus = "";
-    switch (status.getExecutionStatus()) {
+    switch (status) {
     case TaskStatusInfo.TO_BE_RUN:
       executionStatus = "To be executed";
       break;
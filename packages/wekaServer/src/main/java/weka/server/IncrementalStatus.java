@@ -0,0 +1,50 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    IncrementalStatus.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import weka.server.logging.ServerLogger;
+
+/**
+ * Interface to a task whose execution status can be read without building its
+ * status message, and whose status and log lines can be fetched a few at a
+ * time (by sequence number) from its ServerLogger.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public interface IncrementalStatus {
+
+  /**
+   * Get the execution status of this task
+   *
+   * @return the execution status (a TaskStatusInfo constant) or -1 if the
+   *         task has no status
+   */
+  int getExecutionStatus();
+
+  /**
+   * Get the log that this task's status and log lines are written to
+   *
+   * @return the log or null if the task doesn't have one
+   */
+  ServerLogger getServerLog();
+}
@@ -21,7 +21,6 @@
 
 package weka.server;
 
-import org.apache.commons.codec.binary.Base64;
 import org.boon.json.JsonFactory;
 import org.boon.json.ObjectMapper;
 import weka.core.WekaException;
@@ -29,13 +28,9 @@ import weka.experiment.TaskStatusInfo;
 import weka.server.knowledgeFlow.ScheduledNamedKnowledgeFlowTask;
 import weka.server.knowledgeFlow.UnscheduledNamedKnowledgeFlowTask;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.Reader;
+import java.io.Writer;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -43,8 +38,7 @@ import java.util.Calendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.UUID;
 
 /**
  * Routines for encoding/decoding data to/from JSON
@@ -89,6 +83,7 @@ public class JSONProtocol {
   public static final String TASK_STATUS_INFO_STATUS_MESSAGE_KEY =
     "statusMessage";
   public static final String TASK_STATUS_INFO_TASK_RESULT_KEY = "taskResult";
+  public static final String TASK_STATUS_INFO_SEQUENCE_KEY = "sequence";
 
   // KF task stuff
   public static final String KF_FLOW_PAYLOAD_ID = "kfFlow";
@@ -98,6 +93,22 @@ public class JSONProtocol {
   // Schedule
   public static final String SCHEDULE_PAYLOAD_ID = "schedule";
 
+  // Batch submission
+  public static final String TASK_ID_LIST_PAYLOAD_ID = "taskIDs";
+
+  // Task events
+  public static final String TASK_EVENTS_SEQUENCE_KEY = "sequence";
+  public static final String TASK_EVENTS_RESET_KEY = "reset";
+  public static final String TASK_EVENTS_MESSAGE_SEQUENCE_KEY =
+    "messageSequence";
+  public static final String TASK_EVENTS_EPOCH_KEY = "epoch";
+  public static final String TASK_EVENTS_EVENTS_KEY = "events";
+  public static final String TASK_EVENT_TASK_KEY = "task";
+  public static final String TASK_EVENT_TYPE_KEY = "type";
+  public static final String TASK_EVENT_STATUS_KEY = "status";
+  public static final String TASK_EVENT_MESSAGE_KEY = "message";
+  public static final String TASK_EVENT_TIME_KEY = "time";
+
   /**
    * Creates pre-configured error response
    *
@@ -171,6 +182,17 @@ public class JSONProtocol {
     return mapper.writeValueAsString(toEncode);
   }
 
+  /**
+   * Encode a list of maps to a JSON array
+   *
+   * @param toEncode the list to encode
+   * @return the encoded list
+   */
+  public static String encodeToJSONString(List<Map<String, Object>> toEncode) {
+    ObjectMapper mapper = JsonFactory.create();
+    return mapper.writeValueAsString(toEncode);
+  }
+
   /**
    * Convert a JSON encoded {@code NamedTask} to a {@code NamedTask} object
    *
@@ -187,6 +209,98 @@ public class JSONProtocol {
     ObjectMapper mapper = JsonFactory.create();
     Map<String, Object> taskMap = mapper.readValue(jsonTask, Map.class);
 
+    return jsonMapToNamedTask(taskMap);
+  }
+
+  /**
+   * Convert a JSON encoded {@code NamedTask} read from a reader to a
+   * {@code NamedTask} object. Avoids building the JSON up as a string first.
+   *
+   * @param jsonTask a reader for the task in JSON format
+   * @return a {@code NamedTask} instance
+   * @throws WekaException if a problem occurs
+   */
+  @SuppressWarnings("unchecked")
+  public static NamedTask jsonToNamedTask(Reader jsonTask)
+    throws WekaException {
+    ObjectMapper mapper = JsonFactory.create();
+    Map<String, Object> taskMap = mapper.readValue(jsonTask, Map.class);
+    if (taskMap == null) {
+      throw new WekaException("JSON task has size 0!");
+    }
+
+    return jsonMapToNamedTask(taskMap);
+  }
+
+  /**
+   * Convert a JSON array of encoded {@code NamedTask}s to a list of
+   * {@code NamedTask} objects
+   *
+   * @param jsonTasks the tasks in JSON format
+   * @return a list of {@code NamedTask} instances
+   * @throws WekaException if a problem occurs
+   */
+  public static List<NamedTask> jsonToNamedTasks(String jsonTasks)
+    throws WekaException {
+    if (jsonTasks == null || jsonTasks.length() == 0) {
+      throw new WekaException("JSON task list has size 0!");
+    }
+
+    ObjectMapper mapper = JsonFactory.create();
+    return jsonListToNamedTasks(mapper.readValue(jsonTasks, List.class));
+  }
+
+  /**
+   * Convert a JSON array of encoded {@code NamedTask}s read from a reader to a
+   * list of {@code NamedTask} objects
+   *
+   * @param jsonTasks a reader for the tasks in JSON format
+   * @return a list of {@code NamedTask} instances
+   * @throws WekaException if a problem occurs
+   */
+  public static List<NamedTask> jsonToNamedTasks(Reader jsonTasks)
+    throws WekaException {
+    ObjectMapper mapper = JsonFactory.create();
+    List<?> taskMaps = mapper.readValue(jsonTasks, List.class);
+    if (taskMaps == null) {
+      throw new WekaException("JSON task list has size 0!");
+    }
+
+    return jsonListToNamedTasks(taskMaps);
+  }
+
+  /**
+   * Convert a list of map representations of JSON encoded {@code NamedTask}s
+   * to a list of {@code NamedTask} objects
+   *
+   * @param taskMaps the map representations of the tasks
+   * @return a list of {@code NamedTask} instances
+   * @throws WekaException if a problem occurs
+   */
+  @SuppressWarnings("unchecked")
+  protected static List<NamedTask> jsonListToNamedTasks(List<?> taskMaps)
+    throws WekaException {
+    List<NamedTask> result = new ArrayList<NamedTask>();
+    for (Object taskMap : taskMaps) {
+      if (!(taskMap instanceof Map)) {
+        throw new WekaException("JSON task list contains a non-task entry!");
+      }
+      result.add(jsonMapToNamedTask((Map<String, Object>) taskMap));
+    }
+
+    return result;
+  }
+
+  /**
+   * Convert a map representation of a JSON encoded {@code NamedTask} to a
+   * {@code NamedTask} object
+   *
+   * @param taskMap the map representation of the task
+   * @return a {@code NamedTask} instance
+   * @throws WekaException if a problem occurs
+   */
+  protected static NamedTask jsonMapToNamedTask(Map<String, Object> taskMap)
+    throws WekaException {
     String taskType = taskMap.get(TASK_TYPE_KEY).toString();
     NamedTask result = null;
     if (taskType.equals(TASK_TYPE_KF)) {
@@ -481,6 +595,83 @@ public class JSONProtocol {
     return result;
   }
 
+  /**
+   * Convert a set of task events to a map (for subsequent conversion to a json
+   * string)
+   *
+   * @param events the events to convert
+   * @return a map containing the events
+   */
+  public static Map<String, Object> taskEventsToJsonMap(
+    TaskEventBus.TaskEvents events) {
+    Map<String, Object> eventsMap = new HashMap<String, Object>();
+    eventsMap.put(TASK_EVENTS_SEQUENCE_KEY, events.getSequence());
+    eventsMap.put(TASK_EVENTS_RESET_KEY, events.isReset());
+    eventsMap.put(TASK_EVENTS_MESSAGE_SEQUENCE_KEY,
+      events.getMessageSequence());
+    if (events.getEpoch() != null) {
+      eventsMap.put(TASK_EVENTS_EPOCH_KEY, events.getEpoch());
+    }
+
+    List<Map<String, Object>> eventList = new ArrayList<Map<String, Object>>();
+    for (TaskEventBus.TaskEvent e : events.getEvents()) {
+      Map<String, Object> eventMap = new HashMap<String, Object>();
+      eventMap.put(TASK_EVENTS_SEQUENCE_KEY, e.getSequence());
+      eventMap.put(TASK_EVENT_TASK_KEY, e.getTaskID());
+      eventMap.put(TASK_EVENT_TYPE_KEY, e.getType());
+      eventMap.put(TASK_EVENT_STATUS_KEY, e.getStatus());
+      if (e.getMessage() != null) {
+        eventMap.put(TASK_EVENT_MESSAGE_KEY, e.getMessage());
+      }
+      eventMap.put(TASK_EVENT_TIME_KEY, e.getTime());
+      eventList.add(eventMap);
+    }
+    eventsMap.put(TASK_EVENTS_EVENTS_KEY, eventList);
+
+    return eventsMap;
+  }
+
+  /**
+   * Construct a set of task events from the supplied map
+   *
+   * @param eventsMap map representation of a set of task events
+   * @return the reconstructed events
+   */
+  @SuppressWarnings("unchecked")
+  public static TaskEventBus.TaskEvents jsonMapToTaskEvents(
+    Map<String, Object> eventsMap) {
+    TaskEventBus.TaskEvents result = new TaskEventBus.TaskEvents();
+    result.m_sequence =
+      ((Number) eventsMap.get(TASK_EVENTS_SEQUENCE_KEY)).longValue();
+    result.m_reset =
+      Boolean.TRUE.equals(eventsMap.get(TASK_EVENTS_RESET_KEY));
+    if (eventsMap.get(TASK_EVENTS_EPOCH_KEY) != null) {
+      result.m_messageSequence =
+        ((Number) eventsMap.get(TASK_EVENTS_MESSAGE_SEQUENCE_KEY))
+          .longValue();
+      result.m_epoch = eventsMap.get(TASK_EVENTS_EPOCH_KEY).toString();
+    }
+
+    List<Map<String, Object>> eventList =
+      (List<Map<String, Object>>) eventsMap.get(TASK_EVENTS_EVENTS_KEY);
+    if (eventList != null) {
+      for (Map<String, Object> eventMap : eventList) {
+        Object message = eventMap.get(TASK_EVENT_MESSAGE_KEY);
+        TaskEventBus.TaskEvent e =
+          new TaskEventBus.TaskEvent(((Number) eventMap
+            .get(TASK_EVENTS_SEQUENCE_KEY)).longValue(), eventMap.get(
+            TASK_EVENT_TASK_KEY).toString(), ((Number) eventMap
+            .get(TASK_EVENT_TYPE_KEY)).intValue(), ((Number) eventMap
+            .get(TASK_EVENT_STATUS_KEY)).intValue(), message != null ? message
+            .toString() : null);
+        e.m_time = ((Number) eventMap.get(TASK_EVENT_TIME_KEY)).longValue();
+        result.m_events.add(e);
+      }
+    }
+
+    return result;
+  }
+
   /**
    * Encode an object to a base64 string of compressed bytes
    *
@@ -489,27 +680,7 @@ public class JSONProtocol {
    * @throws IOException if a problem occurs
    */
   protected static String encodeToBase64(Object toEncode) throws IOException {
-    ByteArrayOutputStream bao = new ByteArrayOutputStream();
-    BufferedOutputStream bos = new BufferedOutputStream(bao);
-    ObjectOutputStream oo = new ObjectOutputStream(bos);
-    oo.writeObject(toEncode);
-    oo.flush();
-    byte[] val = bao.toByteArray();
-
-    String string;
-    if (val == null) {
-      string = null;
-    } else {
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      GZIPOutputStream gzos = new GZIPOutputStream(baos);
-      bos = new BufferedOutputStream(gzos);
-      bos.write(val);
-      bos.flush();
-      bos.close();
-
-      string = new String(Base64.encodeBase64(baos.toByteArray()));
-    }
-    return string;
+    return Base64Codec.encode(toEncode);
   }
 
   /**
@@ -520,46 +691,59 @@ public class JSONProtocol {
    * @throws Exception if a problem occurs
    */
   public static Object decodeBase64(String base64) throws Exception {
-    byte[] bytes = Base64.decodeBase64(base64.getBytes());
-
-    byte[] result = null;
-    Object resultObject = null;
-    if (bytes != null && bytes.length > 0) {
-      ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
-      GZIPInputStream gzip = new GZIPInputStream(bais);
-      BufferedInputStream bi = new BufferedInputStream(gzip);
-
-      result = new byte[] {};
-
-      byte[] extra = new byte[1000000];
-      int nrExtra = bi.read(extra);
-
-      while (nrExtra >= 0) {
-        // add it to bytes...
-        int newSize = result.length + nrExtra;
-        byte[] tmp = new byte[newSize];
-        for (int i = 0; i < result.length; i++) {
-          tmp[i] = result[i];
-        }
-        for (int i = 0; i < nrExtra; i++) {
-          tmp[result.length + i] = extra[i];
-        }
-
-        // change the result
-        result = tmp;
-        nrExtra = bi.read(extra);
-      }
-      bytes = result;
-      gzip.close();
+    if (base64 == null || base64.length() == 0) {
+      return null;
     }
 
-    if (result != null && result.length > 0) {
-      ByteArrayInputStream bis = new ByteArrayInputStream(result);
-      ObjectInputStream ois = new ObjectInputStream(bis);
-      resultObject = ois.readObject();
-      ois.close();
+    return Base64Codec.decode(base64);
+  }
+
+  /**
+   * Write an OK response whose payload is a {@code TaskStatusInfo} (including
+   * its result) to a writer. The result is serialized, compressed and base64
+   * encoded straight onto the writer rather than being built up as a string
+   * first.
+   *
+   * @param out the writer to write to
+   * @param message the message for the response
+   * @param statusInfo the status info to send
+   * @throws Exception if a problem occurs
+   */
+  public static void writeTaskStatusInfoResponse(Writer out, String message,
+    TaskStatusInfo statusInfo) throws Exception {
+    writeTaskStatusInfoResponse(out, message, statusInfo, Compression.GZIP);
+  }
+
+  /**
+   * Write an OK response whose payload is a {@code TaskStatusInfo} (including
+   * its result) to a writer, compressing the result with the given codec
+   *
+   * @param out the writer to write to
+   * @param message the message for the response
+   * @param statusInfo the status info to send
+   * @param codec the codec to compress the result with
+   * @throws Exception if a problem occurs
+   */
+  public static void writeTaskStatusInfoResponse(Writer out, String message,
+    TaskStatusInfo statusInfo, Compression.Codec codec) throws Exception {
+    Map<String, Object> responseMap = createOKResponseMap(message);
+    Map<String, Object> statusMap = taskStatusInfoToJsonMap(statusInfo, false);
+
+    // encode everything but the result, then splice the result in where the
+    // placeholder is
+    String placeholder = "@" + UUID.randomUUID().toString() + "@";
+    statusMap.put(TASK_STATUS_INFO_TASK_RESULT_KEY, placeholder);
+    responseMap.put(RESPONSE_PAYLOAD_KEY, statusMap);
+    String json = encodeToJSONString(responseMap);
+    int split = json.indexOf("\"" + placeholder + "\"") + 1;
+    if (split <= 0) {
+      throw new IOException("Unable to place the task result in the response");
     }
 
-    return resultObject;
+    out.write(json, 0, split);
+    Base64Codec.encode(statusInfo.getTaskResult(), out, codec);
+    out.write(json, split + placeholder.length(),
+      json.length() - split - placeholder.length());
+    out.flush();
   }
 }
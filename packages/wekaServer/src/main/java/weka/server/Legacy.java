@@ -28,8 +28,6 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * Binary/legacy related task stuff. Binary is used for internal execution and
@@ -55,8 +53,8 @@ public class Legacy {
     try {
       persistedResult = WekaServer.getTempFile();
       oos =
-        new ObjectOutputStream(new BufferedOutputStream(new GZIPOutputStream(
-          new FileOutputStream(persistedResult))));
+        new ObjectOutputStream(new BufferedOutputStream(Compression.compress(
+          new FileOutputStream(persistedResult), Compression.getDefault())));
       oos.writeObject(result);
       oos.flush();
     } finally {
@@ -83,8 +81,8 @@ public class Legacy {
     ObjectInputStream ois = null;
     try {
       ois =
-        new ObjectInputStream(new BufferedInputStream(new GZIPInputStream(
-          new FileInputStream(persistedResult))));
+        new ObjectInputStream(new BufferedInputStream(Compression
+          .decompress(new FileInputStream(persistedResult))));
       return  ois.readObject();
     } finally {
       if (ois != null) {
@@ -0,0 +1,583 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    MasterNotifier.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.methods.PostMethod;
+
+import weka.server.WekaTaskMap.WekaTaskEntry;
+
+/**
+ * Sends task status and last execution time updates from a slave to its
+ * master asynchronously. Updates are coalesced per task - only the latest
+ * status and execution time of a task matter - and are sent in a single batch
+ * request (see UpdateTasksServlet) once per flush interval by one background
+ * thread. If the master can't be reached, the batch is kept (newer updates
+ * take precedence) and retried with an exponential back-off. A master that
+ * predates the batch endpoint is sent the updates one at a time (see
+ * SetTaskStatusServlet and SetLastExecutionServlet) instead.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class MasterNotifier {
+
+  /** Default time between flushes (milliseconds) */
+  public static final long DEFAULT_FLUSH_INTERVAL = 500;
+
+  /** Longest time to wait between retries (milliseconds) */
+  public static final long MAX_RETRY_INTERVAL = 60000;
+
+  /**
+   * Maximum number of tasks with pending updates. Updates for further tasks
+   * are dropped until the master catches up.
+   */
+  public static final int MAX_PENDING = 10000;
+
+  /** Maximum number of updates to send in one request */
+  public static final int MAX_BATCH_SIZE = 500;
+
+  /**
+   * The latest update for a single task. Null fields have not changed.
+   */
+  public static class TaskUpdate implements Serializable {
+
+    /** For serialization */
+    private static final long serialVersionUID = -6408145830474416218L;
+
+    /** The ID of the task on the slave (the master's remote ID) */
+    protected String m_taskID;
+
+    /** The execution status of the task */
+    protected Integer m_status;
+
+    /** The last execution time of the task */
+    protected Date m_lastExecution;
+
+    public TaskUpdate(String taskID) {
+      m_taskID = taskID;
+    }
+
+    public String getTaskID() {
+      return m_taskID;
+    }
+
+    public Integer getStatus() {
+      return m_status;
+    }
+
+    public Date getLastExecution() {
+      return m_lastExecution;
+    }
+
+    /**
+     * Fill in anything that hasn't changed since an older update for the
+     * same task
+     *
+     * @param older the older update
+     */
+    protected void mergeOlder(TaskUpdate older) {
+      if (m_status == null) {
+        m_status = older.m_status;
+      }
+      if (m_lastExecution == null) {
+        m_lastExecution = older.m_lastExecution;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return m_taskID + " (status " + m_status + ", last execution "
+        + m_lastExecution + ")";
+    }
+  }
+
+  /** The server that we are notifying for */
+  protected WekaServer m_server;
+
+  /** Pending updates by task ID */
+  protected Map<String, TaskUpdate> m_pending =
+    new LinkedHashMap<String, TaskUpdate>();
+
+  /** Time between flushes (milliseconds) */
+  protected long m_flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+  /** Number of consecutive failed flushes */
+  protected int m_failures;
+
+  /** Total number of updates sent */
+  protected long m_numSent;
+
+  /** Total number of requests made */
+  protected long m_numRequests;
+
+  /** Total number of updates dropped */
+  protected long m_numDropped;
+
+  /** The thread that sends updates */
+  protected Thread m_flushThread;
+
+  /**
+   * A master (host:port) that has turned out not to have the batch endpoint,
+   * and so is sent updates one at a time
+   */
+  protected volatile String m_singleUpdateMaster;
+
+  /**
+   * Constructor
+   *
+   * @param server the server to notify for
+   */
+  public MasterNotifier(WekaServer server) {
+    m_server = server;
+  }
+
+  /**
+   * Set the time between flushes
+   *
+   * @param interval the interval (milliseconds)
+   */
+  public void setFlushInterval(long interval) {
+    m_flushInterval = Math.max(1, interval);
+  }
+
+  /**
+   * Get the time between flushes
+   *
+   * @return the interval (milliseconds)
+   */
+  public long getFlushInterval() {
+    return m_flushInterval;
+  }
+
+  /**
+   * Start the flush thread
+   */
+  public synchronized void start() {
+    if (m_flushThread != null) {
+      return;
+    }
+
+    m_flushThread = new Thread("WekaServer master notifier") {
+      @Override
+      public void run() {
+        while (!isInterrupted()) {
+          try {
+            waitForWork();
+          } catch (InterruptedException ie) {
+            break;
+          }
+          flush();
+        }
+        // one last try for anything outstanding
+        flush();
+      }
+    };
+    m_flushThread.setPriority(Thread.MIN_PRIORITY);
+    m_flushThread.setDaemon(true);
+    m_flushThread.start();
+  }
+
+  /**
+   * Stop the flush thread. Outstanding updates are sent once more before the
+   * thread exits.
+   */
+  public synchronized void stop() {
+    if (m_flushThread != null) {
+      m_flushThread.interrupt();
+      m_flushThread = null;
+    }
+  }
+
+  /**
+   * Queue the status of a task to be sent to the master
+   *
+   * @param entry the task entry for the task in question
+   * @param status the status to send
+   */
+  public synchronized void taskStatus(WekaTaskEntry entry, int status) {
+    TaskUpdate u = getUpdate(entry);
+    if (u != null) {
+      u.m_status = status;
+    }
+  }
+
+  /**
+   * Queue the last execution time of a task to be sent to the master
+   *
+   * @param entry the task entry for the task in question
+   */
+  public void executionTime(WekaTaskEntry entry) {
+    Date lastExecution = entry.getLastExecution();
+    if (lastExecution == null) {
+      return;
+    }
+    synchronized (this) {
+      TaskUpdate u = getUpdate(entry);
+      if (u != null) {
+        u.m_lastExecution = new Date(lastExecution.getTime());
+      }
+    }
+  }
+
+  /**
+   * Get the pending update for a task, creating it if necessary
+   *
+   * @param entry the task entry for the task in question
+   * @return the pending update or null if there are too many pending updates
+   */
+  protected synchronized TaskUpdate getUpdate(WekaTaskEntry entry) {
+    String id = entry.toString();
+    TaskUpdate u = m_pending.get(id);
+    if (u == null) {
+      if (m_pending.size() >= MAX_PENDING) {
+        m_numDropped++;
+        if (m_numDropped % 1000 == 1) {
+          System.err.println("[WekaServer] Too many pending updates for the "
+            + "master server - dropping update for task " + id);
+        }
+        return null;
+      }
+      u = new TaskUpdate(id);
+      m_pending.put(id, u);
+      if (m_pending.size() >= MAX_BATCH_SIZE) {
+        // no point waiting for the rest of the interval
+        notifyAll();
+      }
+    }
+    return u;
+  }
+
+  /**
+   * Get the number of tasks with updates waiting to be sent
+   *
+   * @return the number of pending updates
+   */
+  public synchronized int getNumPending() {
+    return m_pending.size();
+  }
+
+  /**
+   * Get the total number of updates sent to the master
+   *
+   * @return the number of updates sent
+   */
+  public synchronized long getNumSent() {
+    return m_numSent;
+  }
+
+  /**
+   * Get the total number of requests made to the master
+   *
+   * @return the number of requests made
+   */
+  public synchronized long getNumRequests() {
+    return m_numRequests;
+  }
+
+  /**
+   * Get the total number of updates dropped because too many were pending
+   *
+   * @return the number of updates dropped
+   */
+  public synchronized long getNumDropped() {
+    return m_numDropped;
+  }
+
+  /**
+   * Wait until the next flush is due
+   *
+   * @throws InterruptedException if the thread is interrupted
+   */
+  protected synchronized void waitForWork() throws InterruptedException {
+    long wait = m_flushInterval;
+    if (m_failures > 0) {
+      wait =
+        Math.min(m_flushInterval << Math.min(m_failures, 16),
+          MAX_RETRY_INTERVAL);
+      // don't let a full batch cut the back-off short
+      long until = System.currentTimeMillis() + wait;
+      while (wait > 0) {
+        wait(wait);
+        wait = until - System.currentTimeMillis();
+      }
+      return;
+    }
+
+    wait(wait);
+  }
+
+  /**
+   * Take all the pending updates
+   *
+   * @return the pending updates
+   */
+  protected synchronized List<TaskUpdate> drain() {
+    List<TaskUpdate> updates = new ArrayList<TaskUpdate>(m_pending.values());
+    m_pending.clear();
+    return updates;
+  }
+
+  /**
+   * Put updates that could not be sent back in the pending map. Updates that
+   * have arrived since take precedence.
+   *
+   * @param updates the updates to put back
+   */
+  protected synchronized void requeue(List<TaskUpdate> updates) {
+    for (TaskUpdate older : updates) {
+      TaskUpdate newer = m_pending.get(older.m_taskID);
+      if (newer != null) {
+        newer.mergeOlder(older);
+      } else {
+        m_pending.put(older.m_taskID, older);
+      }
+    }
+  }
+
+  /**
+   * Send all pending updates to the master
+   *
+   * @return true if everything was sent
+   */
+  public boolean flush() {
+    List<TaskUpdate> updates = drain();
+    if (updates.size() == 0) {
+      return true;
+    }
+
+    for (int i = 0; i < updates.size(); i += MAX_BATCH_SIZE) {
+      List<TaskUpdate> batch =
+        updates.subList(i, Math.min(i + MAX_BATCH_SIZE, updates.size()));
+      if (!send(new ArrayList<TaskUpdate>(batch))) {
+        requeue(updates.subList(i, updates.size()));
+        synchronized (this) {
+          m_failures++;
+        }
+        return false;
+      }
+      synchronized (this) {
+        m_numSent += batch.size();
+        m_numRequests++;
+      }
+    }
+
+    synchronized (this) {
+      m_failures = 0;
+    }
+    return true;
+  }
+
+  /**
+   * Send a batch of updates to the master
+   *
+   * @param batch the updates to send
+   * @return false if the updates should be retried
+   */
+  protected boolean send(List<TaskUpdate> batch) {
+    String master = m_server.getMaster();
+    if (master.equals(m_singleUpdateMaster)) {
+      return sendSingly(master, batch);
+    }
+
+    PostMethod post = null;
+    InputStream is = null;
+    boolean ok = false;
+    boolean notFound = false;
+    try {
+      String url = "http://" + master;
+      url = url.replace(" ", "%20");
+      url += UpdateTasksServlet.CONTEXT_PATH;
+      url += "/?client=Y";
+
+      post = new PostMethod(url);
+      new SerializedTaskRequestEntity(batch,
+        Compression.forPeer(m_server.getMaster())).attachTo(post);
+      post.setDoAuthentication(true);
+
+      // Get HTTP client
+      HttpClient client =
+        WekaServer.ConnectionManager.getSingleton().createHttpClient();
+      WekaServer.ConnectionManager.addCredentials(client,
+        m_server.getUsername(), m_server.getPassword());
+
+      // Execute request
+      int result = client.executeMethod(post);
+      Compression.notePeer(m_server.getMaster(), post);
+      if (result == 401) {
+        System.err.println("[WekaServer] Unable to send task updates back "
+          + "to master - authentication required.\n");
+      } else if (result == 404) {
+        // an older master without the batch endpoint
+        notFound = true;
+      } else if (result != 200) {
+        System.err.println("[WekaServer] Unable to send task updates back "
+          + "to master - response code " + result);
+      } else {
+        ok = true;
+
+        // the response
+        is = post.getResponseBodyAsStream();
+        ObjectInputStream ois = new ObjectInputStream(is);
+        Object response = ois.readObject();
+        if (response.toString().startsWith(WekaServlet.RESPONSE_ERROR)) {
+          // the master has the updates but didn't like some of them -
+          // retrying won't help
+          System.err.println("[WekaServer] A problem occurred while "
+            + "trying to send task updates back to master server : \n"
+            + "\t" + response.toString());
+        }
+      }
+    } catch (Exception ex) {
+      System.err.println("[WekaServer] A problem occurred while "
+        + "trying to send task updates back to master server : \n"
+        + ex.getMessage());
+    } finally {
+      if (is != null) {
+        try {
+          is.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+
+      if (post != null) {
+        post.releaseConnection();
+      }
+    }
+
+    if (notFound) {
+      System.out.println("[WekaServer] Master " + master + " does not "
+        + "accept batched task updates - sending them one at a time.");
+      m_singleUpdateMaster = master;
+      return sendSingly(master, batch);
+    }
+
+    return ok;
+  }
+
+  /**
+   * Send a batch of updates to a master that predates the batch endpoint,
+   * one request per status or execution time
+   *
+   * @param master the master (host:port)
+   * @param batch the updates to send
+   * @return false if the updates should be retried
+   */
+  protected boolean sendSingly(String master, List<TaskUpdate> batch) {
+    SimpleDateFormat sdf =
+      new SimpleDateFormat(SetLastExecutionServlet.DATE_FORMAT);
+    for (TaskUpdate u : batch) {
+      String url = "http://" + master;
+      url = url.replace(" ", "%20");
+      if (u.m_lastExecution != null) {
+        if (!sendSingle(url + SetLastExecutionServlet.CONTEXT_PATH + "/?name="
+          + u.m_taskID + "&lastExecution=" + sdf.format(u.m_lastExecution))) {
+          return false;
+        }
+      }
+      if (u.m_status != null) {
+        if (!sendSingle(url + SetTaskStatusServlet.CONTEXT_PATH + "/?name="
+          + u.m_taskID + "&status=" + u.m_status)) {
+          return false;
+        }
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Send one update to a master that predates the batch endpoint
+   *
+   * @param url the URL of the update (including its arguments)
+   * @return false if the update should be retried
+   */
+  protected boolean sendSingle(String url) {
+    PostMethod post = null;
+    InputStream is = null;
+    boolean ok = false;
+    try {
+      post = new PostMethod(url);
+      post.setDoAuthentication(true);
+      post.addRequestHeader(new Header("Content-Type", "text/plain"));
+
+      // Get HTTP client
+      HttpClient client =
+        WekaServer.ConnectionManager.getSingleton().createHttpClient();
+      WekaServer.ConnectionManager.addCredentials(client,
+        m_server.getUsername(), m_server.getPassword());
+
+      // Execute request
+      int result = client.executeMethod(post);
+      if (result == 401) {
+        System.err.println("[WekaServer] Unable to send task update back "
+          + "to master - authentication required.\n");
+      } else if (result != 200) {
+        System.err.println("[WekaServer] Unable to send task update back "
+          + "to master - response code " + result);
+      } else {
+        ok = true;
+
+        // the response
+        is = post.getResponseBodyAsStream();
+        ObjectInputStream ois = new ObjectInputStream(is);
+        Object response = ois.readObject();
+        if (response.toString().startsWith(WekaServlet.RESPONSE_ERROR)) {
+          System.err.println("[WekaServer] A problem occurred while "
+            + "trying to send task update back to master server : \n"
+            + "\t" + response.toString());
+        }
+      }
+    } catch (Exception ex) {
+      System.err.println("[WekaServer] A problem occurred while "
+        + "trying to send task update back to master server : \n"
+        + ex.getMessage());
+    } finally {
+      if (is != null) {
+        try {
+          is.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+
+      if (post != null) {
+        post.releaseConnection();
+      }
+    }
+
+    return ok;
+  }
+}
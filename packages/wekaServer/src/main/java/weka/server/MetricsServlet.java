@@ -0,0 +1,368 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    MetricsServlet.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mortbay.jetty.AbstractConnector;
+import org.mortbay.thread.QueuedThreadPool;
+
+import weka.server.logging.LogAppender;
+
+/**
+ * Returns metrics describing the server in the Prometheus text exposition
+ * format. Counters and histograms that are updated as the server works come
+ * from ServerMetrics; everything else (queue depths, cache and journal sizes,
+ * JVM memory and so on) is read when the metrics are requested.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class MetricsServlet extends WekaServlet {
+
+  /** The context path for this servlet */
+  public static final String CONTEXT_PATH = "/weka/metrics";
+
+  /** Content type of the Prometheus text format */
+  public static final String CONTENT_TYPE =
+    "text/plain; version=0.0.4; charset=utf-8";
+
+  /**
+   * How long the usage of the temp directory is cached for (milliseconds).
+   * Walking the directory costs more than anything else here.
+   */
+  public static final long TEMP_USAGE_TTL = 30000;
+
+  /**
+   * For serialization
+   */
+  private static final long serialVersionUID = -1284380935517237646L;
+
+  /** Cached number of files and total size of the temp directory */
+  protected transient long[] m_tempUsage;
+
+  /** When the temp directory usage was worked out */
+  protected transient long m_tempUsageTime;
+
+  /**
+   * Constructs a new MetricsServlet
+   *
+   * @param taskMap the task map maintained by the server
+   * @param server a reference to the server itself
+   */
+  public MetricsServlet(WekaTaskMap taskMap, WekaServer server) {
+    super(taskMap, server);
+  }
+
+  /**
+   * Process a HTTP GET
+   *
+   * @param request the request
+   * @param response the response
+   *
+   * @throws ServletException
+   * @throws IOException
+   */
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+    throws ServletException, IOException {
+
+    if (!request.getRequestURI().startsWith(CONTEXT_PATH)) {
+      return;
+    }
+
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setCharacterEncoding("UTF-8");
+    response.setContentType(CONTENT_TYPE);
+
+    PrintWriter out = response.getWriter();
+    try {
+      writeServerMetrics(out);
+      writeJVMMetrics(out);
+      ServerMetrics.getSingleton().write(out);
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    } finally {
+      out.flush();
+      out.close();
+    }
+  }
+
+  /**
+   * Write metrics read from the server's components
+   *
+   * @param out the writer to write to
+   */
+  protected void writeServerMetrics(PrintWriter out) {
+    ServerMetrics.write(out, "weka_server_execution_slots", "gauge",
+      "Number of execution slots", m_server.getNumExecutionSlots());
+    ServerMetrics.write(out, "weka_server_tasks_running", "gauge",
+      "Number of tasks executing", m_server.numRunningTasks());
+    ServerMetrics.write(out, "weka_server_tasks_queued", "gauge",
+      "Number of tasks waiting for an execution slot",
+      m_server.numQueuedTasks());
+    ServerMetrics.write(out, "weka_server_load", "gauge",
+      "Load of the server", m_server.getServerLoad());
+    ServerMetrics.write(out, "weka_server_tasks", "gauge",
+      "Number of tasks held by the server", m_taskMap.size());
+    ServerMetrics.write(out, "weka_server_tasks_pending_recovery", "gauge",
+      "Number of persisted tasks not loaded yet", m_taskMap.getNumPending());
+    ServerMetrics.write(out, "weka_server_slaves", "gauge",
+      "Number of registered slaves", m_server.getSlaves().size());
+
+    RemoteTaskDispatcher dispatcher = m_server.getRemoteDispatcher();
+    if (dispatcher != null) {
+      ServerMetrics.write(out, "weka_server_dispatch_queued", "gauge",
+        "Tasks waiting to be handed to a slave",
+        dispatcher.getQueuedCount());
+      ServerMetrics.write(out, "weka_server_dispatch_backlogged", "gauge",
+        "Tasks waiting for a slave to finish an earlier hand-off",
+        dispatcher.getBackloggedCount());
+    }
+
+    SlaveLoadPoller poller = m_server.getLoadPoller();
+    ServerMetrics.write(out, "weka_server_load_poll_requests_total",
+      "counter", "Load requests sent to slaves", poller.getRequests());
+    ServerMetrics.write(out, "weka_server_load_poll_hedges_total", "counter",
+      "Second load requests sent to slow slaves", poller.getHedges());
+    ServerMetrics.write(out, "weka_server_load_poll_timeouts_total",
+      "counter", "Slaves that did not report their load in time",
+      poller.getTimeouts());
+    ServerMetrics.write(out, "weka_server_load_poll_remembered_total",
+      "counter", "Slave loads answered from recent answers",
+      poller.getRemembered());
+
+    ResultCache cache = m_server.getResultCache();
+    ServerMetrics.write(out, "weka_server_result_cache_entries", "gauge",
+      "Results held in the result cache", cache.size());
+    ServerMetrics.write(out, "weka_server_result_cache_bytes", "gauge",
+      "Size of the results held in the result cache", cache.getBytes());
+    ServerMetrics.write(out, "weka_server_result_cache_max_bytes", "gauge",
+      "Maximum size of the result cache", cache.getMaxBytes());
+    ServerMetrics.write(out, "weka_server_result_cache_hits_total",
+      "counter", "Results served from the result cache", cache.getHits());
+    ServerMetrics.write(out, "weka_server_result_cache_misses_total",
+      "counter", "Results that had to be loaded", cache.getMisses());
+    ServerMetrics.write(out, "weka_server_result_cache_evictions_total",
+      "counter", "Results evicted from the result cache",
+      cache.getEvictions());
+    ServerMetrics.write(out, "weka_server_result_cache_invalidations_total",
+      "counter", "Results invalidated in the result cache",
+      cache.getInvalidations());
+
+    TaskPurger purger = m_server.getTaskPurger();
+    ServerMetrics.write(out, "weka_server_purged_tasks_total", "counter",
+      "Tasks purged", purger.getTotalPurged());
+    ServerMetrics.write(out, "weka_server_purged_bytes_total", "counter",
+      "Disk space reclaimed by purging tasks",
+      purger.getTotalBytesReclaimed());
+
+    MasterNotifier notifier = m_server.getMasterNotifier();
+    ServerMetrics.write(out, "weka_server_master_updates_pending", "gauge",
+      "Task updates waiting to be sent to the master",
+      notifier.getNumPending());
+    ServerMetrics.write(out, "weka_server_master_updates_sent_total",
+      "counter", "Task updates sent to the master", notifier.getNumSent());
+    ServerMetrics.write(out, "weka_server_master_requests_total", "counter",
+      "Requests made to the master", notifier.getNumRequests());
+    ServerMetrics.write(out, "weka_server_master_updates_dropped_total",
+      "counter", "Task updates dropped because too many were pending",
+      notifier.getNumDropped());
+
+    ServerMetrics.write(out, "weka_server_log_queued", "gauge",
+      "Task log lines waiting to be written",
+      LogAppender.getSingleton().getQueued());
+
+    TaskRecovery recovery = m_server.getTaskRecovery();
+    if (recovery != null) {
+      ServerMetrics.write(out, "weka_server_recovery_index_seconds", "gauge",
+        "Time taken to read the task index at start up",
+        recovery.getIndexTime() / 1000.0);
+      if (recovery.getLoadTime() >= 0) {
+        ServerMetrics.write(out, "weka_server_recovery_load_seconds",
+          "gauge", "Time taken to load the persisted tasks at start up",
+          recovery.getLoadTime() / 1000.0);
+      }
+      ServerMetrics.write(out, "weka_server_recovery_loaded", "gauge",
+        "Persisted tasks loaded at start up", recovery.getNumLoaded());
+      ServerMetrics.write(out, "weka_server_recovery_failed", "gauge",
+        "Persisted tasks that could not be loaded at start up",
+        recovery.getNumFailed());
+    }
+
+    TaskIndex index = m_server.getTaskIndex();
+    if (index != null) {
+      ServerMetrics.write(out, "weka_server_index_tasks", "gauge",
+        "Tasks in the task index", index.size());
+      ServerMetrics.write(out, "weka_server_index_compactions_total",
+        "counter", "Compactions of the task index journal",
+        index.getNumCompactions());
+      ServerMetrics.write(out, "weka_server_journal_bytes", "gauge",
+        "Size of the task index journal", index.getJournal().size());
+      ServerMetrics.write(out, "weka_server_journal_records", "gauge",
+        "Records in the task index journal",
+        index.getJournal().getNumRecords());
+    }
+
+    ServerMetrics.write(out, "weka_server_event_clients_waiting", "gauge",
+      "Clients waiting for task events",
+      TaskEventBus.getSingleton().getNumWaiting());
+
+    ClusterSnapshot snapshot = m_server.getClusterMonitor().getLastSnapshot();
+    if (snapshot != null) {
+      ServerMetrics.write(out, "weka_server_snapshot_age_seconds", "gauge",
+        "Age of the status page snapshot",
+        (System.currentTimeMillis() - snapshot.getTime()) / 1000.0);
+      ServerMetrics.write(out, "weka_server_snapshot_build_seconds", "gauge",
+        "Time taken to build the last status page snapshot",
+        snapshot.getBuildTime() / 1000.0);
+    }
+
+    AbstractConnector connector = m_server.getConnector();
+    if (connector != null) {
+      ServerMetrics.write(out, "weka_server_http_connections_open", "gauge",
+        "Open HTTP connections", connector.getConnectionsOpen());
+      ServerMetrics.write(out, "weka_server_http_connections_total",
+        "counter", "HTTP connections accepted", connector.getConnections());
+      ServerMetrics.write(out, "weka_server_http_requests_total", "counter",
+        "HTTP requests received", connector.getRequests());
+    }
+    QueuedThreadPool threads = m_server.getRequestThreadPool();
+    if (threads != null) {
+      ServerMetrics.write(out, "weka_server_http_threads_busy", "gauge",
+        "Threads handling HTTP requests",
+        threads.getThreads() - threads.getIdleThreads());
+      ServerMetrics.write(out, "weka_server_http_threads_idle", "gauge",
+        "Idle HTTP request threads", threads.getIdleThreads());
+      ServerMetrics.write(out, "weka_server_http_threads_max", "gauge",
+        "Maximum number of HTTP request threads", threads.getMaxThreads());
+      ServerMetrics.write(out, "weka_server_http_requests_queued", "gauge",
+        "HTTP requests waiting for a thread", threads.getQueueSize());
+    }
+
+    long[] usage = getTempUsage();
+    ServerMetrics.write(out, "weka_server_temp_files", "gauge",
+      "Files in the task temp directory", usage[0]);
+    ServerMetrics.write(out, "weka_server_temp_bytes", "gauge",
+      "Size of the files in the task temp directory", usage[1]);
+  }
+
+  /**
+   * Write JVM memory, garbage collection and thread metrics
+   *
+   * @param out the writer to write to
+   */
+  protected void writeJVMMetrics(PrintWriter out) {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    MemoryUsage heap = memory.getHeapMemoryUsage();
+    MemoryUsage nonHeap = memory.getNonHeapMemoryUsage();
+    ServerMetrics.writeHeader(out, "jvm_memory_bytes_used", "gauge",
+      "Used JVM memory");
+    ServerMetrics.writeSample(out, "jvm_memory_bytes_used", heap.getUsed(),
+      "area", "heap");
+    ServerMetrics.writeSample(out, "jvm_memory_bytes_used",
+      nonHeap.getUsed(), "area", "nonheap");
+    ServerMetrics.writeHeader(out, "jvm_memory_bytes_committed", "gauge",
+      "Committed JVM memory");
+    ServerMetrics.writeSample(out, "jvm_memory_bytes_committed",
+      heap.getCommitted(), "area", "heap");
+    ServerMetrics.writeSample(out, "jvm_memory_bytes_committed",
+      nonHeap.getCommitted(), "area", "nonheap");
+    ServerMetrics.write(out, "jvm_memory_bytes_max", "gauge",
+      "Maximum JVM heap", heap.getMax());
+
+    ServerMetrics.writeHeader(out, "jvm_gc_collections_total", "counter",
+      "Garbage collections");
+    for (GarbageCollectorMXBean gc : ManagementFactory
+      .getGarbageCollectorMXBeans()) {
+      ServerMetrics.writeSample(out, "jvm_gc_collections_total",
+        Math.max(0, gc.getCollectionCount()), "gc", gc.getName());
+    }
+    ServerMetrics.writeHeader(out, "jvm_gc_collection_seconds_total",
+      "counter", "Time spent in garbage collection");
+    for (GarbageCollectorMXBean gc : ManagementFactory
+      .getGarbageCollectorMXBeans()) {
+      ServerMetrics.writeSample(out, "jvm_gc_collection_seconds_total",
+        Math.max(0, gc.getCollectionTime()) / 1000.0, "gc", gc.getName());
+    }
+
+    ServerMetrics.write(out, "jvm_threads", "gauge", "Live JVM threads",
+      ManagementFactory.getThreadMXBean().getThreadCount());
+    ServerMetrics.write(out, "jvm_uptime_seconds", "gauge",
+      "Time since the JVM started", ManagementFactory.getRuntimeMXBean()
+        .getUptime() / 1000.0);
+  }
+
+  /**
+   * Get the number of files in the task temp directory and their total size.
+   * Only worked out again once the cached value is TEMP_USAGE_TTL old.
+   *
+   * @return the number of files and total size (bytes)
+   */
+  protected synchronized long[] getTempUsage() {
+    long now = System.currentTimeMillis();
+    if (m_tempUsage == null || now - m_tempUsageTime >= TEMP_USAGE_TTL) {
+      long[] usage = new long[2];
+      directoryUsage(new File(WekaServer.TASK_TEMP_DIRECTORY), usage);
+      m_tempUsage = usage;
+      m_tempUsageTime = now;
+    }
+    return m_tempUsage;
+  }
+
+  /**
+   * Count the files in a directory (and its subdirectories) and their total
+   * size
+   *
+   * @param dir the directory
+   * @param usage holds the number of files and total size (bytes)
+   */
+  protected static void directoryUsage(File dir, long[] usage) {
+    File[] contents = dir.listFiles();
+    if (contents == null) {
+      return;
+    }
+    for (File f : contents) {
+      if (f.isDirectory()) {
+        directoryUsage(f, usage);
+      } else {
+        usage[0]++;
+        usage[1] += f.length();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "Metrics servlet";
+  }
+}
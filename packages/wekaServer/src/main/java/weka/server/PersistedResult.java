@@ -0,0 +1,43 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    PersistedResult.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.io.File;
+
+/**
+ * Interface to a task that keeps its result on disk in the format written by
+ * Legacy.persistResult() (a gzip compressed, serialized object). Allows the
+ * server to send the persisted bytes to a client as they are, rather than
+ * loading the result and serializing it again (see GetTaskResultServlet).
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public interface PersistedResult {
+
+  /**
+   * Get the file that holds the result of the last execution of this task
+   *
+   * @return the file or null if there is no persisted result
+   */
+  File getPersistedResult();
+}
@@ -0,0 +1,314 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    PriorityExecutionEngine.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Execution engine with one worker per execution slot. Each slot has its own
+ * queue per priority class; a slot that runs out of work steals from the tail
+ * of the other slots' queues. Higher priority classes are always served first,
+ * except that a queued task that has waited longer than the aging limit is
+ * taken ahead of everything else so that long running batch work can't be
+ * starved indefinitely.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class PriorityExecutionEngine implements TaskExecutionEngine {
+
+  /** Default time (milliseconds) after which a queued task jumps the queue */
+  public static final long DEFAULT_AGING_LIMIT = 5 * 60 * 1000L;
+
+  /**
+   * A queued runnable along with the time it was submitted
+   */
+  protected static class QueuedTask {
+    protected final Runnable m_toRun;
+    protected final long m_submitted;
+
+    public QueuedTask(Runnable toRun) {
+      m_toRun = toRun;
+      m_submitted = System.currentTimeMillis();
+    }
+  }
+
+  /** Per slot, per priority class queues - indexed by slot then priority */
+  protected List<List<LinkedBlockingDeque<QueuedTask>>> m_queues;
+
+  /** The worker threads (one per slot) */
+  protected Thread[] m_workers;
+
+  /** One permit for each queued task */
+  protected final Semaphore m_available = new Semaphore(0);
+
+  /** Number of tasks currently executing */
+  protected final AtomicInteger m_active = new AtomicInteger();
+
+  /** Number of tasks waiting for a slot */
+  protected final AtomicInteger m_queued = new AtomicInteger();
+
+  /** Used to spread submissions over the slots */
+  protected final AtomicInteger m_nextSlot = new AtomicInteger();
+
+  /** Aging limit in milliseconds */
+  protected long m_agingLimit = DEFAULT_AGING_LIMIT;
+
+  /** True once shutdown() or shutdownNow() has been called */
+  protected volatile boolean m_shutdown;
+
+  /**
+   * Constructor
+   *
+   * @param numSlots the number of tasks to execute in parallel
+   */
+  public PriorityExecutionEngine(int numSlots) {
+    this(numSlots, DEFAULT_AGING_LIMIT);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param numSlots the number of tasks to execute in parallel
+   * @param agingLimit time (in milliseconds) after which a queued task is
+   *          executed ahead of higher priority classes
+   */
+  public PriorityExecutionEngine(int numSlots, long agingLimit) {
+    if (numSlots < 1) {
+      numSlots = 1;
+    }
+    m_agingLimit = agingLimit;
+
+    int numClasses = TaskPriority.values().length;
+    m_queues = new ArrayList<List<LinkedBlockingDeque<QueuedTask>>>(numSlots);
+    for (int i = 0; i < numSlots; i++) {
+      List<LinkedBlockingDeque<QueuedTask>> slotQueues =
+        new ArrayList<LinkedBlockingDeque<QueuedTask>>(numClasses);
+      for (int j = 0; j < numClasses; j++) {
+        slotQueues.add(new LinkedBlockingDeque<QueuedTask>());
+      }
+      m_queues.add(slotQueues);
+    }
+
+    m_workers = new Thread[numSlots];
+    for (int i = 0; i < numSlots; i++) {
+      final int slot = i;
+      m_workers[i] = new Thread("WekaServer execution slot " + (i + 1)) {
+        @Override
+        public void run() {
+          work(slot);
+        }
+      };
+      m_workers[i].start();
+    }
+  }
+
+  @Override
+  public void execute(Runnable toRun, TaskPriority priority) {
+    if (m_shutdown) {
+      throw new RejectedExecutionException("Execution engine has been shut "
+        + "down");
+    }
+    if (priority == null) {
+      priority = TaskPriority.BATCH;
+    }
+
+    int slot = (m_nextSlot.getAndIncrement() & Integer.MAX_VALUE)
+      % m_queues.size();
+
+    // prefer an idle slot's queue if there is one
+    for (int i = 0; i < m_queues.size(); i++) {
+      int candidate = (slot + i) % m_queues.size();
+      if (slotQueueSize(candidate) == 0) {
+        slot = candidate;
+        break;
+      }
+    }
+
+    m_queued.incrementAndGet();
+    m_queues.get(slot).get(priority.ordinal())
+      .offerLast(new QueuedTask(toRun));
+    m_available.release();
+  }
+
+  /**
+   * Worker loop for a slot
+   *
+   * @param slot the slot index
+   */
+  protected void work(int slot) {
+    while (true) {
+      try {
+        m_available.acquire();
+      } catch (InterruptedException ex) {
+        if (m_shutdown) {
+          return;
+        }
+        continue;
+      }
+
+      QueuedTask next = null;
+      while (next == null) {
+        next = take(slot);
+        if (next == null) {
+          if (m_shutdown) {
+            // shutdown permit and no work left
+            return;
+          }
+          // another worker may be part way through an offer - try again
+          Thread.yield();
+        }
+      }
+      m_queued.decrementAndGet();
+
+      m_active.incrementAndGet();
+      try {
+        next.m_toRun.run();
+      } catch (Throwable t) {
+        t.printStackTrace();
+      } finally {
+        m_active.decrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Find the next task for the supplied slot. Looks for aged tasks first, then
+   * serves the priority classes in order - own queue first, then steals from
+   * the other slots.
+   *
+   * @param slot the slot looking for work
+   * @return the next task or null if nothing is queued
+   */
+  protected QueuedTask take(int slot) {
+    int numSlots = m_queues.size();
+    int numClasses = m_queues.get(slot).size();
+
+    if (m_agingLimit > 0) {
+      long cutoff = System.currentTimeMillis() - m_agingLimit;
+      for (int p = numClasses - 1; p > 0; p--) {
+        for (int i = 0; i < numSlots; i++) {
+          LinkedBlockingDeque<QueuedTask> q =
+            m_queues.get((slot + i) % numSlots).get(p);
+          QueuedTask head = q.peekFirst();
+          if (head != null && head.m_submitted < cutoff
+            && q.removeFirstOccurrence(head)) {
+            return head;
+          }
+        }
+      }
+    }
+
+    for (int p = 0; p < numClasses; p++) {
+      QueuedTask t = m_queues.get(slot).get(p).pollFirst();
+      if (t != null) {
+        return t;
+      }
+
+      // steal from the tail of the other slots
+      for (int i = 1; i < numSlots; i++) {
+        t = m_queues.get((slot + i) % numSlots).get(p).pollLast();
+        if (t != null) {
+          return t;
+        }
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Total number of queued tasks for a slot
+   *
+   * @param slot the slot
+   * @return the number of tasks queued for the slot
+   */
+  protected int slotQueueSize(int slot) {
+    int size = 0;
+    for (LinkedBlockingDeque<QueuedTask> q : m_queues.get(slot)) {
+      size += q.size();
+    }
+    return size;
+  }
+
+  @Override
+  public int getActiveCount() {
+    return m_active.get();
+  }
+
+  @Override
+  public int getQueuedCount() {
+    return m_queued.get();
+  }
+
+  @Override
+  public int getQueuedCount(TaskPriority priority) {
+    int size = 0;
+    for (List<LinkedBlockingDeque<QueuedTask>> slotQueues : m_queues) {
+      size += slotQueues.get(priority.ordinal()).size();
+    }
+    return size;
+  }
+
+  @Override
+  public int getNumSlots() {
+    return m_workers.length;
+  }
+
+  /**
+   * Get the aging limit
+   *
+   * @return the aging limit in milliseconds
+   */
+  public long getAgingLimit() {
+    return m_agingLimit;
+  }
+
+  @Override
+  public void shutdown() {
+    m_shutdown = true;
+
+    // one extra permit per worker - a worker that acquires a permit and finds
+    // nothing queued exits
+    m_available.release(m_workers.length);
+  }
+
+  @Override
+  public void shutdownNow() {
+    m_shutdown = true;
+    for (List<LinkedBlockingDeque<QueuedTask>> slotQueues : m_queues) {
+      for (LinkedBlockingDeque<QueuedTask> q : slotQueues) {
+        m_queued.addAndGet(-q.size());
+        q.clear();
+      }
+    }
+    m_available.release(m_workers.length);
+    for (Thread t : m_workers) {
+      t.interrupt();
+    }
+  }
+}
@@ -21,23 +21,14 @@
 
 package weka.server;
 
-import org.apache.commons.httpclient.Header;
-import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.methods.PostMethod;
-import weka.core.LogHandler;
-import weka.server.logging.ServerLogger;
-
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -102,26 +93,22 @@ public class PurgeTaskServlet extends WekaServlet {
       response.setContentType("text/html;charset=UTF-8");
     }
 
-    boolean allOK = true;
-    List<String> taskNames = new ArrayList<String>();
-    List<NamedTask> tasks = new ArrayList<NamedTask>();
+    List<WekaTaskMap.WekaTaskEntry> entries =
+      new ArrayList<WekaTaskMap.WekaTaskEntry>();
     String[] nameParts = taskName.split(",");
     String unfoundTasks = "";
     for (String tn : nameParts) {
-      taskNames.add(tn.trim());
+      tn = tn.trim();
       NamedTask t = m_taskMap.getTask(tn);
       if (t == null) {
-        allOK = false;
         unfoundTasks += tn + ",";
       } else {
-        tasks.add(t);
+        entries.add(m_taskMap.getTaskKey(tn));
       }
     }
 
-    // Get the task
-    // NamedTask task = m_taskMap.getTask(taskName);
     try {
-      if (!allOK) {
+      if (entries.size() == 0) {
         if (clientLegacy) {
           String errorResult =
             WekaServlet.RESPONSE_ERROR + ": Can't find task(s) " + unfoundTasks;
@@ -153,46 +140,25 @@ public class PurgeTaskServlet extends WekaServlet {
           outWriter.println("</BODY>\n</HTML>");
         }
       } else {
-        // WekaTaskMap.WekaTaskEntry wte = new
-        // WekaTaskMap.WekaTaskEntry(taskName);
-        String remotePurgeProblems = "";
-
-        for (int i = 0; i < taskNames.size(); i++) {
-          String tn = taskNames.get(i);
-          NamedTask task = tasks.get(i);
-          task.freeMemory();
-          task.purge();
-          WekaTaskMap.WekaTaskEntry wte = m_taskMap.getTaskKey(tn);
-          m_taskMap.removeTask(wte);
-
-          // remove serialized task and log
-          if (task instanceof LogHandler) {
-            ServerLogger sl = (ServerLogger) ((LogHandler) task).getLog();
-            sl.deleteLog();
-          }
-          m_server.cleanupTask(wte);
-
-          String responseIfRemote = "";
-          if (!wte.getServer().equals(
-            m_server.getHostname() + ":" + m_server.getPort())) {
-            // This task was executed remotely on a slave - try and purge it
-            // from the slave...
-            String slave = wte.getServer();
-            String remoteTaskID = wte.getRemoteID();
-            responseIfRemote = purgeRemote(slave, remoteTaskID, tn);
-            if (responseIfRemote.length() > 0) {
-              remotePurgeProblems += "<br>" + responseIfRemote;
-            }
-          }
+        // purge the ones that we know about; tasks that were executed on
+        // slaves are purged from each slave in bulk
+        TaskPurger.PurgeResult purged =
+          m_server.getTaskPurger().purge(entries);
+        String purgeProblems = "";
+        if (unfoundTasks.length() > 0) {
+          purgeProblems += "Can't find task(s) " + unfoundTasks;
+        }
+        for (String problem : purged.getProblems()) {
+          purgeProblems += "<br>" + problem;
         }
 
         if (clientLegacy) {
           String result = null;
-          if (remotePurgeProblems.length() == 0) {
+          if (purgeProblems.length() == 0) {
             result =
               WekaServlet.RESPONSE_OK + ": Task(s) '" + taskName + "' removed.";
           } else {
-            result = WekaServlet.RESPONSE_ERROR + ": " + remotePurgeProblems;
+            result = WekaServlet.RESPONSE_ERROR + ": " + purgeProblems;
           }
           OutputStream out = response.getOutputStream();
           outStream = new ObjectOutputStream(new BufferedOutputStream(out));
@@ -201,13 +167,13 @@ public class PurgeTaskServlet extends WekaServlet {
         } else if (clientNew) {
           outWriter = response.getWriter();
           Map<String, Object> resultResponse = null;
-          if (remotePurgeProblems.length() == 0) {
+          if (purgeProblems.length() == 0) {
             resultResponse =
               JSONProtocol.createOKResponseMap("Task(s) '" + taskName
                 + "' removed.");
           } else {
             resultResponse =
-              JSONProtocol.createErrorResponseMap(remotePurgeProblems);
+              JSONProtocol.createErrorResponseMap(purgeProblems);
           }
           String responseJ = JSONProtocol.encodeToJSONString(resultResponse);
           outWriter.println(responseJ);
@@ -221,14 +187,15 @@ public class PurgeTaskServlet extends WekaServlet {
           outWriter.println("</HEAD>");
           outWriter.println("<BODY>\n<H3>");
 
-          if (remotePurgeProblems.length() == 0) {
+          if (purgeProblems.length() == 0) {
             outWriter.println(WekaServlet.RESPONSE_OK + ": Task(s) '"
-              + taskName + "' removed</H3>");
+              + taskName + "' removed (" + purged.getBytesReclaimed()
+              + " bytes reclaimed)</H3>");
           } else {
             outWriter
-              .println("<H3>An error occurred while trying to purge task from "
-                + "remote server:</H3>");
-            outWriter.println("<b>" + remotePurgeProblems + "</b><p>");
+              .println("<H3>An error occurred while trying to purge "
+                + "task(s):</H3>");
+            outWriter.println("<b>" + purgeProblems + "</b><p>");
           }
           outWriter.println("<a href=\"" + RootServlet.CONTEXT_PATH + "\">"
             + "Back to status page</a></br>");
@@ -277,79 +244,4 @@ public class PurgeTaskServlet extends WekaServlet {
       }
     }
   }
-
-  protected String purgeRemote(String slave, String remoteTaskID,
-    String origTaskID) {
-
-    String ok = "";
-    InputStream is = null;
-    PostMethod post = null;
-
-    try {
-      String url = "http://" + slave;
-      url = url.replace(" ", "%20");
-      url += CONTEXT_PATH;
-      url += "/?name=" + URLEncoder.encode(remoteTaskID, "UTF-8") + "&client=Y";
-      post = new PostMethod(url);
-      post.setDoAuthentication(true);
-      post.addRequestHeader(new Header("Content-Type", "text/plain"));
-
-      // Get HTTP client
-      HttpClient client =
-        WekaServer.ConnectionManager.getSingleton().createHttpClient();
-      WekaServer.ConnectionManager.addCredentials(client,
-        m_server.getUsername(), m_server.getPassword());
-
-      // Execute request
-      int result = client.executeMethod(post);
-      // System.out.println("[WekaServer] Response from master server : " +
-      // result);
-      if (result == 401) {
-        System.err.println("[WekaServer] Unable to purge remote task '"
-          + origTaskID + "' - authentication required.\n");
-        ok =
-          "Unable to purge remote task '" + origTaskID
-            + "' - authentication required for slave (" + slave + ")";
-      } else {
-
-        // the response
-        is = post.getResponseBodyAsStream();
-        ObjectInputStream ois = new ObjectInputStream(is);
-        Object response = ois.readObject();
-        if (response.toString().startsWith(WekaServlet.RESPONSE_ERROR)) {
-          System.err.println("[WekaServer] A problem occurred while "
-            + "trying to purge task : '" + origTaskID
-            + "' from remote server (" + slave + "). Remote " + "task ID : "
-            + remoteTaskID);
-          ok =
-            "A problem occurred while " + "trying to purge task : '"
-              + origTaskID + "' from remote server (" + slave + "). Remote "
-              + "task ID : " + remoteTaskID;
-        }
-      }
-    } catch (Exception ex) {
-      System.err.println("[WekaServer] A problem occurred while "
-        + "trying to purge task : '" + origTaskID + "' from remote server: "
-        + slave + " (" + ex.getMessage() + ")");
-      ok =
-        "A problem occurred while " + "trying to purge task : '" + origTaskID
-          + "' from remote server: " + slave + " (" + ex.getMessage() + ")";
-    } finally {
-      if (is != null) {
-        try {
-          is.close();
-          is = null;
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
-      }
-
-      if (post != null) {
-        post.releaseConnection();
-        post = null;
-      }
-    }
-
-    return ok;
-  }
 }
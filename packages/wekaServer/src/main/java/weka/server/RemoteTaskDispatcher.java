@@ -0,0 +1,356 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    RemoteTaskDispatcher.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import weka.server.WekaTaskMap.WekaTaskEntry;
+
+/**
+ * Hands tasks off to slave servers asynchronously. Accepting a task for remote
+ * execution only involves putting it on a bounded dispatch queue; a small pool
+ * of I/O threads does the serialization and HTTP transfer. The number of
+ * transfers in flight to any one slave is limited, so a single slow slave
+ * can't tie up all the I/O threads. A permit is reserved (without waiting)
+ * when a slave is chosen, and given back once the hand-off is complete, so
+ * an I/O thread never waits on a busy slave. A task for a slave that has no
+ * permit free can be queued in that slave's backlog instead; it is handed off
+ * as soon as one of the slave's transfers completes.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class RemoteTaskDispatcher {
+
+  /** Default number of I/O threads */
+  public static final int DEFAULT_NUM_THREADS = 4;
+
+  /** Default capacity of the dispatch queue */
+  public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+  /** Default maximum number of transfers in flight to a single slave */
+  public static final int DEFAULT_MAX_IN_FLIGHT_PER_SLAVE = 2;
+
+  /** The server we are dispatching for */
+  protected WekaServer m_server;
+
+  /** The I/O threads (and bounded dispatch queue) */
+  protected ThreadPoolExecutor m_ioPool;
+
+  /** Per slave limits on transfers in flight */
+  protected ConcurrentHashMap<String, Semaphore> m_inFlight =
+    new ConcurrentHashMap<String, Semaphore>();
+
+  /** Maximum number of transfers in flight to a single slave */
+  protected int m_maxInFlightPerSlave;
+
+  /** Tasks waiting for one of their slave's permits, per slave */
+  protected ConcurrentHashMap<String, ConcurrentLinkedQueue<HandOff>>
+    m_backlogs =
+      new ConcurrentHashMap<String, ConcurrentLinkedQueue<HandOff>>();
+
+  /** Number of tasks in the backlogs */
+  protected AtomicInteger m_backlogged = new AtomicInteger();
+
+  /** Maximum number of tasks in the backlogs */
+  protected int m_backlogCapacity;
+
+  /**
+   * The transfer of a task to a slave. Holds one of the slave's permits while
+   * it runs.
+   */
+  protected class HandOff implements Runnable {
+    protected final WekaTaskEntry m_entry;
+    protected final NamedTask m_task;
+    protected final String m_slave;
+
+    protected HandOff(WekaTaskEntry entry, NamedTask task, String slave) {
+      m_entry = entry;
+      m_task = task;
+      m_slave = slave;
+    }
+
+    @Override
+    public void run() {
+      boolean success = false;
+      try {
+        success = m_server.executeTaskRemote(m_entry, m_task, m_slave);
+      } finally {
+        if (!success) {
+          // drops the slave (and sends its backlog elsewhere) before the
+          // permit is given back
+          m_server.remoteDispatchFailed(m_entry, m_slave);
+        }
+        release(m_slave);
+      }
+    }
+  }
+
+  /**
+   * Constructor
+   *
+   * @param server the server to dispatch for
+   * @param numThreads the number of I/O threads to use
+   * @param queueCapacity the capacity of the dispatch queue
+   * @param maxInFlightPerSlave the maximum number of transfers in flight to a
+   *          single slave
+   */
+  public RemoteTaskDispatcher(WekaServer server, int numThreads,
+    int queueCapacity, int maxInFlightPerSlave) {
+    m_server = server;
+    m_maxInFlightPerSlave = Math.max(1, maxInFlightPerSlave);
+    m_backlogCapacity = queueCapacity;
+
+    final AtomicInteger threadNum = new AtomicInteger();
+    m_ioPool =
+      new ThreadPoolExecutor(numThreads, numThreads, 120, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t =
+              new Thread(r, "WekaServer dispatch "
+                + threadNum.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+  }
+
+  /**
+   * Constructor using default settings
+   *
+   * @param server the server to dispatch for
+   */
+  public RemoteTaskDispatcher(WekaServer server) {
+    this(server, DEFAULT_NUM_THREADS, DEFAULT_QUEUE_CAPACITY,
+      DEFAULT_MAX_IN_FLIGHT_PER_SLAVE);
+  }
+
+  /**
+   * Get the in flight limiter for a slave
+   *
+   * @param slave the slave (host:port)
+   * @return the semaphore that limits transfers to the slave
+   */
+  protected Semaphore getLimiter(String slave) {
+    Semaphore s = m_inFlight.get(slave);
+    if (s == null) {
+      Semaphore newS = new Semaphore(m_maxInFlightPerSlave);
+      s = m_inFlight.putIfAbsent(slave, newS);
+      if (s == null) {
+        s = newS;
+      }
+    }
+    return s;
+  }
+
+  /**
+   * Returns true if the supplied slave can accept another transfer right now.
+   * This is only a hint - use reserve() to actually claim the capacity.
+   *
+   * @param slave the slave (host:port)
+   * @return true if the slave is below its in flight limit
+   */
+  public boolean hasCapacity(String slave) {
+    return getLimiter(slave).availablePermits() > 0;
+  }
+
+  /**
+   * Reserve a transfer to the supplied slave, if it is below its in flight
+   * limit. Never waits. A reservation must be passed on to dispatch() or
+   * given back with release().
+   *
+   * @param slave the slave (host:port)
+   * @return true if the transfer was reserved
+   */
+  public boolean reserve(String slave) {
+    return getLimiter(slave).tryAcquire();
+  }
+
+  /**
+   * Give back a reservation made with reserve(). Starts the next task in the
+   * slave's backlog, if there is one.
+   *
+   * @param slave the slave (host:port)
+   */
+  public void release(String slave) {
+    getLimiter(slave).release();
+    startBacklogged(slave);
+  }
+
+  /**
+   * Hand off tasks from a slave's backlog while the slave has permits free
+   *
+   * @param slave the slave (host:port)
+   */
+  protected void startBacklogged(String slave) {
+    ConcurrentLinkedQueue<HandOff> backlog = m_backlogs.get(slave);
+    if (backlog == null) {
+      return;
+    }
+    Semaphore limiter = getLimiter(slave);
+    // a task added after the isEmpty() check is started by whoever added
+    // it, or by the release of the permit it is waiting on
+    while (!backlog.isEmpty() && limiter.tryAcquire()) {
+      HandOff handOff = backlog.poll();
+      if (handOff == null) {
+        limiter.release();
+        continue;
+      }
+      m_backlogged.decrementAndGet();
+      try {
+        m_ioPool.execute(handOff);
+      } catch (RejectedExecutionException ex) {
+        limiter.release();
+        m_server.dispatchRejected(handOff.m_entry, handOff.m_task, slave);
+      }
+    }
+  }
+
+  /**
+   * Get the number of transfers currently in flight (or reserved) to the
+   * supplied slave
+   *
+   * @param slave the slave (host:port)
+   * @return the number of transfers in flight
+   */
+  public int getInFlight(String slave) {
+    Semaphore s = m_inFlight.get(slave);
+    if (s == null) {
+      return 0;
+    }
+    return m_maxInFlightPerSlave - s.availablePermits();
+  }
+
+  /**
+   * Get the number of hand-offs waiting for an I/O thread
+   *
+   * @return the number of queued hand-offs
+   */
+  public int getQueuedCount() {
+    return m_ioPool.getQueue().size();
+  }
+
+  /**
+   * Get the number of tasks waiting in the slaves' backlogs for a permit
+   *
+   * @return the number of backlogged tasks
+   */
+  public int getBackloggedCount() {
+    return m_backlogged.get();
+  }
+
+  /**
+   * Queue a task for transfer to a slave. Returns immediately. The caller
+   * must have reserved the transfer with reserve(); the reservation is given
+   * back when the hand-off is complete (or here if it can't be queued). A
+   * task that can't be handed off is passed back to the server to be run
+   * elsewhere.
+   *
+   * @param entry the entry of the task to send
+   * @param task the task to send
+   * @param slave the slave (host:port) to send to
+   * @return false if the dispatch queue is full (the task has not been
+   *         queued)
+   */
+  public boolean dispatch(WekaTaskEntry entry, NamedTask task, String slave) {
+    try {
+      m_ioPool.execute(new HandOff(entry, task, slave));
+    } catch (RejectedExecutionException ex) {
+      release(slave);
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Queue a task for transfer to a slave that may have no permit free right
+   * now (none is reserved by the caller). The task waits in the slave's
+   * backlog until one of the slave's transfers completes. Returns
+   * immediately.
+   *
+   * @param entry the entry of the task to send
+   * @param task the task to send
+   * @param slave the slave (host:port) to send to
+   * @return false if the backlogs are full (the task has not been queued)
+   */
+  public boolean queue(WekaTaskEntry entry, NamedTask task, String slave) {
+    if (m_backlogged.incrementAndGet() > m_backlogCapacity) {
+      m_backlogged.decrementAndGet();
+      return false;
+    }
+    ConcurrentLinkedQueue<HandOff> backlog = m_backlogs.get(slave);
+    if (backlog == null) {
+      ConcurrentLinkedQueue<HandOff> newB =
+        new ConcurrentLinkedQueue<HandOff>();
+      backlog = m_backlogs.putIfAbsent(slave, newB);
+      if (backlog == null) {
+        backlog = newB;
+      }
+    }
+    backlog.add(new HandOff(entry, task, slave));
+    startBacklogged(slave);
+
+    return true;
+  }
+
+  /**
+   * Forget about a slave. Its limiter is only dropped if nothing is in
+   * flight (or reserved), so that outstanding reservations are given back to
+   * the limiter they were taken from. Tasks in its backlog are passed back to
+   * the server to be run elsewhere.
+   *
+   * @param slave the slave (host:port)
+   */
+  public void removeSlave(String slave) {
+    Semaphore s = m_inFlight.get(slave);
+    if (s != null && s.tryAcquire(m_maxInFlightPerSlave)) {
+      // holding every permit, so nothing can reserve it while it goes
+      m_inFlight.remove(slave, s);
+    }
+
+    ConcurrentLinkedQueue<HandOff> backlog = m_backlogs.remove(slave);
+    if (backlog != null) {
+      HandOff handOff;
+      while ((handOff = backlog.poll()) != null) {
+        m_backlogged.decrementAndGet();
+        m_server.executeTask(handOff.m_entry);
+      }
+    }
+  }
+
+  /**
+   * Stop the I/O threads
+   */
+  public void shutdown() {
+    m_ioPool.shutdown();
+  }
+}
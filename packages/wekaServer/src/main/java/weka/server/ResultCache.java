@@ -0,0 +1,348 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    ResultCache.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import weka.core.SerializationHelper;
+
+/**
+ * Keeps recently fetched task results in memory so that repeated requests for
+ * the same result don't have to read and deserialize the persisted result
+ * each time. The cache is bounded by the serialized size of the results it
+ * holds rather than the number of entries; the least recently used results
+ * are evicted first. An entry remembers the persisted result file it was
+ * loaded from, so a result that has been replaced (by another execution of
+ * the task) is never served. Entries are also invalidated explicitly when a
+ * task starts executing or is purged.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class ResultCache {
+
+  /** Default maximum size of the cache (bytes) */
+  public static final long DEFAULT_MAX_BYTES = 64L * 1024L * 1024L;
+
+  /**
+   * A cached result
+   */
+  protected static class Entry {
+
+    /** The file the result was loaded from */
+    protected File m_file;
+
+    /** Last modification time of the file when loaded */
+    protected long m_lastModified;
+
+    /** Length of the file when loaded */
+    protected long m_fileLength;
+
+    /** The result */
+    protected Object m_result;
+
+    /** Serialized size of the result (bytes) */
+    protected long m_size;
+
+    /**
+     * Returns true if this entry was loaded from the current version of the
+     * supplied file
+     *
+     * @param file the persisted result file
+     * @return true if the entry is up to date
+     */
+    protected boolean isCurrent(File file) {
+      return m_file.equals(file) && m_lastModified == file.lastModified()
+        && m_fileLength == file.length();
+    }
+  }
+
+  /**
+   * Counts the bytes read through it
+   */
+  protected static class CountingInputStream extends FilterInputStream {
+
+    protected long m_count;
+
+    public CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        m_count++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0) {
+        m_count += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      m_count += skipped;
+      return skipped;
+    }
+
+    public long getCount() {
+      return m_count;
+    }
+  }
+
+  /** The cached results, keyed by task name---ID, in access order */
+  protected LinkedHashMap<String, Entry> m_entries =
+    new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  /** Maximum total size of the cached results (bytes) */
+  protected long m_maxBytes;
+
+  /** Current total size of the cached results (bytes) */
+  protected long m_bytes;
+
+  /** Number of requests answered from the cache */
+  protected long m_hits;
+
+  /** Number of requests that had to load the result */
+  protected long m_misses;
+
+  /** Number of results evicted to make room for others */
+  protected long m_evictions;
+
+  /** Number of results invalidated */
+  protected long m_invalidations;
+
+  /** Number of results too large to cache */
+  protected long m_rejected;
+
+  /**
+   * Constructor
+   */
+  public ResultCache() {
+    this(DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param maxBytes the maximum total size of the cached results (bytes). 0
+   *          disables the cache.
+   */
+  public ResultCache(long maxBytes) {
+    m_maxBytes = Math.max(0, maxBytes);
+  }
+
+  /**
+   * Set the maximum total size of the cached results. Evicts results if
+   * necessary.
+   *
+   * @param maxBytes the maximum size (bytes). 0 disables the cache.
+   */
+  public synchronized void setMaxBytes(long maxBytes) {
+    m_maxBytes = Math.max(0, maxBytes);
+    evict();
+  }
+
+  /**
+   * Get the maximum total size of the cached results
+   *
+   * @return the maximum size (bytes)
+   */
+  public synchronized long getMaxBytes() {
+    return m_maxBytes;
+  }
+
+  /**
+   * Get the result of a task, loading it from its persisted result file if
+   * it is not cached (or the cached copy is out of date)
+   *
+   * @param taskID the name---ID of the task
+   * @param resultFile the file that holds the task's persisted result
+   * @return the result
+   * @throws Exception if the result can't be loaded
+   */
+  public Object getResult(String taskID, File resultFile) throws Exception {
+    synchronized (this) {
+      Entry e = m_entries.get(taskID);
+      if (e != null) {
+        if (e.isCurrent(resultFile)) {
+          m_hits++;
+          return e.m_result;
+        }
+        remove(taskID);
+        m_invalidations++;
+      }
+      m_misses++;
+    }
+
+    // load outside of the lock - it can take a while
+    Entry e = new Entry();
+    e.m_file = resultFile;
+    e.m_lastModified = resultFile.lastModified();
+    e.m_fileLength = resultFile.length();
+    CountingInputStream counter =
+      new CountingInputStream(Compression.decompress(new BufferedInputStream(
+        new FileInputStream(resultFile), 65536)));
+    ObjectInputStream ois =
+      SerializationHelper.getObjectInputStream(new BufferedInputStream(
+        counter));
+    try {
+      e.m_result = ois.readObject();
+    } finally {
+      ois.close();
+    }
+    e.m_size = counter.getCount();
+
+    synchronized (this) {
+      if (e.m_size > m_maxBytes) {
+        m_rejected++;
+      } else {
+        remove(taskID);
+        m_entries.put(taskID, e);
+        m_bytes += e.m_size;
+        evict();
+      }
+    }
+
+    return e.m_result;
+  }
+
+  /**
+   * Remove the cached result (if any) of a task
+   *
+   * @param taskID the name---ID of the task
+   */
+  public synchronized void invalidate(String taskID) {
+    if (remove(taskID)) {
+      m_invalidations++;
+    }
+  }
+
+  /**
+   * Remove all cached results
+   */
+  public synchronized void clear() {
+    m_entries.clear();
+    m_bytes = 0;
+  }
+
+  /**
+   * Remove an entry. Only called while holding the lock on the cache.
+   *
+   * @param taskID the name---ID of the task
+   * @return true if there was an entry to remove
+   */
+  protected boolean remove(String taskID) {
+    Entry e = m_entries.remove(taskID);
+    if (e != null) {
+      m_bytes -= e.m_size;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Evict least recently used results until the cache is within its size.
+   * Only called while holding the lock on the cache.
+   */
+  protected void evict() {
+    Iterator<Map.Entry<String, Entry>> i = m_entries.entrySet().iterator();
+    while (m_bytes > m_maxBytes && i.hasNext()) {
+      m_bytes -= i.next().getValue().m_size;
+      i.remove();
+      m_evictions++;
+    }
+  }
+
+  /**
+   * Get the number of cached results
+   *
+   * @return the number of cached results
+   */
+  public synchronized int size() {
+    return m_entries.size();
+  }
+
+  /**
+   * Get the total size of the cached results
+   *
+   * @return the size (bytes)
+   */
+  public synchronized long getBytes() {
+    return m_bytes;
+  }
+
+  public synchronized long getHits() {
+    return m_hits;
+  }
+
+  public synchronized long getMisses() {
+    return m_misses;
+  }
+
+  public synchronized long getEvictions() {
+    return m_evictions;
+  }
+
+  public synchronized long getInvalidations() {
+    return m_invalidations;
+  }
+
+  public synchronized long getRejected() {
+    return m_rejected;
+  }
+
+  /**
+   * Get the proportion of requests answered from the cache
+   *
+   * @return the hit ratio (0 if there have been no requests)
+   */
+  public synchronized double getHitRatio() {
+    long requests = m_hits + m_misses;
+    return requests > 0 ? (double) m_hits / requests : 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return m_entries.size() + " result(s), " + m_bytes + " / " + m_maxBytes
+      + " bytes, " + m_hits + " hit(s), " + m_misses + " miss(es), "
+      + m_evictions + " eviction(s), " + m_invalidations
+      + " invalidation(s)";
+  }
+}
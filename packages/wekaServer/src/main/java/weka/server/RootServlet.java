@@ -27,9 +27,11 @@ import java.io.ObjectInputStream;
 import java.io.PrintWriter;
 import java.net.URLEncoder;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -38,11 +40,16 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.methods.PostMethod;
+import org.mortbay.jetty.AbstractConnector;
+import org.mortbay.thread.QueuedThreadPool;
 
 import weka.experiment.TaskStatusInfo;
 
 /**
- * The main servlet. Shows status of the server, tasks and slaves.
+ * The main servlet. Shows status of the server, tasks and slaves. The slaves
+ * and tasks are shown as of the last snapshot taken by the server's
+ * ClusterMonitor, a page of tasks at a time. The status is returned as JSON
+ * to JSON clients.
  * 
  * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
  * @version $Revision: 10248 $
@@ -52,6 +59,45 @@ public class RootServlet extends WekaServlet {
   /** The context path for this servlet */
   public static final String CONTEXT_PATH = "/";
 
+  /** Number of tasks shown per page if no limit is given */
+  public static final int DEFAULT_PAGE_SIZE = 100;
+
+  /** Response key for the time the status was taken */
+  public static final String TIME_KEY = "time";
+
+  /** Response key for a server (host:port) */
+  public static final String SERVER_KEY = "server";
+
+  /** Response key for the number of execution slots */
+  public static final String SLOTS_KEY = "slots";
+
+  /** Response key for the number of executing tasks */
+  public static final String RUNNING_KEY = "running";
+
+  /** Response key for the number of queued tasks */
+  public static final String QUEUED_KEY = "queued";
+
+  /** Response key for the load of a server */
+  public static final String LOAD_KEY = "load";
+
+  /** Response key for the slaves */
+  public static final String SLAVES_KEY = "slaves";
+
+  /** Response key for whether a slave's load came from a heartbeat */
+  public static final String HEARTBEAT_KEY = "heartbeat";
+
+  /** Response key for the name of a task */
+  public static final String NAME_KEY = "name";
+
+  /** Response key for the ID of a task */
+  public static final String ID_KEY = "id";
+
+  /** Response key for the last execution time of a task */
+  public static final String LAST_EXECUTION_KEY = "lastExecution";
+
+  /** Response key for the next execution time of a task */
+  public static final String NEXT_EXECUTION_KEY = "nextExecution";
+
   /**
    * For serialization
    */
@@ -85,12 +131,85 @@ public class RootServlet extends WekaServlet {
       return;
     }
 
-    response.setContentType("text/html;charset=UTF-8");
+    String clientParamNew = request.getParameter(JSONProtocol.JSON_CLIENT_KEY);
+    boolean clientNew =
+      clientParamNew != null && clientParamNew.equalsIgnoreCase("y");
+
     response.setStatus(HttpServletResponse.SC_OK);
+    if (clientNew) {
+      response.setCharacterEncoding("UTF-8");
+      response.setContentType("application/json");
+    } else {
+      response.setContentType("text/html;charset=UTF-8");
+    }
 
     PrintWriter out = response.getWriter();
 
     try {
+      ClusterSnapshot snapshot = m_server.getClusterMonitor().getSnapshot();
+      List<ClusterSnapshot.TaskState> tasks = snapshot.getTasks();
+
+      String offset = GetTaskListServlet.getParameter(request,
+        GetTaskListServlet.OFFSET_KEY);
+      String limit = GetTaskListServlet.getParameter(request,
+        GetTaskListServlet.LIMIT_KEY);
+      int total = tasks.size();
+      int start = offset != null ? Math.max(0, Integer.parseInt(offset)) : 0;
+      int pageSize =
+        limit != null ? Math.max(0, Integer.parseInt(limit))
+          : DEFAULT_PAGE_SIZE;
+      int end = (int) Math.min(total, (long) start + pageSize);
+      start = Math.min(start, end);
+      SimpleDateFormat sdf =
+        new SimpleDateFormat(GetTaskListServlet.DATE_FORMAT);
+      String local = m_server.getHostname() + ":" + m_server.getPort();
+
+      if (clientNew) {
+        Map<String, Object> jResponse =
+          JSONProtocol.createOKResponseMap("OK. Server status");
+        Map<String, Object> status = new HashMap<String, Object>();
+        status.put(TIME_KEY, snapshot.getTime());
+        status.put(SERVER_KEY, local);
+        status.put(SLOTS_KEY, m_server.getNumExecutionSlots());
+        status.put(RUNNING_KEY, m_server.numRunningTasks());
+        status.put(QUEUED_KEY, m_server.numQueuedTasks());
+        status.put(LOAD_KEY, m_server.getServerLoad());
+
+        List<Map<String, Object>> slaves = new ArrayList<Map<String, Object>>();
+        for (ClusterSnapshot.SlaveState slave : snapshot.getSlaves()) {
+          Map<String, Object> s = new HashMap<String, Object>();
+          s.put(SERVER_KEY, slave.getSlave());
+          s.put(LOAD_KEY, slave.getLoad());
+          s.put(HEARTBEAT_KEY, slave.isFromHeartbeat());
+          slaves.add(s);
+        }
+        status.put(SLAVES_KEY, slaves);
+
+        List<Map<String, Object>> taskMaps =
+          new ArrayList<Map<String, Object>>();
+        for (ClusterSnapshot.TaskState task : tasks.subList(start, end)) {
+          Map<String, Object> t = new HashMap<String, Object>();
+          t.put(NAME_KEY, task.getEntry().getName());
+          t.put(ID_KEY, task.getEntry().getID());
+          t.put(SERVER_KEY, task.getServer());
+          if (task.getLastExecution() != null) {
+            t.put(LAST_EXECUTION_KEY, sdf.format(task.getLastExecution()));
+          }
+          if (task.getNextExecution() != null) {
+            t.put(NEXT_EXECUTION_KEY, sdf.format(task.getNextExecution()));
+          }
+          t.put(GetTaskListServlet.STATUS_KEY, task.getStatus());
+          taskMaps.add(t);
+        }
+        status.put(GetTaskListServlet.TOTAL_KEY, total);
+        status.put(GetTaskListServlet.OFFSET_KEY, start);
+        status.put(GetTaskListServlet.TASKS_KEY, taskMaps);
+
+        jResponse.put(JSONProtocol.RESPONSE_PAYLOAD_KEY, status);
+        out.println(JSONProtocol.encodeToJSONString(jResponse));
+        return;
+      }
+
       out.println("<HTML>\n<HEAD>\n<TITLE>Weka server</TITLE>");
       out.println("<META http-equiv=\"Refresh\" content=\"30;url="
         + CONTEXT_PATH + "\">");
@@ -112,7 +231,6 @@ public class RootServlet extends WekaServlet {
       out
         .println("Server load ((#executing + #queued) * loadFactor / #execution_slots): "
           + m_server.getServerLoad() + "<p>");
-      System.gc();
       Runtime run = Runtime.getRuntime();
       long freeM = run.freeMemory();
       long totalM = run.totalMemory();
@@ -120,24 +238,48 @@ public class RootServlet extends WekaServlet {
       out.println("Memory (free/total/max) in bytes: "
         + String.format("%,d", freeM) + " / " + String.format("%,d", totalM)
         + " / " + String.format("%,d", maxM) + "<p>");
+      ResultCache cache = m_server.getResultCache();
+      out.println("Result cache (results/bytes/max bytes): " + cache.size()
+        + " / " + String.format("%,d", cache.getBytes()) + " / "
+        + String.format("%,d", cache.getMaxBytes()) + "<br>");
+      out.println("Result cache (hits/misses/evictions/invalidations): "
+        + cache.getHits() + " / " + cache.getMisses() + " / "
+        + cache.getEvictions() + " / " + cache.getInvalidations() + " ("
+        + String.format("%.1f", cache.getHitRatio() * 100) + "% hits)<p>");
+      AbstractConnector connector = m_server.getConnector();
+      QueuedThreadPool threads = m_server.getRequestThreadPool();
+      if (connector != null && threads != null) {
+        out.println("Connections (open/max open/total): "
+          + connector.getConnectionsOpen() + " / "
+          + connector.getConnectionsOpenMax() + " / "
+          + connector.getConnections() + " (" + m_server.getConnectorType()
+          + " connector, " + connector.getRequests() + " requests)<br>");
+        out.println("Request threads (busy/idle/max): "
+          + (threads.getThreads() - threads.getIdleThreads()) + " / "
+          + threads.getIdleThreads() + " / " + threads.getMaxThreads()
+          + "<br>");
+        out.println("Requests queued for a thread: " + threads.getQueueSize()
+          + "<br>");
+        out.println("Clients waiting for task events: "
+          + TaskEventBus.getSingleton().getNumWaiting() + "<p>");
+      }
 
-      if (m_server.getSlaves().size() > 0) {
+      if (snapshot.getSlaves().size() > 0) {
         out.println("<H3>Slaves</H3>");
         out.println("<p>");
 
         out.println("<table border=\"1\">");
         out.print("<tr><th>");
         out.print("Host</th><th>Port</th><th>Status</th><th>Load</th></tr>\n");
-        Set<String> slaves = m_server.getSlaves();
-        for (String slave : slaves) {
-          String[] parts = slave.split(":");
+        for (ClusterSnapshot.SlaveState slave : snapshot.getSlaves()) {
+          String[] parts = slave.getSlave().split(":");
           out.print("<tr>");
           out.print("<td><a href=\"http://" + parts[0] + ":" + parts[1] + "\">"
             + parts[0] + "</a></td><td>" + parts[1] + "</td>");
-          double load = getSlaveLoad(m_server, slave);
-          String okString = (load < 0) ? "connection error" : "OK";
+          String okString = slave.isOK() ? "OK" : "connection error";
 
-          out.print("<td>" + okString + "</td><td>" + load + "</td></tr>\n");
+          out.print("<td>" + okString + "</td><td>" + slave.getLoad()
+            + "</td></tr>\n");
         }
         out.print("</table><p>");
       }
@@ -145,33 +287,30 @@ public class RootServlet extends WekaServlet {
       out.println("<p>");
 
       out.println("<H3>Tasks</H3>");
+      out.println("Tasks " + (total > 0 ? start + 1 : 0) + " to " + end
+        + " of " + total + " (as of "
+        + (System.currentTimeMillis() - snapshot.getTime()) / 1000
+        + " seconds ago)<p>");
 
       out.println("<table border=\"1\">");
       out.print("<tr><th>");
       out
         .print("Task name</th><th>ID</th><th>Server</th><th>Last execution</th><th>Next execution</th>"
           + "<th>Status</th><th>Purge</th></tr>\n");
-      List<WekaTaskMap.WekaTaskEntry> taskList = m_taskMap.getTaskList();
-      for (WekaTaskMap.WekaTaskEntry entry : taskList) {
+      for (ClusterSnapshot.TaskState task : tasks.subList(start, end)) {
+        WekaTaskMap.WekaTaskEntry entry = task.getEntry();
         String name = entry.getName();
         String id = entry.getID();
-        NamedTask task = m_taskMap.getTask(entry);
-        TaskStatusInfo tsi = task.getTaskStatus();
-        // Date lastExecuted = m_taskMap.getExecutionTime(entry);
-        Date lastExecuted = entry.getLastExecution();
-        Date nextExecution = null;
-        if (task instanceof Scheduled) {
-          nextExecution = ((Scheduled) task).getSchedule().nextExecution(
-            lastExecuted);
-        }
+        Date lastExecuted = task.getLastExecution();
+        Date nextExecution = task.getNextExecution();
 
         out.print("<tr>");
         out.print("<td><a href=\"" + GetTaskStatusServlet.CONTEXT_PATH
           + "?name=" + URLEncoder.encode(entry.toString(), "UTF-8") + "\">"
           + name + "</a></td>");
         out.print("<td>" + id + "</td>");
-        String server = entry.getServer();
-        if (server.equals(m_server.getHostname() + ":" + m_server.getPort())) {
+        String server = task.getServer();
+        if (server.equals(local)) {
           server = "local";
         }
         out.print("<td>");
@@ -184,7 +323,6 @@ public class RootServlet extends WekaServlet {
 
         String formattedLastDate = " - ";
         String formattedNextDate = " - ";
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
         if (lastExecuted != null) {
           formattedLastDate = sdf.format(lastExecuted);
         }
@@ -195,10 +333,10 @@ public class RootServlet extends WekaServlet {
         }
         out.print("<td>" + formattedNextDate + "</td>");
 
-        out.print("<td>" + GetTaskStatusServlet.taskStatusInfoToString(tsi)
+        out.print("<td>" + GetTaskStatusServlet.statusToString(task.getStatus())
           + "</td>");
 
-        if (tsi.getExecutionStatus() != TaskStatusInfo.PROCESSING) {
+        if (task.getStatus() != TaskStatusInfo.PROCESSING) {
           out.print("<td><a href=\"" + PurgeTaskServlet.CONTEXT_PATH + "?name="
             + URLEncoder.encode(entry.toString(), "UTF-8")
             + "\">Remove</a></td>");
@@ -209,8 +347,36 @@ public class RootServlet extends WekaServlet {
       }
       out.print("</table><p>");
 
+      if (start > 0 || end < total) {
+        String query = request.getQueryString();
+        query = query != null ? query : "";
+        query =
+          query.replaceAll("(^|&)" + GetTaskListServlet.OFFSET_KEY
+            + "=[^&]*", "");
+        if (query.length() > 0 && !query.startsWith("&")) {
+          query = "&" + query;
+        }
+        if (start > 0) {
+          out.println("<a href=\"" + CONTEXT_PATH + "?"
+            + GetTaskListServlet.OFFSET_KEY + "="
+            + Math.max(0, start - Math.max(1, pageSize)) + query
+            + "\">Previous</a>&nbsp;");
+        }
+        if (end < total) {
+          out.println("<a href=\"" + CONTEXT_PATH + "?"
+            + GetTaskListServlet.OFFSET_KEY + "=" + end + query
+            + "\">Next</a>");
+        }
+        out.println("<p>");
+      }
+
       out.println("</BODY>\n</HTML>");
     } catch (Exception ex) {
+      if (clientNew) {
+        Map<String, Object> jError =
+          JSONProtocol.createErrorResponseMap(ex.getMessage());
+        out.println(JSONProtocol.encodeToJSONString(jError));
+      }
       ex.printStackTrace();
     } finally {
       if (out != null) {
@@ -242,6 +408,21 @@ public class RootServlet extends WekaServlet {
    */
   public static double getSlaveLoad(String slave, String username,
     String password) {
+    return getSlaveLoad(slave, username, password, 0);
+  }
+
+  /**
+   * Utility method to get the load of a named slave
+   * 
+   * @param slave the name of the remote slave
+   * @param username the username to authenticate with
+   * @param password the password to authenticate with
+   * @param timeout the maximum time to wait for a connection or for data from
+   *          the slave (milliseconds, 0 to wait indefinitely)
+   * @return the load of the slave
+   */
+  public static double getSlaveLoad(String slave, String username,
+    String password, int timeout) {
     double load = -1;
 
     InputStream is = null;
@@ -255,11 +436,19 @@ public class RootServlet extends WekaServlet {
       post = new PostMethod(url);
       post.setDoAuthentication(true);
       post.addRequestHeader(new Header("Content-Type", "text/plain"));
+      if (timeout > 0) {
+        post.getParams().setSoTimeout(timeout);
+      }
 
-      // Get HTTP client
+      // Get HTTP client (that doesn't wait longer than the timeout to
+      // connect - a slave that drops packets would otherwise hold this
+      // thread for the operating system's connect timeout)
       HttpClient client = WekaServer.ConnectionManager.getSingleton()
-        .createHttpClient();
+        .createHttpClient(timeout);
       WekaServer.ConnectionManager.addCredentials(client, username, password);
+      if (timeout > 0) {
+        client.getParams().setConnectionManagerTimeout(timeout);
+      }
 
       // Execute request
       int result = client.executeMethod(post);
@@ -0,0 +1,295 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    ScheduleDispatcher.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import weka.experiment.TaskStatusInfo;
+import weka.server.WekaTaskMap.WekaTaskEntry;
+
+/**
+ * Fires scheduled tasks when they are due. Each scheduled task is armed in a
+ * delay queue at the time given by Schedule.nextExecution(), so nothing happens
+ * between firings. When a task fires, Schedule.execute() still has the final
+ * say on whether it runs. A task is re-armed when it is added, executed, or
+ * has its last execution time updated. If nextExecution() and execute()
+ * disagree, the task is re-checked with a back-off of up to an hour.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class ScheduleDispatcher {
+
+  /** One minute in milliseconds */
+  protected static final long MINUTE = 60000L;
+
+  /**
+   * How long to wait before checking a task whose schedule reports no next
+   * execution (or has a configuration problem)
+   */
+  public static final long DORMANT_RECHECK = 60 * MINUTE;
+
+  /**
+   * A pending firing of a scheduled task
+   */
+  protected static class Firing implements Delayed {
+
+    /** The entry of the task to fire */
+    protected final WekaTaskEntry m_entry;
+
+    /** Time to fire at */
+    protected final long m_time;
+
+    /**
+     * Number of consecutive times that the schedule said not to run when
+     * nextExecution() said it was due
+     */
+    protected final int m_misses;
+
+    public Firing(WekaTaskEntry entry, long time, int misses) {
+      m_entry = entry;
+      m_time = time;
+      m_misses = misses;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(m_time - System.currentTimeMillis(),
+        TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+      long other =
+        (o instanceof Firing) ? ((Firing) o).m_time : System
+          .currentTimeMillis() + o.getDelay(TimeUnit.MILLISECONDS);
+      return m_time < other ? -1 : (m_time == other ? 0 : 1);
+    }
+  }
+
+  /** Pending firings (may contain superseded ones) */
+  protected final DelayQueue<Firing> m_queue = new DelayQueue<Firing>();
+
+  /** The current firing for each scheduled task */
+  protected final ConcurrentHashMap<WekaTaskEntry, Firing> m_armed =
+    new ConcurrentHashMap<WekaTaskEntry, Firing>();
+
+  /** The server to execute tasks on */
+  protected WekaServer m_server;
+
+  /** The server's tasks */
+  protected WekaTaskMap m_taskMap;
+
+  /** The thread that waits for firings */
+  protected Thread m_dispatchThread;
+
+  /**
+   * Constructor
+   *
+   * @param server the server to execute tasks on
+   * @param taskMap the server's tasks
+   */
+  public ScheduleDispatcher(WekaServer server, WekaTaskMap taskMap) {
+    m_server = server;
+    m_taskMap = taskMap;
+  }
+
+  /**
+   * Start the dispatch thread
+   *
+   * @param daemon true if the thread should be a daemon thread
+   */
+  public synchronized void start(boolean daemon) {
+    if (m_dispatchThread != null) {
+      return;
+    }
+
+    m_dispatchThread = new Thread("WekaServer schedule dispatcher") {
+      @Override
+      public void run() {
+        while (!isInterrupted()) {
+          Firing next;
+          try {
+            next = m_queue.take();
+          } catch (InterruptedException ie) {
+            break;
+          }
+
+          try {
+            fire(next);
+          } catch (Exception ex) {
+            ex.printStackTrace();
+          }
+        }
+      }
+    };
+    m_dispatchThread.setPriority(Thread.MIN_PRIORITY);
+    m_dispatchThread.setDaemon(daemon);
+    m_dispatchThread.start();
+  }
+
+  /**
+   * Stop the dispatch thread
+   */
+  public synchronized void stop() {
+    if (m_dispatchThread != null) {
+      m_dispatchThread.interrupt();
+      m_dispatchThread = null;
+    }
+  }
+
+  /**
+   * (Re)arm a scheduled task at its next execution time. Should be called
+   * whenever a scheduled task is added, or its last execution time or
+   * schedule changes. Does nothing if the task is not scheduled.
+   *
+   * @param entry the entry of the task
+   */
+  public void schedule(WekaTaskEntry entry) {
+    arm(entry, 0, 0);
+  }
+
+  /**
+   * Stop firing a task (e.g. because it has been purged)
+   *
+   * @param entry the entry of the task
+   */
+  public void cancel(WekaTaskEntry entry) {
+    // superseded firings are discarded when they come off the queue
+    m_armed.remove(entry);
+  }
+
+  /**
+   * Get the number of scheduled tasks that are armed
+   *
+   * @return the number of armed tasks
+   */
+  public int getNumArmed() {
+    return m_armed.size();
+  }
+
+  /**
+   * Get the time that a task is next due to be checked
+   *
+   * @param entry the entry of the task
+   * @return the time of the next check or null if the task is not armed
+   */
+  public Date getNextFiring(WekaTaskEntry entry) {
+    Firing f = m_armed.get(entry);
+    return f != null ? new Date(f.m_time) : null;
+  }
+
+  /**
+   * Arm a task
+   *
+   * @param entry the entry of the task
+   * @param notBefore earliest time to fire
+   * @param misses the number of consecutive misses so far
+   */
+  protected void arm(WekaTaskEntry entry, long notBefore, int misses) {
+    NamedTask task = m_taskMap.getTask(entry);
+    if (!(task instanceof Scheduled)) {
+      cancel(entry);
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    Date lastExecution = entry.getLastExecution();
+    Date hint = null;
+    try {
+      hint = ((Scheduled) task).getSchedule().nextExecution(lastExecution);
+    } catch (Exception ex) {
+      // execute() will report the problem
+    }
+
+    long fireAt;
+    if (hint == null) {
+      // never run - let execute() decide now. Otherwise the schedule has
+      // (probably) finished, so just check occasionally
+      fireAt = lastExecution == null ? now : now + DORMANT_RECHECK;
+    } else {
+      fireAt = hint.getTime();
+    }
+
+    if (fireAt < notBefore) {
+      fireAt = notBefore;
+    } else {
+      misses = 0;
+    }
+
+    Firing f = new Firing(entry, fireAt, misses);
+    m_armed.put(entry, f);
+    m_queue.add(f);
+  }
+
+  /**
+   * Process a firing
+   *
+   * @param f the firing to process
+   */
+  protected void fire(Firing f) {
+    WekaTaskEntry entry = f.m_entry;
+    if (!m_armed.remove(entry, f)) {
+      // superseded or cancelled
+      return;
+    }
+
+    NamedTask task = m_taskMap.getTask(entry);
+    if (!(task instanceof Scheduled)) {
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    if (WekaServer.getExecutionStatus(task) == TaskStatusInfo.PROCESSING) {
+      // still going from last time - look again in a minute
+      arm(entry, now + MINUTE, 0);
+      return;
+    }
+
+    Schedule schedule = ((Scheduled) task).getSchedule();
+    boolean runIt = false;
+    try {
+      runIt = schedule.execute(entry.getLastExecution());
+    } catch (Exception ex) {
+      System.err.println("[WekaServer] There is a problem with scheduled task "
+        + entry.toString() + "\n\n" + ex.getMessage());
+      arm(entry, now + DORMANT_RECHECK, 0);
+      return;
+    }
+
+    if (runIt) {
+      System.out.println("[WekaServer] Starting scheduled task "
+        + entry.toString());
+      m_server.executeTask(entry);
+
+      // re-armed properly once the execution time is recorded
+      arm(entry, now + MINUTE, 0);
+    } else {
+      long backOff = Math.min(MINUTE << Math.min(f.m_misses, 6), DORMANT_RECHECK);
+      arm(entry, now + backOff, f.m_misses + 1);
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    SerializedInstances.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import weka.core.Instances;
+import weka.core.SerializedObject;
+
+/**
+ * Holds a set of instances in the compact encoding of InstancesCodec
+ * (deflated), for tasks that carry data to a server and keep it on disk until
+ * they are executed. Used like weka.core.SerializedObject, but smaller and
+ * quicker to create and to turn back into instances.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class SerializedInstances implements Serializable {
+
+  /** For serialization */
+  private static final long serialVersionUID = 4520417626186420736L;
+
+  /** The encoded instances */
+  protected byte[] m_encoded;
+
+  /**
+   * Constructor
+   *
+   * @param data the instances to hold
+   * @throws IOException if the instances can't be encoded
+   */
+  public SerializedInstances(Instances data) throws IOException {
+    m_encoded = InstancesCodec.toBytes(data);
+  }
+
+  /**
+   * Get instances held by a SerializedInstances, or by a SerializedObject as
+   * tasks persisted by older versions hold them
+   *
+   * @param held a SerializedInstances or a SerializedObject holding instances
+   *          (may be null)
+   * @return the instances as a SerializedInstances, or null if held is null
+   * @throws IOException if held is something else, or can't be read
+   */
+  public static SerializedInstances valueOf(Object held) throws IOException {
+    if (held == null || held instanceof SerializedInstances) {
+      return (SerializedInstances) held;
+    }
+    if (held instanceof SerializedObject) {
+      Object data = ((SerializedObject) held).getObject();
+      if (data instanceof Instances) {
+        return new SerializedInstances((Instances) data);
+      }
+    }
+    throw new IOException("Not a set of instances: "
+      + held.getClass().getName());
+  }
+
+  /**
+   * Get a copy of the instances held
+   *
+   * @return the instances
+   * @throws IOException if the instances can't be decoded
+   */
+  public Instances getInstances() throws IOException {
+    return InstancesCodec.fromBytes(m_encoded);
+  }
+
+  /**
+   * Get the size of the encoded instances
+   *
+   * @return the size (bytes)
+   */
+  public int size() {
+    return m_encoded.length;
+  }
+}
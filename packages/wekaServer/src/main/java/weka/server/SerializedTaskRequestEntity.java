@@ -0,0 +1,155 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    SerializedTaskRequestEntity.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * Request entity that serializes and compresses a task (or list of tasks)
+ * straight into the HTTP request body as it is being sent. The content length
+ * is not known in advance, so the request is sent with chunked transfer
+ * encoding. Nothing beyond the stream buffers is held in memory, regardless of
+ * the size of the task. The wire format is the same as that produced by
+ * WekaServer.serializeTask(); gzip is used unless another codec is given. The
+ * codec is named in the X-Weka-Codec header of requests set up with
+ * attachTo().
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class SerializedTaskRequestEntity implements RequestEntity {
+
+  /** The object to send */
+  protected Object m_toSend;
+
+  /** The codec to compress with */
+  protected Compression.Codec m_codec;
+
+  /** Number of (compressed) bytes written by the last call to writeRequest */
+  protected long m_bytesWritten;
+
+  /**
+   * Constructor
+   *
+   * @param toSend the task, or list of tasks, to send
+   */
+  public SerializedTaskRequestEntity(Object toSend) {
+    this(toSend, Compression.GZIP);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param toSend the task, or list of tasks, to send
+   * @param codec the codec to compress with - one the receiving server accepts
+   */
+  public SerializedTaskRequestEntity(Object toSend, Compression.Codec codec) {
+    m_toSend = toSend;
+    m_codec = codec;
+  }
+
+  /**
+   * Get the codec that this entity is compressed with
+   *
+   * @return the codec
+   */
+  public Compression.Codec getCodec() {
+    return m_codec;
+  }
+
+  /**
+   * Make this entity the body of a request, and name its codec in the
+   * request's X-Weka-Codec header so that the receiving server can decode it
+   *
+   * @param method the request
+   */
+  public void attachTo(EntityEnclosingMethod method) {
+    method.setRequestEntity(this);
+    method.setRequestHeader(Compression.CODEC_HEADER, m_codec.getName());
+  }
+
+  /**
+   * Serialization is repeated if the request has to be retried
+   *
+   * @return true
+   */
+  @Override
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  @Override
+  public void writeRequest(OutputStream out) throws IOException {
+    m_bytesWritten = 0;
+    OutputStream counting = new FilterOutputStream(out) {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        m_bytesWritten++;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        m_bytesWritten += len;
+      }
+
+      @Override
+      public void close() throws IOException {
+        // the connection owns the underlying stream
+        flush();
+      }
+    };
+
+    WekaServer.serializeTask(m_toSend, counting, m_codec);
+  }
+
+  /**
+   * Unknown in advance - the request will be chunked
+   *
+   * @return -1
+   */
+  @Override
+  public long getContentLength() {
+    return -1;
+  }
+
+  @Override
+  public String getContentType() {
+    return "application/octet-stream";
+  }
+
+  /**
+   * Get the number of compressed bytes written the last time this entity was
+   * sent
+   *
+   * @return the number of bytes written
+   */
+  public long getBytesWritten() {
+    return m_bytesWritten;
+  }
+}
@@ -0,0 +1,353 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    ServerMetrics.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms describing the activity of the server, written out
+ * in the Prometheus text format by the MetricsServlet. Updating a metric
+ * never takes a lock - values are held in atomic variables and series are
+ * found in a concurrent map - so they can be updated from the task execution,
+ * request handling and logging paths. Callers that update a series often
+ * should hold on to it rather than looking it up each time.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class ServerMetrics {
+
+  /** Bucket upper bounds (seconds) for request latencies */
+  public static final double[] LATENCY_BUCKETS = { 0.001, 0.005, 0.01, 0.025,
+    0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60 };
+
+  /** Bucket upper bounds (seconds) for task wait and run times */
+  public static final double[] DURATION_BUCKETS = { 0.01, 0.1, 0.5, 1, 5, 10,
+    30, 60, 300, 900, 1800, 3600, 7200, 14400, 43200, 86400 };
+
+  /** The singleton instance */
+  protected static final ServerMetrics s_singleton = new ServerMetrics();
+
+  /**
+   * A value that only goes up
+   */
+  public static class Counter {
+
+    protected final AtomicLong m_value = new AtomicLong();
+
+    public void inc() {
+      m_value.incrementAndGet();
+    }
+
+    public void add(long amount) {
+      m_value.addAndGet(amount);
+    }
+
+    public long get() {
+      return m_value.get();
+    }
+  }
+
+  /**
+   * Counts durations falling into a fixed set of buckets
+   */
+  public static class Histogram {
+
+    /** Upper bounds of the buckets (seconds) */
+    protected final double[] m_bounds;
+
+    /** Upper bounds of the buckets (nanoseconds) */
+    protected final long[] m_boundsNanos;
+
+    /** Counts per bucket (not cumulative). The last bucket is +Inf. */
+    protected final AtomicLongArray m_counts;
+
+    /** Sum of the observed durations (nanoseconds) */
+    protected final AtomicLong m_sumNanos = new AtomicLong();
+
+    public Histogram(double[] bounds) {
+      m_bounds = bounds.clone();
+      m_boundsNanos = new long[bounds.length];
+      for (int i = 0; i < bounds.length; i++) {
+        m_boundsNanos[i] = (long) (bounds[i] * 1e9);
+      }
+      m_counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    /**
+     * Record a duration
+     *
+     * @param nanos the duration (nanoseconds)
+     */
+    public void observe(long nanos) {
+      int i = 0;
+      while (i < m_boundsNanos.length && nanos > m_boundsNanos[i]) {
+        i++;
+      }
+      m_counts.incrementAndGet(i);
+      m_sumNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Get the number of durations recorded
+     *
+     * @return the number of durations
+     */
+    public long getCount() {
+      long count = 0;
+      for (int i = 0; i < m_counts.length(); i++) {
+        count += m_counts.get(i);
+      }
+      return count;
+    }
+  }
+
+  /**
+   * A named, labelled counter or histogram
+   */
+  protected static class Series {
+    protected String m_name;
+    protected String m_labels;
+    protected Object m_metric;
+  }
+
+  /** Type and help text of each metric, keyed by metric name */
+  protected ConcurrentHashMap<String, String[]> m_descriptions =
+    new ConcurrentHashMap<String, String[]>();
+
+  /** Series, keyed by metric name and labels */
+  protected ConcurrentHashMap<String, Series> m_series =
+    new ConcurrentHashMap<String, Series>();
+
+  /**
+   * Get the singleton instance
+   *
+   * @return the metrics
+   */
+  public static ServerMetrics getSingleton() {
+    return s_singleton;
+  }
+
+  /**
+   * Get (creating if necessary) a counter
+   *
+   * @param name the name of the metric
+   * @param help a description of the metric
+   * @param labels label names and values, alternating
+   * @return the counter
+   */
+  public Counter counter(String name, String help, String... labels) {
+    Series s = m_series.get(name + formatLabels(labels));
+    if (s == null) {
+      s = add(name, "counter", help, labels, new Counter());
+    }
+    return (Counter) s.m_metric;
+  }
+
+  /**
+   * Get (creating if necessary) a histogram
+   *
+   * @param name the name of the metric
+   * @param help a description of the metric
+   * @param buckets the bucket upper bounds (seconds)
+   * @param labels label names and values, alternating
+   * @return the histogram
+   */
+  public Histogram histogram(String name, String help, double[] buckets,
+    String... labels) {
+    Series s = m_series.get(name + formatLabels(labels));
+    if (s == null) {
+      s = add(name, "histogram", help, labels, new Histogram(buckets));
+    }
+    return (Histogram) s.m_metric;
+  }
+
+  /**
+   * Add a series, unless another thread got there first
+   *
+   * @param name the name of the metric
+   * @param type the type of the metric
+   * @param help a description of the metric
+   * @param labels label names and values, alternating
+   * @param metric the counter or histogram
+   * @return the series that is in the map
+   */
+  protected Series add(String name, String type, String help,
+    String[] labels, Object metric) {
+    m_descriptions.putIfAbsent(name, new String[] { type, help });
+    Series newS = new Series();
+    newS.m_name = name;
+    newS.m_labels = formatLabels(labels);
+    newS.m_metric = metric;
+    Series s = m_series.putIfAbsent(name + newS.m_labels, newS);
+    return s != null ? s : newS;
+  }
+
+  /**
+   * Write all counters and histograms
+   *
+   * @param out the writer to write to
+   */
+  public void write(PrintWriter out) {
+    // keep the series of each metric together
+    Map<String, Series> sorted = new TreeMap<String, Series>();
+    for (Series s : m_series.values()) {
+      sorted.put(s.m_name + '\0' + s.m_labels, s);
+    }
+    String lastName = null;
+    for (Series s : sorted.values()) {
+      if (!s.m_name.equals(lastName)) {
+        String[] description = m_descriptions.get(s.m_name);
+        writeHeader(out, s.m_name, description[0], description[1]);
+        lastName = s.m_name;
+      }
+
+      if (s.m_metric instanceof Counter) {
+        out.print(s.m_name + s.m_labels + " ");
+        out.print(((Counter) s.m_metric).get());
+        out.print('\n');
+      } else {
+        Histogram h = (Histogram) s.m_metric;
+        String labelPrefix =
+          s.m_labels.length() > 0 ? s.m_labels.substring(0,
+            s.m_labels.length() - 1)
+            + "," : "{";
+        long cumulative = 0;
+        for (int i = 0; i < h.m_counts.length(); i++) {
+          cumulative += h.m_counts.get(i);
+          String le =
+            i < h.m_bounds.length ? formatValue(h.m_bounds[i]) : "+Inf";
+          out.print(s.m_name + "_bucket" + labelPrefix + "le=\"" + le + "\"} "
+            + cumulative + "\n");
+        }
+        out.print(s.m_name + "_sum" + s.m_labels + " "
+          + formatValue(h.m_sumNanos.get() / 1e9) + "\n");
+        out.print(s.m_name + "_count" + s.m_labels + " " + cumulative + "\n");
+      }
+    }
+  }
+
+  /**
+   * Write the HELP and TYPE lines for a metric
+   *
+   * @param out the writer to write to
+   * @param name the name of the metric
+   * @param type the type of the metric (counter, gauge, histogram)
+   * @param help a description of the metric
+   */
+  public static void writeHeader(PrintWriter out, String name, String type,
+    String help) {
+    out.print("# HELP " + name + " "
+      + help.replace("\\", "\\\\").replace("\n", "\\n") + "\n");
+    out.print("# TYPE " + name + " " + type + "\n");
+  }
+
+  /**
+   * Write a single sample
+   *
+   * @param out the writer to write to
+   * @param name the name of the metric
+   * @param value the value
+   * @param labels label names and values, alternating
+   */
+  public static void writeSample(PrintWriter out, String name, double value,
+    String... labels) {
+    out.print(name + formatLabels(labels) + " " + formatValue(value) + "\n");
+  }
+
+  /**
+   * Write a metric with a single, unlabelled sample
+   *
+   * @param out the writer to write to
+   * @param name the name of the metric
+   * @param type the type of the metric (counter or gauge)
+   * @param help a description of the metric
+   * @param value the value
+   */
+  public static void write(PrintWriter out, String name, String type,
+    String help, double value) {
+    writeHeader(out, name, type, help);
+    writeSample(out, name, value);
+  }
+
+  /**
+   * Format label names and values as {name="value",...}
+   *
+   * @param labels label names and values, alternating
+   * @return the formatted labels (empty if there are none)
+   */
+  protected static String formatLabels(String[] labels) {
+    if (labels == null || labels.length == 0) {
+      return "";
+    }
+    StringBuilder b = new StringBuilder("{");
+    for (int i = 0; i + 1 < labels.length; i += 2) {
+      if (i > 0) {
+        b.append(',');
+      }
+      b.append(labels[i]).append("=\"");
+      String value = labels[i + 1] != null ? labels[i + 1] : "";
+      b.append(value.replace("\\", "\\\\").replace("\"", "\\\"")
+        .replace("\n", "\\n"));
+      b.append('"');
+    }
+    return b.append('}').toString();
+  }
+
+  /**
+   * Format a value, without a fractional part if it is a whole number
+   *
+   * @param value the value
+   * @return the formatted value
+   */
+  protected static String formatValue(double value) {
+    if (Double.isNaN(value)) {
+      return "NaN";
+    }
+    if (Double.isInfinite(value)) {
+      return value > 0 ? "+Inf" : "-Inf";
+    }
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      return Long.toString((long) value);
+    }
+    return Double.toString(value);
+  }
+
+  /**
+   * Get a name for the type of a task to use as a label
+   *
+   * @param task the task
+   * @return the simple name of the task's class
+   */
+  public static String taskType(Object task) {
+    if (task instanceof WekaTaskMap.NamedClassDelegator) {
+      task = ((WekaTaskMap.NamedClassDelegator) task).m_wrappedTask;
+    }
+    String type = task.getClass().getSimpleName();
+    return type.length() > 0 ? type : task.getClass().getName();
+  }
+}
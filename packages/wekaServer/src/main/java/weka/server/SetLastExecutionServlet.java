@@ -28,7 +28,6 @@ import java.io.OutputStream;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.List;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -95,14 +94,8 @@ public class SetLastExecutionServlet extends WekaServlet {
     ObjectOutputStream oos = null;
 
     try {
-      List<WekaTaskMap.WekaTaskEntry> entries = m_taskMap.getTaskList();
-      WekaTaskMap.WekaTaskEntry found = null;
-      for (WekaTaskMap.WekaTaskEntry te : entries) {
-        if (te.getRemoteID() != null && te.getRemoteID().equals(taskName)) {
-          found = te;
-          break;
-        }
-      }
+      WekaTaskMap.WekaTaskEntry found =
+        m_taskMap.getTaskKeyByRemoteID(taskName);
 
       if (found != null) {
         SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
@@ -115,6 +108,9 @@ public class SetLastExecutionServlet extends WekaServlet {
               // make sure we persist this information
               m_server.persistTask(found, task);
 
+              // work out when it is next due
+              m_server.getScheduleDispatcher().schedule(found);
+
               // pass on to our master?
               if (found.getCameFromMaster()) {
                 m_server.sendExecutionTimeToMaster(found);
@@ -25,7 +25,6 @@ import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
-import java.util.List;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -89,19 +88,14 @@ public class SetTaskStatusServlet extends WekaServlet {
     WekaTaskMap.WekaTaskEntry found = null;
     NamedTask theTask = null;
     try {
-      List<WekaTaskMap.WekaTaskEntry> entries = m_taskMap.getTaskList();
-      for (WekaTaskMap.WekaTaskEntry te : entries) {
-        if (te.getRemoteID() != null && te.getRemoteID().equals(taskName)) {
-          found = te;
-          break;
-        }
-      }
+      found = m_taskMap.getTaskKeyByRemoteID(taskName);
 
       if (found != null) {
         // update the local task with the remote information
         theTask = m_taskMap.getTask(found);
         theTask.getTaskStatus()
           .setExecutionStatus(Integer.parseInt(taskStatus));
+        m_taskMap.reindex(found);
 
         // pass on to our master?
         if (found.getCameFromMaster()) {
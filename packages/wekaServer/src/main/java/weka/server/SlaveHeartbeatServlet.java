@@ -0,0 +1,180 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    SlaveHeartbeatServlet.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Receives load heartbeats from slave servers. A heartbeat from a slave that
+ * is not currently registered (e.g. because this master has been restarted)
+ * registers it.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class SlaveHeartbeatServlet extends WekaServlet {
+
+  /** The context path of this servlet */
+  public static final String CONTEXT_PATH = "/weka/heartbeat";
+
+  /**
+   * For serialization
+   */
+  private static final long serialVersionUID = 3081635502781624529L;
+
+  /**
+   * Constructs a new SlaveHeartbeatServlet
+   *
+   * @param taskMap the map of tasks maintained by the server
+   * @param server a reference to the server itself
+   */
+  public SlaveHeartbeatServlet(WekaTaskMap taskMap, WekaServer server) {
+    super(taskMap, server);
+  }
+
+  /**
+   * Parse a numeric request parameter
+   *
+   * @param request the request
+   * @param name the name of the parameter
+   * @return the value of the parameter
+   * @throws IllegalArgumentException if the parameter is missing or not a
+   *           number
+   */
+  protected static double getNumber(HttpServletRequest request, String name) {
+    String value = request.getParameter(name);
+    if (value == null) {
+      throw new IllegalArgumentException("missing parameter '" + name + "'");
+    }
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException ex) {
+      throw new IllegalArgumentException("parameter '" + name
+        + "' is not a number");
+    }
+  }
+
+  /**
+   * Process a HTTP GET
+   *
+   * @param request the request
+   * @param response the response
+   *
+   * @throws ServletException
+   * @throws IOException
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+    throws ServletException, IOException {
+    String slave = request.getParameter("slave");
+    String clientParamLegacy = request.getParameter(Legacy.LEGACY_CLIENT_KEY);
+    String clientParamNew = request.getParameter(JSONProtocol.JSON_CLIENT_KEY);
+
+    boolean clientLegacy =
+      clientParamLegacy != null && clientParamLegacy.equalsIgnoreCase("y");
+    boolean clientNew =
+      clientParamNew != null && clientParamNew.equalsIgnoreCase("y");
+
+    response.setStatus(HttpServletResponse.SC_OK);
+    if (clientLegacy) {
+      response.setContentType("application/octet-stream");
+    } else if (clientNew) {
+      response.setCharacterEncoding("UTF-8");
+      response.setContentType("application/json");
+    } else {
+      response.setCharacterEncoding("UTF-8");
+      response.setContentType("text/plain;charset=UTF-8");
+    }
+
+    String error = null;
+    if (slave == null || slave.lastIndexOf(":") <= 0) {
+      error = "malformed host address (need host:port) - " + slave;
+    } else {
+      try {
+        double load = getNumber(request, "load");
+        int slots = (int) getNumber(request, "slots");
+        int running = (int) getNumber(request, "running");
+        int queued = (int) getNumber(request, "queued");
+        double loadAdjust = getNumber(request, "loadAdjust");
+        long interval = (long) getNumber(request, "interval");
+
+        if (!m_server.getSlaves().contains(slave)) {
+          System.out.println("[WekaServer] Adding slave server " + slave
+            + " (heartbeat)");
+          m_server.addSlave(slave);
+        }
+        m_server.getClusterLoadRegistry().heartbeat(slave, load, slots,
+          running, queued, loadAdjust, interval,
+          request.getParameter("dispatch"));
+      } catch (IllegalArgumentException ex) {
+        error = ex.getMessage();
+      }
+    }
+
+    PrintWriter out = null;
+    ObjectOutputStream oos = null;
+    try {
+      if (clientLegacy) {
+        String result =
+          error != null ? WekaServlet.RESPONSE_ERROR + ": " + error
+            : WekaServlet.RESPONSE_OK;
+        OutputStream outS = response.getOutputStream();
+        oos = new ObjectOutputStream(new BufferedOutputStream(outS));
+        oos.writeObject(result);
+        oos.flush();
+      } else if (clientNew) {
+        Map<String, Object> responseMap =
+          error != null ? JSONProtocol.createErrorResponseMap(error)
+            : JSONProtocol.createOKResponseMap("Heartbeat received");
+        out = response.getWriter();
+        out.println(JSONProtocol.encodeToJSONString(responseMap));
+        out.flush();
+      } else {
+        out = response.getWriter();
+        out.println(error != null ? WekaServlet.RESPONSE_ERROR + ": " + error
+          : WekaServlet.RESPONSE_OK);
+        out.flush();
+      }
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    } finally {
+      if (oos != null) {
+        oos.close();
+        oos = null;
+      }
+
+      if (out != null) {
+        out.close();
+        out = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,412 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    SlaveLoadPoller.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asks a number of slaves for their load in parallel. The whole poll is
+ * bounded by a deadline, so one hung slave can't hold up the caller; slaves
+ * that haven't answered by the deadline are reported as timed out. A slave
+ * that hasn't answered within the hedge delay is asked a second time and the
+ * first answer to arrive is used. Answers (including time outs) are
+ * remembered for a short time so that a burst of polls only contacts each
+ * slave once.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class SlaveLoadPoller {
+
+  /** Default deadline for a poll (milliseconds) */
+  public static final int DEFAULT_TIMEOUT = 2000;
+
+  /** Default time to wait before asking a slow slave again (milliseconds) */
+  public static final int DEFAULT_HEDGE_DELAY = 500;
+
+  /** Default time to remember an answer for (milliseconds) */
+  public static final long DEFAULT_TTL = 1000;
+
+  /** Default maximum number of requests in flight */
+  public static final int DEFAULT_MAX_THREADS = 32;
+
+  /**
+   * The outcome of a poll
+   */
+  public static class Result {
+
+    /** Loads of the slaves that answered */
+    protected Map<String, Double> m_loads = new LinkedHashMap<String, Double>();
+
+    /** Slaves that could not be contacted */
+    protected List<String> m_failed = new ArrayList<String>();
+
+    /** Slaves that did not answer before the deadline */
+    protected List<String> m_timedOut = new ArrayList<String>();
+
+    public Map<String, Double> getLoads() {
+      return m_loads;
+    }
+
+    public List<String> getFailed() {
+      return m_failed;
+    }
+
+    public List<String> getTimedOut() {
+      return m_timedOut;
+    }
+
+    /**
+     * Get the load of a slave
+     *
+     * @param slave the slave (host:port)
+     * @return the load or -1 if the slave didn't answer
+     */
+    public double getLoad(String slave) {
+      Double load = m_loads.get(slave);
+      return load != null ? load.doubleValue() : -1;
+    }
+  }
+
+  /**
+   * A remembered answer
+   */
+  protected static class Answer {
+    protected double m_load;
+    protected boolean m_timedOut;
+    protected long m_time;
+
+    protected Answer(double load, boolean timedOut, long time) {
+      m_load = load;
+      m_timedOut = timedOut;
+      m_time = time;
+    }
+  }
+
+  /**
+   * A request for the load of a slave
+   */
+  protected class LoadRequest implements Callable<LoadRequest> {
+    protected String m_slave;
+    protected int m_timeout;
+    protected double m_load = -1;
+
+    protected LoadRequest(String slave, int timeout) {
+      m_slave = slave;
+      m_timeout = timeout;
+    }
+
+    @Override
+    public LoadRequest call() {
+      m_load =
+        RootServlet.getSlaveLoad(m_slave, m_server.getUsername(),
+          m_server.getPassword(), m_timeout);
+      return this;
+    }
+  }
+
+  /** The server polling its slaves */
+  protected WekaServer m_server;
+
+  /** Threads for the requests */
+  protected ThreadPoolExecutor m_pool;
+
+  /** Remembered answers, keyed by slave */
+  protected ConcurrentHashMap<String, Answer> m_answers =
+    new ConcurrentHashMap<String, Answer>();
+
+  /** Deadline for a poll (milliseconds) */
+  protected int m_timeout = DEFAULT_TIMEOUT;
+
+  /** Time to wait before asking a slow slave again (milliseconds) */
+  protected int m_hedgeDelay = DEFAULT_HEDGE_DELAY;
+
+  /** Time to remember an answer for (milliseconds) */
+  protected long m_ttl = DEFAULT_TTL;
+
+  /** Number of requests sent to slaves */
+  protected AtomicLong m_requests = new AtomicLong();
+
+  /** Number of second (hedged) requests sent to slow slaves */
+  protected AtomicLong m_hedges = new AtomicLong();
+
+  /** Number of slaves that did not answer before the deadline */
+  protected AtomicLong m_timeouts = new AtomicLong();
+
+  /** Number of slaves answered from remembered answers */
+  protected AtomicLong m_remembered = new AtomicLong();
+
+  /**
+   * Constructor
+   *
+   * @param server the server polling its slaves
+   * @param maxThreads the maximum number of requests in flight
+   */
+  public SlaveLoadPoller(WekaServer server, int maxThreads) {
+    m_server = server;
+
+    final AtomicInteger threadNum = new AtomicInteger();
+    m_pool =
+      new ThreadPoolExecutor(0, Math.max(1, maxThreads), 60, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t =
+              new Thread(r, "WekaServer load poll "
+                + threadNum.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+  }
+
+  /**
+   * Constructor using default settings
+   *
+   * @param server the server polling its slaves
+   */
+  public SlaveLoadPoller(WekaServer server) {
+    this(server, DEFAULT_MAX_THREADS);
+  }
+
+  public void setTimeout(int timeout) {
+    m_timeout = timeout;
+  }
+
+  public int getTimeout() {
+    return m_timeout;
+  }
+
+  public void setHedgeDelay(int delay) {
+    m_hedgeDelay = delay;
+  }
+
+  public int getHedgeDelay() {
+    return m_hedgeDelay;
+  }
+
+  public void setTTL(long ttl) {
+    m_ttl = ttl;
+  }
+
+  public long getTTL() {
+    return m_ttl;
+  }
+
+  /**
+   * Ask a number of slaves for their load, waiting no longer than the
+   * deadline
+   *
+   * @param slaves the slaves (host:port) to poll
+   * @return the outcome of the poll
+   */
+  public Result poll(Collection<String> slaves) {
+    long start = System.currentTimeMillis();
+    long deadline = start + m_timeout;
+    long hedgeAt = start + m_hedgeDelay;
+    Result result = new Result();
+
+    CompletionService<LoadRequest> completion =
+      new ExecutorCompletionService<LoadRequest>(m_pool);
+    Map<String, List<Future<LoadRequest>>> pending =
+      new HashMap<String, List<Future<LoadRequest>>>();
+    for (String slave : new TreeSet<String>(slaves)) {
+      Answer a = m_answers.get(slave);
+      if (a != null && start - a.m_time < m_ttl) {
+        m_remembered.incrementAndGet();
+        record(result, slave, a.m_load, a.m_timedOut);
+      } else if (!send(completion, pending, slave, m_timeout)) {
+        // no threads free - as good as timed out
+        m_timeouts.incrementAndGet();
+        record(result, slave, -1, true);
+      }
+    }
+
+    boolean hedged = m_hedgeDelay <= 0 || m_hedgeDelay >= m_timeout;
+    try {
+      while (pending.size() > 0) {
+        long now = System.currentTimeMillis();
+        if (now >= deadline) {
+          break;
+        }
+        if (!hedged && now >= hedgeAt) {
+          hedged = true;
+          for (String slave : new ArrayList<String>(pending.keySet())) {
+            if (send(completion, pending, slave, (int) (deadline - now))) {
+              m_hedges.incrementAndGet();
+            }
+          }
+          continue;
+        }
+
+        Future<LoadRequest> done =
+          completion.poll((hedged ? deadline : hedgeAt) - now,
+            TimeUnit.MILLISECONDS);
+        if (done == null) {
+          continue;
+        }
+        LoadRequest r;
+        try {
+          r = done.get();
+        } catch (ExecutionException ex) {
+          continue;
+        }
+        List<Future<LoadRequest>> requests = pending.get(r.m_slave);
+        if (requests == null) {
+          // already have an answer from the other request
+          continue;
+        }
+        requests.remove(done);
+        if (r.m_load >= 0 || requests.size() == 0) {
+          pending.remove(r.m_slave);
+          cancel(requests);
+          remember(r.m_slave, r.m_load, false);
+          record(result, r.m_slave, r.m_load, false);
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+
+    for (Map.Entry<String, List<Future<LoadRequest>>> e : pending.entrySet()) {
+      cancel(e.getValue());
+      m_timeouts.incrementAndGet();
+      remember(e.getKey(), -1, true);
+      record(result, e.getKey(), -1, true);
+    }
+
+    return result;
+  }
+
+  /**
+   * Get the load of a single slave, waiting no longer than the deadline
+   *
+   * @param slave the slave (host:port)
+   * @return the load or -1 if the slave didn't answer
+   */
+  public double getLoad(String slave) {
+    return poll(Collections.singletonList(slave)).getLoad(slave);
+  }
+
+  /**
+   * Send a request to a slave
+   *
+   * @param completion the completion service to send it through
+   * @param pending requests in flight, keyed by slave
+   * @param slave the slave (host:port)
+   * @param timeout the socket timeout for the request (milliseconds)
+   * @return false if there are no threads free to send it
+   */
+  protected boolean send(CompletionService<LoadRequest> completion,
+    Map<String, List<Future<LoadRequest>>> pending, String slave, int timeout) {
+    Future<LoadRequest> f;
+    try {
+      f = completion.submit(new LoadRequest(slave, Math.max(1, timeout)));
+    } catch (RejectedExecutionException ex) {
+      return false;
+    }
+    m_requests.incrementAndGet();
+    List<Future<LoadRequest>> requests = pending.get(slave);
+    if (requests == null) {
+      requests = new ArrayList<Future<LoadRequest>>(2);
+      pending.put(slave, requests);
+    }
+    requests.add(f);
+    return true;
+  }
+
+  protected void cancel(List<Future<LoadRequest>> requests) {
+    for (Future<LoadRequest> f : requests) {
+      f.cancel(true);
+    }
+  }
+
+  protected void remember(String slave, double load, boolean timedOut) {
+    if (m_ttl > 0) {
+      m_answers.put(slave, new Answer(load, timedOut,
+        System.currentTimeMillis()));
+    }
+  }
+
+  protected static void record(Result result, String slave, double load,
+    boolean timedOut) {
+    if (load >= 0) {
+      result.m_loads.put(slave, load);
+    } else if (timedOut) {
+      result.m_timedOut.add(slave);
+    } else {
+      result.m_failed.add(slave);
+    }
+  }
+
+  /**
+   * Forget the remembered answer (if any) for a slave
+   *
+   * @param slave the slave (host:port)
+   */
+  public void forget(String slave) {
+    m_answers.remove(slave);
+  }
+
+  public long getRequests() {
+    return m_requests.get();
+  }
+
+  public long getHedges() {
+    return m_hedges.get();
+  }
+
+  public long getTimeouts() {
+    return m_timeouts.get();
+  }
+
+  public long getRemembered() {
+    return m_remembered.get();
+  }
+
+  /**
+   * Stop the request threads
+   */
+  public void shutdown() {
+    m_pool.shutdownNow();
+  }
+}
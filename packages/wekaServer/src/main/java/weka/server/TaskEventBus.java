@@ -0,0 +1,555 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    TaskEventBus.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Holds the most recent task events (status changes, log and status messages
+ * and removals) in fixed size ring buffers so that clients can wait for the
+ * events of the tasks they are interested in rather than polling the status of
+ * each task (see TaskEventsServlet). Status changes and removals are kept
+ * apart from log and status messages, and each has its own sequence numbers;
+ * a client asks for the events after the last sequence numbers it has seen.
+ * Clients can either block waiting for events (await()) or register a
+ * listener to be told when events arrive (poll()); the latter lets the server
+ * suspend a request without tying up a thread. Publishing an event does not
+ * take a lock, so logging from many tasks at once doesn't contend here.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class TaskEventBus {
+
+  /** Default number of events kept */
+  public static final int DEFAULT_CAPACITY = 10000;
+
+  /** Event type for a change in the execution status of a task */
+  public static final int STATUS = 1;
+
+  /** Event type for a log message */
+  public static final int LOG = 2;
+
+  /** Event type for a status message */
+  public static final int STATUS_MESSAGE = 3;
+
+  /** Event type for the removal of a task */
+  public static final int REMOVED = 4;
+
+  /** The singleton instance */
+  protected static TaskEventBus s_singleton;
+
+  /**
+   * A single event
+   */
+  public static class TaskEvent implements Serializable {
+
+    /** For serialization */
+    private static final long serialVersionUID = -3305409524066428843L;
+
+    protected long m_sequence;
+    protected String m_taskID;
+    protected int m_type;
+    protected int m_status;
+    protected String m_message;
+    protected long m_time;
+
+    public TaskEvent(long sequence, String taskID, int type, int status,
+      String message) {
+      m_sequence = sequence;
+      m_taskID = taskID;
+      m_type = type;
+      m_status = status;
+      m_message = message;
+      m_time = System.currentTimeMillis();
+    }
+
+    public long getSequence() {
+      return m_sequence;
+    }
+
+    /**
+     * Get the task the event is for
+     *
+     * @return the name---ID of the task
+     */
+    public String getTaskID() {
+      return m_taskID;
+    }
+
+    /**
+     * Get the type of the event (STATUS, LOG, STATUS_MESSAGE or REMOVED)
+     *
+     * @return the type of the event
+     */
+    public int getType() {
+      return m_type;
+    }
+
+    /**
+     * Get the execution status of the task (STATUS events only)
+     *
+     * @return the execution status
+     */
+    public int getStatus() {
+      return m_status;
+    }
+
+    /**
+     * Get the message (LOG and STATUS_MESSAGE events only)
+     *
+     * @return the message
+     */
+    public String getMessage() {
+      return m_message;
+    }
+
+    public long getTime() {
+      return m_time;
+    }
+
+    @Override
+    public String toString() {
+      return m_sequence + " " + m_taskID + " " + m_type + " " + m_status + " "
+        + m_message;
+    }
+  }
+
+  /**
+   * Told when events arrive for the tasks it is interested in
+   */
+  public static interface Listener {
+
+    /**
+     * Get the tasks this listener is interested in
+     *
+     * @return the name---IDs of the tasks
+     */
+    Collection<String> getTaskIDs();
+
+    /**
+     * Called (once) when there is an event for one of the tasks. Called by
+     * the thread that published the event, so must not block.
+     */
+    void eventsAvailable();
+  }
+
+  /**
+   * The events after a given sequence number for a set of tasks
+   */
+  public static class TaskEvents implements Serializable {
+
+    /** For serialization */
+    private static final long serialVersionUID = 8094466264883226390L;
+
+    protected long m_sequence;
+    protected long m_messageSequence;
+    protected String m_epoch;
+    protected boolean m_reset;
+    protected List<TaskEvent> m_events = new ArrayList<TaskEvent>();
+
+    /**
+     * Get the sequence number to ask for status change and removal events
+     * after next time
+     *
+     * @return the sequence number
+     */
+    public long getSequence() {
+      return m_sequence;
+    }
+
+    /**
+     * Get the sequence number to ask for log and status messages after next
+     * time
+     *
+     * @return the sequence number (only meaningful if getEpoch() is not
+     *         null)
+     */
+    public long getMessageSequence() {
+      return m_messageSequence;
+    }
+
+    /**
+     * Get the epoch of the bus that the events came from
+     *
+     * @return the epoch (null if the server doesn't say)
+     */
+    public String getEpoch() {
+      return m_epoch;
+    }
+
+    /**
+     * True if events the client asked for are no longer available (or are
+     * from before the server was restarted). The client should get the full
+     * status of its tasks.
+     *
+     * @return true if events have been missed
+     */
+    public boolean isReset() {
+      return m_reset;
+    }
+
+    public List<TaskEvent> getEvents() {
+      return m_events;
+    }
+  }
+
+  /**
+   * A fixed size ring of events that can be added to and read without
+   * locking. A writer claims a sequence number and then stores its event in
+   * the slot for that number; readers stop at the first slot that hasn't been
+   * stored yet, so an event never becomes visible before the ones before it.
+   */
+  protected static class EventRing {
+
+    /** The events */
+    protected final AtomicReferenceArray<TaskEvent> m_slots;
+
+    /** Sequence number of the next event */
+    protected final AtomicLong m_next;
+
+    /** Sequence number of the first event ever added */
+    protected final long m_start;
+
+    /**
+     * Constructor
+     *
+     * @param capacity the number of events to keep
+     * @param start the sequence number of the first event
+     */
+    public EventRing(int capacity, long start) {
+      m_slots = new AtomicReferenceArray<TaskEvent>(Math.max(1, capacity));
+      m_start = start;
+      m_next = new AtomicLong(start);
+    }
+
+    /**
+     * Add an event
+     *
+     * @param taskID the name---ID of the task
+     * @param type the type of the event
+     * @param status the execution status of the task
+     * @param message the message
+     */
+    public void add(String taskID, int type, int status, String message) {
+      long sequence = m_next.getAndIncrement();
+      m_slots.set((int) (sequence % m_slots.length()), new TaskEvent(
+        sequence, taskID, type, status, message));
+    }
+
+    /**
+     * Get the sequence number of the last event that has been claimed (it
+     * might not have been stored yet)
+     *
+     * @return the sequence number
+     */
+    public long getSequence() {
+      return m_next.get() - 1;
+    }
+
+    /**
+     * Collect the events after a sequence number for a set of tasks
+     *
+     * @param taskIDs the name---IDs of the tasks
+     * @param after the sequence number
+     * @param result the events to add to
+     * @param missed set to true if some of the events after the sequence
+     *          number are no longer available
+     * @return the sequence number of the last event looked at - the one to
+     *         ask for events after next time
+     */
+    public long collect(Collection<String> taskIDs, long after,
+      List<TaskEvent> result, boolean[] missed) {
+      int capacity = m_slots.length();
+      long next = m_next.get();
+      long from = after + 1;
+      if (from < m_start || from > next || from < next - capacity) {
+        // too old, or from another run of the server - start from the
+        // oldest event that we still have
+        missed[0] = true;
+        from = Math.max(m_start, next - capacity);
+      }
+
+      long i = from;
+      for (int n = 0; n < 2 * capacity; n++) {
+        TaskEvent e = m_slots.get((int) (i % capacity));
+        if (e == null || e.m_sequence < i) {
+          // not stored yet
+          break;
+        }
+        if (e.m_sequence > i) {
+          // overwritten while we were reading - skip to the oldest event
+          // that might still be there
+          missed[0] = true;
+          i = e.m_sequence - capacity + 1;
+          continue;
+        }
+        if (taskIDs.contains(e.m_taskID)) {
+          result.add(e);
+        }
+        i++;
+      }
+
+      return i - 1;
+    }
+  }
+
+  /** Status change and removal events */
+  protected EventRing m_taskEvents;
+
+  /**
+   * Log and status message events. These are kept apart from the task events
+   * so that a busy task's log can't push the status changes that clients are
+   * waiting for out of the buffer.
+   */
+  protected EventRing m_messageEvents;
+
+  /**
+   * Identifies this bus. Sequence numbers from another bus (e.g. from before
+   * the server was restarted) mean nothing here.
+   */
+  protected final String m_epoch = UUID.randomUUID().toString();
+
+  /** Number of clients blocked waiting for events */
+  protected final AtomicInteger m_numWaiting = new AtomicInteger();
+
+  /** Blocked clients wait on this */
+  protected final Object m_waitLock = new Object();
+
+  /** Listeners waiting for events */
+  protected final List<Listener> m_listeners =
+    new CopyOnWriteArrayList<Listener>();
+
+  /**
+   * Constructor
+   *
+   * @param capacity the number of events (and, separately, messages) to keep
+   */
+  public TaskEventBus(int capacity) {
+    // sequence numbers start at the time the bus was created so that
+    // clients that don't know about epochs are (usually) reset after a
+    // restart
+    long start = System.currentTimeMillis();
+    m_taskEvents = new EventRing(capacity, start);
+    m_messageEvents = new EventRing(capacity, start);
+  }
+
+  /**
+   * Get the singleton instance
+   *
+   * @return the event bus
+   */
+  public static synchronized TaskEventBus getSingleton() {
+    if (s_singleton == null) {
+      s_singleton = new TaskEventBus(DEFAULT_CAPACITY);
+    }
+    return s_singleton;
+  }
+
+  /**
+   * Get the identity of this bus. Clients send it back with their sequence
+   * numbers so that they are reset if the server has been restarted.
+   *
+   * @return the epoch
+   */
+  public String getEpoch() {
+    return m_epoch;
+  }
+
+  /**
+   * Publish an event. Does not take any locks unless clients are waiting.
+   *
+   * @param taskID the name---ID of the task
+   * @param type the type of the event
+   * @param status the execution status of the task (STATUS events)
+   * @param message the message (LOG and STATUS_MESSAGE events)
+   */
+  public void publish(String taskID, int type, int status, String message) {
+    if (type == LOG || type == STATUS_MESSAGE) {
+      m_messageEvents.add(taskID, type, status, message);
+    } else {
+      m_taskEvents.add(taskID, type, status, message);
+    }
+
+    // the event has been stored, so a client that registers after these
+    // checks will find it
+    if (m_numWaiting.get() > 0) {
+      synchronized (m_waitLock) {
+        m_waitLock.notifyAll();
+      }
+    }
+
+    if (!m_listeners.isEmpty()) {
+      for (Listener l : m_listeners) {
+        // only the thread that removes the listener tells it
+        if (l.getTaskIDs().contains(taskID) && m_listeners.remove(l)) {
+          l.eventsAvailable();
+        }
+      }
+    }
+  }
+
+  /**
+   * Publish a change in the execution status of a task
+   *
+   * @param taskID the name---ID of the task
+   * @param status the new status
+   */
+  public void statusChanged(String taskID, int status) {
+    publish(taskID, STATUS, status, null);
+  }
+
+  /**
+   * Get the sequence number of the last status change or removal event
+   *
+   * @return the sequence number of the last event
+   */
+  public long getSequence() {
+    return m_taskEvents.getSequence();
+  }
+
+  /**
+   * Get the sequence number of the last log or status message event
+   *
+   * @return the sequence number of the last message
+   */
+  public long getMessageSequence() {
+    return m_messageEvents.getSequence();
+  }
+
+  /**
+   * Collect the events after a pair of sequence numbers for a set of tasks
+   *
+   * @param taskIDs the name---IDs of the tasks
+   * @param after the sequence number of the last task event seen
+   * @param messagesAfter the sequence number of the last message seen
+   * @param result the events to add to
+   */
+  protected void collect(Collection<String> taskIDs, long after,
+    long messagesAfter, TaskEvents result) {
+    result.m_epoch = m_epoch;
+    boolean[] missed = new boolean[1];
+    result.m_sequence =
+      m_taskEvents.collect(taskIDs, after, result.m_events, missed);
+    if (missed[0]) {
+      // the client needs to get the full status of its tasks
+      result.m_reset = true;
+    }
+
+    // missed messages are simply lost
+    result.m_messageSequence =
+      m_messageEvents.collect(taskIDs, messagesAfter, result.m_events,
+        new boolean[1]);
+  }
+
+  /**
+   * Get the events after a pair of sequence numbers for a set of tasks. If
+   * there aren't any yet, the listener is registered to be told when there
+   * are.
+   *
+   * @param after the sequence number of the last task event the client has
+   *          seen
+   * @param messagesAfter the sequence number of the last message the client
+   *          has seen
+   * @param listener the listener (also supplies the tasks)
+   * @return the events (the listener has been registered if there are none
+   *         and the client hasn't missed any)
+   */
+  public TaskEvents poll(long after, long messagesAfter, Listener listener) {
+    // register first so that an event published while we look is not missed
+    if (!m_listeners.contains(listener)) {
+      m_listeners.add(listener);
+    }
+    TaskEvents result = new TaskEvents();
+    collect(listener.getTaskIDs(), after, messagesAfter, result);
+    if (result.m_events.size() > 0 || result.m_reset) {
+      m_listeners.remove(listener);
+    }
+    return result;
+  }
+
+  /**
+   * Remove a listener (if it is still registered)
+   *
+   * @param listener the listener to remove
+   */
+  public void removeListener(Listener listener) {
+    m_listeners.remove(listener);
+  }
+
+  /**
+   * Get the number of clients waiting for events (blocked or registered as
+   * listeners)
+   *
+   * @return the number of waiting clients
+   */
+  public int getNumWaiting() {
+    return m_numWaiting.get() + m_listeners.size();
+  }
+
+  /**
+   * Get the events after a pair of sequence numbers for a set of tasks,
+   * waiting for some to arrive if there aren't any yet
+   *
+   * @param taskIDs the name---IDs of the tasks
+   * @param after the sequence number of the last task event the client has
+   *          seen
+   * @param messagesAfter the sequence number of the last message the client
+   *          has seen
+   * @param timeout the longest time to wait (milliseconds)
+   * @return the events
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public TaskEvents await(Collection<String> taskIDs, long after,
+    long messagesAfter, long timeout) throws InterruptedException {
+    TaskEvents result = new TaskEvents();
+    long until = System.currentTimeMillis() + timeout;
+
+    m_numWaiting.incrementAndGet();
+    try {
+      synchronized (m_waitLock) {
+        collect(taskIDs, after, messagesAfter, result);
+        while (result.m_events.size() == 0 && !result.m_reset) {
+          long wait = until - System.currentTimeMillis();
+          if (wait <= 0) {
+            break;
+          }
+          m_waitLock.wait(wait);
+          collect(taskIDs, result.m_sequence, result.m_messageSequence,
+            result);
+        }
+      }
+    } finally {
+      m_numWaiting.decrementAndGet();
+    }
+
+    return result;
+  }
+}
@@ -0,0 +1,459 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    TaskEventsServlet.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.mortbay.jetty.RetryRequest;
+import org.mortbay.util.ajax.Continuation;
+import org.mortbay.util.ajax.ContinuationSupport;
+import org.mortbay.util.ajax.WaitingContinuation;
+
+import weka.core.SerializationHelper;
+
+/**
+ * Pushes status changes, log and status messages and removals for a set of
+ * tasks to a client as they happen. Legacy and JSON clients long-poll: the
+ * request returns as soon as there are events after the supplied sequence
+ * number (or the timeout expires). Other clients (e.g. a browser's
+ * EventSource) get a stream of server-sent events until the timeout expires.
+ * Long-polls are suspended while they wait (see awaitEvents()), so with the
+ * NIO connector a waiting client does not hold on to a thread.
+ * <p>
+ *
+ * Parameters: ids - comma-separated list of task name---IDs; since - sequence
+ * number of the last status change or removal event seen (only new events if
+ * omitted); messagesSince - sequence number of the last log or status message
+ * seen (only new messages if omitted); epoch - the epoch of the server's
+ * event bus that the sequence numbers came from (the client is reset if it
+ * doesn't match); timeout - seconds to wait. Server-sent events carry all
+ * three as their id.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class TaskEventsServlet extends WekaServlet {
+
+  /** The context path for this servlet */
+  public static final String CONTEXT_PATH = "/weka/taskEvents";
+
+  /** Default time to wait for events (seconds) */
+  public static final int DEFAULT_TIMEOUT = 30;
+
+  /** Longest time to wait for events (seconds) */
+  public static final int MAX_TIMEOUT = 120;
+
+  /** Request attribute that holds the listener of a suspended request */
+  protected static final String LISTENER_ATTRIBUTE =
+    TaskEventsServlet.class.getName() + ".listener";
+
+  /**
+   * For serialization
+   */
+  private static final long serialVersionUID = -2286474394633560371L;
+
+  /**
+   * Constructs a new TaskEventsServlet
+   *
+   * @param taskMap the task map maintained by the server
+   * @param server a reference to the server itself
+   */
+  public TaskEventsServlet(WekaTaskMap taskMap, WekaServer server) {
+    super(taskMap, server);
+  }
+
+  /**
+   * Process a HTTP GET
+   *
+   * @param request the request
+   * @param response the response
+   *
+   * @throws ServletException
+   * @throws IOException
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+    throws ServletException, IOException {
+
+    if (!request.getRequestURI().startsWith(CONTEXT_PATH)) {
+      return;
+    }
+
+    String clientParamLegacy = request.getParameter(Legacy.LEGACY_CLIENT_KEY);
+    String clientParamNew = request.getParameter(JSONProtocol.JSON_CLIENT_KEY);
+    boolean clientLegacy =
+      clientParamLegacy != null && clientParamLegacy.equalsIgnoreCase("y");
+    boolean clientNew =
+      clientParamNew != null && clientParamNew.equalsIgnoreCase("y");
+
+    TaskEventBus bus = TaskEventBus.getSingleton();
+    Set<String> taskIDs = new HashSet<String>();
+    String ids = request.getParameter("ids");
+    if (ids != null) {
+      for (String id : ids.split(",")) {
+        if (id.trim().length() > 0) {
+          taskIDs.add(id.trim());
+        }
+      }
+    }
+
+    String since = request.getParameter("since");
+    String messagesSince = request.getParameter("messagesSince");
+    String epoch = request.getParameter("epoch");
+    if (since == null && request.getHeader("Last-Event-ID") != null) {
+      // EventSource sends this when it reconnects
+      String[] parts = request.getHeader("Last-Event-ID").split("/");
+      since = parts[0];
+      messagesSince = parts.length > 1 ? parts[1] : null;
+      epoch = parts.length > 2 ? parts[2] : null;
+    }
+    String timeoutS = request.getParameter("timeout");
+
+    response.setStatus(HttpServletResponse.SC_OK);
+    if (clientLegacy) {
+      response.setContentType("application/octet-stream");
+    } else if (clientNew) {
+      response.setCharacterEncoding("UTF-8");
+      response.setContentType("application/json");
+    } else {
+      response.setCharacterEncoding("UTF-8");
+      response.setContentType("text/event-stream");
+      response.setHeader("Cache-Control", "no-cache");
+    }
+
+    ObjectOutputStream oos = null;
+    PrintWriter out = null;
+    try {
+      long after =
+        since != null && since.length() > 0 ? Long.parseLong(since) : bus
+          .getSequence();
+      long messagesAfter =
+        messagesSince != null && messagesSince.length() > 0 ? Long
+          .parseLong(messagesSince) : bus.getMessageSequence();
+      if (epoch != null && !epoch.equals(bus.getEpoch())) {
+        // sequence numbers from before a restart. -1 is before the first
+        // event, so the client gets reset
+        after = -1;
+        messagesAfter = bus.getMessageSequence();
+      }
+      int timeout = DEFAULT_TIMEOUT;
+      if (timeoutS != null && timeoutS.length() > 0) {
+        timeout =
+          Math.max(0, Math.min(MAX_TIMEOUT, Integer.parseInt(timeoutS)));
+      }
+
+      if (clientLegacy) {
+        TaskEventBus.TaskEvents events =
+          awaitEvents(request, bus, taskIDs, after, messagesAfter,
+            timeout * 1000L);
+        OutputStream outS = response.getOutputStream();
+        oos = new ObjectOutputStream(new BufferedOutputStream(outS));
+        oos.writeObject(events);
+        oos.flush();
+      } else if (clientNew) {
+        TaskEventBus.TaskEvents events =
+          awaitEvents(request, bus, taskIDs, after, messagesAfter,
+            timeout * 1000L);
+        Map<String, Object> jResponse =
+          JSONProtocol.createOKResponseMap("OK. Task events");
+        jResponse.put(JSONProtocol.RESPONSE_PAYLOAD_KEY,
+          JSONProtocol.taskEventsToJsonMap(events));
+        out = response.getWriter();
+        out.println(JSONProtocol.encodeToJSONString(jResponse));
+        out.flush();
+      } else {
+        out = response.getWriter();
+        long until = System.currentTimeMillis() + timeout * 1000L;
+        long wait;
+        while ((wait = until - System.currentTimeMillis()) > 0) {
+          TaskEventBus.TaskEvents events =
+            bus.await(taskIDs, after, messagesAfter, wait);
+          for (TaskEventBus.TaskEvent e : events.getEvents()) {
+            if (e.getType() == TaskEventBus.LOG
+              || e.getType() == TaskEventBus.STATUS_MESSAGE) {
+              messagesAfter = e.getSequence();
+            } else {
+              after = e.getSequence();
+            }
+            writeServerSentEvent(out, e, after + "/" + messagesAfter + "/"
+              + events.getEpoch());
+          }
+          after = events.getSequence();
+          messagesAfter = events.getMessageSequence();
+          if (out.checkError()) {
+            // client has gone away
+            break;
+          }
+        }
+      }
+    } catch (RetryRequest retry) {
+      // suspended - Jetty runs the request again when it is resumed
+      throw retry;
+    } catch (Exception ex) {
+      if (oos != null) {
+        oos.writeObject(WekaServlet.RESPONSE_ERROR + " " + ex.getMessage());
+        oos.flush();
+      } else if (clientLegacy) {
+        oos =
+          new ObjectOutputStream(new BufferedOutputStream(
+            response.getOutputStream()));
+        oos.writeObject(WekaServlet.RESPONSE_ERROR + " " + ex.getMessage());
+        oos.flush();
+      } else {
+        if (out == null) {
+          out = response.getWriter();
+        }
+        if (clientNew) {
+          out.println(JSONProtocol.encodeToJSONString(JSONProtocol
+            .createErrorResponseMap(ex.getMessage())));
+        } else {
+          out.print("event: error\ndata: " + ex.getMessage() + "\n\n");
+        }
+        out.flush();
+      }
+      ex.printStackTrace();
+    } finally {
+      if (oos != null) {
+        oos.close();
+        oos = null;
+      }
+
+      if (out != null) {
+        out.close();
+        out = null;
+      }
+    }
+  }
+
+  /**
+   * Resumes a suspended request when there are events for it
+   */
+  protected static class ContinuationListener implements TaskEventBus.Listener {
+
+    protected Continuation m_continuation;
+    protected Collection<String> m_taskIDs;
+
+    /** True once the request has been suspended */
+    protected boolean m_suspended;
+
+    /** True once the request has been answered */
+    protected boolean m_done;
+
+    public ContinuationListener(Continuation continuation,
+      Collection<String> taskIDs) {
+      m_continuation = continuation;
+      m_taskIDs = taskIDs;
+    }
+
+    @Override
+    public Collection<String> getTaskIDs() {
+      return m_taskIDs;
+    }
+
+    @Override
+    public void eventsAvailable() {
+      // waits until a request that is polling has been suspended (see
+      // awaitEvents())
+      synchronized (this) {
+        if (!m_done) {
+          m_continuation.resume();
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the events after a sequence number for a set of tasks, waiting for
+   * some to arrive if there aren't any yet. The request is suspended while it
+   * waits. With the NIO connector suspending frees the thread: the first
+   * call throws a RetryRequest, and the request is run again (calling this
+   * method again) when events arrive or the timeout expires. With a blocking
+   * connector the thread simply waits.
+   *
+   * @param request the request
+   * @param bus the event bus
+   * @param taskIDs the name---IDs of the tasks
+   * @param after the sequence number of the last task event the client has
+   *          seen
+   * @param messagesAfter the sequence number of the last message the client
+   *          has seen
+   * @param timeout the longest time to wait (milliseconds)
+   * @return the events
+   */
+  protected static TaskEventBus.TaskEvents awaitEvents(
+    HttpServletRequest request, TaskEventBus bus, Collection<String> taskIDs,
+    long after, long messagesAfter, long timeout) {
+    Continuation continuation =
+      ContinuationSupport.getContinuation(request, null);
+    ContinuationListener listener =
+      (ContinuationListener) request.getAttribute(LISTENER_ATTRIBUTE);
+    if (listener == null) {
+      // Jetty keeps a connection's continuation (resumed or not) from one
+      // request to the next
+      continuation.reset();
+      listener = new ContinuationListener(continuation, taskIDs);
+      request.setAttribute(LISTENER_ATTRIBUTE, listener);
+    }
+
+    TaskEventBus.TaskEvents events;
+    if (continuation instanceof WaitingContinuation) {
+      // blocking connector - suspend() waits, and a resume() that comes
+      // before it is remembered
+      events = bus.poll(after, messagesAfter, listener);
+      if (events.getEvents().size() == 0 && !events.isReset() && timeout > 0
+        && !listener.m_suspended) {
+        listener.m_suspended = true;
+        continuation.suspend(timeout);
+        events = bus.poll(after, messagesAfter, listener);
+      }
+    } else {
+      // resume() does nothing unless the request has been suspended, so
+      // listener.eventsAvailable() is held off until suspend() has thrown
+      synchronized (listener) {
+        events = bus.poll(after, messagesAfter, listener);
+        if (events.getEvents().size() == 0 && !events.isReset()
+          && timeout > 0 && !listener.m_suspended) {
+          listener.m_suspended = true;
+          continuation.suspend(timeout);
+          events = bus.poll(after, messagesAfter, listener);
+        }
+      }
+    }
+    bus.removeListener(listener);
+    synchronized (listener) {
+      // the continuation is about to be used for the next request (if any)
+      listener.m_done = true;
+    }
+
+    return events;
+  }
+
+  /**
+   * Write an event in server-sent events format
+   *
+   * @param out the writer to write to
+   * @param e the event
+   * @param id the id of the event (where the client is up to)
+   */
+  protected static void writeServerSentEvent(PrintWriter out,
+    TaskEventBus.TaskEvent e, String id) {
+    String type = "status";
+    String data = "" + e.getStatus();
+    if (e.getType() == TaskEventBus.LOG) {
+      type = "log";
+      data = e.getMessage();
+    } else if (e.getType() == TaskEventBus.STATUS_MESSAGE) {
+      type = "statusMessage";
+      data = e.getMessage();
+    } else if (e.getType() == TaskEventBus.REMOVED) {
+      type = "removed";
+      data = "";
+    }
+
+    out.print("id: " + id + "\n");
+    out.print("event: " + type + "\n");
+    out.print("data: " + e.getTaskID() + "\n");
+    for (String line : (data != null ? data : "").split("\r?\n")) {
+      out.print("data: " + line + "\n");
+    }
+    out.print("\n");
+    out.flush();
+  }
+
+  /**
+   * Wait for events for a set of tasks on a server. Used by clients that
+   * monitor tasks.
+   *
+   * @param client the HTTP client to use
+   * @param url the URL of this servlet on the server (including the client=Y
+   *          parameter)
+   * @param taskIDs the name---IDs of the tasks
+   * @param last the events returned by the previous call (or null for new
+   *          events only)
+   * @param timeout the longest time to wait (seconds)
+   * @return the events, or null if the server doesn't support task events
+   * @throws Exception if a problem occurs
+   */
+  public static TaskEventBus.TaskEvents getEventsRemote(HttpClient client,
+    String url, Collection<String> taskIDs, TaskEventBus.TaskEvents last,
+    int timeout) throws Exception {
+    StringBuilder ids = new StringBuilder();
+    for (String id : taskIDs) {
+      ids.append(ids.length() > 0 ? "," : "").append(id);
+    }
+
+    PostMethod post = new PostMethod(url);
+    InputStream is = null;
+    try {
+      post.setDoAuthentication(true);
+      post.addParameter("ids", ids.toString());
+      if (last != null) {
+        post.addParameter("since", "" + last.getSequence());
+        if (last.getEpoch() != null) {
+          post.addParameter("messagesSince", "" + last.getMessageSequence());
+          post.addParameter("epoch", last.getEpoch());
+        }
+      }
+      post.addParameter("timeout", "" + timeout);
+
+      int result = client.executeMethod(post);
+      if (result != 200) {
+        // older server (or authentication required)
+        return null;
+      }
+
+      is = post.getResponseBodyAsStream();
+      ObjectInputStream ois =
+        SerializationHelper.getObjectInputStream(new BufferedInputStream(is));
+      Object response = ois.readObject();
+      if (!(response instanceof TaskEventBus.TaskEvents)) {
+        return null;
+      }
+      return (TaskEventBus.TaskEvents) response;
+    } finally {
+      if (is != null) {
+        try {
+          is.close();
+        } catch (IOException e) {
+        }
+      }
+      post.releaseConnection();
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    TaskExecutionEngine.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+/**
+ * Interface to something that runs tasks in the server's execution slots.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public interface TaskExecutionEngine {
+
+  /**
+   * Queue a task for execution
+   *
+   * @param toRun the task to run
+   * @param priority the priority class of the task
+   */
+  void execute(Runnable toRun, TaskPriority priority);
+
+  /**
+   * Get the number of tasks that are currently executing
+   *
+   * @return the number of executing tasks
+   */
+  int getActiveCount();
+
+  /**
+   * Get the number of tasks that are waiting for a free slot
+   *
+   * @return the number of queued tasks
+   */
+  int getQueuedCount();
+
+  /**
+   * Get the number of tasks of the supplied priority class that are waiting
+   * for a free slot
+   *
+   * @param priority the priority class
+   * @return the number of queued tasks in the priority class
+   */
+  int getQueuedCount(TaskPriority priority);
+
+  /**
+   * Get the number of execution slots
+   *
+   * @return the number of execution slots
+   */
+  int getNumSlots();
+
+  /**
+   * Stop accepting tasks. Queued tasks will still be executed.
+   */
+  void shutdown();
+
+  /**
+   * Stop accepting tasks, discard any queued tasks and interrupt executing
+   * ones.
+   */
+  void shutdownNow();
+}
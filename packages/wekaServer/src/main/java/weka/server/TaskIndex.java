@@ -0,0 +1,332 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    TaskIndex.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import weka.server.WekaTaskMap.WekaTaskEntry;
+
+/**
+ * A small index of the state of the tasks persisted by a server - their
+ * entries (name, ID, last execution time, remote ID etc.) and execution
+ * status. It can be read at start up without deserializing any tasks. Changes
+ * in state are appended to a journal (see TaskJournal) as they happen; the
+ * journal is compacted into a new snapshot of the index by a background thread
+ * once it grows past a threshold. Persisted task files only hold the task
+ * definitions, so the index is the authority for the state of a task.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class TaskIndex {
+
+  /** Default time between checks for compaction (milliseconds) */
+  public static final long DEFAULT_CHECK_INTERVAL = 5000;
+
+  /** Default journal size (bytes) beyond which the journal is compacted */
+  public static final long DEFAULT_COMPACTION_THRESHOLD = 1024 * 1024;
+
+  /**
+   * The state of a single task
+   */
+  public static class Record implements Serializable {
+
+    /** For serialization */
+    private static final long serialVersionUID = 3618263045916432187L;
+
+    /** Copy of the task's entry */
+    protected WekaTaskEntry m_entry;
+
+    /** The execution status of the task (-1 if not known) */
+    protected int m_status;
+
+    public Record(WekaTaskEntry entry, int status) {
+      m_entry = entry;
+      m_status = status;
+    }
+
+    public WekaTaskEntry getEntry() {
+      return m_entry;
+    }
+
+    public int getStatus() {
+      return m_status;
+    }
+  }
+
+  /** The file that holds the snapshot */
+  protected File m_indexFile;
+
+  /** The journal of changes since the snapshot */
+  protected TaskJournal m_journal;
+
+  /** Current state of the persisted tasks, keyed by name---ID */
+  protected ConcurrentHashMap<String, Record> m_records =
+    new ConcurrentHashMap<String, Record>();
+
+  /** Time between checks for compaction (milliseconds) */
+  protected long m_checkInterval = DEFAULT_CHECK_INTERVAL;
+
+  /** Journal size (bytes) beyond which the journal is compacted */
+  protected long m_compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+  /** Number of compactions performed */
+  protected int m_numCompactions;
+
+  /** The thread that compacts the journal */
+  protected Thread m_compactThread;
+
+  /**
+   * Constructor
+   *
+   * @param indexFile the file to hold the snapshot of the index. The journal
+   *          is kept alongside it.
+   */
+  public TaskIndex(File indexFile) {
+    m_indexFile = indexFile;
+    m_journal = new TaskJournal(new File(indexFile.getPath() + ".journal"));
+  }
+
+  /**
+   * Set the journal size beyond which the journal is compacted
+   *
+   * @param threshold the threshold (bytes)
+   */
+  public void setCompactionThreshold(long threshold) {
+    m_compactionThreshold = threshold;
+  }
+
+  /**
+   * Get the journal size beyond which the journal is compacted
+   *
+   * @return the threshold (bytes)
+   */
+  public long getCompactionThreshold() {
+    return m_compactionThreshold;
+  }
+
+  /**
+   * Read the snapshot and replay the journal on top of it
+   *
+   * @return the state of the persisted tasks (empty if there is no index or
+   *         it can't be read)
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized List<Record> load() {
+    m_records.clear();
+    if (m_indexFile.exists()) {
+      ObjectInputStream ois = null;
+      try {
+        ois =
+          new ObjectInputStream(new BufferedInputStream(new FileInputStream(
+            m_indexFile), 65536));
+        List<Record> snapshot = (List<Record>) ois.readObject();
+        for (Record r : snapshot) {
+          m_records.put(r.getEntry().toString(), r);
+        }
+      } catch (Exception ex) {
+        System.err.println("[WekaServer] Unable to read the task index ("
+          + ex.getMessage() + ") - persisted tasks will be identified from "
+          + "their file names");
+        m_records.clear();
+      } finally {
+        if (ois != null) {
+          try {
+            ois.close();
+          } catch (IOException e) {
+          }
+        }
+      }
+    }
+
+    try {
+      int replayed = m_journal.replay(m_records);
+      if (replayed > 0) {
+        System.out.println("[WekaServer] Replayed " + replayed
+          + " task journal record(s).");
+      }
+    } catch (IOException ex) {
+      System.err.println("[WekaServer] Unable to read the task journal ("
+        + ex.getMessage() + ")");
+    }
+
+    List<Record> result = new ArrayList<Record>();
+    for (Record r : m_records.values()) {
+      // hand out copies - the index keeps its own
+      result.add(new Record(r.getEntry().copy(), r.getStatus()));
+    }
+    return result;
+  }
+
+  /**
+   * Record the current state of a persisted task
+   *
+   * @param entry the entry for the task
+   * @param status the execution status of the task
+   */
+  public synchronized void update(WekaTaskEntry entry, int status) {
+    Record r = new Record(entry.copy(), status);
+    m_records.put(entry.toString(), r);
+    try {
+      m_journal.append(r);
+    } catch (IOException ex) {
+      System.err.println("[WekaServer] Problem writing to the task journal ("
+        + ex.getMessage() + ")");
+    }
+  }
+
+  /**
+   * Remove a task from the index
+   *
+   * @param entry the entry for the task
+   */
+  public synchronized void remove(WekaTaskEntry entry) {
+    if (m_records.remove(entry.toString()) != null) {
+      try {
+        m_journal.appendRemove(entry.toString());
+      } catch (IOException ex) {
+        System.err.println("[WekaServer] Problem writing to the task "
+          + "journal (" + ex.getMessage() + ")");
+      }
+    }
+  }
+
+  /**
+   * Get the number of tasks in the index
+   *
+   * @return the number of tasks
+   */
+  public int size() {
+    return m_records.size();
+  }
+
+  /**
+   * Get the journal of changes since the last snapshot
+   *
+   * @return the journal
+   */
+  public TaskJournal getJournal() {
+    return m_journal;
+  }
+
+  /**
+   * Get the number of times the journal has been compacted
+   *
+   * @return the number of compactions
+   */
+  public synchronized int getNumCompactions() {
+    return m_numCompactions;
+  }
+
+  /**
+   * Write a new snapshot of the index and empty the journal. The snapshot is
+   * written to a temporary file first so that a crash can't leave a partial
+   * snapshot behind; the journal is only emptied once the snapshot is in
+   * place.
+   */
+  public synchronized void compact() {
+    List<Record> records = new ArrayList<Record>(m_records.values());
+    File tmp = new File(m_indexFile.getPath() + ".tmp");
+    ObjectOutputStream oos = null;
+    try {
+      oos =
+        new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(
+          tmp), 65536));
+      oos.writeObject(records);
+      oos.flush();
+      oos.close();
+      oos = null;
+
+      if (!tmp.renameTo(m_indexFile)) {
+        // some platforms won't rename over an existing file
+        m_indexFile.delete();
+        if (!tmp.renameTo(m_indexFile)) {
+          throw new IOException("can't rename " + tmp + " to " + m_indexFile);
+        }
+      }
+
+      m_journal.truncate();
+      m_numCompactions++;
+    } catch (IOException ex) {
+      System.err.println("[WekaServer] Problem writing the task index ("
+        + ex.getMessage() + ")");
+    } finally {
+      if (oos != null) {
+        try {
+          oos.close();
+        } catch (IOException e) {
+        }
+      }
+    }
+  }
+
+  /**
+   * Start the thread that compacts the journal
+   */
+  public synchronized void start() {
+    if (m_compactThread != null) {
+      return;
+    }
+
+    m_compactThread = new Thread("WekaServer task journal compactor") {
+      @Override
+      public void run() {
+        while (!isInterrupted()) {
+          try {
+            Thread.sleep(m_checkInterval);
+          } catch (InterruptedException ie) {
+            break;
+          }
+          if (m_journal.size() > m_compactionThreshold) {
+            compact();
+          }
+        }
+      }
+    };
+    m_compactThread.setPriority(Thread.MIN_PRIORITY);
+    m_compactThread.setDaemon(true);
+    m_compactThread.start();
+  }
+
+  /**
+   * Stop the compaction thread, compact the journal and close it
+   */
+  public synchronized void stop() {
+    if (m_compactThread != null) {
+      m_compactThread.interrupt();
+      m_compactThread = null;
+    }
+    compact();
+    m_journal.close();
+  }
+}
@@ -0,0 +1,296 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    TaskJournal.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Date;
+import java.util.Map;
+
+import weka.server.WekaTaskMap.WekaTaskEntry;
+
+/**
+ * Append-only journal of task state changes (last execution time, execution
+ * status, remote ID and server). Each change costs a small record rather than
+ * a rewrite of the whole task. The journal is replayed on top of the last
+ * snapshot of the task index at start up, and is emptied whenever a new
+ * snapshot is written (see TaskIndex).
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class TaskJournal {
+
+  /** Record type for a change in the state of a task */
+  protected static final byte UPDATE = 1;
+
+  /** Record type for the removal of a task */
+  protected static final byte REMOVE = 2;
+
+  /** The journal file */
+  protected File m_file;
+
+  /** Stream to append records to */
+  protected DataOutputStream m_out;
+
+  /** Current size of the journal (bytes) */
+  protected long m_size;
+
+  /** Number of records in the journal */
+  protected int m_numRecords;
+
+  /**
+   * Constructor
+   *
+   * @param file the journal file
+   */
+  public TaskJournal(File file) {
+    m_file = file;
+  }
+
+  /**
+   * Write a string that might be null
+   *
+   * @param out the stream to write to
+   * @param s the string
+   * @throws IOException if a problem occurs
+   */
+  protected static void writeString(DataOutputStream out, String s)
+    throws IOException {
+    out.writeBoolean(s != null);
+    if (s != null) {
+      out.writeUTF(s);
+    }
+  }
+
+  /**
+   * Read a string written by writeString()
+   *
+   * @param in the stream to read from
+   * @return the string (may be null)
+   * @throws IOException if a problem occurs
+   */
+  protected static String readString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  /**
+   * Open the journal for appending
+   *
+   * @param append false if the journal should be emptied
+   * @throws IOException if a problem occurs
+   */
+  protected void open(boolean append) throws IOException {
+    m_out =
+      new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+        m_file, append)));
+    m_size = append ? m_file.length() : 0;
+    if (!append) {
+      m_numRecords = 0;
+    }
+  }
+
+  /**
+   * Append a record for a change in the state of a task
+   *
+   * @param record the current state of the task
+   * @throws IOException if a problem occurs
+   */
+  public synchronized void append(TaskIndex.Record record) throws IOException {
+    if (m_out == null) {
+      open(true);
+    }
+
+    WekaTaskEntry entry = record.getEntry();
+    int start = m_out.size();
+    m_out.writeByte(UPDATE);
+    m_out.writeUTF(entry.getName());
+    m_out.writeUTF(entry.getID());
+    writeString(m_out, entry.getServer());
+    writeString(m_out, entry.getOriginatingServer());
+    writeString(m_out, entry.getRemoteID());
+    m_out.writeBoolean(entry.getCameFromMaster());
+    Date lastExecution = entry.getLastExecution();
+    m_out.writeLong(lastExecution != null ? lastExecution.getTime() : -1L);
+    m_out.writeInt(record.getStatus());
+    m_out.flush();
+
+    m_size += m_out.size() - start;
+    m_numRecords++;
+  }
+
+  /**
+   * Append a record for the removal of a task
+   *
+   * @param taskID the name---ID of the task
+   * @throws IOException if a problem occurs
+   */
+  public synchronized void appendRemove(String taskID) throws IOException {
+    if (m_out == null) {
+      open(true);
+    }
+
+    int start = m_out.size();
+    m_out.writeByte(REMOVE);
+    m_out.writeUTF(taskID);
+    m_out.flush();
+
+    m_size += m_out.size() - start;
+    m_numRecords++;
+  }
+
+  /**
+   * Apply the records in the journal to the supplied task state. A partial
+   * record at the end of the journal (e.g. from a crash) is discarded.
+   *
+   * @param records the task state to update, keyed by name---ID
+   * @return the number of records applied
+   * @throws IOException if a problem occurs
+   */
+  public synchronized int replay(Map<String, TaskIndex.Record> records)
+    throws IOException {
+    close();
+    if (!m_file.exists()) {
+      return 0;
+    }
+
+    int count = 0;
+    long good = 0;
+    final long[] position = new long[1];
+    DataInputStream in =
+      new DataInputStream(new FilterInputStream(new BufferedInputStream(
+        new FileInputStream(m_file), 65536)) {
+        @Override
+        public int read() throws IOException {
+          int b = in.read();
+          if (b >= 0) {
+            position[0]++;
+          }
+          return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          int n = in.read(b, off, len);
+          if (n > 0) {
+            position[0] += n;
+          }
+          return n;
+        }
+      });
+    try {
+      while (true) {
+        byte type = in.readByte();
+        if (type == UPDATE) {
+          String name = in.readUTF();
+          String id = in.readUTF();
+          WekaTaskEntry entry = new WekaTaskEntry(name, id);
+          entry.setServer(readString(in));
+          entry.setOriginatingServer(readString(in));
+          entry.setRemoteID(readString(in));
+          entry.setCameFromMaster(in.readBoolean());
+          long lastExecution = in.readLong();
+          entry.setLastExecution(lastExecution >= 0 ? new Date(lastExecution)
+            : null);
+          int status = in.readInt();
+          records.put(entry.toString(), new TaskIndex.Record(entry, status));
+        } else if (type == REMOVE) {
+          records.remove(in.readUTF());
+        } else {
+          throw new IOException("unknown record type " + type);
+        }
+        good = position[0];
+        count++;
+      }
+    } catch (EOFException ex) {
+      // end of the journal (or a partial record)
+    } catch (IOException ex) {
+      System.err.println("[WekaServer] Discarding the end of the task "
+        + "journal (" + ex.getMessage() + ")");
+    } finally {
+      in.close();
+    }
+
+    if (good < m_file.length()) {
+      // don't leave junk between the old records and new ones
+      RandomAccessFile raf = new RandomAccessFile(m_file, "rw");
+      try {
+        raf.setLength(good);
+      } finally {
+        raf.close();
+      }
+    }
+    m_numRecords = count;
+
+    return count;
+  }
+
+  /**
+   * Empty the journal (once its contents are safely in a snapshot)
+   *
+   * @throws IOException if a problem occurs
+   */
+  public synchronized void truncate() throws IOException {
+    close();
+    open(false);
+  }
+
+  /**
+   * Get the size of the journal
+   *
+   * @return the size in bytes
+   */
+  public synchronized long size() {
+    return m_out != null ? m_size : m_file.length();
+  }
+
+  /**
+   * Get the number of records in the journal
+   *
+   * @return the number of records
+   */
+  public synchronized int getNumRecords() {
+    return m_numRecords;
+  }
+
+  /**
+   * Close the journal
+   */
+  public synchronized void close() {
+    if (m_out != null) {
+      try {
+        m_out.close();
+      } catch (IOException e) {
+      }
+      m_out = null;
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    TaskPriority.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+/**
+ * Priority classes for tasks executing on the server. Classes are ordered from
+ * highest to lowest priority.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public enum TaskPriority {
+
+  /** Short, interactive tasks (e.g. Explorer folds) that a user is waiting on */
+  INTERACTIVE("interactive"),
+
+  /** Tasks fired by the schedule checker */
+  SCHEDULED("scheduled"),
+
+  /** Everything else */
+  BATCH("batch");
+
+  private final String m_stringVal;
+
+  TaskPriority(String name) {
+    m_stringVal = name;
+  }
+
+  @Override
+  public String toString() {
+    return m_stringVal;
+  }
+
+  /**
+   * Get the priority class for the supplied task. Tasks that implement
+   * {@code Prioritized} decide for themselves; otherwise scheduled tasks get
+   * SCHEDULED and anything else BATCH.
+   *
+   * @param task the task to get the priority for
+   * @return the priority class of the task
+   */
+  public static TaskPriority priorityOf(Object task) {
+    if (task instanceof Prioritized) {
+      TaskPriority p = ((Prioritized) task).getTaskPriority();
+      if (p != null) {
+        return p;
+      }
+    }
+
+    if (task instanceof Scheduled) {
+      return SCHEDULED;
+    }
+
+    return BATCH;
+  }
+
+  /**
+   * Parse a priority from a string
+   *
+   * @param p the string to parse
+   * @return the priority or null if the string is not recognized
+   */
+  public static TaskPriority stringToValue(String p) {
+    for (TaskPriority t : TaskPriority.values()) {
+      if (t.toString().equalsIgnoreCase(p)) {
+        return t;
+      }
+    }
+
+    return null;
+  }
+}
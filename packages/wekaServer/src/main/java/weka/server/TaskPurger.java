@@ -0,0 +1,486 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    TaskPurger.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.methods.PostMethod;
+
+import weka.core.LogHandler;
+import weka.experiment.TaskStatusInfo;
+import weka.gui.Logger;
+import weka.server.WekaTaskMap.WekaTaskEntry;
+import weka.server.logging.ServerLogger;
+
+/**
+ * Purges tasks from the server in-process. For each task the persisted copy of
+ * the task, its log and any files that the task has on disk (see
+ * PersistedFiles) are deleted together. Tasks that were executed on slaves are
+ * purged from the slaves with one request per slave (per batch of task IDs)
+ * rather than one per task. Keeps track of the number of tasks purged and the
+ * number of bytes of disk space reclaimed.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class TaskPurger {
+
+  /** Default number of stale tasks to purge in one batch */
+  public static final int DEFAULT_BATCH_SIZE = 100;
+
+  /** Maximum number of task IDs to send to a slave in one purge request */
+  public static final int MAX_REMOTE_BATCH_SIZE = 200;
+
+  /**
+   * The outcome of a purge
+   */
+  public static class PurgeResult {
+
+    /** Number of tasks purged */
+    protected int m_numPurged;
+
+    /** Number of bytes reclaimed on this server */
+    protected long m_bytesReclaimed;
+
+    /** Problems encountered (e.g. while purging from slaves) */
+    protected List<String> m_problems = new ArrayList<String>();
+
+    /**
+     * Get the number of tasks purged
+     *
+     * @return the number of tasks purged
+     */
+    public int getNumPurged() {
+      return m_numPurged;
+    }
+
+    /**
+     * Get the number of bytes of disk space reclaimed on this server
+     *
+     * @return the number of bytes reclaimed
+     */
+    public long getBytesReclaimed() {
+      return m_bytesReclaimed;
+    }
+
+    /**
+     * Get any problems that were encountered
+     *
+     * @return a list of problems (empty if everything went OK)
+     */
+    public List<String> getProblems() {
+      return m_problems;
+    }
+
+    /**
+     * Add the totals from another result to this one
+     *
+     * @param other the result to add
+     */
+    public void add(PurgeResult other) {
+      m_numPurged += other.m_numPurged;
+      m_bytesReclaimed += other.m_bytesReclaimed;
+      m_problems.addAll(other.m_problems);
+    }
+
+    @Override
+    public String toString() {
+      return m_numPurged + " task(s) purged, " + m_bytesReclaimed
+        + " bytes reclaimed"
+        + (m_problems.size() > 0 ? ", " + m_problems.size() + " problem(s)"
+          : "");
+    }
+  }
+
+  /** The server we are purging for */
+  protected WekaServer m_server;
+
+  /** The server's tasks */
+  protected WekaTaskMap m_taskMap;
+
+  /** Number of stale tasks to purge in one batch */
+  protected int m_batchSize = DEFAULT_BATCH_SIZE;
+
+  /** Total number of tasks purged */
+  protected long m_totalPurged;
+
+  /** Total number of bytes reclaimed */
+  protected long m_totalBytesReclaimed;
+
+  /**
+   * Constructor
+   *
+   * @param server the server to purge tasks from
+   * @param taskMap the server's tasks
+   */
+  public TaskPurger(WekaServer server, WekaTaskMap taskMap) {
+    m_server = server;
+    m_taskMap = taskMap;
+  }
+
+  /**
+   * Set the number of stale tasks to purge in one batch
+   *
+   * @param batchSize the batch size
+   */
+  public void setBatchSize(int batchSize) {
+    m_batchSize = Math.max(1, batchSize);
+  }
+
+  /**
+   * Get the number of stale tasks to purge in one batch
+   *
+   * @return the batch size
+   */
+  public int getBatchSize() {
+    return m_batchSize;
+  }
+
+  /**
+   * Get the total number of tasks purged since the server started
+   *
+   * @return the total number of tasks purged
+   */
+  public synchronized long getTotalPurged() {
+    return m_totalPurged;
+  }
+
+  /**
+   * Get the total number of bytes reclaimed since the server started
+   *
+   * @return the total number of bytes reclaimed
+   */
+  public synchronized long getTotalBytesReclaimed() {
+    return m_totalBytesReclaimed;
+  }
+
+  /**
+   * Returns true if a task is finished and has been around for longer than the
+   * purge interval. Tasks that were sent to us from another server are left
+   * for twice as long in order to give the master a chance to tell us to purge
+   * them.
+   *
+   * @param entry the entry of the task
+   * @param task the task
+   * @param now the current time
+   * @param purgeInterval the interval in milliseconds beyond which a finished
+   *          task should be purged
+   * @return true if the task should be purged
+   */
+  protected boolean isStale(WekaTaskEntry entry, NamedTask task, long now,
+    long purgeInterval) {
+    Date lastExecuted = entry.getLastExecution();
+    if (lastExecuted == null) {
+      return false;
+    }
+
+    if (!(task instanceof Scheduled)) {
+      if (WekaServer.getExecutionStatus(task) == TaskStatusInfo.PROCESSING) {
+        // don't purge executing tasks!!
+        return false;
+      }
+    } else {
+      Date nextExecution =
+        ((Scheduled) task).getSchedule().nextExecution(lastExecuted);
+      if (nextExecution != null) {
+        return false;
+      }
+    }
+
+    long pI =
+      (entry.getCameFromMaster() ? (purgeInterval * 2) : purgeInterval);
+
+    return now - lastExecuted.getTime() > pI;
+  }
+
+  /**
+   * Returns true if a task that has not been loaded yet might be stale, going
+   * by its indexed status and last execution time. Only these tasks are
+   * loaded to check whether they are scheduled to run again.
+   *
+   * @param entry the entry of the task
+   * @param now the current time
+   * @param purgeInterval the interval in milliseconds beyond which a finished
+   *          task should be purged
+   * @return false if the task is certainly not stale
+   */
+  protected boolean mayBeStale(WekaTaskEntry entry, long now,
+    long purgeInterval) {
+    Date lastExecuted = entry.getLastExecution();
+    if (lastExecuted == null
+      || m_taskMap.getIndexedStatus(entry) == TaskStatusInfo.PROCESSING) {
+      return false;
+    }
+
+    long pI =
+      (entry.getCameFromMaster() ? (purgeInterval * 2) : purgeInterval);
+
+    return now - lastExecuted.getTime() > pI;
+  }
+
+  /**
+   * Purge all tasks that have been finished for longer than the purge
+   * interval. Tasks are purged in batches.
+   *
+   * @param purgeInterval the interval in milliseconds beyond which a finished
+   *          task should be purged
+   * @return the outcome of the purge
+   */
+  public PurgeResult purgeStale(long purgeInterval) {
+    long now = System.currentTimeMillis();
+    List<WekaTaskEntry> stale = new ArrayList<WekaTaskEntry>();
+    for (WekaTaskEntry t : m_taskMap.getTaskList()) {
+      try {
+        NamedTask task = m_taskMap.getLoadedTask(t);
+        if (task == null) {
+          // not recovered yet - only loaded if what was indexed says that
+          // it is due to be purged
+          if (!mayBeStale(t, now, purgeInterval)) {
+            continue;
+          }
+          task = m_taskMap.getTask(t);
+          if (task == null) {
+            continue;
+          }
+        }
+
+        if (isStale(t, task, now, purgeInterval)) {
+          stale.add(t);
+        }
+      } catch (Exception ex) {
+        System.err.println("[WekaServer] A problem occurred while "
+          + "checking task (" + t.toString() + ") for purging: "
+          + ex.getMessage());
+      }
+    }
+
+    PurgeResult result = new PurgeResult();
+    for (int i = 0; i < stale.size(); i += m_batchSize) {
+      result.add(purge(stale.subList(i,
+        Math.min(i + m_batchSize, stale.size()))));
+    }
+
+    return result;
+  }
+
+  /**
+   * Purge a list of tasks. Tasks that are no longer in the task map are
+   * ignored.
+   *
+   * @param entries the entries of the tasks to purge
+   * @return the outcome of the purge
+   */
+  public PurgeResult purge(List<WekaTaskEntry> entries) {
+    PurgeResult result = new PurgeResult();
+    String local = m_server.getHostname() + ":" + m_server.getPort();
+
+    // remote IDs of tasks to purge from each slave
+    Map<String, List<String>> remote = new LinkedHashMap<String, List<String>>();
+
+    for (WekaTaskEntry entry : entries) {
+      NamedTask task = m_taskMap.getTask(entry);
+      if (task == null) {
+        continue;
+      }
+
+      result.m_bytesReclaimed += purgeLocal(entry, task);
+      result.m_numPurged++;
+
+      String slave = entry.getServer();
+      if (slave != null && !slave.equals(local)
+        && entry.getRemoteID() != null) {
+        // This task was executed remotely on a slave - purge it from
+        // the slave too
+        List<String> ids = remote.get(slave);
+        if (ids == null) {
+          ids = new ArrayList<String>();
+          remote.put(slave, ids);
+        }
+        ids.add(entry.getRemoteID());
+      }
+    }
+
+    for (Map.Entry<String, List<String>> e : remote.entrySet()) {
+      List<String> ids = e.getValue();
+      for (int i = 0; i < ids.size(); i += MAX_REMOTE_BATCH_SIZE) {
+        String problem =
+          purgeRemote(e.getKey(),
+            ids.subList(i, Math.min(i + MAX_REMOTE_BATCH_SIZE, ids.size())));
+        if (problem.length() > 0) {
+          result.m_problems.add(problem);
+        }
+      }
+    }
+
+    synchronized (this) {
+      m_totalPurged += result.m_numPurged;
+      m_totalBytesReclaimed += result.m_bytesReclaimed;
+    }
+
+    return result;
+  }
+
+  /**
+   * Get the size of a file
+   *
+   * @param f the file (may be null)
+   * @return the size of the file or 0 if it does not exist
+   */
+  protected static long sizeOf(File f) {
+    return f != null && f.exists() ? f.length() : 0;
+  }
+
+  /**
+   * Remove a task from this server and delete everything that it has on disk
+   *
+   * @param entry the entry of the task
+   * @param task the task
+   * @return the number of bytes reclaimed
+   */
+  protected long purgeLocal(WekaTaskEntry entry, NamedTask task) {
+    long bytes = 0;
+    task.freeMemory();
+
+    // measure before deleting anything
+    bytes += sizeOf(m_server.getPersistedTaskFile(entry));
+    ServerLogger sl = null;
+    if (task instanceof LogHandler) {
+      Logger log = ((LogHandler) task).getLog();
+      if (log instanceof ServerLogger) {
+        sl = (ServerLogger) log;
+        bytes += sizeOf(sl.getLogFile());
+      }
+    }
+    if (task instanceof PersistedFiles) {
+      for (File f : ((PersistedFiles) task).getPersistedFiles()) {
+        bytes += sizeOf(f);
+      }
+    }
+
+    task.purge();
+    m_taskMap.removeTask(entry);
+
+    // remove serialized task and log
+    if (sl != null) {
+      sl.deleteLog();
+    }
+    m_server.cleanupTask(entry);
+
+    return bytes;
+  }
+
+  /**
+   * Purge a batch of tasks from a slave in one request
+   *
+   * @param slave the slave (host:port)
+   * @param remoteIDs the IDs of the tasks on the slave
+   * @return a description of the problem, or an empty string if the tasks were
+   *         purged OK
+   */
+  protected String purgeRemote(String slave, List<String> remoteIDs) {
+    StringBuffer names = new StringBuffer();
+    for (String id : remoteIDs) {
+      if (names.length() > 0) {
+        names.append(",");
+      }
+      names.append(id);
+    }
+
+    String ok = "";
+    InputStream is = null;
+    PostMethod post = null;
+
+    try {
+      String url = "http://" + slave;
+      url = url.replace(" ", "%20");
+      url += PurgeTaskServlet.CONTEXT_PATH;
+
+      // task IDs go in the body - a big batch won't fit in the URL
+      post = new PostMethod(url);
+      post.setDoAuthentication(true);
+      post.addParameter("name", names.toString());
+      post.addParameter(Legacy.LEGACY_CLIENT_KEY, "Y");
+
+      // Get HTTP client
+      HttpClient client =
+        WekaServer.ConnectionManager.getSingleton().createHttpClient();
+      WekaServer.ConnectionManager.addCredentials(client,
+        m_server.getUsername(), m_server.getPassword());
+
+      // Execute request
+      int result = client.executeMethod(post);
+      if (result == 401) {
+        System.err.println("[WekaServer] Unable to purge " + remoteIDs.size()
+          + " remote task(s) - authentication required.\n");
+        ok =
+          "Unable to purge " + remoteIDs.size() + " remote task(s) "
+            + "- authentication required for slave (" + slave + ")";
+      } else {
+
+        // the response
+        is = post.getResponseBodyAsStream();
+        ObjectInputStream ois = new ObjectInputStream(is);
+        Object response = ois.readObject();
+        if (response.toString().startsWith(WekaServlet.RESPONSE_ERROR)) {
+          System.err.println("[WekaServer] A problem occurred while "
+            + "trying to purge task(s) from remote server (" + slave + "): "
+            + response.toString());
+          ok =
+            "A problem occurred while trying to purge task(s) from remote "
+              + "server (" + slave + "): " + response.toString();
+        }
+      }
+    } catch (Exception ex) {
+      System.err.println("[WekaServer] A problem occurred while "
+        + "trying to purge task(s) from remote server: " + slave + " ("
+        + ex.getMessage() + ")");
+      ok =
+        "A problem occurred while trying to purge task(s) from remote "
+          + "server: " + slave + " (" + ex.getMessage() + ")";
+    } finally {
+      if (is != null) {
+        try {
+          is.close();
+          is = null;
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+
+      if (post != null) {
+        post.releaseConnection();
+        post = null;
+      }
+    }
+
+    return ok;
+  }
+}
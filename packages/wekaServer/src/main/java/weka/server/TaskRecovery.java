@@ -0,0 +1,343 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    TaskRecovery.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import weka.core.LogHandler;
+import weka.core.SerializationHelper;
+import weka.server.WekaTaskMap.WekaTaskEntry;
+import weka.server.logging.ServerLogger;
+
+/**
+ * Recovers persisted tasks when the server starts. The task index (and the
+ * names of the persisted task files) is read first, and every task is
+ * registered with the task map as pending. This is quick, so the server can
+ * start answering requests straight away. The tasks themselves are then
+ * deserialized in parallel in the background; a request for a task that has
+ * not been loaded yet loads it immediately. Historical log entries are only
+ * read when a task's log is first used.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class TaskRecovery {
+
+  /** The server we are recovering tasks for */
+  protected WekaServer m_server;
+
+  /** The server's tasks */
+  protected WekaTaskMap m_taskMap;
+
+  /** Loaders for the tasks found */
+  protected List<FutureTask<NamedTask>> m_loaders =
+    new ArrayList<FutureTask<NamedTask>>();
+
+  /** Number of tasks still to load */
+  protected AtomicInteger m_remaining = new AtomicInteger();
+
+  /** Number of tasks loaded */
+  protected AtomicInteger m_numLoaded = new AtomicInteger();
+
+  /** Number of tasks that could not be loaded */
+  protected AtomicInteger m_numFailed = new AtomicInteger();
+
+  /** Time taken to read the index (milliseconds) */
+  protected long m_indexTime;
+
+  /** Time that background loading started */
+  protected long m_loadStart;
+
+  /** Time taken to load all the tasks (milliseconds) */
+  protected volatile long m_loadTime = -1;
+
+  /**
+   * Constructor
+   *
+   * @param server the server to recover tasks for
+   * @param taskMap the server's tasks
+   */
+  public TaskRecovery(WekaServer server, WekaTaskMap taskMap) {
+    m_server = server;
+    m_taskMap = taskMap;
+  }
+
+  /**
+   * Find the persisted tasks and register them with the task map. Does not
+   * deserialize any tasks.
+   *
+   * @param persistDir the directory that holds the persisted tasks
+   * @param index the index of persisted tasks
+   */
+  public void findTasks(File persistDir, TaskIndex index) {
+    long start = System.currentTimeMillis();
+
+    Map<String, TaskIndex.Record> indexed =
+      new HashMap<String, TaskIndex.Record>();
+    for (TaskIndex.Record r : index.load()) {
+      indexed.put(r.getEntry().toString(), r);
+    }
+
+    File[] contents = persistDir.listFiles();
+    if (contents == null) {
+      contents = new File[0];
+    }
+
+    int notIndexed = 0;
+    for (File f : contents) {
+      TaskIndex.Record record = indexed.get(f.getName());
+      WekaTaskEntry entry = record != null ? record.getEntry() : null;
+      if (entry == null) {
+        // not in the index (yet) - the name of the file tells us who it is
+        // until the task is loaded
+        try {
+          entry = new WekaTaskEntry(f.getName());
+        } catch (Exception ex) {
+          System.err.println("[WekaServer] Skipping unrecognized file in "
+            + "the task persistence directory: " + f.toString());
+          continue;
+        }
+        notIndexed++;
+      }
+      entry.setOriginatingServer(m_server.getHostname() + ":"
+        + m_server.getPort());
+
+      FutureTask<NamedTask> loader =
+        new FutureTask<NamedTask>(createLoader(entry, record, f));
+      m_loaders.add(loader);
+      m_taskMap.addPendingTask(entry, loader, record != null ? record
+        .getStatus() : -1);
+    }
+    m_remaining.set(m_loaders.size());
+
+    m_indexTime = System.currentTimeMillis() - start;
+    m_loadStart = System.currentTimeMillis();
+    System.out.println("[WekaServer] Found " + m_loaders.size()
+      + " persisted task(s) in " + m_indexTime + " ms (" + notIndexed
+      + " not in the task index).");
+  }
+
+  /**
+   * Create the loader for a persisted task
+   *
+   * @param entry the entry for the task
+   * @param record the state of the task from the task index (null if the
+   *          task is not in the index)
+   * @param f the file that the task is persisted in
+   * @return the loader
+   */
+  protected Callable<NamedTask> createLoader(final WekaTaskEntry entry,
+    final TaskIndex.Record record, final File f) {
+    return new Callable<NamedTask>() {
+      @Override
+      public NamedTask call() throws Exception {
+        try {
+          return load(entry, record, f);
+        } catch (Exception ex) {
+          m_numFailed.incrementAndGet();
+          m_taskMap.abandonPending(entry);
+          System.err.println("[WekaServer] Unable to load persisted task "
+            + f.toString() + " (" + ex.getMessage() + ")");
+          throw ex;
+        } finally {
+          if (m_remaining.decrementAndGet() == 0) {
+            finished();
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Load a persisted task and get it going again
+   *
+   * @param entry the entry for the task
+   * @param record the state of the task from the task index (null if the
+   *          task is not in the index)
+   * @param f the file that the task is persisted in
+   * @return the task or null if it was removed before it could be loaded
+   * @throws Exception if the task can't be loaded
+   */
+  protected NamedTask load(WekaTaskEntry entry, TaskIndex.Record record,
+    File f) throws Exception {
+    ObjectInputStream ois =
+      SerializationHelper.getObjectInputStream(new BufferedInputStream(
+        new FileInputStream(f), 65536));
+    Object holder;
+    try {
+      holder = ois.readObject();
+    } finally {
+      ois.close();
+    }
+
+    if (!(holder instanceof WekaServer.TaskHolder)) {
+      throw new Exception("not a persisted task");
+    }
+    WekaTaskEntry persisted = ((WekaServer.TaskHolder) holder).getTaskEntry();
+    NamedTask task = ((WekaServer.TaskHolder) holder).getTask();
+
+    if (record == null) {
+      // not in the index, so the state persisted with the task is all we have
+      entry.copyDetails(persisted);
+    }
+
+    // set the originating server to this WekaServer instance so that the
+    // logging object can create the appropriate logging subdirectory (if
+    // necessary)
+    entry.setOriginatingServer(m_server.getHostname() + ":"
+      + m_server.getPort());
+
+    // set a log (since logs are transient). Tasks build their status message
+    // from the log, so this has to happen before the status is touched
+    ServerLogger sl = null;
+    if (task instanceof LogHandler) {
+      sl = new ServerLogger(entry);
+      ((LogHandler) task).setLog(sl);
+    }
+
+    if (record != null && record.getStatus() >= 0
+      && task.getTaskStatus() != null) {
+      // the index is more up to date than the persisted task
+      task.getTaskStatus().setExecutionStatus(record.getStatus());
+    }
+
+    if (sl != null) {
+      // historical log entries are loaded when the log is first used (not
+      // above, where the status message is built from the empty log)
+      sl.loadLogOnDemand();
+    }
+
+    // ask the task to persist any resources
+    task.persistResources();
+
+    if (!m_taskMap.completePending(entry, task)) {
+      // purged while we were loading it
+      return null;
+    }
+    m_numLoaded.incrementAndGet();
+    m_server.taskRecovered(entry, task);
+
+    return task;
+  }
+
+  /**
+   * Start loading the tasks in the background
+   *
+   * @param numThreads the number of threads to load with
+   */
+  public void start(int numThreads) {
+    m_loadStart = System.currentTimeMillis();
+    if (m_loaders.size() == 0) {
+      m_loadTime = 0;
+      return;
+    }
+
+    final AtomicInteger threadNum = new AtomicInteger();
+    ExecutorService pool =
+      Executors.newFixedThreadPool(Math.max(1, numThreads),
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t =
+              new Thread(r, "WekaServer task recovery "
+                + threadNum.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+
+    // loaders that have already been run on demand do nothing
+    for (FutureTask<NamedTask> loader : m_loaders) {
+      pool.execute(loader);
+    }
+    pool.shutdown();
+  }
+
+  /**
+   * Called when the last task has been loaded
+   */
+  protected void finished() {
+    m_loadTime = System.currentTimeMillis() - m_loadStart;
+    m_loaders = new ArrayList<FutureTask<NamedTask>>();
+    System.out.println("[WekaServer] Recovered " + m_numLoaded.get()
+      + " persisted task(s) in " + m_loadTime + " ms"
+      + (m_numFailed.get() > 0 ? " (" + m_numFailed.get() + " failed)." : "."));
+  }
+
+  /**
+   * Get the time taken to read the task index
+   *
+   * @return the time in milliseconds
+   */
+  public long getIndexTime() {
+    return m_indexTime;
+  }
+
+  /**
+   * Get the time taken to load all the persisted tasks
+   *
+   * @return the time in milliseconds or -1 if loading has not finished
+   */
+  public long getLoadTime() {
+    return m_loadTime;
+  }
+
+  /**
+   * Get the number of tasks still to be loaded
+   *
+   * @return the number of tasks still to load
+   */
+  public int getNumRemaining() {
+    return m_remaining.get();
+  }
+
+  /**
+   * Get the number of tasks loaded
+   *
+   * @return the number of tasks loaded
+   */
+  public int getNumLoaded() {
+    return m_numLoaded.get();
+  }
+
+  /**
+   * Get the number of tasks that could not be loaded
+   *
+   * @return the number of failures
+   */
+  public int getNumFailed() {
+    return m_numFailed.get();
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    UpdateTasksServlet.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import weka.core.SerializationHelper;
+import weka.server.MasterNotifier.TaskUpdate;
+
+/**
+ * Used by slaves to pass back a batch of task status and last execution time
+ * updates to their master in one request (see MasterNotifier).
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class UpdateTasksServlet extends WekaServlet {
+
+  /** The context path for this servlet */
+  public static final String CONTEXT_PATH = "/weka/updateTasks";
+
+  /**
+   * For serialization
+   */
+  private static final long serialVersionUID = -1863308725530893367L;
+
+  /**
+   * Constructs a new UpdateTasksServlet
+   *
+   * @param taskMap the task map maintained by the server
+   * @param server a reference to the server itself
+   */
+  public UpdateTasksServlet(WekaTaskMap taskMap, WekaServer server) {
+    super(taskMap, server);
+  }
+
+  /**
+   * Process a HTTP GET
+   *
+   * @param request the request
+   * @param response the response
+   *
+   * @throws ServletException
+   * @throws IOException
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+    throws ServletException, IOException {
+
+    if (!request.getRequestURI().startsWith(CONTEXT_PATH)) {
+      return;
+    }
+
+    // this should never be anything but a "client" servlet
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentType("application/octet-stream");
+
+    ObjectInputStream ois = null;
+    ObjectOutputStream oos = null;
+    try {
+      InputStream in = request.getInputStream();
+      InputStream decompressed =
+        Compression.decompress(new BufferedInputStream(in, 65536),
+          request.getHeader(Compression.CODEC_HEADER));
+      ois =
+        SerializationHelper.getObjectInputStream(new BufferedInputStream(
+          decompressed, 65536));
+      List<TaskUpdate> updates = (List<TaskUpdate>) ois.readObject();
+
+      String unfound = applyUpdates(updates);
+
+      String result = WekaServlet.RESPONSE_OK;
+      if (unfound.length() > 0) {
+        System.err
+          .println("[WekaServer] Received task updates from a slave, "
+            + "but was unable to find task(s) with remote ID(s) '" + unfound
+            + "' in the list of tasks registered with this server.");
+        result =
+          WekaServlet.RESPONSE_ERROR + ": Master received task "
+            + "updates but couldn't find task(s) with remote ID(s) '"
+            + unfound + "' in its list of registered tasks";
+      }
+      OutputStream out = response.getOutputStream();
+      oos = new ObjectOutputStream(new BufferedOutputStream(out));
+      oos.writeObject(result);
+      oos.flush();
+    } catch (Exception ex) {
+      OutputStream out = response.getOutputStream();
+      oos = new ObjectOutputStream(new BufferedOutputStream(out));
+      oos.writeObject(WekaServlet.RESPONSE_ERROR + " " + ex.getMessage());
+      oos.flush();
+      ex.printStackTrace();
+    } finally {
+      if (ois != null) {
+        ois.close();
+      }
+      if (oos != null) {
+        oos.close();
+      }
+    }
+  }
+
+  /**
+   * Apply a batch of updates to the tasks on this server
+   *
+   * @param updates the updates to apply
+   * @return a comma-separated list of the remote IDs that could not be found
+   */
+  protected String applyUpdates(List<TaskUpdate> updates) {
+    // IMPORTANT the IDs are as generated by the slave, so they
+    // will/should match a getRemoteID() in our WekaTaskEntries
+    String unfound = "";
+    for (TaskUpdate u : updates) {
+      WekaTaskMap.WekaTaskEntry found =
+        m_taskMap.getTaskKeyByRemoteID(u.getTaskID());
+      NamedTask task = found != null ? m_taskMap.getTask(found) : null;
+      if (task == null) {
+        unfound += (unfound.length() > 0 ? "," : "") + u.getTaskID();
+        continue;
+      }
+
+      if (u.getLastExecution() != null) {
+        found.setLastExecution(u.getLastExecution());
+      }
+
+      if (u.getStatus() != null) {
+        // update the local task with the remote information
+        task.getTaskStatus().setExecutionStatus(u.getStatus().intValue());
+      }
+
+      // make sure we persist this information
+      m_server.persistTask(found, task);
+
+      if (u.getLastExecution() != null) {
+        // work out when it is next due
+        m_server.getScheduleDispatcher().schedule(found);
+      }
+
+      // pass on to our master?
+      if (found.getCameFromMaster()) {
+        if (u.getLastExecution() != null) {
+          m_server.sendExecutionTimeToMaster(found);
+        }
+        if (u.getStatus() != null) {
+          m_server.sendTaskStatusInfoToMaster(found, task.getTaskStatus()
+            .getExecutionStatus());
+        }
+      }
+    }
+
+    return unfound;
+  }
+}
@@ -27,14 +27,14 @@ import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
-import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
 import org.apache.commons.httpclient.methods.PostMethod;
-import org.apache.commons.httpclient.methods.RequestEntity;
+import org.mortbay.jetty.AbstractConnector;
 import org.mortbay.jetty.Connector;
 import org.mortbay.jetty.Handler;
 import org.mortbay.jetty.Server;
 import org.mortbay.jetty.bio.SocketConnector;
 import org.mortbay.jetty.handler.ContextHandlerCollection;
+import org.mortbay.jetty.nio.SelectChannelConnector;
 import org.mortbay.jetty.security.Constraint;
 import org.mortbay.jetty.security.ConstraintMapping;
 import org.mortbay.jetty.security.HashUserRealm;
@@ -42,6 +42,7 @@ import org.mortbay.jetty.security.Password;
 import org.mortbay.jetty.security.SecurityHandler;
 import org.mortbay.jetty.servlet.Context;
 import org.mortbay.jetty.servlet.ServletHolder;
+import org.mortbay.thread.QueuedThreadPool;
 import weka.core.CommandlineRunnable;
 import weka.core.Environment;
 import weka.core.LogHandler;
@@ -50,14 +51,12 @@ import weka.experiment.Task;
 import weka.experiment.TaskStatusInfo;
 import weka.gui.Logger;
 import weka.server.WekaTaskMap.WekaTaskEntry;
-import weka.server.logging.ServerLogger;
+import weka.server.logging.LogAppender;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
@@ -67,20 +66,18 @@ import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.InetAddress;
-import java.net.URLEncoder;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.GregorianCalendar;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The main server program that launches tasks (either locally or on registered
@@ -136,12 +133,56 @@ public class WekaServer implements CommandlineRunnable {
   /** Tasks on the server */
   protected WekaTaskMap m_taskMap = new WekaTaskMap();
 
+  /** Fires scheduled tasks when they are due */
+  protected ScheduleDispatcher m_scheduleDispatcher = new ScheduleDispatcher(
+    this, m_taskMap);
+
+  /** Purges finished tasks */
+  protected TaskPurger m_taskPurger = new TaskPurger(this, m_taskMap);
+
+  /** Sends task updates to our master (if we are a slave) */
+  protected MasterNotifier m_masterNotifier = new MasterNotifier(this);
+
+  /** Index of persisted tasks */
+  protected TaskIndex m_taskIndex;
+
+  /** Recovers persisted tasks at start up */
+  protected TaskRecovery m_taskRecovery;
+
+  /** Recently fetched task results */
+  protected ResultCache m_resultCache = new ResultCache();
+
+  /** Asks slaves without current heartbeats for their load */
+  protected SlaveLoadPoller m_loadPoller = new SlaveLoadPoller(this);
+
+  /** Keeps the snapshot shown on the status page up to date */
+  protected ClusterMonitor m_clusterMonitor = new ClusterMonitor(this,
+    m_taskMap);
+
   /** For running tasks */
-  protected ThreadPoolExecutor m_executorPool;
+  protected TaskExecutionEngine m_executionEngine;
+
+  /** Type of execution engine to use ("priority" or "fifo") */
+  protected String m_executionEngineType = "priority";
+
+  /** Hands tasks off to slaves without blocking the caller */
+  protected RemoteTaskDispatcher m_remoteDispatcher;
 
   /** The Jetty web server instance */
   protected Server m_jettyServer;
 
+  /** Type of connector to use ("nio" or "bio") */
+  protected String m_connectorType = "nio";
+
+  /** The connector that accepts requests */
+  protected AbstractConnector m_connector;
+
+  /** Maximum number of threads handling requests */
+  protected int m_maxRequestThreads = 250;
+
+  /** The threads that handle requests */
+  protected QueuedThreadPool m_requestThreads;
+
   /** Hostname the server is running on */
   protected String m_hostname;
 
@@ -176,7 +217,25 @@ public class WekaServer implements CommandlineRunnable {
   protected String m_master = null;
 
   /** Map of slaves registered with us */
-  protected Map<String, String> m_slaves = new HashMap<String, String>();
+  protected Map<String, String> m_slaves =
+    new ConcurrentHashMap<String, String>();
+
+  /** Load of our slaves, as reported by their heartbeats */
+  protected ClusterLoadRegistry m_clusterLoad = new ClusterLoadRegistry();
+
+  /**
+   * Interval (milliseconds) at which we send load heartbeats to the master (if
+   * any)
+   */
+  protected long m_heartbeatInterval = 5000;
+
+  /**
+   * Id and sequence of the last hand-off received from our master (sent back
+   * with our heartbeats so that the master knows which hand-offs our load
+   * includes)
+   */
+  protected String m_lastDispatchID;
+  protected long m_lastDispatchSeq;
 
   /**
    * Provides singleton access to the Apache commons HTTP connection manager.
@@ -187,10 +246,25 @@ public class WekaServer implements CommandlineRunnable {
     private static ConnectionManager s_connectionManager;
     private final MultiThreadedHttpConnectionManager m_manager;
 
+    /**
+     * Managers whose connections give up connecting after a timeout, keyed by
+     * the timeout. The connect timeout can only be set on a manager, not on a
+     * request.
+     */
+    private final ConcurrentHashMap<Integer, MultiThreadedHttpConnectionManager>
+      m_timedManagers =
+        new ConcurrentHashMap<Integer, MultiThreadedHttpConnectionManager>();
+
     private ConnectionManager() {
-      m_manager = new MultiThreadedHttpConnectionManager();
-      m_manager.getParams().setDefaultMaxConnectionsPerHost(100);
-      m_manager.getParams().setMaxTotalConnections(200);
+      m_manager = newManager();
+    }
+
+    private static MultiThreadedHttpConnectionManager newManager() {
+      MultiThreadedHttpConnectionManager manager =
+        new MultiThreadedHttpConnectionManager();
+      manager.getParams().setDefaultMaxConnectionsPerHost(100);
+      manager.getParams().setMaxTotalConnections(200);
+      return manager;
     }
 
     public static ConnectionManager getSingleton() {
@@ -226,6 +300,31 @@ public class WekaServer implements CommandlineRunnable {
     public HttpClient createHttpClient() {
       return new HttpClient(m_manager);
     }
+
+    /**
+     * Create a client whose connections give up if they can't connect within
+     * the given time
+     * 
+     * @param connectTimeout the connect timeout (milliseconds, 0 to wait
+     *          indefinitely)
+     * @return the client
+     */
+    public HttpClient createHttpClient(int connectTimeout) {
+      if (connectTimeout <= 0) {
+        return createHttpClient();
+      }
+      MultiThreadedHttpConnectionManager manager =
+        m_timedManagers.get(connectTimeout);
+      if (manager == null) {
+        MultiThreadedHttpConnectionManager newM = newManager();
+        newM.getParams().setConnectionTimeout(connectTimeout);
+        manager = m_timedManagers.putIfAbsent(connectTimeout, newM);
+        if (manager == null) {
+          manager = newM;
+        }
+      }
+      return new HttpClient(manager);
+    }
   }
 
   /**
@@ -236,20 +335,73 @@ public class WekaServer implements CommandlineRunnable {
    * @throws Exception if a problem occurs
    */
   public static byte[] serializeTask(Task toSerialize) throws Exception {
+    return serializeCompressed(toSerialize);
+  }
+
+  /**
+   * Static utility method for serializing a batch of tasks (for submission
+   * with batch=Y)
+   * 
+   * @param toSerialize the tasks to serialize
+   * @return an array of bytes
+   * @throws Exception if a problem occurs
+   */
+  public static byte[] serializeTasks(List<? extends Task> toSerialize)
+    throws Exception {
+    return serializeCompressed(new ArrayList<Task>(toSerialize));
+  }
+
+  /**
+   * Serialize and gzip compress an object
+   * 
+   * @param toSerialize the object to serialize
+   * @return an array of bytes
+   * @throws Exception if a problem occurs
+   */
+  protected static byte[] serializeCompressed(Object toSerialize)
+    throws Exception {
     byte[] taskAsBytes = null;
 
     ByteArrayOutputStream ostream = new ByteArrayOutputStream();
-    OutputStream os = ostream;
-    ObjectOutputStream p;
-    p =
-      new ObjectOutputStream(new BufferedOutputStream(new GZIPOutputStream(os)));
+    serializeTask(toSerialize, ostream);
+    taskAsBytes = ostream.toByteArray();
+
+    return taskAsBytes;
+  }
+
+  /**
+   * Static utility method for serializing a task (or list of tasks) straight
+   * to a stream. The data is gzip compressed as it is written; the supplied
+   * stream is closed when done.
+   * 
+   * @param toSerialize the task (or list of tasks) to serialize
+   * @param out the stream to write to
+   * @throws IOException if a problem occurs
+   */
+  public static void serializeTask(Object toSerialize, OutputStream out)
+    throws IOException {
+    serializeTask(toSerialize, out, Compression.GZIP);
+  }
+
+  /**
+   * Static utility method for serializing a task (or list of tasks) straight
+   * to a stream, compressing it with the given codec as it is written. The
+   * supplied stream is closed when done.
+   * 
+   * @param toSerialize the task (or list of tasks) to serialize
+   * @param out the stream to write to
+   * @param codec the codec to compress with
+   * @throws IOException if a problem occurs
+   */
+  public static void serializeTask(Object toSerialize, OutputStream out,
+    Compression.Codec codec) throws IOException {
+    ObjectOutputStream p =
+      new ObjectOutputStream(new BufferedOutputStream(Compression.compress(
+        out, codec), 65536));
 
     p.writeObject(toSerialize);
     p.flush();
     p.close(); // used to be ostream.close() !
-    taskAsBytes = ostream.toByteArray();
-
-    return taskAsBytes;
   }
 
   /**
@@ -286,8 +438,10 @@ public class WekaServer implements CommandlineRunnable {
    * @throws Exception if a problem occurs
    */
   protected void startJettyServer() throws Exception {
-    // load any persisted scheduled tasks
-    loadTasks();
+    long startTime = System.currentTimeMillis();
+
+    // find any persisted tasks (they get loaded once we are up and running)
+    findPersistedTasks();
 
     if (m_jettyServer != null) {
       throw new Exception("Server is already running. Stop it first.");
@@ -427,6 +581,31 @@ public class WekaServer implements CommandlineRunnable {
     getSchedule.addServlet(new ServletHolder(new GetScheduleServlet(m_taskMap,
       this)), "/*");
 
+    // Slave heartbeat servlet
+    Context heartbeat =
+      new Context(contexts, SlaveHeartbeatServlet.CONTEXT_PATH,
+        Context.SESSIONS);
+    heartbeat.addServlet(new ServletHolder(new SlaveHeartbeatServlet(
+      m_taskMap, this)), "/*");
+
+    // Batched task updates from slaves
+    Context updateTasks =
+      new Context(contexts, UpdateTasksServlet.CONTEXT_PATH, Context.SESSIONS);
+    updateTasks.addServlet(new ServletHolder(new UpdateTasksServlet(
+      m_taskMap, this)), "/*");
+
+    // Task events for monitoring clients
+    Context taskEvents =
+      new Context(contexts, TaskEventsServlet.CONTEXT_PATH, Context.SESSIONS);
+    taskEvents.addServlet(new ServletHolder(new TaskEventsServlet(m_taskMap,
+      this)), "/*");
+
+    // Metrics for monitoring systems
+    Context metrics =
+      new Context(contexts, MetricsServlet.CONTEXT_PATH, Context.SESSIONS);
+    metrics.addServlet(new ServletHolder(new MetricsServlet(m_taskMap, this)),
+      "/*");
+
     /* // static test servlet
     Context testStatic =
       new Context(contexts, StaticTestServlet.CONTEXT_PATH, Context.SESSIONS);
@@ -438,15 +617,37 @@ public class WekaServer implements CommandlineRunnable {
 
     // start execution
 
-    SocketConnector connector = new SocketConnector();
-    connector.setPort(m_port);
-    connector.setHost(m_hostname);
-    connector.setName("WekaServer@" + m_hostname);
+    // the NIO connector only needs a thread while a request is actually
+    // being handled; the blocking one needs one for every open connection
+    if (m_connectorType.equalsIgnoreCase("bio")) {
+      m_connector = new SocketConnector();
+    } else {
+      m_connector = new SelectChannelConnector();
+    }
+    m_connector.setPort(m_port);
+    m_connector.setHost(m_hostname);
+    m_connector.setName("WekaServer@" + m_hostname);
+    m_connector.setStatsOn(true);
 
-    m_jettyServer.setConnectors(new Connector[] { connector });
+    m_requestThreads = new QueuedThreadPool(m_maxRequestThreads);
+    m_requestThreads.setName("WekaServer request");
+    m_jettyServer.setThreadPool(m_requestThreads);
 
-    m_jettyServer.start();
+    m_jettyServer.setConnectors(new Connector[] { m_connector });
+
+    // tasks may be executed as soon as they are loaded
     startExecutorPool();
+    m_jettyServer.start();
+    System.out.println("[WekaServer] Accepting requests "
+      + (System.currentTimeMillis() - startTime) + " ms after start up.");
+
+    // load the persisted tasks in the background
+    if (m_taskRecovery != null) {
+      m_taskRecovery.start(Runtime.getRuntime().availableProcessors());
+    }
+
+    // keep the status page snapshot up to date
+    m_clusterMonitor.start();
 
     // start a purge thread that purges stale tasks
     Thread purgeThread = new Thread() {
@@ -471,59 +672,36 @@ public class WekaServer implements CommandlineRunnable {
       System.out.println("[WekaServer] Purge thread disabled.");
     }
 
-    // start a thread for executing scheduled tasks
-    Thread scheduleChecker = new Thread() {
-      GregorianCalendar m_cal = new GregorianCalendar();
+    // start the dispatcher for executing scheduled tasks
+    System.out.println("[WekaServer] Starting schedule dispatcher.");
+    m_scheduleDispatcher.start(m_daemon);
 
-      @Override
-      public void run() {
-        while (true) {
-          List<WekaTaskEntry> tasks = m_taskMap.getTaskList();
-          for (WekaTaskEntry t : tasks) {
-            NamedTask task = m_taskMap.getTask(t);
-            if (task instanceof Scheduled
-              && task.getTaskStatus().getExecutionStatus() != TaskStatusInfo.PROCESSING) {
-              // Date lastExecution = m_taskMap.getExecutionTime(t);
-              Date lastExecution = t.getLastExecution();
-              Schedule schedule = ((Scheduled) task).getSchedule();
-              boolean runIt = false;
+    // Register with a master server?
+    if (m_master != null && m_master.length() > 0
+      && m_master.lastIndexOf(":") > 0) {
+      registerWithMaster();
+
+      System.out.println("[WekaServer] Starting master notifier.");
+      m_masterNotifier.start();
+
+      if (m_heartbeatInterval > 0) {
+        // keep the master up to date with our load
+        Thread heartbeatThread = new Thread() {
+          @Override
+          public void run() {
+            while (true) {
               try {
-                runIt = schedule.execute(lastExecution);
-              } catch (Exception ex) {
-                System.err
-                  .println("[WekaServer] There is a problem with scheduled task "
-                    + t.toString() + "\n\n" + ex.getMessage());
-              }
-              if (runIt) {
-                System.out.println("[WekaServer] Starting scheduled task "
-                  + t.toString());
-                executeTask(t);
+                Thread.sleep(m_heartbeatInterval);
+              } catch (InterruptedException ie) {
               }
+              sendHeartbeatToMaster();
             }
           }
-
-          try {
-            // check every 60 seconds
-            // wait enough seconds to be on the minute
-            Date now = new Date();
-            m_cal.setTime(now);
-            int seconds = (60 - m_cal.get(Calendar.SECOND));
-            Thread.sleep(seconds * 1000);
-          } catch (InterruptedException ie) {
-          }
-        }
+        };
+        System.out.println("[WekaServer] Starting heartbeat thread.");
+        heartbeatThread.setDaemon(true);
+        heartbeatThread.start();
       }
-    };
-
-    System.out.println("[WekaServer] Starting schedule checker.");
-    scheduleChecker.setPriority(Thread.MIN_PRIORITY);
-    scheduleChecker.setDaemon(m_daemon);
-    scheduleChecker.start();
-
-    // Register with a master server?
-    if (m_master != null && m_master.length() > 0
-      && m_master.lastIndexOf(":") > 0) {
-      registerWithMaster();
     }
 
     if (!m_daemon) {
@@ -592,21 +770,89 @@ public class WekaServer implements CommandlineRunnable {
     }
   }
 
+  /**
+   * Send our current load to the master server
+   * 
+   * @return true if the master accepted the heartbeat
+   */
+  protected boolean sendHeartbeatToMaster() {
+    PostMethod post = null;
+    boolean ok = false;
+    // read before the load so that the load includes this hand-off
+    String lastReceived = getLastDispatchReceived();
+    try {
+      String url = "http://" + m_master;
+      url = url.replace(" ", "%20");
+      url += SlaveHeartbeatServlet.CONTEXT_PATH;
+      url += "/?slave=" + m_hostname + ":" + m_port;
+      url += "&load=" + getServerLoad();
+      url += "&slots=" + m_numExecutionSlots;
+      url += "&running=" + numRunningTasks();
+      url += "&queued=" + numQueuedTasks();
+      url += "&loadAdjust=" + m_loadAdjust;
+      url += "&interval=" + m_heartbeatInterval;
+      if (lastReceived != null) {
+        url += "&dispatch=" + lastReceived;
+      }
+      url += "&clientJ=Y";
+
+      post = new PostMethod(url);
+      post.setDoAuthentication(true);
+      post.addRequestHeader(new Header("Content-Type", "text/plain"));
+
+      // Get HTTP client
+      HttpClient client = ConnectionManager.getSingleton().createHttpClient();
+      ConnectionManager.addCredentials(client, m_username, m_password);
+
+      int result = client.executeMethod(post);
+      if (result == 401) {
+        System.err.println("[WekaServer] Unable to send heartbeat to master"
+          + " - authentication required.\n");
+      } else if (result == 200) {
+        ok = true;
+      }
+    } catch (Exception ex) {
+      System.err.println("[WekaServer] Unable to send heartbeat to master ("
+        + ex.getMessage() + ")");
+    } finally {
+      if (post != null) {
+        post.releaseConnection();
+      }
+    }
+
+    return ok;
+  }
+
   /**
    * Stop the server
    */
   public void stopServer() {
     try {
-      if (m_executorPool != null) {
-        m_executorPool.shutdown();
+      if (m_executionEngine != null) {
+        m_executionEngine.shutdown();
       }
 
+      if (m_remoteDispatcher != null) {
+        m_remoteDispatcher.shutdown();
+      }
+
+      m_scheduleDispatcher.stop();
+      m_masterNotifier.stop();
+      if (m_taskIndex != null) {
+        m_taskIndex.stop();
+      }
+      m_clusterMonitor.stop();
+      m_loadPoller.shutdown();
+
       if (m_jettyServer != null) {
         m_jettyServer.stop();
 
         weka.core.logging.Logger.log(weka.core.logging.Logger.Level.INFO,
           m_jettyServer.getConnectors()[0].getName() + " stopped.");
       }
+
+      // write out any task log lines still queued
+      LogAppender.getSingleton().shutdown();
     } catch (Exception ex) {
       ex.printStackTrace();
     }
@@ -616,21 +862,93 @@ public class WekaServer implements CommandlineRunnable {
    * Start the executor pool
    */
   protected void startExecutorPool() {
-    if (m_executorPool != null) {
-      m_executorPool.shutdownNow();
+    if (m_executionEngine != null) {
+      m_executionEngine.shutdownNow();
+    }
+
+    String type = m_executionEngineType;
+    if (type == null || type.length() == 0
+      || type.equalsIgnoreCase("priority")) {
+      m_executionEngine = new PriorityExecutionEngine(m_numExecutionSlots);
+    } else if (type.equalsIgnoreCase("fifo")) {
+      m_executionEngine = new FIFOExecutionEngine(m_numExecutionSlots);
+    } else {
+      // fully qualified name of a TaskExecutionEngine implementation with
+      // a constructor that takes the number of slots
+      try {
+        m_executionEngine =
+          (TaskExecutionEngine) Class.forName(type)
+            .getConstructor(Integer.TYPE).newInstance(m_numExecutionSlots);
+      } catch (Exception ex) {
+        System.err.println("[WekaServer] Unable to instantiate execution "
+          + "engine '" + type + "' (" + ex.getMessage()
+          + "). Using the priority engine instead.");
+        m_executionEngine = new PriorityExecutionEngine(m_numExecutionSlots);
+      }
+    }
+    System.out.println("[WekaServer] Using " + type + " execution engine with "
+      + m_numExecutionSlots + " slots.");
+
+    if (m_remoteDispatcher != null) {
+      m_remoteDispatcher.shutdown();
     }
+    m_remoteDispatcher = new RemoteTaskDispatcher(this);
+  }
+
+  /**
+   * Get the execution engine in use
+   * 
+   * @return the execution engine in use (may be null if the server has not
+   *         been started)
+   */
+  public TaskExecutionEngine getExecutionEngine() {
+    return m_executionEngine;
+  }
 
-    m_executorPool =
-      new ThreadPoolExecutor(m_numExecutionSlots, m_numExecutionSlots, 120,
-        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+  /**
+   * Get the dispatcher that fires scheduled tasks
+   * 
+   * @return the schedule dispatcher
+   */
+  public ScheduleDispatcher getScheduleDispatcher() {
+    return m_scheduleDispatcher;
   }
 
   /**
-   * Excecute a task
+   * Get the purger that removes tasks from this server
+   * 
+   * @return the task purger
+   */
+  public TaskPurger getTaskPurger() {
+    return m_taskPurger;
+  }
+
+  /**
+   * Get the notifier that sends task updates to our master
+   * 
+   * @return the master notifier
+   */
+  public MasterNotifier getMasterNotifier() {
+    return m_masterNotifier;
+  }
+
+  /**
+   * Get the dispatcher used to hand tasks off to slaves
+   * 
+   * @return the remote dispatcher (may be null if the server has not been
+   *         started)
+   */
+  public RemoteTaskDispatcher getRemoteDispatcher() {
+    return m_remoteDispatcher;
+  }
+
+  /**
+   * Excecute a task. Returns as soon as the task has been queued locally or
+   * queued for hand-off to a slave.
    * 
    * @param entry the task to execute
    */
-  protected synchronized void executeTask(final WekaTaskEntry entry) {
+  protected void executeTask(final WekaTaskEntry entry) {
 
     final NamedTask task = m_taskMap.getTask(entry);
     if (task == null) {
@@ -640,7 +958,8 @@ public class WekaServer implements CommandlineRunnable {
       return;
     }
 
-    String hostToUse = chooseExecutionHost();
+    boolean[] reserved = new boolean[1];
+    String hostToUse = chooseExecutionHost(reserved);
 
     if (task instanceof LogHandler) {
       Logger log = ((LogHandler) task).getLog();
@@ -648,70 +967,154 @@ public class WekaServer implements CommandlineRunnable {
         + ")");
     }
 
-    entry.setServer(hostToUse);
-    if (hostToUse.equals(m_hostname + ":" + m_port)) {
-      Runnable toRun = new Runnable() {
-        @Override
-        public void run() {
-
-          Date startTime = new Date();
-          GregorianCalendar cal = new GregorianCalendar();
-          cal.setTime(startTime);
-
-          // We only use resolution down to the minute level
-          cal.set(Calendar.SECOND, 0);
-          cal.set(Calendar.MILLISECOND, 0);
-          // m_taskMap.setExecutionTime(entry, startTime);
-          entry.setLastExecution(cal.getTime());
-          if (entry.getCameFromMaster()) {
-            // Talk back to the master - tell it the execution time,
-            // and that the task is now processing
-            sendExecutionTimeToMaster(entry);
-            sendTaskStatusInfoToMaster(entry, TaskStatusInfo.PROCESSING);
-          }
+    if (!hostToUse.equals(m_hostname + ":" + m_port)) {
+      // the entry's server gets set once the slave has accepted the task.
+      // Without a reserved permit the task waits for one of the slave's
+      // hand-offs to complete
+      if (reserved[0] ? m_remoteDispatcher.dispatch(entry, task, hostToUse)
+        : m_remoteDispatcher.queue(entry, task, hostToUse)) {
+        return;
+      }
+      dispatchRejected(entry, task, hostToUse);
+      return;
+    }
+
+    executeTaskLocally(entry, task);
+  }
 
+  /**
+   * Called when a task could not be queued for hand-off to a slave because
+   * the dispatch queue is full. The task is run locally instead.
+   * 
+   * @param entry the entry of the task
+   * @param task the task
+   * @param slave the slave that the task was going to be sent to
+   */
+  protected void dispatchRejected(WekaTaskEntry entry, NamedTask task,
+    String slave) {
+    m_clusterLoad.undispatched(slave);
+    ServerMetrics.getSingleton().counter(
+      "weka_server_dispatch_rejected_total",
+      "Tasks run locally because the dispatch queue was full").inc();
+
+    System.err.println("[WekaServer] Dispatch queue is full - running task '"
+      + entry.toString() + "' locally.");
+    executeTaskLocally(entry, task);
+  }
+
+  /**
+   * Queue a task for execution on this server
+   * 
+   * @param entry the entry of the task
+   * @param task the task
+   */
+  protected void executeTaskLocally(final WekaTaskEntry entry,
+    final NamedTask task) {
+    entry.setServer(m_hostname + ":" + m_port);
+    m_taskMap.reindex(entry);
+    final long queuedAt = System.nanoTime();
+    Runnable toRun = new Runnable() {
+      @Override
+      public void run() {
+        ServerMetrics metrics = ServerMetrics.getSingleton();
+        String type = ServerMetrics.taskType(task);
+        long started = System.nanoTime();
+        metrics.histogram("weka_server_task_wait_seconds",
+          "Time tasks spent queued before executing",
+          ServerMetrics.DURATION_BUCKETS, "type", type).observe(
+          started - queuedAt);
+
+        Date startTime = new Date();
+        GregorianCalendar cal = new GregorianCalendar();
+        cal.setTime(startTime);
+
+        // We only use resolution down to the minute level
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        // m_taskMap.setExecutionTime(entry, startTime);
+        entry.setLastExecution(cal.getTime());
+        if (entry.getCameFromMaster()) {
+          // Talk back to the master - tell it the execution time,
+          // and that the task is now processing
+          sendExecutionTimeToMaster(entry);
+          sendTaskStatusInfoToMaster(entry, TaskStatusInfo.PROCESSING);
+        }
+
+        // the last result is about to be replaced
+        m_resultCache.invalidate(entry.toString());
+
+        boolean completed = false;
+        try {
           // ask the task to load any resources (if necessary)
           task.loadResources();
           task.execute();
+          completed = true;
+        } finally {
+          // recorded even if the task throws
+          metrics.histogram("weka_server_task_run_seconds",
+            "Time taken to execute tasks", ServerMetrics.DURATION_BUCKETS,
+            "type", type).observe(System.nanoTime() - started);
+          metrics.counter("weka_server_tasks_executed_total",
+            "Tasks executed locally", "type", type, "status",
+            !completed || getExecutionStatus(task) == TaskStatusInfo.FAILED
+              ? "failed" : "finished").inc();
+        }
 
-          // save this task so that we have the last execution
-          // time recorded
-          // if (task instanceof Scheduled) {
+        // save this task so that we have the last execution
+        // time recorded. Scheduled tasks just need their state
+        // journaled; others are written out once with their results
+        if (task instanceof Scheduled) {
           persistTask(entry, task);
+        } else {
+          persistTaskDefinition(entry, task);
+        }
 
-          // save memory (if possible)
-          task.persistResources();
-
-          // }
+        // save memory (if possible)
+        task.persistResources();
 
-          if (entry.getCameFromMaster()) {
-            // Talk back to the master - pass on the actual final execution
-            // status
-            sendTaskStatusInfoToMaster(entry, task.getTaskStatus()
-              .getExecutionStatus());
-          }
+        if (task instanceof Scheduled) {
+          // now that the execution time is recorded
+          m_scheduleDispatcher.schedule(entry);
         }
-      };
 
-      if (entry.getCameFromMaster()) {
-        // Talk back to the master - tell it that this
-        // task is pending (WekaTaskMap.WekaTaskEntry.PENDING)
-        sendTaskStatusInfoToMaster(entry, WekaTaskMap.WekaTaskEntry.PENDING);
-      }
-      m_executorPool.execute(toRun);
-    } else {
-      if (!executeTaskRemote(entry, task, hostToUse)) {
-        // failed to hand off to slave for some reason
-        System.err.println("[WekaServer] Failed to hand task '"
-          + entry.toString() + "' to slave server ('" + hostToUse + ")");
-        System.out.println("[WekaServer] removing '" + hostToUse + "' from "
-          + "list of slaves.");
-        m_slaves.remove(hostToUse);
-        System.out.println("[WekaServer] Re-trying execution of task '"
-          + entry.toString() + "'");
-        executeTask(entry);
+        // }
+
+        if (entry.getCameFromMaster()) {
+          // Talk back to the master - pass on the actual final execution
+          // status
+          sendTaskStatusInfoToMaster(entry, getExecutionStatus(task));
+        }
       }
+    };
+
+    if (entry.getCameFromMaster()) {
+      // Talk back to the master - tell it that this
+      // task is pending (WekaTaskMap.WekaTaskEntry.PENDING)
+      sendTaskStatusInfoToMaster(entry, WekaTaskMap.WekaTaskEntry.PENDING);
     }
+    m_executionEngine.execute(toRun, TaskPriority.priorityOf(task));
+  }
+
+  /**
+   * Called by the remote dispatcher when a task could not be handed off to a
+   * slave. The slave is dropped and the task is re-submitted.
+   * 
+   * @param entry the entry of the task that could not be sent
+   * @param slave the slave that the task was being sent to
+   */
+  protected void remoteDispatchFailed(WekaTaskEntry entry, String slave) {
+    // failed to hand off to slave for some reason
+    ServerMetrics.getSingleton().counter(
+      "weka_server_dispatch_failures_total",
+      "Tasks that could not be handed to a slave", "slave", slave).inc();
+    System.err.println("[WekaServer] Failed to hand task '" + entry.toString()
+      + "' to slave server ('" + slave + ")");
+    System.out.println("[WekaServer] removing '" + slave + "' from "
+      + "list of slaves.");
+    removeSlave(slave);
+    System.out.println("[WekaServer] Re-trying execution of task '"
+      + entry.toString() + "'");
+    executeTask(entry);
   }
 
   /**
@@ -722,7 +1125,7 @@ public class WekaServer implements CommandlineRunnable {
    * @param slave the slave to execute on
    * @return true if the task is sent to the slave successfully
    */
-  protected synchronized boolean executeTaskRemote(WekaTaskEntry entry,
+  protected boolean executeTaskRemote(WekaTaskEntry entry,
     NamedTask task, String slave) {
 
     InputStream is = null;
@@ -743,14 +1146,17 @@ public class WekaServer implements CommandlineRunnable {
       // before we pass it on
       task.loadResources();
 
-      byte[] serializedTask = WekaServer.serializeTask(task);
+      // the task is serialized straight into the (chunked) request body,
+      // compressed with the best codec the slave has said it accepts
+      SerializedTaskRequestEntity entity =
+        new SerializedTaskRequestEntity(task, Compression.forPeer(slave));
       String url = "http://" + slave;
       url = url.replace(" ", "%20");
       url += ExecuteTaskServlet.CONTEXT_PATH;
       url += "/?client=Y&master=Y";
+      url += "&dispatch=" + m_clusterLoad.sending(slave);
       post = new PostMethod(url);
-      RequestEntity entity = new ByteArrayRequestEntity(serializedTask);
-      post.setRequestEntity(entity);
+      entity.attachTo(post);
 
       post.setDoAuthentication(true);
       post.addRequestHeader(new Header("Content-Type",
@@ -762,10 +1168,9 @@ public class WekaServer implements CommandlineRunnable {
 
       // Execute request
       int result = client.executeMethod(post);
+      Compression.notePeer(slave, post);
       System.out.println("[WekaServer] Executing task on slave server : "
         + slave);
-      System.out.println("[WekaServer] Sending " + serializedTask.length
-        + " bytes...");
       System.out.println("[WekaServer] Response from slave : " + result);
 
       if (result == 401) {
@@ -785,6 +1190,7 @@ public class WekaServer implements CommandlineRunnable {
         }
         entry.setRemoteID(response.toString());
         entry.setServer(slave);
+        m_taskMap.reindex(entry);
 
         success = true;
 
@@ -818,31 +1224,196 @@ public class WekaServer implements CommandlineRunnable {
   }
 
   /**
-   * Choose a slave (or us if no slave is available) to execute on
+   * Choose a slave (or us if no slave is available) to execute on. Slaves that
+   * send heartbeats are chosen from the in-memory load table; only slaves
+   * without current heartbeat information are asked for their load. The
+   * least loaded slave with an in flight permit free is preferred, and one of
+   * its permits is reserved for the hand-off. If every slave less loaded than
+   * us is already sending as much as we allow, the least loaded one is chosen
+   * anyway (without a permit) and the task waits in its backlog - the task
+   * only runs here if we are less loaded than every slave.
    * 
+   * @param reserved element 0 is set to true if a permit was reserved for the
+   *          chosen slave
    * @return the name of the server to execute on
    */
-  protected String chooseExecutionHost() {
+  protected String chooseExecutionHost(boolean[] reserved) {
     // start with the local server and load
     String host = m_hostname + ":" + m_port;
     double minLoad = getServerLoad();
     // double minLoad = 2.0;
+    reserved[0] = false;
 
     // run locally if we have some capacity (load < 1)
     if (m_slaves.size() > 0 && minLoad >= 1.0) {
+      long now = System.currentTimeMillis();
+      // least loaded slave that is busy sending (a fallback)
+      String busy = null;
+      double busyLoad = minLoad;
+      Iterator<ClusterLoadRegistry.SlaveLoad> byLoad =
+        m_clusterLoad.ascendingLoad();
+      while (byLoad.hasNext()) {
+        ClusterLoadRegistry.SlaveLoad l = byLoad.next();
+        if (l.getEffectiveLoad() >= minLoad) {
+          // everything from here on is at least as loaded
+          break;
+        }
+        if (l.isStale(now) || !m_slaves.containsKey(l.getSlave())) {
+          continue;
+        }
+        if (!reserveDispatch(l.getSlave())) {
+          // already sending as much as we allow
+          if (busy == null) {
+            busy = l.getSlave();
+            busyLoad = l.getEffectiveLoad();
+          }
+          continue;
+        }
+        minLoad = l.getEffectiveLoad();
+        host = l.getSlave();
+        reserved[0] = true;
+        break;
+      }
+
+      // fall back to asking slaves that don't send heartbeats (all at
+      // once, and not waiting on any that are slow to answer)
+      List<String> toPoll = new ArrayList<String>();
       for (String slave : m_slaves.keySet()) {
-        double load = RootServlet.getSlaveLoad(this, slave);
-        System.out
-          .println("[WekaServer] load of slave : " + slave + " " + load);
-        if (load >= 0 && load < minLoad) {
-          minLoad = load;
-          host = slave;
+        if (m_clusterLoad.isCurrent(slave)) {
+          continue;
+        }
+        toPoll.add(slave);
+      }
+      if (toPoll.size() > 0) {
+        SlaveLoadPoller.Result polled = m_loadPoller.poll(toPoll);
+        List<Map.Entry<String, Double>> byPolledLoad =
+          new ArrayList<Map.Entry<String, Double>>(polled.getLoads()
+            .entrySet());
+        Collections.sort(byPolledLoad,
+          new Comparator<Map.Entry<String, Double>>() {
+            @Override
+            public int compare(Map.Entry<String, Double> a,
+              Map.Entry<String, Double> b) {
+              return a.getValue().compareTo(b.getValue());
+            }
+          });
+        for (Map.Entry<String, Double> e : byPolledLoad) {
+          double load = e.getValue();
+          System.out.println("[WekaServer] load of slave : " + e.getKey()
+            + " " + load);
+          if (load >= minLoad) {
+            break;
+          }
+          if (reserveDispatch(e.getKey())) {
+            if (reserved[0]) {
+              // give back the one reserved from the load table
+              m_remoteDispatcher.release(host);
+            }
+            minLoad = load;
+            host = e.getKey();
+            reserved[0] = true;
+            break;
+          }
+          if (load < busyLoad) {
+            busy = e.getKey();
+            busyLoad = load;
+          }
+        }
+        if (polled.getTimedOut().size() > 0) {
+          System.out.println("[WekaServer] slave(s) timed out reporting load: "
+            + polled.getTimedOut());
         }
       }
+
+      if (!reserved[0] && busy != null) {
+        // every slave less loaded than us is busy sending - queue for the
+        // least loaded one rather than pile onto this server
+        host = busy;
+      }
+    }
+
+    if (!host.equals(m_hostname + ":" + m_port)) {
+      // count this one against the slave until it next reports
+      m_clusterLoad.dispatched(host);
     }
     return host;
   }
 
+  /**
+   * Reserve one of the supplied slave's in flight permits, so that tasks being
+   * dispatched concurrently can't all pick the same slave. The permit is
+   * handed to the remote dispatcher along with the task.
+   * 
+   * @param slave the slave (host:port)
+   * @return true if a permit was reserved; false if the slave is already
+   *         sending as much as we allow
+   */
+  protected boolean reserveDispatch(String slave) {
+    return m_remoteDispatcher != null && m_remoteDispatcher.reserve(slave);
+  }
+
+  /**
+   * Get the load table for our slaves
+   * 
+   * @return the load table
+   */
+  public ClusterLoadRegistry getClusterLoadRegistry() {
+    return m_clusterLoad;
+  }
+
+  /**
+   * Note a hand-off received from our master. Tokens are of the form
+   * id.sequence; a new id replaces the old one (the master has restarted or
+   * re-registered us), otherwise the highest sequence is kept.
+   * 
+   * @param token the dispatch token sent with the hand-off
+   */
+  protected synchronized void dispatchReceived(String token) {
+    int dot = token.lastIndexOf('.');
+    if (dot <= 0) {
+      return;
+    }
+    try {
+      String id = token.substring(0, dot);
+      long seq = Long.parseLong(token.substring(dot + 1));
+      if (!id.equals(m_lastDispatchID) || seq > m_lastDispatchSeq) {
+        m_lastDispatchID = id;
+        m_lastDispatchSeq = seq;
+      }
+    } catch (NumberFormatException ex) {
+      // ignore a malformed token
+    }
+  }
+
+  /**
+   * Get the token of the last hand-off received from our master
+   * 
+   * @return the token, or null if none has been received
+   */
+  protected synchronized String getLastDispatchReceived() {
+    return m_lastDispatchID == null ? null : m_lastDispatchID + "."
+      + m_lastDispatchSeq;
+  }
+
+  /**
+   * Get the monitor that keeps the status page snapshot up to date
+   * 
+   * @return the cluster monitor
+   */
+  public ClusterMonitor getClusterMonitor() {
+    return m_clusterMonitor;
+  }
+
+  /**
+   * Get the poller used to ask slaves without current heartbeats for their
+   * load
+   * 
+   * @return the slave load poller
+   */
+  public SlaveLoadPoller getLoadPoller() {
+    return m_loadPoller;
+  }
+
   /**
    * Container for a task
    * 
@@ -872,21 +1443,65 @@ public class WekaServer implements CommandlineRunnable {
   }
 
   /**
-   * Persist a task to disk
+   * Get the file that a task is persisted to
+   * 
+   * @param entry the task entry for the task
+   * @return the file that the task is (or would be) persisted to
+   */
+  protected File getPersistedTaskFile(WekaTaskEntry entry) {
+    return new File(TASK_PERSISTENCE_DIRECTORY + m_hostname + "_" + m_port
+      + File.separator + entry.toString());
+  }
+
+  /**
+   * Persist the state of a task (last execution time, execution status etc.).
+   * The change is appended to the task journal; the task itself is only
+   * written out if it hasn't been persisted yet.
    * 
    * @param entry the task entry for the task to persist
    * @param task the task to persist
    */
   protected void persistTask(WekaTaskEntry entry, NamedTask task) {
+    if (m_taskIndex == null || !getPersistedTaskFile(entry).exists()) {
+      persistTaskDefinition(entry, task);
+      return;
+    }
+
+    m_taskMap.reindex(entry);
+    m_taskIndex.update(entry, getExecutionStatus(task));
+  }
+
+  /**
+   * Get the execution status of a task. Tasks that implement
+   * IncrementalStatus are asked for it directly, rather than building their
+   * status message just to read the status from it.
+   * 
+   * @param task the task
+   * @return the execution status or -1 if the task has no status
+   */
+  public static int getExecutionStatus(NamedTask task) {
+    if (task instanceof IncrementalStatus) {
+      return ((IncrementalStatus) task).getExecutionStatus();
+    }
+    return task.getTaskStatus() != null ? task.getTaskStatus()
+      .getExecutionStatus() : -1;
+  }
+
+  /**
+   * Persist a task (and its state) to disk in full
+   * 
+   * @param entry the task entry for the task to persist
+   * @param task the task to persist
+   */
+  protected void persistTaskDefinition(WekaTaskEntry entry, NamedTask task) {
+    m_taskMap.reindex(entry);
     try {
       if (!checkPersistenceSubDir()) {
         return;
       }
 
       TaskHolder holder = new TaskHolder(entry, task);
-      File persist =
-        new File(TASK_PERSISTENCE_DIRECTORY + m_hostname + "_" + m_port
-          + File.separator + entry.toString());
+      File persist = getPersistedTaskFile(entry);
       ObjectOutputStream oos =
         new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(
           persist)));
@@ -894,6 +1509,10 @@ public class WekaServer implements CommandlineRunnable {
       oos.flush();
       oos.close();
       oos = null;
+
+      if (m_taskIndex != null) {
+        m_taskIndex.update(entry, getExecutionStatus(task));
+      }
     } catch (IOException ex) {
       ex.printStackTrace();
       System.err.println("[WekaServer] Problem persisting task: "
@@ -923,161 +1542,25 @@ public class WekaServer implements CommandlineRunnable {
   }
 
   /**
-   * Send the last time of execution of the supplied task to the master server
+   * Send the last time of execution of the supplied task to the master server.
+   * The update is queued and sent asynchronously (see MasterNotifier).
    * 
    * @param entry the task entry for the task in question
    */
-  protected void sendExecutionTimeToMaster(final WekaTaskEntry entry) {
-
-    Thread t = new Thread() {
-      @Override
-      public void run() {
-
-        PostMethod post = null;
-        InputStream is = null;
-        try {
-          String url = "http://" + m_master;
-          url = url.replace(" ", "%20");
-          url += SetLastExecutionServlet.CONTEXT_PATH;
-          url += "/?name=" + entry.toString();
-          SimpleDateFormat sdf =
-            new SimpleDateFormat(SetLastExecutionServlet.DATE_FORMAT);
-          String formattedDate = sdf.format(entry.getLastExecution());
-          url += "&lastExecution=" + formattedDate;
-
-          post = new PostMethod(url);
-          post.setDoAuthentication(true);
-          post.addRequestHeader(new Header("Content-Type", "text/plain"));
-
-          // Get HTTP client
-          HttpClient client =
-            ConnectionManager.getSingleton().createHttpClient();
-          ConnectionManager.addCredentials(client, m_username, m_password);
-
-          // Execute request
-          int result = client.executeMethod(post);
-          // System.out.println("[WekaServer] Response from master server : " +
-          // result);
-          if (result == 401) {
-            System.err
-              .println("[WekaServer] Unable to send task last execution time back "
-                + "to master - authentication required.\n");
-          } else {
-
-            // the response
-            is = post.getResponseBodyAsStream();
-            ObjectInputStream ois = new ObjectInputStream(is);
-            Object response = ois.readObject();
-            if (response.toString().startsWith(WekaServlet.RESPONSE_ERROR)) {
-              System.err
-                .println("[WekaServer] A problem occurred while "
-                  + "trying to send task last execution timeback to master server : \n"
-                  + "\t" + response.toString());
-            } else {
-              // System.out.println("[WekaServer] " + response.toString());
-            }
-          }
-        } catch (Exception ex) {
-          System.err
-            .println("[WekaServer] A problem occurred while "
-              + "trying to send task last execution time back to master server : \n"
-              + ex.getMessage());
-          ex.printStackTrace();
-        } finally {
-          if (is != null) {
-            try {
-              is.close();
-            } catch (IOException e) {
-              e.printStackTrace();
-            }
-          }
-
-          if (post != null) {
-            post.releaseConnection();
-          }
-        }
-      }
-    };
-
-    t.setPriority(Thread.MIN_PRIORITY);
-    t.start();
+  protected void sendExecutionTimeToMaster(WekaTaskEntry entry) {
+    m_masterNotifier.executionTime(entry);
   }
 
   /**
-   * Send status info for the supplied task back to the master server
+   * Send status info for the supplied task back to the master server. The
+   * update is queued and sent asynchronously (see MasterNotifier).
    * 
    * @param entry the task entry for the task in question
    * @param taskStatus the status to send
    */
-  protected void sendTaskStatusInfoToMaster(final WekaTaskEntry entry,
-    final int taskStatus) {
-
-    Thread t = new Thread() {
-      @Override
-      public void run() {
-        PostMethod post = null;
-        InputStream is = null;
-        try {
-          String url = "http://" + m_master;
-          url = url.replace(" ", "%20");
-          url += SetTaskStatusServlet.CONTEXT_PATH;
-          url += "/?name=" + entry.toString();
-          url += "&status=" + taskStatus;
-
-          post = new PostMethod(url);
-          post.setDoAuthentication(true);
-          post.addRequestHeader(new Header("Content-Type", "text/plain"));
-
-          // Get HTTP client
-          HttpClient client =
-            ConnectionManager.getSingleton().createHttpClient();
-          ConnectionManager.addCredentials(client, m_username, m_password);
-
-          // Execute request
-          int result = client.executeMethod(post);
-          // System.out.println("[WekaServer] SendTaskStatus: Response from master server : "
-          // + result);
-          if (result == 401) {
-            System.err
-              .println("[WekaServer] Unable to send task status back to master"
-                + " - authentication required.\n");
-          } else {
-
-            // the response
-            is = post.getResponseBodyAsStream();
-            ObjectInputStream ois = new ObjectInputStream(is);
-            Object response = ois.readObject();
-            if (response.toString().startsWith(WekaServlet.RESPONSE_ERROR)) {
-              System.err.println("[WekaServer] A problem occurred while "
-                + "trying to send task status back to master server : \n"
-                + "\t" + response.toString());
-            } else {
-              // System.out.println("[WekaServer] " + response.toString());
-            }
-          }
-        } catch (Exception ex) {
-          System.err.println("[WekaServer] A problem occurred while "
-            + "trying to send task status back to master server : \n"
-            + ex.getMessage());
-          ex.printStackTrace();
-        } finally {
-          if (is != null) {
-            try {
-              is.close();
-            } catch (IOException e) {
-              e.printStackTrace();
-            }
-          }
-
-          if (post != null) {
-            post.releaseConnection();
-          }
-        }
-      }
-    };
-
-    t.setPriority(Thread.MIN_PRIORITY);
-    t.start();
+  protected void sendTaskStatusInfoToMaster(WekaTaskEntry entry,
+    int taskStatus) {
+    m_masterNotifier.taskStatus(entry, taskStatus);
   }
 
   /**
@@ -1087,113 +1570,20 @@ public class WekaServer implements CommandlineRunnable {
    *          task should be purged
    */
   protected void purgeTasks(long purgeInterval) {
-    Date now = new Date();
-    long nowMilli = now.getTime();
-    boolean doPurge = false;
-
-    List<WekaTaskEntry> taskList = m_taskMap.getTaskList();
-    for (WekaTaskEntry t : taskList) {
-      NamedTask task = m_taskMap.getTask(t);
-      doPurge = false;
-      if (!(task instanceof Scheduled)) {
-        // Date lastExecuted = getExecutionTime(t);
-        Date lastExecuted = t.getLastExecution();
-        if (lastExecuted != null) {
-          if (task.getTaskStatus().getExecutionStatus() == TaskStatusInfo.PROCESSING) {
-            // don't purge executing tasks!!
-            continue;
-          }
-          long milli = lastExecuted.getTime();
-
-          // leave tasks that were sent to us from another server for twice as
-          // long in
-          // order to give the master a chance to tell us to purge them
-          long pI =
-            (t.getCameFromMaster() ? (purgeInterval * 2) : purgeInterval);
-
-          if (nowMilli - milli > pI) {
-            doPurge = true;
-          }
-        }
-      } else {
-        Date lastExecuted = t.getLastExecution();
-        Date nextExecution =
-          ((Scheduled) task).getSchedule().nextExecution(lastExecuted);
-        if (nextExecution == null && lastExecuted != null) {
-          long milli = lastExecuted.getTime();
-
-          // leave tasks that were sent to us from another server for twice as
-          // long in
-          // order to give the master a chance to tell us to purge them
-          long pI =
-            (t.getCameFromMaster() ? (purgeInterval * 2) : purgeInterval);
-
-          if (nowMilli - milli > pI) {
-            doPurge = true;
-          }
-        }
-      }
-
-      if (doPurge) {
-        PostMethod post = null;
-        InputStream is = null;
-
-        try {
-          String url = "http://" + getHostname() + ":" + getPort();
-          url = url.replace(" ", "%20");
-          url += PurgeTaskServlet.CONTEXT_PATH;
-	  url += "/?name=" + URLEncoder.encode(t.toString(), "UTF-8");
-          url += "&client=Y";
-
-          post = new PostMethod(url);
-          post.setDoAuthentication(true);
-          post.addRequestHeader(new Header("Content-Type", "text/plain"));
-
-          // Get HTTP client
-          HttpClient client =
-            ConnectionManager.getSingleton().createHttpClient();
-          ConnectionManager.addCredentials(client, m_username, m_password);
-
-          // Execute request
-          int result = client.executeMethod(post);
-          // System.out.println("[WekaServer] Response from master server : " +
-          // result);
-          if (result == 401) {
-            System.err.println("[WekaServer] Unable to purge task"
-              + " - authentication required.\n");
-          } else {
-            // the response
-            is = post.getResponseBodyAsStream();
-            ObjectInputStream ois = new ObjectInputStream(is);
-            Object response = ois.readObject();
-            if (response.toString().startsWith(WekaServlet.RESPONSE_ERROR)) {
-              System.err.println("[WekaServer] A problem occurred while "
-                + "trying to purge task (" + t.toString() + "): \n" + "\t"
-                + response.toString());
-            } else {
-              System.out.println("[WekaServer] purged task: " + t.toString());
-            }
-          }
-        } catch (Exception ex) {
-          System.err
-            .println("[WekaServer] A problem occurred while "
-              + "trying to purge task (" + t.toString() + "): "
-              + ex.getMessage());
-          ex.printStackTrace();
-        } finally {
-          if (is != null) {
-            try {
-              is.close();
-            } catch (IOException e) {
-              e.printStackTrace();
-            }
-          }
-
-          if (post != null) {
-            post.releaseConnection();
-          }
-        }
-      }
+    long start = System.nanoTime();
+    TaskPurger.PurgeResult result = m_taskPurger.purgeStale(purgeInterval);
+    ServerMetrics.getSingleton().histogram(
+      "weka_server_purge_duration_seconds",
+      "Time taken by runs of the stale task purger",
+      ServerMetrics.LATENCY_BUCKETS).observe(System.nanoTime() - start);
+
+    for (String problem : result.getProblems()) {
+      System.err.println("[WekaServer] " + problem);
+    }
+    if (result.getNumPurged() > 0) {
+      System.out.println("[WekaServer] Purged " + result.getNumPurged()
+        + " stale task(s), reclaiming " + result.getBytesReclaimed()
+        + " bytes.");
     }
   }
 
@@ -1203,15 +1593,18 @@ public class WekaServer implements CommandlineRunnable {
    * @param entry the task entry for the task to cleanup
    */
   protected void cleanupTask(WekaTaskEntry entry) {
+    m_scheduleDispatcher.cancel(entry);
+    m_resultCache.invalidate(entry.toString());
+    if (m_taskIndex != null) {
+      m_taskIndex.remove(entry);
+    }
 
     if (!checkPersistenceSubDir()) {
       return;
     }
 
     // try and remove the persisted task
-    File persist =
-      new File(TASK_PERSISTENCE_DIRECTORY + m_hostname + "_" + m_port
-        + File.separator + entry.toString());
+    File persist = getPersistedTaskFile(entry);
 
     if (persist.exists()) {
       if (!persist.delete()) {
@@ -1221,65 +1614,89 @@ public class WekaServer implements CommandlineRunnable {
   }
 
   /**
-   * Load any persisted tasks
+   * Find any persisted tasks and register them with the task map. The tasks
+   * themselves are loaded later (see TaskRecovery).
    */
-  private void loadTasks() {
-    try {
-      if (!checkPersistenceSubDir()) {
-        return;
-      }
-      File persistDir =
-        new File(TASK_PERSISTENCE_DIRECTORY + m_hostname + "_" + m_port
-          + File.separator);
-      File[] contents = persistDir.listFiles();
-      /*
-       * System.out.println("Checking persisted tasks...");
-       * System.out.println("Directory contains " + contents.length + " files");
-       */
-      for (File f : contents) {
-        System.out.println(f.toString());
-        ObjectInputStream ois =
-          new ObjectInputStream(new BufferedInputStream(new FileInputStream(f)));
-        Object holder = ois.readObject();
-        ois.close();
-        ois = null;
-
-        if (holder instanceof TaskHolder) {
-          WekaTaskEntry entry = ((TaskHolder) holder).getTaskEntry();
-          NamedTask task = ((TaskHolder) holder).getTask();
-
-          // set the originating server to this WekaServer instance so that the
-          // logging object
-          // can create the appropriate logging subdirectory (if necessary)
-          entry.setOriginatingServer(getHostname() + ":" + getPort());
-
-          // set a log (since logs are transient)
-          if (task instanceof LogHandler) {
-            ServerLogger sl = new ServerLogger(entry);
-            ((LogHandler) task).setLog(sl);
-
-            // try and load any historical log entries
-            sl.loadLog();
-
-            // ask the task to persist any resources
-            task.persistResources();
-
-            m_taskMap.addTask(entry, task);
-
-            if (!(task instanceof Scheduled)) {
-              if (entry.getLastExecution() == null) {
-                // was not executed previously, so execute now
-                executeTask(entry);
-              }
-            }
-          }
-        }
+  private void findPersistedTasks() {
+    if (!checkPersistenceSubDir()) {
+      return;
+    }
+
+    m_taskIndex =
+      new TaskIndex(new File(TASK_PERSISTENCE_DIRECTORY + m_hostname + "_"
+        + m_port + ".index"));
+    m_taskRecovery = new TaskRecovery(this, m_taskMap);
+    m_taskRecovery.findTasks(new File(TASK_PERSISTENCE_DIRECTORY + m_hostname
+      + "_" + m_port + File.separator), m_taskIndex);
+    m_taskIndex.start();
+  }
+
+  /**
+   * Called when a persisted task has been loaded at start up
+   * 
+   * @param entry the entry for the task
+   * @param task the task
+   */
+  protected void taskRecovered(WekaTaskEntry entry, NamedTask task) {
+    m_taskIndex.update(entry, getExecutionStatus(task));
+
+    if (task instanceof Scheduled) {
+      m_scheduleDispatcher.schedule(entry);
+    } else {
+      if (entry.getLastExecution() == null) {
+        // was not executed previously, so execute now
+        executeTask(entry);
       }
-    } catch (Exception ex) {
-      ex.printStackTrace();
     }
   }
 
+  /**
+   * Get the recovery of persisted tasks
+   * 
+   * @return the task recovery (may be null if the server has not been started
+   *         or there is no persistence directory)
+   */
+  public TaskRecovery getTaskRecovery() {
+    return m_taskRecovery;
+  }
+
+  /**
+   * Get the index of persisted tasks
+   * 
+   * @return the task index (may be null if there is no persistence
+   *         directory)
+   */
+  public TaskIndex getTaskIndex() {
+    return m_taskIndex;
+  }
+
+  /**
+   * Get the cache of recently fetched task results
+   * 
+   * @return the result cache
+   */
+  public ResultCache getResultCache() {
+    return m_resultCache;
+  }
+
+  /**
+   * Set the maximum total size of the results held in the result cache
+   * 
+   * @param maxBytes the maximum size (bytes). 0 disables the cache.
+   */
+  public void setResultCacheSize(long maxBytes) {
+    m_resultCache.setMaxBytes(maxBytes);
+  }
+
+  /**
+   * Get the maximum total size of the results held in the result cache
+   * 
+   * @return the maximum size (bytes)
+   */
+  public long getResultCacheSize() {
+    return m_resultCache.getMaxBytes();
+  }
+
   /**
    * Check and create the persistence subdirectory if necessary
    * 
@@ -1305,11 +1722,11 @@ public class WekaServer implements CommandlineRunnable {
    * @return the number of running tasks
    */
   public int numRunningTasks() {
-    if (m_executorPool == null) {
+    if (m_executionEngine == null) {
       return -1;
     }
 
-    return m_executorPool.getActiveCount();
+    return m_executionEngine.getActiveCount();
   }
 
   /**
@@ -1318,11 +1735,26 @@ public class WekaServer implements CommandlineRunnable {
    * @return the number of queued tasks
    */
   public int numQueuedTasks() {
-    if (m_executorPool == null) {
+    if (m_executionEngine == null) {
       return -1;
     }
 
-    return m_executorPool.getQueue().size();
+    return m_executionEngine.getQueuedCount();
+  }
+
+  /**
+   * Get the number of queued tasks in a given priority class
+   * 
+   * @param priority the priority class
+   * @return the number of queued tasks in the priority class (or -1 if not
+   *         known)
+   */
+  public int numQueuedTasks(TaskPriority priority) {
+    if (m_executionEngine == null) {
+      return -1;
+    }
+
+    return m_executionEngine.getQueuedCount(priority);
   }
 
   /**
@@ -1399,6 +1831,63 @@ public class WekaServer implements CommandlineRunnable {
     return m_jettyServer;
   }
 
+  /**
+   * Get the connector that accepts requests
+   * 
+   * @return the connector (null if the server has not been started)
+   */
+  public AbstractConnector getConnector() {
+    return m_connector;
+  }
+
+  /**
+   * Get the threads that handle requests
+   * 
+   * @return the thread pool (null if the server has not been started)
+   */
+  public QueuedThreadPool getRequestThreadPool() {
+    return m_requestThreads;
+  }
+
+  /**
+   * Set the type of connector to use for accepting requests ("nio" for a
+   * selector based connector or "bio" for a blocking one). Takes effect when
+   * the server is started.
+   * 
+   * @param type the type of connector
+   */
+  public void setConnectorType(String type) {
+    m_connectorType = type;
+  }
+
+  /**
+   * Get the type of connector to use for accepting requests
+   * 
+   * @return the type of connector
+   */
+  public String getConnectorType() {
+    return m_connectorType;
+  }
+
+  /**
+   * Set the maximum number of threads handling requests. Takes effect when
+   * the server is started.
+   * 
+   * @param max the maximum number of threads
+   */
+  public void setMaxRequestThreads(int max) {
+    m_maxRequestThreads = max;
+  }
+
+  /**
+   * Get the maximum number of threads handling requests
+   * 
+   * @return the maximum number of threads
+   */
+  public int getMaxRequestThreads() {
+    return m_maxRequestThreads;
+  }
+
   /**
    * Set whether this server should run as a daemon
    * 
@@ -1435,6 +1924,25 @@ public class WekaServer implements CommandlineRunnable {
     return m_numExecutionSlots;
   }
 
+  /**
+   * Set the type of execution engine to use ("priority", "fifo" or the fully
+   * qualified name of a TaskExecutionEngine implementation)
+   * 
+   * @param type the type of execution engine to use
+   */
+  public void setExecutionEngineType(String type) {
+    m_executionEngineType = type;
+  }
+
+  /**
+   * Get the type of execution engine to use
+   * 
+   * @return the type of execution engine to use
+   */
+  public String getExecutionEngineType() {
+    return m_executionEngineType;
+  }
+
   /**
    * Set the stale task time (in milliseconds)
    * 
@@ -1471,6 +1979,25 @@ public class WekaServer implements CommandlineRunnable {
     return m_loadAdjust;
   }
 
+  /**
+   * Set the interval at which load heartbeats are sent to the master. A value
+   * of zero or less disables heartbeats.
+   * 
+   * @param interval the heartbeat interval (milliseconds)
+   */
+  public void setHeartbeatInterval(long interval) {
+    m_heartbeatInterval = interval;
+  }
+
+  /**
+   * Get the interval at which load heartbeats are sent to the master
+   * 
+   * @return the heartbeat interval (milliseconds)
+   */
+  public long getHeartbeatInterval() {
+    return m_heartbeatInterval;
+  }
+
   /**
    * Set the master server (if this server is a slave)
    * 
@@ -1506,6 +2033,11 @@ public class WekaServer implements CommandlineRunnable {
    */
   protected boolean removeSlave(String slave) {
     String removed = m_slaves.remove(slave);
+    if (m_remoteDispatcher != null) {
+      m_remoteDispatcher.removeSlave(slave);
+    }
+    m_clusterLoad.remove(slave);
+    m_loadPoller.forget(slave);
 
     return (removed != null);
   }
@@ -1527,7 +2059,13 @@ public class WekaServer implements CommandlineRunnable {
   public static String commandLineUsage() {
     return "Usage: WekaServer [-host <hostname>] [-port <port>] "
       + "[-slots <numSlots>] [-load-adjust <value>] [-daemon] "
-      + "[-master <master:port>] [-staleTime <milliseconds>]";
+      + "[-master <master:port>] [-staleTime <milliseconds>] "
+      + "[-engine <priority | fifo | classname>] "
+      + "[-heartbeat <milliseconds>] [-resultCache <bytes>] "
+      + "[-connector <nio | bio>] [-threads <maxRequestThreads>] "
+      + "[-loadTimeout <milliseconds>] "
+      + "[-logOverflow <discard | discard-oldest | block>] "
+      + "[-codec <none | fast | gzip[-level]>]";
   }
 
   @Override
@@ -1557,6 +2095,14 @@ public class WekaServer implements CommandlineRunnable {
       double loadAdjust = 0.0;
       String master = null;
       long purgeInterval = 0;
+      String engine = null;
+      long heartbeat = -1;
+      long resultCache = -1;
+      String connector = null;
+      int threads = -1;
+      int loadTimeout = -1;
+      String logOverflow = null;
+      String codec = null;
 
       // process options
       for (int i = 0; i < args.length; i++) {
@@ -1596,6 +2142,54 @@ public class WekaServer implements CommandlineRunnable {
             System.exit(1);
           }
           purgeInterval = Long.parseLong(args[i]);
+        } else if (args[i].equalsIgnoreCase("-engine")) {
+          if (++i == args.length) {
+            System.out.println(WekaServer.commandLineUsage());
+            System.exit(1);
+          }
+          engine = args[i];
+        } else if (args[i].equalsIgnoreCase("-heartbeat")) {
+          if (++i == args.length) {
+            System.out.println(WekaServer.commandLineUsage());
+            System.exit(1);
+          }
+          heartbeat = Long.parseLong(args[i]);
+        } else if (args[i].equalsIgnoreCase("-resultCache")) {
+          if (++i == args.length) {
+            System.out.println(WekaServer.commandLineUsage());
+            System.exit(1);
+          }
+          resultCache = Long.parseLong(args[i]);
+        } else if (args[i].equalsIgnoreCase("-connector")) {
+          if (++i == args.length) {
+            System.out.println(WekaServer.commandLineUsage());
+            System.exit(1);
+          }
+          connector = args[i];
+        } else if (args[i].equalsIgnoreCase("-threads")) {
+          if (++i == args.length) {
+            System.out.println(WekaServer.commandLineUsage());
+            System.exit(1);
+          }
+          threads = Integer.parseInt(args[i]);
+        } else if (args[i].equalsIgnoreCase("-loadTimeout")) {
+          if (++i == args.length) {
+            System.out.println(WekaServer.commandLineUsage());
+            System.exit(1);
+          }
+          loadTimeout = Integer.parseInt(args[i]);
+        } else if (args[i].equalsIgnoreCase("-logOverflow")) {
+          if (++i == args.length) {
+            System.out.println(WekaServer.commandLineUsage());
+            System.exit(1);
+          }
+          logOverflow = args[i];
+        } else if (args[i].equalsIgnoreCase("-codec")) {
+          if (++i == args.length) {
+            System.out.println(WekaServer.commandLineUsage());
+            System.exit(1);
+          }
+          codec = args[i];
         } else if (args[i].equalsIgnoreCase("-daemon")) {
           daemon = true;
         } else {
@@ -1634,6 +2228,30 @@ public class WekaServer implements CommandlineRunnable {
       if (purgeInterval != 0) {
         server.setStaleTaskTime(purgeInterval);
       }
+      if (engine != null) {
+        server.setExecutionEngineType(engine);
+      }
+      if (heartbeat >= 0) {
+        server.setHeartbeatInterval(heartbeat);
+      }
+      if (resultCache >= 0) {
+        server.setResultCacheSize(resultCache);
+      }
+      if (connector != null) {
+        server.setConnectorType(connector);
+      }
+      if (threads > 0) {
+        server.setMaxRequestThreads(threads);
+      }
+      if (loadTimeout > 0) {
+        server.getLoadPoller().setTimeout(loadTimeout);
+      }
+      if (logOverflow != null) {
+        LogAppender.getSingleton().setOverflowPolicy(logOverflow.toLowerCase());
+      }
+      if (codec != null) {
+        Compression.setDefault(Compression.forName(codec));
+      }
       server.setDaemon(daemon);
       server.setMaster(master);
 
@@ -28,6 +28,10 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Response;
+import org.mortbay.jetty.RetryRequest;
+
 /**
  * Base class for Weka servlets.
  * 
@@ -53,6 +57,15 @@ public abstract class WekaServlet extends HttpServlet {
   /** A reference to the server itself */
   protected WekaServer m_server;
 
+  /** Bytes read from request bodies by this servlet */
+  protected transient ServerMetrics.Counter m_bytesIn;
+
+  /** Bytes written to responses by this servlet */
+  protected transient ServerMetrics.Counter m_bytesOut;
+
+  /** Time taken by this servlet to handle requests (set last) */
+  protected transient volatile ServerMetrics.Histogram m_latency;
+
   /**
    * Constructor
    */
@@ -70,6 +83,70 @@ public abstract class WekaServlet extends HttpServlet {
     m_server = server;
   }
 
+  /**
+   * Handle a request, recording how long it took and how many bytes were
+   * read and written. Every response lists the compression codecs this
+   * server accepts.
+   * 
+   * @param request the request
+   * @param response the response
+   * 
+   * @throws ServletException
+   * @throws IOException
+   */
+  @Override
+  protected void service(HttpServletRequest request,
+    HttpServletResponse response) throws ServletException, IOException {
+    long start = System.nanoTime();
+    boolean suspended = false;
+    response.setHeader(Compression.ACCEPT_HEADER,
+      Compression.getAcceptedCodecs());
+    try {
+      super.service(request, response);
+    } catch (RetryRequest retry) {
+      // suspended - it gets recorded when it is retried
+      suspended = true;
+      throw retry;
+    } finally {
+      if (!suspended) {
+        requestCompleted(request, response, System.nanoTime() - start);
+      }
+    }
+  }
+
+  /**
+   * Record the metrics for a request
+   * 
+   * @param request the request
+   * @param response the response
+   * @param nanos the time taken to handle the request (nanoseconds)
+   */
+  protected void requestCompleted(HttpServletRequest request,
+    HttpServletResponse response, long nanos) {
+    if (m_latency == null) {
+      ServerMetrics metrics = ServerMetrics.getSingleton();
+      String servlet = getClass().getSimpleName();
+      m_bytesIn =
+        metrics.counter("weka_server_http_request_bytes_total",
+          "Bytes read from HTTP request bodies", "servlet", servlet);
+      m_bytesOut =
+        metrics.counter("weka_server_http_response_bytes_total",
+          "Bytes written to HTTP responses", "servlet", servlet);
+      m_latency =
+        metrics.histogram("weka_server_http_request_duration_seconds",
+          "Time taken to handle HTTP requests",
+          ServerMetrics.LATENCY_BUCKETS, "servlet", servlet);
+    }
+
+    m_latency.observe(nanos);
+    if (request instanceof Request) {
+      m_bytesIn.add(Math.max(0, ((Request) request).getContentRead()));
+    }
+    if (response instanceof Response) {
+      m_bytesOut.add(Math.max(0, ((Response) response).getContentCount()));
+    }
+  }
+
   /**
    * Process a HTTP PUT
    * 
@@ -21,6 +21,7 @@
 
 package weka.server;
 
+import java.io.File;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -29,7 +30,16 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import weka.core.LogHandler;
 import weka.experiment.Task;
@@ -38,7 +48,12 @@ import weka.gui.Logger;
 import weka.server.logging.ServerLogger;
 
 /**
- * Class that maintains a map of tasks for execution.
+ * Class that maintains a map of tasks for execution. Lookups do not lock: tasks
+ * are held in concurrent maps and indexed by name---ID, name, remote ID,
+ * server, execution status and whether they are scheduled. Changes to the map
+ * are serialized. The sorted task list is cached and only rebuilt when tasks
+ * have been added or removed. Every change is given a version so that clients
+ * can ask for just the changes since the version they have.
  * 
  * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
  * @version $Revision: 10248 $
@@ -189,6 +204,31 @@ public class WekaTaskMap {
       return m_lastExecution;
     }
 
+    /**
+     * Copy the server, remote ID, originating server, master flag and last
+     * execution time from another entry
+     * 
+     * @param other the entry to copy from
+     */
+    public synchronized void copyDetails(WekaTaskEntry other) {
+      m_server = other.getServer();
+      m_remoteID = other.getRemoteID();
+      m_originatingServer = other.getOriginatingServer();
+      m_fromMaster = other.getCameFromMaster();
+      m_lastExecution = other.getLastExecution();
+    }
+
+    /**
+     * Make a copy of this entry
+     * 
+     * @return a copy of this entry
+     */
+    public WekaTaskEntry copy() {
+      WekaTaskEntry copy = new WekaTaskEntry(m_taskName, m_taskID);
+      copy.copyDetails(this);
+      return copy;
+    }
+
     @Override
     public String toString() {
       return m_taskName + s_taskNameIDSeparator + m_taskID;
@@ -315,7 +355,8 @@ public class WekaTaskMap {
    * 
    * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
    */
-  public static class NamedClassDelegator implements NamedTask, LogHandler {
+  public static class NamedClassDelegator implements NamedTask, LogHandler,
+    Prioritized, PersistedFiles, PersistedResult, IncrementalStatus {
 
     /**
      * For serialization
@@ -367,6 +408,19 @@ public class WekaTaskMap {
       return null;
     }
 
+    @Override
+    public int getExecutionStatus() {
+      return WekaServer.getExecutionStatus(m_wrappedTask);
+    }
+
+    @Override
+    public ServerLogger getServerLog() {
+      if (m_wrappedTask instanceof IncrementalStatus) {
+        return ((IncrementalStatus) m_wrappedTask).getServerLog();
+      }
+      return null;
+    }
+
     @Override
     public void freeMemory() {
       m_wrappedTask.freeMemory();
@@ -391,20 +445,417 @@ public class WekaTaskMap {
     public void purge() {
       m_wrappedTask.purge();
     }
+
+    @Override
+    public List<File> getPersistedFiles() {
+      if (m_wrappedTask instanceof PersistedFiles) {
+        return ((PersistedFiles) m_wrappedTask).getPersistedFiles();
+      }
+      return new ArrayList<File>();
+    }
+
+    @Override
+    public File getPersistedResult() {
+      if (m_wrappedTask instanceof PersistedResult) {
+        return ((PersistedResult) m_wrappedTask).getPersistedResult();
+      }
+      return null;
+    }
+
+    @Override
+    public TaskPriority getTaskPriority() {
+      // keep the priority class of the (possibly scheduled) wrapped task
+      return TaskPriority.priorityOf(m_wrappedTask);
+    }
+  }
+
+  /**
+   * The keys that a task is currently filed under in the secondary indexes
+   */
+  protected static class IndexKeys {
+    protected String m_remoteID;
+    protected String m_server;
+    protected int m_status = -1;
+    protected boolean m_scheduled;
+  }
+
+  /**
+   * The tasks that have been added, changed or removed since a given version
+   * of the map
+   */
+  public static class TaskChanges {
+    protected long m_version;
+    protected boolean m_reset;
+    protected List<WekaTaskEntry> m_changed = new ArrayList<WekaTaskEntry>();
+    protected List<String> m_removed = new ArrayList<String>();
+
+    /**
+     * Get the version of the map that these changes bring a client up to
+     * 
+     * @return the version
+     */
+    public long getVersion() {
+      return m_version;
+    }
+
+    /**
+     * True if the version asked about is too old (or from before the server
+     * was restarted), in which case the changed list holds all the tasks and
+     * the client should discard the tasks it knows about
+     * 
+     * @return true if the changes are a complete list of tasks
+     */
+    public boolean isReset() {
+      return m_reset;
+    }
+
+    /**
+     * Get the tasks added or changed (sorted)
+     * 
+     * @return the tasks added or changed
+     */
+    public List<WekaTaskEntry> getChanged() {
+      return m_changed;
+    }
+
+    /**
+     * Get the name---IDs of the tasks removed
+     * 
+     * @return the tasks removed
+     */
+    public List<String> getRemoved() {
+      return m_removed;
+    }
+  }
+
+  /**
+   * A sorted, read-only list of the tasks as of a given version of the map
+   */
+  protected static class Snapshot {
+    protected long m_version;
+    protected List<WekaTaskEntry> m_tasks;
+
+    protected Snapshot(long version, List<WekaTaskEntry> tasks) {
+      m_version = version;
+      m_tasks = tasks;
+    }
   }
 
   /** The map of tasks */
-  protected Map<WekaTaskEntry, NamedTask> m_taskMap = new HashMap<WekaTaskEntry, NamedTask>();
+  protected Map<WekaTaskEntry, NamedTask> m_taskMap =
+    new ConcurrentHashMap<WekaTaskEntry, NamedTask>();
 
   /** Holds task ID returned by slave server */
   protected Map<WekaTaskEntry, String> m_slaveTask = new HashMap<WekaTaskEntry, String>();
 
-  public synchronized void addTask(WekaTaskEntry entry, NamedTask task) {
-    m_taskMap.put(entry, task);
+  /**
+   * Tasks that are known about (e.g. from the persisted task index at start
+   * up) but have not been loaded yet. Each is loaded by its loader, either in
+   * the background or by the first thread that asks for it.
+   */
+  protected ConcurrentHashMap<WekaTaskEntry, FutureTask<NamedTask>> m_pending =
+    new ConcurrentHashMap<WekaTaskEntry, FutureTask<NamedTask>>();
+
+  /** All tasks (loaded and pending) keyed by name---ID */
+  protected ConcurrentHashMap<String, WekaTaskEntry> m_byKey =
+    new ConcurrentHashMap<String, WekaTaskEntry>();
+
+  /** Tasks by name */
+  protected ConcurrentHashMap<String, Set<WekaTaskEntry>> m_byName =
+    new ConcurrentHashMap<String, Set<WekaTaskEntry>>();
+
+  /** Tasks by the ID given to them by the slave they were handed to */
+  protected ConcurrentHashMap<String, WekaTaskEntry> m_byRemoteID =
+    new ConcurrentHashMap<String, WekaTaskEntry>();
+
+  /** Tasks by the server they were last handed to */
+  protected ConcurrentHashMap<String, Set<WekaTaskEntry>> m_byServer =
+    new ConcurrentHashMap<String, Set<WekaTaskEntry>>();
 
+  /** Tasks by execution status */
+  protected ConcurrentHashMap<Integer, Set<WekaTaskEntry>> m_byStatus =
+    new ConcurrentHashMap<Integer, Set<WekaTaskEntry>>();
+
+  /** Scheduled tasks */
+  protected Set<WekaTaskEntry> m_scheduled =
+    new ConcurrentSkipListSet<WekaTaskEntry>();
+
+  /** The keys each task is filed under in the secondary indexes */
+  protected ConcurrentHashMap<String, IndexKeys> m_indexKeys =
+    new ConcurrentHashMap<String, IndexKeys>();
+
+  /** Incremented whenever a task is added or removed */
+  protected AtomicLong m_listVersion = new AtomicLong();
+
+  /**
+   * Maximum number of removals remembered. Clients asking for changes since
+   * before the oldest remembered removal get a full list of tasks.
+   */
+  public static final int MAX_REMOVED = 10000;
+
+  /**
+   * The version of the latest change. Versions start at the time the map was
+   * created so that versions handed out before a restart are older than any
+   * change since.
+   */
+  protected AtomicLong m_changeVersion = new AtomicLong(
+    System.currentTimeMillis());
+
+  /** Changes can only be worked out from this version onwards */
+  protected volatile long m_oldestChangeVersion = m_changeVersion.get();
+
+  /** Latest change version of each task that is still in the map */
+  protected ConcurrentSkipListMap<Long, String> m_changeLog =
+    new ConcurrentSkipListMap<Long, String>();
+
+  /** Change version of each remembered removal */
+  protected ConcurrentSkipListMap<Long, String> m_removed =
+    new ConcurrentSkipListMap<Long, String>();
+
+  /** The version of the latest change (or removal) of each task */
+  protected ConcurrentHashMap<String, Long> m_changeVersions =
+    new ConcurrentHashMap<String, Long>();
+
+  /** The most recent task list */
+  protected volatile Snapshot m_snapshot;
+
+  /**
+   * Task events raised while holding the lock on the map, waiting to be
+   * published once the lock has been released
+   */
+  protected ConcurrentLinkedQueue<TaskEventBus.TaskEvent> m_events =
+    new ConcurrentLinkedQueue<TaskEventBus.TaskEvent>();
+
+  /** True while a thread is publishing the queued events */
+  protected AtomicBoolean m_publishing = new AtomicBoolean();
+
+  /**
+   * Queue a task event for publishing. Only called while holding the lock on
+   * the map.
+   *
+   * @param taskID the name---ID of the task
+   * @param type the type of the event
+   * @param status the execution status of the task
+   */
+  protected void queueEvent(String taskID, int type, int status) {
+    m_events.add(new TaskEventBus.TaskEvent(-1, taskID, type, status, null));
+  }
+
+  /**
+   * Publish the queued task events (in the order they were raised). Does
+   * nothing if called while holding the lock on the map - the events are
+   * published when the outermost locked method returns.
+   */
+  protected void publishEvents() {
+    if (Thread.holdsLock(this)) {
+      return;
+    }
+    // one thread at a time so that the events stay in order
+    while (!m_events.isEmpty() && m_publishing.compareAndSet(false, true)) {
+      try {
+        TaskEventBus bus = TaskEventBus.getSingleton();
+        TaskEventBus.TaskEvent e;
+        while ((e = m_events.poll()) != null) {
+          bus.publish(e.getTaskID(), e.getType(), e.getStatus(), null);
+        }
+      } finally {
+        m_publishing.set(false);
+      }
+    }
   }
 
-  public synchronized WekaTaskEntry addTask(NamedTask task) {
+  /**
+   * Add an entry to a set in a multi-valued index. Only called while holding
+   * the lock on the map.
+   *
+   * @param index the index
+   * @param key the key to file the entry under
+   * @param entry the entry
+   */
+  protected static <K> void addToIndex(Map<K, Set<WekaTaskEntry>> index,
+    K key, WekaTaskEntry entry) {
+    Set<WekaTaskEntry> entries = index.get(key);
+    if (entries == null) {
+      entries = new ConcurrentSkipListSet<WekaTaskEntry>();
+      index.put(key, entries);
+    }
+    entries.add(entry);
+  }
+
+  /**
+   * Remove an entry from a set in a multi-valued index. Only called while
+   * holding the lock on the map.
+   *
+   * @param index the index
+   * @param key the key the entry is filed under
+   * @param entry the entry
+   */
+  protected static <K> void removeFromIndex(Map<K, Set<WekaTaskEntry>> index,
+    K key, WekaTaskEntry entry) {
+    Set<WekaTaskEntry> entries = index.get(key);
+    if (entries != null) {
+      entries.remove(entry);
+      if (entries.isEmpty()) {
+        index.remove(key);
+      }
+    }
+  }
+
+  /**
+   * File a task under its name---ID and name. Only called while holding the
+   * lock on the map.
+   *
+   * @param entry the entry for the task
+   */
+  protected void indexKey(WekaTaskEntry entry) {
+    WekaTaskEntry existing = m_byKey.put(entry.toString(), entry);
+    if (existing != entry) {
+      if (existing != null) {
+        // replacing an equal entry - drop the old one from the indexes
+        removeFromIndex(m_byName, existing.getName(), existing);
+        unindexDetails(existing);
+      }
+      addToIndex(m_byName, entry.getName(), entry);
+    }
+    m_listVersion.incrementAndGet();
+  }
+
+  /**
+   * (Re)file a task under its remote ID, server, status and scheduled-ness.
+   * Only called while holding the lock on the map.
+   *
+   * @param entry the entry for the task
+   * @param task the task (null if it has not been loaded yet, in which case
+   *          the status it was last filed under is kept)
+   */
+  protected void indexDetails(WekaTaskEntry entry, NamedTask task) {
+    IndexKeys previous = m_indexKeys.get(entry.toString());
+    indexDetails(entry, task, previous != null ? previous.m_status : -1);
+  }
+
+  /**
+   * (Re)file a task under its remote ID, server, status and scheduled-ness.
+   * Only called while holding the lock on the map.
+   *
+   * @param entry the entry for the task
+   * @param task the task (null if it has not been loaded yet)
+   * @param pendingStatus the status to file the task under if it has not been
+   *          loaded yet (-1 if not known)
+   */
+  protected void indexDetails(WekaTaskEntry entry, NamedTask task,
+    int pendingStatus) {
+    IndexKeys previous = m_indexKeys.get(entry.toString());
+    unindexDetails(entry);
+
+    IndexKeys keys = new IndexKeys();
+    keys.m_remoteID = entry.getRemoteID();
+    keys.m_server = entry.getServer();
+    if (task != null) {
+      keys.m_status = WekaServer.getExecutionStatus(task);
+      keys.m_scheduled = task instanceof Scheduled;
+    } else {
+      keys.m_status = pendingStatus;
+    }
+
+    if (keys.m_remoteID != null) {
+      m_byRemoteID.put(keys.m_remoteID, entry);
+    }
+    if (keys.m_server != null) {
+      addToIndex(m_byServer, keys.m_server, entry);
+    }
+    addToIndex(m_byStatus, keys.m_status, entry);
+    if (keys.m_scheduled) {
+      m_scheduled.add(entry);
+    }
+    m_indexKeys.put(entry.toString(), keys);
+    recordChange(entry.toString(), false);
+
+    if (keys.m_status >= 0
+      && (previous == null || previous.m_status != keys.m_status)) {
+      queueEvent(entry.toString(), TaskEventBus.STATUS, keys.m_status);
+    }
+  }
+
+  /**
+   * Record that a task has been added, changed or removed. Only called while
+   * holding the lock on the map.
+   * 
+   * @param key the name---ID of the task
+   * @param removed true if the task has been removed
+   */
+  protected void recordChange(String key, boolean removed) {
+    long version = m_changeVersion.get() + 1;
+    Long previous = m_changeVersions.put(key, version);
+    if (previous != null) {
+      m_changeLog.remove(previous);
+      m_removed.remove(previous);
+    }
+
+    if (removed) {
+      m_removed.put(version, key);
+      while (m_removed.size() > MAX_REMOVED) {
+        Map.Entry<Long, String> oldest = m_removed.pollFirstEntry();
+        m_changeVersions.remove(oldest.getValue());
+        m_oldestChangeVersion = oldest.getKey();
+      }
+    } else {
+      m_changeLog.put(version, key);
+    }
+
+    // publish the change
+    m_changeVersion.set(version);
+  }
+
+  /**
+   * Remove a task from the remote ID, server, status and scheduled indexes.
+   * Only called while holding the lock on the map.
+   *
+   * @param entry the entry for the task
+   */
+  protected void unindexDetails(WekaTaskEntry entry) {
+    IndexKeys keys = m_indexKeys.remove(entry.toString());
+    if (keys == null) {
+      return;
+    }
+
+    if (keys.m_remoteID != null && m_byRemoteID.get(keys.m_remoteID) == entry) {
+      m_byRemoteID.remove(keys.m_remoteID);
+    }
+    if (keys.m_server != null) {
+      removeFromIndex(m_byServer, keys.m_server, entry);
+    }
+    removeFromIndex(m_byStatus, keys.m_status, entry);
+    m_scheduled.remove(entry);
+  }
+
+  /**
+   * Remove a task from all the indexes. Only called while holding the lock on
+   * the map.
+   *
+   * @param entry the entry for the task
+   */
+  protected void unindex(WekaTaskEntry entry) {
+    WekaTaskEntry existing = m_byKey.remove(entry.toString());
+    if (existing != null) {
+      removeFromIndex(m_byName, existing.getName(), existing);
+      unindexDetails(existing);
+      recordChange(existing.toString(), true);
+      m_listVersion.incrementAndGet();
+      queueEvent(existing.toString(), TaskEventBus.REMOVED, -1);
+    }
+  }
+
+  public void addTask(WekaTaskEntry entry, NamedTask task) {
+    synchronized (this) {
+      m_taskMap.put(entry, task);
+      m_pending.remove(entry);
+      indexKey(entry);
+      indexDetails(entry, task);
+    }
+    publishEvents();
+  }
+
+  public WekaTaskEntry addTask(NamedTask task) {
     String name = task.getName();
     String id = UUID.randomUUID().toString().trim();
 
@@ -420,18 +871,175 @@ public class WekaTaskMap {
     return taskEntry;
   }
 
-  public synchronized WekaTaskEntry addTask(Task task) {
+  public WekaTaskEntry addTask(Task task) {
     SimpleNamedTask taskWrapper = new SimpleNamedTask(task);
     taskWrapper.setName(task.getClass().getName() + task.hashCode());
 
     return addTask(taskWrapper);
   }
 
-  public synchronized NamedTask getTask(WekaTaskEntry taskEntry) {
+  /**
+   * Add a batch of tasks. All the tasks appear in the task list at the same
+   * time.
+   *
+   * @param tasks the tasks to add (each must be a Task or NamedTask)
+   * @return the entries for the added tasks, in the same order as the tasks
+   */
+  public List<WekaTaskEntry> addTasks(List<? extends Task> tasks) {
+    List<WekaTaskEntry> entries = new ArrayList<WekaTaskEntry>();
+    synchronized (this) {
+      for (Task task : tasks) {
+        if (task instanceof NamedTask) {
+          entries.add(addTask((NamedTask) task));
+        } else {
+          entries.add(addTask(task));
+        }
+      }
+    }
+    publishEvents();
+
+    return entries;
+  }
+
+  /**
+   * Register a task that has not been loaded yet
+   * 
+   * @param entry the entry for the task
+   * @param loader loads the task and calls completePending() with it
+   */
+  public void addPendingTask(WekaTaskEntry entry,
+    FutureTask<NamedTask> loader) {
+    addPendingTask(entry, loader, -1);
+  }
+
+  /**
+   * Register a task that has not been loaded yet
+   * 
+   * @param entry the entry for the task
+   * @param loader loads the task and calls completePending() with it
+   * @param status the execution status the task was persisted with (-1 if
+   *          not known) - it is filed under this until it is loaded
+   */
+  public void addPendingTask(WekaTaskEntry entry,
+    FutureTask<NamedTask> loader, int status) {
+    synchronized (this) {
+      if (!m_taskMap.containsKey(entry)) {
+        m_pending.put(entry, loader);
+        indexKey(entry);
+        indexDetails(entry, null, status);
+      }
+    }
+    publishEvents();
+  }
+
+  /**
+   * Replace a pending task with the loaded task
+   * 
+   * @param entry the entry for the task
+   * @param task the loaded task
+   * @return false if the task is no longer pending (e.g. it has been removed
+   *         in the meantime)
+   */
+  public boolean completePending(WekaTaskEntry entry, NamedTask task) {
+    synchronized (this) {
+      if (m_pending.remove(entry) == null) {
+        return false;
+      }
+      m_taskMap.put(entry, task);
+      indexDetails(entry, task);
+    }
+    publishEvents();
+    return true;
+  }
+
+  /**
+   * Forget about a pending task that could not be loaded
+   * 
+   * @param entry the entry for the task
+   */
+  public void abandonPending(WekaTaskEntry entry) {
+    synchronized (this) {
+      if (m_pending.remove(entry) != null && !m_taskMap.containsKey(entry)) {
+        unindex(entry);
+      }
+    }
+    publishEvents();
+  }
+
+  /**
+   * Get the number of tasks that have not been loaded yet
+   * 
+   * @return the number of pending tasks
+   */
+  public int getNumPending() {
+    return m_pending.size();
+  }
+
+  /**
+   * Load a pending task in the calling thread (or wait for the thread that is
+   * already loading it)
+   * 
+   * @param taskEntry the entry for the task
+   * @return the task or null if the task is not pending or can't be loaded
+   */
+  protected NamedTask loadPending(WekaTaskEntry taskEntry) {
+    FutureTask<NamedTask> loader = m_pending.get(taskEntry);
+    if (loader == null) {
+      // might have just been loaded
+      return m_taskMap.get(taskEntry);
+    }
+
+    // does nothing if some other thread has got there first
+    loader.run();
+    try {
+      return loader.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException ex) {
+      // reported by the loader
+    }
+    return null;
+  }
+
+  /**
+   * Update the remote ID, server, status and scheduled indexes for a task
+   * after any of these have changed. The indexes reflect the state of a task
+   * as of the last time it was reindexed.
+   * 
+   * @param entry the entry for the task
+   */
+  public void reindex(WekaTaskEntry entry) {
+    synchronized (this) {
+      WekaTaskEntry existing = m_byKey.get(entry.toString());
+      if (existing == null) {
+        return;
+      }
+      indexDetails(existing, m_taskMap.get(existing));
+    }
+    publishEvents();
+  }
+
+  /**
+   * Get a task only if it has already been loaded. Unlike getTask() this
+   * never loads a pending (not yet recovered) task.
+   * 
+   * @param taskEntry the entry for the task
+   * @return the task or null if it is not loaded
+   */
+  public NamedTask getLoadedTask(WekaTaskEntry taskEntry) {
     return m_taskMap.get(taskEntry);
   }
 
-  public synchronized NamedTask getTask(String taskName) {
+  public NamedTask getTask(WekaTaskEntry taskEntry) {
+    NamedTask task = m_taskMap.get(taskEntry);
+
+    if (task == null && m_pending.size() > 0) {
+      task = loadPending(taskEntry);
+    }
+    return task;
+  }
+
+  public NamedTask getTask(String taskName) {
     if (taskName == null || taskName.length() == 0) {
       return null;
     }
@@ -441,50 +1049,205 @@ public class WekaTaskMap {
       String[] parts = taskName.split(s_taskNameIDSeparator);
       WekaTaskEntry lookup = new WekaTaskEntry(parts[0], parts[1]);
 
-      return m_taskMap.get(lookup);
+      return getTask(lookup);
     }
 
     // if we just have a name then return the first match
-    for (WekaTaskEntry taskEntry : m_taskMap.keySet()) {
-      if (taskEntry.getName().equals(taskName)) {
-        return m_taskMap.get(taskEntry);
+    Set<WekaTaskEntry> named = m_byName.get(taskName);
+    if (named != null) {
+      for (WekaTaskEntry taskEntry : named) {
+        NamedTask task = getTask(taskEntry);
+        if (task != null) {
+          return task;
+        }
       }
     }
     return null;
   }
 
-  public synchronized void removeTask(WekaTaskEntry wte) {
-    m_taskMap.remove(wte);
-    // m_lastExecution.remove(wte);
+  public void removeTask(WekaTaskEntry wte) {
+    synchronized (this) {
+      m_taskMap.remove(wte);
+      m_pending.remove(wte);
+      unindex(wte);
+      // m_lastExecution.remove(wte);
+    }
+    publishEvents();
   }
 
-  public synchronized List<WekaTaskEntry> getTaskList() {
-    ArrayList<WekaTaskEntry> taskList = new ArrayList<WekaTaskEntry>();
-    for (WekaTaskEntry taskEntry : m_taskMap.keySet()) {
-      taskList.add(taskEntry);
+  /**
+   * Get a sorted list of all the tasks. The list is shared between callers
+   * (and so can't be modified), and is only rebuilt when tasks have been
+   * added or removed since the last call.
+   * 
+   * @return the tasks
+   */
+  public List<WekaTaskEntry> getTaskList() {
+    Snapshot snapshot = m_snapshot;
+    if (snapshot != null && snapshot.m_version == m_listVersion.get()) {
+      return snapshot.m_tasks;
+    }
+
+    synchronized (this) {
+      snapshot = m_snapshot;
+      long version = m_listVersion.get();
+      if (snapshot == null || snapshot.m_version != version) {
+        List<WekaTaskEntry> taskList =
+          new ArrayList<WekaTaskEntry>(m_byKey.values());
+        Collections.sort(taskList);
+        snapshot =
+          new Snapshot(version, Collections.unmodifiableList(taskList));
+        m_snapshot = snapshot;
+      }
+      return snapshot.m_tasks;
     }
+  }
 
-    Collections.sort(taskList);
+  /**
+   * Get the current version of the map. This changes whenever tasks are
+   * added, removed or (re)indexed.
+   * 
+   * @return the version
+   */
+  public long getVersion() {
+    return m_changeVersion.get();
+  }
 
-    return taskList;
+  /**
+   * Get the tasks that have been added, changed or removed since a given
+   * version of the map. Changes that are in progress while this is called
+   * show up in the next set of changes.
+   * 
+   * @param version the version the client already has
+   * @return the changes
+   */
+  public TaskChanges getChangesSince(long version) {
+    TaskChanges changes = new TaskChanges();
+    long current = m_changeVersion.get();
+    changes.m_version = current;
+
+    if (version < m_oldestChangeVersion || version > current) {
+      changes.m_reset = true;
+      changes.m_changed.addAll(getTaskList());
+      return changes;
+    }
+
+    for (String key : m_changeLog.subMap(version, false, current, true)
+      .values()) {
+      WekaTaskEntry entry = m_byKey.get(key);
+      if (entry != null) {
+        changes.m_changed.add(entry);
+      }
+    }
+    Collections.sort(changes.m_changed);
+    changes.m_removed.addAll(m_removed.subMap(version, false, current, true)
+      .values());
+
+    return changes;
+  }
+
+  /**
+   * Get the execution status of a task as of the last time it was (re)indexed
+   * 
+   * @param entry the entry for the task
+   * @return the status or -1 if not known
+   */
+  public int getIndexedStatus(WekaTaskEntry entry) {
+    IndexKeys keys = m_indexKeys.get(entry.toString());
+    return keys != null ? keys.m_status : -1;
+  }
+
+  /**
+   * Get the number of tasks (loaded and pending)
+   * 
+   * @return the number of tasks
+   */
+  public int size() {
+    return m_byKey.size();
   }
 
-  public synchronized WekaTaskEntry getTaskKey(String taskID)
+  public WekaTaskEntry getTaskKey(String taskID)
     throws IllegalArgumentException {
     if (taskID.lastIndexOf(s_taskNameIDSeparator) < 0) {
       throw new IllegalArgumentException("Task identifier needs both a "
         + "name and an ID!");
     }
 
-    for (WekaTaskEntry taskEntry : m_taskMap.keySet()) {
-      if (taskEntry.toString().equals(taskID)) {
-        return taskEntry;
-      }
+    return m_byKey.get(taskID);
+  }
+
+  /**
+   * Find a task by the ID it was given by the slave it was handed to. Relies
+   * on the task having been reindexed after its remote ID was set.
+   * 
+   * @param remoteID the remote ID (name---ID on the slave)
+   * @return the entry for the task or null if there is no such task
+   */
+  public WekaTaskEntry getTaskKeyByRemoteID(String remoteID) {
+    if (remoteID == null) {
+      return null;
     }
 
+    WekaTaskEntry entry = m_byRemoteID.get(remoteID);
+    if (entry != null && remoteID.equals(entry.getRemoteID())) {
+      return entry;
+    }
     return null;
   }
 
+  /**
+   * Get the tasks with a given name
+   * 
+   * @param name the name of the tasks
+   * @return a sorted list of the tasks with the name
+   */
+  public List<WekaTaskEntry> getTasksByName(String name) {
+    return listOf(m_byName.get(name));
+  }
+
+  /**
+   * Get the tasks that had a given execution status when they were last
+   * (re)indexed. Tasks that have not been loaded yet have status -1.
+   * 
+   * @param status the execution status
+   * @return a sorted list of the tasks with the status
+   */
+  public List<WekaTaskEntry> getTasksWithStatus(int status) {
+    return listOf(m_byStatus.get(status));
+  }
+
+  /**
+   * Get the tasks that were last handed to a given server
+   * 
+   * @param server the host:port of the server
+   * @return a sorted list of the tasks handed to the server
+   */
+  public List<WekaTaskEntry> getTasksOnServer(String server) {
+    return listOf(m_byServer.get(server));
+  }
+
+  /**
+   * Get the scheduled tasks (that have been loaded)
+   * 
+   * @return a sorted list of the scheduled tasks
+   */
+  public List<WekaTaskEntry> getScheduledTasks() {
+    return listOf(m_scheduled);
+  }
+
+  /**
+   * Copy a set from an index into a list
+   * 
+   * @param entries the set (may be null)
+   * @return the list
+   */
+  protected static List<WekaTaskEntry> listOf(Set<WekaTaskEntry> entries) {
+    if (entries == null) {
+      return new ArrayList<WekaTaskEntry>();
+    }
+    return new ArrayList<WekaTaskEntry>(entries);
+  }
+
   /*
    * public synchronized Date getExecutionTime(WekaTaskEntry taskEntry) { return
    * m_lastExecution.get(taskEntry); }
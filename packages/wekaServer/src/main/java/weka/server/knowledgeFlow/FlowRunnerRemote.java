@@ -42,8 +42,10 @@ import weka.server.WekaServer;
 import weka.server.WekaServlet;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -63,6 +65,12 @@ public class FlowRunnerRemote implements CommandlineRunnable {
   /** Holds the JSON flow to execute */
   protected String m_flowJSON;
 
+  /** Names of all the loaded flows */
+  protected List<String> m_names = new ArrayList<String>();
+
+  /** All the loaded JSON flows */
+  protected List<String> m_flowJSONs = new ArrayList<String>();
+
   /** Scheduling information */
   protected Schedule m_schedule;
 
@@ -88,7 +96,8 @@ public class FlowRunnerRemote implements CommandlineRunnable {
   protected String m_password;
 
   /**
-   * Load a serialized KnowledgeFlow
+   * Load a serialized KnowledgeFlow. Each flow loaded is added to the set of
+   * flows to send to the server.
    * 
    * @param fileName the name of the file to load from
    * @throws Exception if something goes wrong
@@ -98,6 +107,8 @@ public class FlowRunnerRemote implements CommandlineRunnable {
     m_flowJSON =
       Flow.loadFlow(file, new FlowRunner.SimpleLogger()).toJSON();
     m_name = file.getName().substring(0, file.getName().lastIndexOf("."));
+    m_flowJSONs.add(m_flowJSON);
+    m_names.add(m_name);
   }
 
   /**
@@ -129,16 +140,15 @@ public class FlowRunnerRemote implements CommandlineRunnable {
   }
 
   /**
-   * Execute the current flow remotely on the server
+   * Create a task for a flow
    * 
-   * @throws Exception if a problem occurs
+   * @param name the name of the flow
+   * @param flowJSON the flow in JSON format
+   * @return the task to send to the server
    */
-  @SuppressWarnings("unchecked")
-  public void executeFlowRemote() throws Exception {
-    Exception exception = null;
-
+  protected NamedTask createTask(String name, String flowJSON) {
     NamedTask taskToRun =
-      new UnscheduledNamedKnowledgeFlowTask(NAME_PREFIX + m_name, m_flowJSON,
+      new UnscheduledNamedKnowledgeFlowTask(NAME_PREFIX + name, flowJSON,
         m_sequential, m_parameters);
 
     if (m_schedule != null) {
@@ -147,19 +157,54 @@ public class FlowRunnerRemote implements CommandlineRunnable {
           (UnscheduledNamedKnowledgeFlowTask) taskToRun, m_schedule);
     }
 
+    return taskToRun;
+  }
+
+  /**
+   * Execute the loaded flow(s) remotely on the server. If more than one flow
+   * has been loaded they are all submitted in one batch request.
+   * 
+   * @throws Exception if a problem occurs
+   */
+  @SuppressWarnings("unchecked")
+  public void executeFlowRemote() throws Exception {
+    Exception exception = null;
+
+    if (m_flowJSONs.size() == 0 && m_flowJSON != null) {
+      m_flowJSONs.add(m_flowJSON);
+      m_names.add(m_name);
+    }
+    boolean batch = m_flowJSONs.size() > 1;
+
     PostMethod post = null;
     try {
 
-      // JSON task definition
-      Map<String, Object> jsonMap = JSONProtocol.kFTaskToJsonMap(taskToRun);
-      String json = JSONProtocol.encodeToJSONString(jsonMap);
-
-      // serialized and compressed
-      System.out.println("Sending json task definition...");
+      // JSON task definition(s)
+      String json = null;
+      if (batch) {
+        List<Map<String, Object>> jsonMaps =
+          new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < m_flowJSONs.size(); i++) {
+          jsonMaps.add(JSONProtocol.kFTaskToJsonMap(createTask(m_names.get(i),
+            m_flowJSONs.get(i))));
+        }
+        json = JSONProtocol.encodeToJSONString(jsonMaps);
+        System.out.println("Sending " + jsonMaps.size()
+          + " json task definitions...");
+      } else {
+        Map<String, Object> jsonMap =
+          JSONProtocol.kFTaskToJsonMap(createTask(m_names.get(0),
+            m_flowJSONs.get(0)));
+        json = JSONProtocol.encodeToJSONString(jsonMap);
+        System.out.println("Sending json task definition...");
+      }
 
       String service =
         ExecuteTaskServlet.CONTEXT_PATH + "/?" + JSONProtocol.JSON_CLIENT_KEY
           + "=Y";
+      if (batch) {
+        service += "&batch=Y";
+      }
       post = new PostMethod(constructURL(service));
       RequestEntity jsonRequest =
         new StringRequestEntity(json, JSONProtocol.JSON_MIME_TYPE,
@@ -206,6 +251,15 @@ public class FlowRunnerRemote implements CommandlineRunnable {
             System.err.println(responseMap
               .get(JSONProtocol.RESPONSE_MESSAGE_KEY));
           }
+        } else if (batch) {
+          Map<String, Object> payload =
+            (Map<String, Object>) responseMap
+              .get(JSONProtocol.RESPONSE_PAYLOAD_KEY);
+          List<Object> taskIDs =
+            (List<Object>) payload.get(JSONProtocol.TASK_ID_LIST_PAYLOAD_ID);
+          for (Object taskID : taskIDs) {
+            System.out.println("Task ID from server: " + taskID);
+          }
         } else {
           String taskID = responseMap.get(JSONProtocol.RESPONSE_MESSAGE_KEY).toString();
           System.out.println("Task ID from server: " + taskID);
@@ -234,6 +288,7 @@ public class FlowRunnerRemote implements CommandlineRunnable {
   public static String commandLineUsage() {
     StringBuffer result = new StringBuffer();
     result.append("Usage: FlowRunnerRemote -file <flowFile.[kf | kfml]> "
+      + "[-file <flowFile.[kf | kfml]> ...] "
       + "[-sequential] -server <host:[port]> [-username <username>] "
       + "[-password <password>] [-param <name=value>, "
       + "-param <name=value>, ... -- [<schedule options>]");
@@ -274,7 +329,7 @@ public class FlowRunnerRemote implements CommandlineRunnable {
         }
       }
 
-      String flowFile = null;
+      List<String> flowFiles = new ArrayList<String>();
       String host = null;
       String port = "" + WekaServer.PORT;
       m_parameters = new HashMap<String, String>();
@@ -285,7 +340,7 @@ public class FlowRunnerRemote implements CommandlineRunnable {
             System.out.println(FlowRunnerRemote.commandLineUsage());
             System.exit(1);
           }
-          flowFile = args[i];
+          flowFiles.add(args[i]);
         } else if (args[i].equalsIgnoreCase("-sequential")) {
           m_sequential = true;
           i++;
@@ -330,11 +385,13 @@ public class FlowRunnerRemote implements CommandlineRunnable {
         }
       }
 
-      try {
-        loadFlow(flowFile);
-      } catch (Exception e) {
-        throw new IllegalArgumentException("Unable to load flow '" + args[0]
-          + "'");
+      for (String flowFile : flowFiles) {
+        try {
+          loadFlow(flowFile);
+        } catch (Exception e) {
+          throw new IllegalArgumentException("Unable to load flow '"
+            + flowFile + "'");
+        }
       }
 
       try {
@@ -24,11 +24,17 @@ package weka.server.knowledgeFlow;
 import weka.core.LogHandler;
 import weka.experiment.TaskStatusInfo;
 import weka.gui.Logger;
+import weka.server.IncrementalStatus;
 import weka.server.NamedTask;
+import weka.server.PersistedFiles;
+import weka.server.PersistedResult;
 import weka.server.Schedule;
 import weka.server.Scheduled;
+import weka.server.logging.ServerLogger;
 
+import java.io.File;
 import java.io.Serializable;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -38,7 +44,8 @@ import java.util.Map;
  * @version $Revision: $
  */
 public class ScheduledNamedKnowledgeFlowTask implements NamedTask, Scheduled,
-  LogHandler, Serializable {
+  LogHandler, PersistedFiles, PersistedResult, IncrementalStatus,
+  Serializable {
 
   private static final long serialVersionUID = 7384217715086132002L;
 
@@ -110,6 +117,26 @@ public class ScheduledNamedKnowledgeFlowTask implements NamedTask, Scheduled,
     return m_wrappedTask.getLog();
   }
 
+  /**
+   * Get the execution status of the task without building its status message
+   *
+   * @return the execution status
+   */
+  @Override
+  public int getExecutionStatus() {
+    return m_wrappedTask.getExecutionStatus();
+  }
+
+  /**
+   * Get the log that the status and log lines of the task are written to
+   *
+   * @return the log
+   */
+  @Override
+  public ServerLogger getServerLog() {
+    return m_wrappedTask.getServerLog();
+  }
+
   /**
    * Attempt to stop the task
    */
@@ -215,4 +242,24 @@ public class ScheduledNamedKnowledgeFlowTask implements NamedTask, Scheduled,
   public TaskStatusInfo getTaskStatus() {
     return m_wrappedTask.getTaskStatus();
   }
+
+  /**
+   * Get the files that this task currently has on disk
+   *
+   * @return a list of files
+   */
+  @Override
+  public List<File> getPersistedFiles() {
+    return m_wrappedTask.getPersistedFiles();
+  }
+
+  /**
+   * Get the file that holds the result of the last execution
+   *
+   * @return the file or null if there is no persisted result
+   */
+  @Override
+  public File getPersistedResult() {
+    return m_wrappedTask.getPersistedResult();
+  }
 }
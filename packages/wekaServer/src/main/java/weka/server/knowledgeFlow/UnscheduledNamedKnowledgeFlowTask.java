@@ -29,8 +29,11 @@ import weka.knowledgeflow.Flow;
 import weka.knowledgeflow.FlowRunner;
 import weka.knowledgeflow.StepManagerImpl;
 import weka.knowledgeflow.steps.DataCollector;
+import weka.server.IncrementalStatus;
 import weka.server.Legacy;
 import weka.server.NamedTask;
+import weka.server.PersistedFiles;
+import weka.server.PersistedResult;
 import weka.server.WekaTaskMap;
 import weka.server.logging.ServerLogger;
 
@@ -39,6 +42,7 @@ import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -50,7 +54,8 @@ import java.util.Map;
  * @version $Revision: $
  */
 public class UnscheduledNamedKnowledgeFlowTask implements NamedTask,
-  LogHandler, Serializable {
+  LogHandler, PersistedFiles, PersistedResult, IncrementalStatus,
+  Serializable {
 
   private static final long serialVersionUID = -3502514606185943633L;
 
@@ -306,23 +311,55 @@ public class UnscheduledNamedKnowledgeFlowTask implements NamedTask,
    */
   @Override
   public TaskStatusInfo getTaskStatus() {
-    // set up the status message by pulling current logging info
-    StringBuffer temp = new StringBuffer();
-    List<String> statusCache = m_log.getStatusCache();
-    List<String> logCache = m_log.getLogCache();
-
-    temp.append("@@@ Status messages:\n\n");
-    for (String status : statusCache) {
-      String entry = status + "\n";
-      temp.append(entry);
-    }
-    temp.append("\n@@@ Log messages:\n\n");
-    for (String log : logCache) {
-      String entry = log + "\n";
-      temp.append(entry);
-    }
-    m_result.setStatusMessage(temp.toString());
+    // set up the status message by pulling current logging info (only
+    // rebuilt if something has been logged since the last call)
+    m_result.setStatusMessage(m_log.getStatusText());
 
     return m_result;
   }
+
+  /**
+   * Get the execution status of this task without building the status
+   * message
+   *
+   * @return the execution status
+   */
+  @Override
+  public int getExecutionStatus() {
+    return m_result.getExecutionStatus();
+  }
+
+  /**
+   * Get the log that the status and log lines of this task are written to
+   *
+   * @return the log
+   */
+  @Override
+  public ServerLogger getServerLog() {
+    return m_log;
+  }
+
+  /**
+   * Get the files that this task currently has on disk
+   *
+   * @return a list of files
+   */
+  @Override
+  public List<File> getPersistedFiles() {
+    List<File> files = new ArrayList<File>();
+    if (m_persistedResult != null && m_persistedResult.exists()) {
+      files.add(m_persistedResult);
+    }
+    return files;
+  }
+
+  /**
+   * Get the file that holds the result of the last execution
+   *
+   * @return the file or null if there is no persisted result
+   */
+  @Override
+  public File getPersistedResult() {
+    return m_persistedResult;
+  }
 }
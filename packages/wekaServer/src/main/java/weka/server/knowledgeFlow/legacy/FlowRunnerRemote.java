@@ -23,9 +23,7 @@ package weka.server.knowledgeFlow.legacy;
 
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
 import org.apache.commons.httpclient.methods.PostMethod;
-import org.apache.commons.httpclient.methods.RequestEntity;
 import weka.core.CommandlineRunnable;
 import weka.core.Environment;
 import weka.core.Option;
@@ -33,9 +31,11 @@ import weka.core.Utils;
 import weka.gui.beans.BeanConnection;
 import weka.gui.beans.BeanInstance;
 import weka.gui.beans.xml.XMLBeans;
+import weka.server.Compression;
 import weka.server.ExecuteTaskServlet;
 import weka.server.NamedTask;
 import weka.server.Schedule;
+import weka.server.SerializedTaskRequestEntity;
 import weka.server.WekaServer;
 import weka.server.WekaServlet;
 
@@ -176,14 +176,14 @@ public class FlowRunnerRemote implements CommandlineRunnable {
 
     try {
 
-      // serialized and compressed
-      byte[] serializedTask = WekaServer.serializeTask(taskToRun);
-      System.out.println("Sending " + serializedTask.length + " bytes...");
+      // serialized and compressed as it is sent
 
       String service = ExecuteTaskServlet.CONTEXT_PATH + "/?client=Y";
       post = new PostMethod(constructURL(service));
-      RequestEntity entity = new ByteArrayRequestEntity(serializedTask);
-      post.setRequestEntity(entity);
+      SerializedTaskRequestEntity entity =
+        new SerializedTaskRequestEntity(taskToRun,
+          Compression.forPeer(constructURL("")));
+      entity.attachTo(post);
 
       post.setDoAuthentication(true);
       post.addRequestHeader(new Header("Content-Type",
@@ -198,6 +198,8 @@ public class FlowRunnerRemote implements CommandlineRunnable {
       // Execute request
 
       int result = client.executeMethod(post);
+      Compression.notePeer(constructURL(""), post);
+      System.out.println("Sent " + entity.getBytesWritten() + " bytes...");
       System.out.println("Response status from server : " + result);
 
       // the response
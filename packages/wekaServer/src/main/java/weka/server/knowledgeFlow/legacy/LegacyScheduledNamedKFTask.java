@@ -24,12 +24,18 @@ package weka.server.knowledgeFlow.legacy;
 import weka.core.LogHandler;
 import weka.experiment.TaskStatusInfo;
 import weka.gui.Logger;
+import weka.server.IncrementalStatus;
 import weka.server.NamedTask;
+import weka.server.PersistedFiles;
+import weka.server.PersistedResult;
 import weka.server.Schedule;
 import weka.server.Scheduled;
+import weka.server.logging.ServerLogger;
 
+import java.io.File;
 import java.io.Serializable;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -39,8 +45,8 @@ import java.util.Map;
  * @version $Revision: 10248 $
  */
 public class LegacyScheduledNamedKFTask
-  implements NamedTask, Scheduled, LogHandler,
-  Serializable {
+  implements NamedTask, Scheduled, LogHandler, PersistedFiles,
+  PersistedResult, IncrementalStatus, Serializable {
 
   /**
    * For serialization
@@ -173,6 +179,16 @@ public class LegacyScheduledNamedKFTask
     return m_namedTask.getLog();
   }
 
+  @Override
+  public int getExecutionStatus() {
+    return m_namedTask.getExecutionStatus();
+  }
+
+  @Override
+  public ServerLogger getServerLog() {
+    return m_namedTask.getServerLog();
+  }
+
   /**
    * Tell the task that it can free any resources (memory, results etc.) that
    * would not be needed for another execution run.
@@ -219,4 +235,24 @@ public class LegacyScheduledNamedKFTask
   public void purge() {
     m_namedTask.purge();
   }
+
+  /**
+   * Get the files that this task currently has on disk
+   *
+   * @return a list of files
+   */
+  @Override
+  public List<File> getPersistedFiles() {
+    return m_namedTask.getPersistedFiles();
+  }
+
+  /**
+   * Get the file that holds the result of the last execution
+   * 
+   * @return the file or null if there is no persisted result
+   */
+  @Override
+  public File getPersistedResult() {
+    return m_namedTask.getPersistedResult();
+  }
 }
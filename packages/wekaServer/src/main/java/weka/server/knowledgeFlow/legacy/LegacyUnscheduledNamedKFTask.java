@@ -31,7 +31,11 @@ import weka.gui.beans.BeanInstance;
 import weka.gui.beans.FlowRunner;
 import weka.gui.beans.HeadlessEventCollector;
 import weka.gui.beans.xml.XMLBeans;
+import weka.server.Compression;
+import weka.server.IncrementalStatus;
 import weka.server.NamedTask;
+import weka.server.PersistedFiles;
+import weka.server.PersistedResult;
 import weka.server.WekaServer;
 import weka.server.WekaTaskMap;
 import weka.server.logging.ServerLogger;
@@ -46,20 +50,19 @@ import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.EventObject;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
  * @version $Revision: 10248 $
  */
 public class LegacyUnscheduledNamedKFTask implements NamedTask, LogHandler,
-  Serializable {
+  PersistedFiles, PersistedResult, IncrementalStatus, Serializable {
 
   /**
    * For serialization
@@ -178,7 +181,8 @@ public class LegacyUnscheduledNamedKFTask implements NamedTask, LogHandler,
         try {
           m_persistedResult = WekaServer.getTempFile();
           oos = new ObjectOutputStream(new BufferedOutputStream(
-            new GZIPOutputStream(new FileOutputStream(m_persistedResult))));
+            Compression.compress(new FileOutputStream(m_persistedResult),
+              Compression.getDefault())));
           oos.writeObject(results);
           oos.flush();
           // successfully saved result - now save memory
@@ -226,26 +230,23 @@ public class LegacyUnscheduledNamedKFTask implements NamedTask, LogHandler,
   @Override
   public synchronized TaskStatusInfo getTaskStatus() {
 
-    // set up the status message by pulling current logging info
-    StringBuffer temp = new StringBuffer();
-    List<String> statusCache = m_log.getStatusCache();
-    List<String> logCache = m_log.getLogCache();
-
-    temp.append("@@@ Status messages:\n\n");
-    for (String status : statusCache) {
-      String entry = status + "\n";
-      temp.append(entry);
-    }
-    temp.append("\n@@@ Log messages:\n\n");
-    for (String log : logCache) {
-      String entry = log + "\n";
-      temp.append(entry);
-    }
-    m_result.setStatusMessage(temp.toString());
+    // set up the status message by pulling current logging info (only
+    // rebuilt if something has been logged since the last call)
+    m_result.setStatusMessage(m_log.getStatusText());
 
     return m_result;
   }
 
+  @Override
+  public int getExecutionStatus() {
+    return m_result.getExecutionStatus();
+  }
+
+  @Override
+  public ServerLogger getServerLog() {
+    return m_log;
+  }
+
   @Override
   public void setName(String name) {
     m_name = name;
@@ -286,8 +287,8 @@ public class LegacyUnscheduledNamedKFTask implements NamedTask, LogHandler,
 
     ObjectInputStream ois = null;
     try {
-      ois = new ObjectInputStream(new BufferedInputStream(new GZIPInputStream(
-        new FileInputStream(m_persistedResult))));
+      ois = new ObjectInputStream(new BufferedInputStream(Compression
+        .decompress(new FileInputStream(m_persistedResult))));
       Map<String, List<EventObject>> results = (Map<String, List<EventObject>>) ois
         .readObject();
       m_result.setTaskResult(results);
@@ -306,4 +307,28 @@ public class LegacyUnscheduledNamedKFTask implements NamedTask, LogHandler,
       }
     }
   }
+
+  /**
+   * Get the files that this task currently has on disk
+   *
+   * @return a list of files
+   */
+  @Override
+  public List<File> getPersistedFiles() {
+    List<File> files = new ArrayList<File>();
+    if (m_persistedResult != null && m_persistedResult.exists()) {
+      files.add(m_persistedResult);
+    }
+    return files;
+  }
+
+  /**
+   * Get the file that holds the result of the last execution
+   * 
+   * @return the file or null if there is no persisted result
+   */
+  @Override
+  public File getPersistedResult() {
+    return m_persistedResult;
+  }
 }
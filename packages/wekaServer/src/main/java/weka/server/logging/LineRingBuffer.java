@@ -0,0 +1,206 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    LineRingBuffer.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server.logging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Holds the most recent lines added to it, up to a fixed capacity. Each line
+ * is given the next position in the buffer (starting at 1) and stored in the
+ * slot for that position, overwriting the line that was there. Lines also
+ * carry a sequence number, which is the same as the position unless the
+ * sequence is shared with other buffers (so that lines in several buffers can
+ * be put in order and clients can ask for the lines after one they have
+ * seen).<p>
+ * 
+ * Writers take a short lock (shared by all the buffers using the same
+ * sequence) to store a line, and only then make its position and sequence
+ * number visible. Readers don't lock: every line up to the last sequence
+ * number seen has been stored, so a reader that asks for the lines up to that
+ * sequence number gets all of them that haven't been overwritten since.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class LineRingBuffer {
+
+  /**
+   * A line and its sequence number
+   */
+  public static class Line {
+    protected final long m_position;
+    protected final long m_sequence;
+    protected final String m_text;
+
+    protected Line(long position, long sequence, String text) {
+      m_position = position;
+      m_sequence = sequence;
+      m_text = text;
+    }
+
+    public long getSequence() {
+      return m_sequence;
+    }
+
+    public String getText() {
+      return m_text;
+    }
+
+    @Override
+    public String toString() {
+      return m_text;
+    }
+  }
+
+  /** The slots */
+  protected final AtomicReferenceArray<Line> m_slots;
+
+  /** The last position filled */
+  protected final AtomicLong m_position = new AtomicLong();
+
+  /**
+   * Where sequence numbers come from (may be shared between buffers). Only
+   * advanced once the line with that number has been stored.
+   */
+  protected final AtomicLong m_sequence;
+
+  /** Held while adding a line - the sequence if shared, otherwise this */
+  protected final Object m_addLock;
+
+  /**
+   * Constructor
+   *
+   * @param capacity the maximum number of lines to hold
+   */
+  public LineRingBuffer(int capacity) {
+    this(capacity, null);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param capacity the maximum number of lines to hold
+   * @param sequence the sequence to number lines from, or null to number them
+   *          by their position in this buffer
+   */
+  public LineRingBuffer(int capacity, AtomicLong sequence) {
+    m_slots = new AtomicReferenceArray<Line>(Math.max(1, capacity));
+    m_sequence = sequence;
+    m_addLock = sequence != null ? sequence : this;
+  }
+
+  /**
+   * Get the maximum number of lines held
+   *
+   * @return the capacity
+   */
+  public int capacity() {
+    return m_slots.length();
+  }
+
+  /**
+   * Add a line, overwriting the oldest line if the buffer is full
+   *
+   * @param text the line
+   * @return the sequence number of the line
+   */
+  public long add(String text) {
+    synchronized (m_addLock) {
+      long pos = m_position.get() + 1;
+      long seq = m_sequence != null ? m_sequence.get() + 1 : pos;
+      m_slots.set((int) (pos % m_slots.length()), new Line(pos, seq, text));
+
+      // the line is in place before anyone can see its sequence number
+      m_position.set(pos);
+      if (m_sequence != null) {
+        m_sequence.set(seq);
+      }
+      return seq;
+    }
+  }
+
+  /**
+   * Get the sequence number of the most recently added line
+   *
+   * @return the sequence number (0 if no lines have been added)
+   */
+  public long getLastSequence() {
+    return m_sequence != null ? m_sequence.get() : m_position.get();
+  }
+
+  /**
+   * Get the lines held, oldest first
+   *
+   * @return the lines
+   */
+  public List<String> snapshot() {
+    List<Line> lines = since(0, Long.MAX_VALUE);
+    List<String> result = new ArrayList<String>(lines.size());
+    for (Line l : lines) {
+      result.add(l.m_text);
+    }
+    return result;
+  }
+
+  /**
+   * Get the lines held that were added after the line with the given sequence
+   * number, oldest first
+   *
+   * @param sequence the sequence number
+   * @return the lines
+   */
+  public List<Line> since(long sequence) {
+    return since(sequence, Long.MAX_VALUE);
+  }
+
+  /**
+   * Get the lines held that were added after the line with the given sequence
+   * number, up to and including the line numbered upTo, oldest first. If upTo
+   * was read from getLastSequence() then every line in the range that is
+   * still held is returned.
+   *
+   * @param sequence the sequence number
+   * @param upTo the sequence number of the last line to return
+   * @return the lines
+   */
+  public List<Line> since(long sequence, long upTo) {
+    long last = m_position.get();
+    long first = Math.max(0, last - m_slots.length()) + 1;
+    if (m_sequence == null) {
+      // positions are the sequence numbers
+      first = Math.max(first, sequence + 1);
+    }
+    List<Line> result =
+      new ArrayList<Line>((int) Math.max(0, last - first + 1));
+    for (long pos = first; pos <= last; pos++) {
+      Line l = m_slots.get((int) (pos % m_slots.length()));
+      if (l != null && l.m_position == pos && l.m_sequence > sequence
+        && l.m_sequence <= upTo) {
+        result.add(l);
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,453 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    LogAppender.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server.logging;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import weka.server.ServerMetrics;
+
+/**
+ * Writes task log lines to their log files from a background thread, so that
+ * a task that logs a lot doesn't wait on the disk. Lines are put in a bounded
+ * queue; the writer thread takes them off in batches, keeps the most recently
+ * used log files open and flushes them when the flush interval has passed or
+ * enough has been written (so many lines share one write to the disk). What
+ * happens when the queue is full is decided by the overflow policy: the new
+ * line is discarded, the oldest queued line is discarded to make room, or the
+ * caller waits for room.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class LogAppender {
+
+  /** Default capacity of the queue (lines) */
+  public static final int DEFAULT_CAPACITY = 8192;
+
+  /** Default maximum time between flushes (milliseconds) */
+  public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+  /** Default number of bytes written that forces a flush */
+  public static final int DEFAULT_FLUSH_BYTES = 64 * 1024;
+
+  /** Default maximum number of log files kept open */
+  public static final int DEFAULT_MAX_OPEN_FILES = 64;
+
+  /** Maximum number of lines taken off the queue at a time */
+  protected static final int BATCH_SIZE = 512;
+
+  /** Overflow policy: discard the new line */
+  public static final String DISCARD = "discard";
+
+  /** Overflow policy: discard the oldest queued line */
+  public static final String DISCARD_OLDEST = "discard-oldest";
+
+  /** Overflow policy: wait for room */
+  public static final String BLOCK = "block";
+
+  /** The singleton instance */
+  protected static LogAppender s_singleton;
+
+  /**
+   * A line to write, or a request to delete a log file
+   */
+  protected static class Record {
+    protected File m_file;
+    protected String m_line;
+
+    protected Record(File file, String line) {
+      m_file = file;
+      m_line = line;
+    }
+  }
+
+  /**
+   * An open log file
+   */
+  protected static class OpenLog {
+    protected Writer m_writer;
+    protected boolean m_dirty;
+  }
+
+  /** Lines waiting to be written */
+  protected ArrayBlockingQueue<Record> m_queue;
+
+  /** Open log files, least recently used first. Only used by the writer. */
+  protected LinkedHashMap<File, OpenLog> m_open =
+    new LinkedHashMap<File, OpenLog>(16, 0.75f, true);
+
+  /** What to do when the queue is full */
+  protected volatile String m_overflowPolicy = DISCARD;
+
+  /** Maximum time between flushes (milliseconds) */
+  protected volatile long m_flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+  /** Number of bytes written that forces a flush */
+  protected volatile int m_flushBytes = DEFAULT_FLUSH_BYTES;
+
+  /** Maximum number of log files kept open */
+  protected volatile int m_maxOpenFiles = DEFAULT_MAX_OPEN_FILES;
+
+  /** The writer thread */
+  protected Thread m_writerThread;
+
+  /** Lines written */
+  protected ServerMetrics.Counter m_linesWritten = ServerMetrics
+    .getSingleton().counter("weka_server_log_lines_total",
+      "Lines written to task log files");
+
+  /** Lines that could not be written */
+  protected ServerMetrics.Counter m_writeFailures = ServerMetrics
+    .getSingleton().counter("weka_server_log_failures_total",
+      "Lines that could not be written to task log files");
+
+  /** Lines discarded because the queue was full */
+  protected ServerMetrics.Counter m_dropped = ServerMetrics.getSingleton()
+    .counter("weka_server_log_dropped_total",
+      "Log lines discarded because the log queue was full");
+
+  /** Time taken to flush batches of lines */
+  protected ServerMetrics.Histogram m_flushTime = ServerMetrics
+    .getSingleton().histogram("weka_server_log_flush_seconds",
+      "Time taken to write and flush a batch of lines to task log files",
+      ServerMetrics.LATENCY_BUCKETS);
+
+  /**
+   * Constructor
+   *
+   * @param capacity the capacity of the queue (lines)
+   */
+  public LogAppender(int capacity) {
+    m_queue = new ArrayBlockingQueue<Record>(Math.max(1, capacity));
+  }
+
+  /**
+   * Get the singleton instance, starting its writer thread
+   *
+   * @return the appender
+   */
+  public static synchronized LogAppender getSingleton() {
+    if (s_singleton == null) {
+      s_singleton = new LogAppender(DEFAULT_CAPACITY);
+      s_singleton.start();
+
+      // don't lose queued lines if the JVM exits
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        @Override
+        public void run() {
+          s_singleton.shutdown();
+        }
+      });
+    }
+    return s_singleton;
+  }
+
+  /**
+   * Set what to do when the queue is full
+   *
+   * @param policy DISCARD, DISCARD_OLDEST or BLOCK
+   */
+  public void setOverflowPolicy(String policy) {
+    if (!policy.equals(DISCARD) && !policy.equals(DISCARD_OLDEST)
+      && !policy.equals(BLOCK)) {
+      throw new IllegalArgumentException("Unknown log overflow policy '"
+        + policy + "'");
+    }
+    m_overflowPolicy = policy;
+  }
+
+  public String getOverflowPolicy() {
+    return m_overflowPolicy;
+  }
+
+  public void setFlushInterval(long interval) {
+    m_flushInterval = Math.max(1, interval);
+  }
+
+  public long getFlushInterval() {
+    return m_flushInterval;
+  }
+
+  public void setFlushBytes(int bytes) {
+    m_flushBytes = bytes;
+  }
+
+  public int getFlushBytes() {
+    return m_flushBytes;
+  }
+
+  public void setMaxOpenFiles(int max) {
+    m_maxOpenFiles = Math.max(1, max);
+  }
+
+  public int getMaxOpenFiles() {
+    return m_maxOpenFiles;
+  }
+
+  /**
+   * Get the number of lines waiting to be written
+   *
+   * @return the number of queued lines
+   */
+  public int getQueued() {
+    return m_queue.size();
+  }
+
+  /**
+   * Queue a line to be appended to a log file. Only waits if the queue is full
+   * and the overflow policy is BLOCK.
+   *
+   * @param file the log file
+   * @param line the line (without a line separator)
+   */
+  public void append(File file, String line) {
+    Record r = new Record(file, line);
+    if (m_queue.offer(r)) {
+      return;
+    }
+
+    String policy = m_overflowPolicy;
+    if (policy.equals(BLOCK)) {
+      put(r);
+      return;
+    }
+    if (policy.equals(DISCARD_OLDEST)) {
+      while (!m_queue.offer(r)) {
+        Record oldest = m_queue.poll();
+        if (oldest != null && oldest.m_line == null) {
+          // never discard a delete - wait for room instead
+          put(oldest);
+        } else if (oldest != null) {
+          m_dropped.inc();
+        }
+      }
+      return;
+    }
+    m_dropped.inc();
+  }
+
+  /**
+   * Delete a log file once the lines queued for it have been dealt with
+   *
+   * @param file the log file
+   */
+  public void delete(File file) {
+    put(new Record(file, null));
+  }
+
+  /**
+   * Queue a record, waiting for room if necessary
+   *
+   * @param r the record
+   */
+  protected void put(Record r) {
+    try {
+      m_queue.put(r);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      m_dropped.inc();
+    }
+  }
+
+  /**
+   * Start the writer thread
+   */
+  public synchronized void start() {
+    if (m_writerThread != null) {
+      return;
+    }
+
+    m_writerThread = new Thread("WekaServer log writer") {
+      @Override
+      public void run() {
+        List<Record> batch = new ArrayList<Record>(BATCH_SIZE);
+        long lastFlush = System.currentTimeMillis();
+        int unflushed = 0;
+        boolean stopping = false;
+        while (!stopping || m_queue.size() > 0) {
+          try {
+            Record first = m_queue.poll(m_flushInterval, TimeUnit.MILLISECONDS);
+            if (first != null) {
+              batch.add(first);
+              m_queue.drainTo(batch, BATCH_SIZE - 1);
+            }
+          } catch (InterruptedException ex) {
+            // finish writing what's queued, then stop
+            stopping = true;
+            m_queue.drainTo(batch);
+          }
+
+          long start = System.nanoTime();
+          unflushed += write(batch);
+          batch.clear();
+          long now = System.currentTimeMillis();
+          if (unflushed > 0
+            && (unflushed >= m_flushBytes || now - lastFlush >= m_flushInterval
+              || stopping || m_queue.isEmpty())) {
+            flush();
+            m_flushTime.observe(System.nanoTime() - start);
+            unflushed = 0;
+            lastFlush = now;
+          }
+        }
+        closeAll();
+      }
+    };
+    m_writerThread.setDaemon(true);
+    m_writerThread.start();
+  }
+
+  /**
+   * Write a batch of records. Only called by the writer thread.
+   *
+   * @param batch the records
+   * @return the number of characters written
+   */
+  protected int write(List<Record> batch) {
+    int written = 0;
+    for (Record r : batch) {
+      if (r.m_line == null) {
+        close(r.m_file);
+        if (r.m_file.exists() && !r.m_file.delete()) {
+          r.m_file.deleteOnExit();
+        }
+        continue;
+      }
+
+      try {
+        OpenLog log = open(r.m_file);
+        log.m_writer.write(r.m_line);
+        log.m_writer.write(System.getProperty("line.separator"));
+        log.m_dirty = true;
+        written += r.m_line.length() + 1;
+        m_linesWritten.inc();
+      } catch (IOException ex) {
+        m_writeFailures.inc();
+        close(r.m_file);
+      }
+    }
+    return written;
+  }
+
+  /**
+   * Get the open writer for a log file, opening it (and closing the least
+   * recently used file if too many are open) if necessary
+   *
+   * @param file the log file
+   * @return the open log
+   * @throws IOException if the file can't be opened
+   */
+  protected OpenLog open(File file) throws IOException {
+    OpenLog log = m_open.get(file);
+    if (log != null) {
+      return log;
+    }
+
+    while (m_open.size() >= m_maxOpenFiles) {
+      Iterator<Map.Entry<File, OpenLog>> i = m_open.entrySet().iterator();
+      Map.Entry<File, OpenLog> eldest = i.next();
+      i.remove();
+      closeQuietly(eldest.getValue());
+    }
+
+    log = new OpenLog();
+    log.m_writer =
+      new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file,
+        true)), 8192);
+    m_open.put(file, log);
+    return log;
+  }
+
+  /**
+   * Flush all log files written to since the last flush
+   */
+  protected void flush() {
+    Iterator<Map.Entry<File, OpenLog>> i = m_open.entrySet().iterator();
+    while (i.hasNext()) {
+      OpenLog log = i.next().getValue();
+      if (!log.m_dirty) {
+        continue;
+      }
+      try {
+        log.m_writer.flush();
+        log.m_dirty = false;
+      } catch (IOException ex) {
+        m_writeFailures.inc();
+        i.remove();
+        closeQuietly(log);
+      }
+    }
+  }
+
+  protected void close(File file) {
+    OpenLog log = m_open.remove(file);
+    if (log != null) {
+      closeQuietly(log);
+    }
+  }
+
+  protected void closeAll() {
+    for (OpenLog log : m_open.values()) {
+      closeQuietly(log);
+    }
+    m_open.clear();
+  }
+
+  protected static void closeQuietly(OpenLog log) {
+    try {
+      log.m_writer.close();
+    } catch (IOException ex) {
+      // ignored
+    }
+  }
+
+  /**
+   * Write everything queued, close the log files and stop the writer thread
+   */
+  public void shutdown() {
+    Thread writer;
+    synchronized (this) {
+      writer = m_writerThread;
+      m_writerThread = null;
+    }
+    if (writer != null) {
+      writer.interrupt();
+      try {
+        writer.join(5000);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -21,19 +21,17 @@
 
 package weka.server.logging;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import weka.gui.Logger;
+import weka.server.TaskEventBus;
 import weka.server.WekaServer;
 import weka.server.WekaTaskMap;
 
@@ -77,11 +75,39 @@ public class ServerLogger implements Logger {
   /** The maximum number of status message lines to cache in memory */
   protected int m_maxStatusLines = 50;
 
+  /**
+   * The maximum number of bytes read back from the end of the log file when
+   * loading the historical log and status lines
+   */
+  protected long m_maxHistoryBytes = 1024 * 1024;
+
+  /** Sequence numbers of the log and status lines, in the order logged */
+  protected AtomicLong m_sequence = new AtomicLong();
+
   /** Cache of log lines */
-  protected LinkedList<String> m_logCache = new LinkedList<String>();
+  protected LineRingBuffer m_logCache = new LineRingBuffer(m_maxLogLines,
+    m_sequence);
 
   /** Cache of status lines */
-  protected LinkedList<String> m_statusCache = new LinkedList<String>();
+  protected LineRingBuffer m_statusCache = new LineRingBuffer(
+    m_maxStatusLines, m_sequence);
+
+  /**
+   * Status text built from the caches and the last sequence number it
+   * includes
+   */
+  protected static class StatusText {
+    protected final long m_sequence;
+    protected final String m_text;
+
+    protected StatusText(long sequence, String text) {
+      m_sequence = sequence;
+      m_text = text;
+    }
+  }
+
+  /** The status text last built */
+  protected volatile StatusText m_statusText;
 
   /** Linefeed */
   protected String m_lineFeed;
@@ -95,6 +121,12 @@ public class ServerLogger implements Logger {
   /** The subdirectory for storing the log */
   protected String m_logSubDir = "";
 
+  /**
+   * True if the historical log entries are to be loaded the first time the
+   * log is used
+   */
+  protected volatile boolean m_historyPending;
+
   private void checkLogSubDir() {
     File subDir = new File(m_logSubDir);
     if (!subDir.exists()) {
@@ -136,11 +168,12 @@ public class ServerLogger implements Logger {
    * @param message the message to write
    */
   @Override
-  public synchronized void logMessage(String message) {
+  public void logMessage(String message) {
+    loadPendingHistory();
     logMessage(message, false);
   }
 
-  protected synchronized void logMessage(String message, boolean fromFile) {
+  protected void logMessage(String message, boolean fromFile) {
     if (!s_logRootDirCreated || !s_logSubDirCreated) {
       return;
     }
@@ -151,18 +184,18 @@ public class ServerLogger implements Logger {
         m_taskNameID + " - " + message);
     }
 
-    if (m_logCache.size() == m_maxLogLines) {
-      // remove the first (oldest line)
-      m_logCache.remove();
-    }
-
     String formatted = message;
 
     if (!fromFile) {
-      formatted = m_dateFormat.format(new Date()) + ": " + m_taskNameID + " - "
-        + message;
+      String date;
+      synchronized (m_dateFormat) {
+        date = m_dateFormat.format(new Date());
+      }
+      formatted = date + ": " + m_taskNameID + " - " + message;
       // append the line to the entry-specific log
       doServerLog(formatted);
+      TaskEventBus.getSingleton().publish(m_taskNameID, TaskEventBus.LOG, -1,
+        formatted);
     }
 
     m_logCache.add(formatted);
@@ -174,11 +207,12 @@ public class ServerLogger implements Logger {
    * @param message the message to write
    */
   @Override
-  public synchronized void statusMessage(String message) {
+  public void statusMessage(String message) {
+    loadPendingHistory();
     statusMessage(message, false);
   }
 
-  protected synchronized void statusMessage(String message, boolean fromFile) {
+  protected void statusMessage(String message, boolean fromFile) {
     if (!s_logRootDirCreated || !s_logSubDirCreated) {
       return;
     }
@@ -189,11 +223,6 @@ public class ServerLogger implements Logger {
         .log(weka.core.logging.Logger.Level.INFO, message);
     }
 
-    if (m_statusCache.size() == m_maxStatusLines) {
-      // remove the first (oldest) status line
-      m_statusCache.remove();
-    }
-
     // String formatted = m_dateFormat.format(new Date()) + ": " + message;
     String formatted = message;
 
@@ -201,6 +230,8 @@ public class ServerLogger implements Logger {
       formatted = message + " (" + m_taskNameID + ")";
       // append the line to the entry-specific log
       doServerLog(formatted);
+      TaskEventBus.getSingleton().publish(m_taskNameID,
+        TaskEventBus.STATUS_MESSAGE, -1, message);
     }
     m_statusCache.add(formatted);
   }
@@ -210,13 +241,10 @@ public class ServerLogger implements Logger {
    * 
    * @return the in-memory cache of the log messages
    */
-  public synchronized List<String> getLogCache() {
-    List<String> result = new ArrayList<String>(m_logCache);
+  public List<String> getLogCache() {
+    loadPendingHistory();
 
-    // clear the cache
-    // m_logCache.clear();
-
-    return result;
+    return m_logCache.snapshot();
   }
 
   /**
@@ -224,66 +252,279 @@ public class ServerLogger implements Logger {
    * 
    * @return the in-memory cache of the status
    */
-  public synchronized List<String> getStatusCache() {
-    List<String> result = new ArrayList<String>(m_statusCache);
+  public List<String> getStatusCache() {
+    loadPendingHistory();
+
+    return m_statusCache.snapshot();
+  }
 
-    // clear the cache
-    // m_statusCache.clear();
+  /**
+   * Get the sequence number of the most recent log or status line. Lines are
+   * numbered in the order that they are logged, starting at 1.
+   *
+   * @return the sequence number (0 if nothing has been logged)
+   */
+  public long getLastSequence() {
+    loadPendingHistory();
 
-    return result;
+    return m_sequence.get();
   }
 
-  protected void doServerLog(String message) {
-    BufferedWriter writer;
+  /**
+   * Get the cached status lines logged after the line with the given sequence
+   * number
+   *
+   * @param sequence the sequence number
+   * @return the status lines, oldest first
+   */
+  public List<LineRingBuffer.Line> getStatusLinesSince(long sequence) {
+    loadPendingHistory();
+
+    return m_statusCache.since(sequence);
+  }
+
+  /**
+   * Get the cached log lines logged after the line with the given sequence
+   * number
+   *
+   * @param sequence the sequence number
+   * @return the log lines, oldest first
+   */
+  public List<LineRingBuffer.Line> getLogLinesSince(long sequence) {
+    loadPendingHistory();
+
+    return m_logCache.since(sequence);
+  }
+
+  /**
+   * Get the cached status and log lines as the status message of a task. The
+   * text is only rebuilt when something has been logged since it was last
+   * asked for.
+   *
+   * @return the status message
+   */
+  public String getStatusText() {
+    long last = getLastSequence();
+    StatusText text = m_statusText;
+    if (text == null || text.m_sequence != last) {
+      // only the lines up to last, so the text matches its sequence number
+      text = new StatusText(last, buildStatusText(0, last, null));
+      m_statusText = text;
+    }
+
+    return text.m_text;
+  }
+
+  /**
+   * Get the cached status and log lines logged after the line with the given
+   * sequence number as the status message of a task
+   *
+   * @param sequence the sequence number
+   * @return the status message
+   */
+  public String getStatusTextSince(long sequence) {
+    return getStatusTextSince(sequence, null);
+  }
+
+  /**
+   * Get the cached status and log lines logged after the line with the given
+   * sequence number as the status message of a task
+   *
+   * @param sequence the sequence number
+   * @param lastIncluded if not null, element 0 is set to the largest sequence
+   *          number of the lines included (or to sequence if there are none).
+   *          No line up to this one is left out, so it is where the next
+   *          request should carry on from
+   * @return the status message
+   */
+  public String getStatusTextSince(long sequence, long[] lastIncluded) {
+    return buildStatusText(sequence, getLastSequence(), lastIncluded);
+  }
+
+  /**
+   * Build the status message from the cached status and log lines numbered
+   * after sequence and up to upTo
+   *
+   * @param sequence the sequence number to start after
+   * @param upTo the sequence number of the last line to include
+   * @param lastIncluded if not null, element 0 is set to the largest sequence
+   *          number of the lines included (or to sequence if there are none)
+   * @return the status message
+   */
+  protected String buildStatusText(long sequence, long upTo,
+    long[] lastIncluded) {
+    StringBuilder temp = new StringBuilder();
+    long last = sequence;
+
+    temp.append("@@@ Status messages:\n\n");
+    for (LineRingBuffer.Line status : m_statusCache.since(sequence, upTo)) {
+      temp.append(status.getText()).append('\n');
+      last = Math.max(last, status.getSequence());
+    }
+    temp.append("\n@@@ Log messages:\n\n");
+    for (LineRingBuffer.Line log : m_logCache.since(sequence, upTo)) {
+      temp.append(log.getText()).append('\n');
+      last = Math.max(last, log.getSequence());
+    }
+    if (lastIncluded != null) {
+      lastIncluded[0] = last;
+    }
 
+    return temp.toString();
+  }
+
+  protected void doServerLog(String message) {
     if (m_logFile == null) {
       return;
     }
 
-    try {
-      writer = new BufferedWriter(new FileWriter(m_logFile, true));
-      writer.write(message + m_lineFeed);
-      writer.flush();
-      writer.close();
-    } catch (Exception ex) {
-      // ignored
-    }
+    // written (and flushed) in batches by the appender's thread
+    LogAppender.getSingleton().append(m_logFile, message);
   }
 
   /**
    * Load the most recent log and status messages from the log file into the
    * in-memory buffer
    */
-  public void loadLog() {
+  public synchronized void loadLog() {
+    m_historyPending = false;
+    readHistory();
+  }
+
+  /**
+   * Read the most recent log and status messages from the end of the log
+   * file. Only the tail of the file is read - backwards, a block at a time -
+   * until there are enough lines to fill both caches, the start of the file
+   * is reached or m_maxHistoryBytes have been read. The cost of loading the
+   * history of a task therefore doesn't grow with the size of its log.
+   */
+  protected void readHistory() {
     if (!s_logRootDirCreated || !s_logSubDirCreated || m_taskNameID == null) {
       return;
     }
-    BufferedReader br = null;
-    if (m_logFile.exists()) {
-      try {
-        br = new BufferedReader(new FileReader(m_logFile));
-        String line = null;
-        while ((line = br.readLine()) != null) {
-          if (line.indexOf("(" + m_taskNameID + ")") >= 0) {
-            // this is a status line
-            statusMessage(line, true);
-          } else {
-            logMessage(line, true);
+    if (!m_logFile.exists()) {
+      return;
+    }
+
+    String statusMarker = "(" + m_taskNameID + ")";
+    List<String> lines = new ArrayList<String>();
+    RandomAccessFile raf = null;
+    try {
+      raf = new RandomAccessFile(m_logFile, "r");
+      long pos = raf.length();
+      long limit = Math.max(0, pos - m_maxHistoryBytes);
+      byte[] block = new byte[8192];
+      byte[] partial = new byte[0];
+      int numLog = 0;
+      int numStatus = 0;
+      while (pos > limit
+        && (numLog < m_maxLogLines || numStatus < m_maxStatusLines)) {
+        int n = (int) Math.min(block.length, pos - limit);
+        pos -= n;
+        raf.seek(pos);
+        raf.readFully(block, 0, n);
+
+        // the partial line left over from the previous block follows this
+        // block in the file
+        byte[] buf = new byte[n + partial.length];
+        System.arraycopy(block, 0, buf, 0, n);
+        System.arraycopy(partial, 0, buf, n, partial.length);
+
+        int end = buf.length;
+        for (int i = buf.length - 1; i >= 0; i--) {
+          if (buf[i] == '\n') {
+            String line = decodeLine(buf, i + 1, end);
+            if (line.length() > 0) {
+              lines.add(line);
+              if (line.indexOf(statusMarker) >= 0) {
+                numStatus++;
+              } else {
+                numLog++;
+              }
+            }
+            end = i;
           }
         }
-      } catch (Exception ex) {
-        System.err.println("[WekaServer] A problem occurred while reading log "
-          + "file for task '" + m_taskNameID + "'");
-        ex.printStackTrace();
-      } finally {
-        if (br != null) {
-          try {
-            br.close();
-          } catch (IOException e) {
-          }
+        partial = new byte[end];
+        System.arraycopy(buf, 0, partial, 0, end);
+      }
+      if (pos == 0 && partial.length > 0) {
+        // the first line of the file
+        lines.add(decodeLine(partial, 0, partial.length));
+      }
+    } catch (Exception ex) {
+      System.err.println("[WekaServer] A problem occurred while reading log "
+        + "file for task '" + m_taskNameID + "'");
+      ex.printStackTrace();
+    } finally {
+      if (raf != null) {
+        try {
+          raf.close();
+        } catch (IOException e) {
         }
       }
     }
+
+    // lines were collected newest first
+    for (int i = lines.size() - 1; i >= 0; i--) {
+      String line = lines.get(i);
+      if (line.indexOf(statusMarker) >= 0) {
+        // this is a status line
+        statusMessage(line, true);
+      } else {
+        logMessage(line, true);
+      }
+    }
+  }
+
+  /**
+   * Decode a line read from the log file, dropping any carriage return
+   *
+   * @param buf the bytes read
+   * @param start the start of the line
+   * @param end the end of the line (exclusive)
+   * @return the line
+   */
+  protected static String decodeLine(byte[] buf, int start, int end) {
+    if (end > start && buf[end - 1] == '\r') {
+      end--;
+    }
+    return new String(buf, start, end - start);
+  }
+
+  /**
+   * Load the most recent log and status messages from the log file the first
+   * time that the log is used rather than now. Saves reading the logs of
+   * tasks that nobody looks at.
+   */
+  public synchronized void loadLogOnDemand() {
+    m_historyPending = true;
+  }
+
+  /**
+   * Load the historical log entries if this has been deferred. Once the
+   * history has been loaded this doesn't take a lock.
+   */
+  protected void loadPendingHistory() {
+    if (!m_historyPending) {
+      return;
+    }
+    synchronized (this) {
+      if (m_historyPending) {
+        // other threads wait until the history is in the caches
+        readHistory();
+        m_historyPending = false;
+      }
+    }
+  }
+
+  /**
+   * Get the file that the log is written to
+   * 
+   * @return the log file (may be null if logging to disk is not available)
+   */
+  public File getLogFile() {
+    return m_logFile;
   }
 
   /**
@@ -294,10 +535,7 @@ public class ServerLogger implements Logger {
       return;
     }
 
-    if (m_logFile.exists()) {
-      if (!m_logFile.delete()) {
-        m_logFile.deleteOnExit();
-      }
-    }
+    // deleted once any lines still queued for it have been dealt with
+    LogAppender.getSingleton().delete(m_logFile);
   }
 }
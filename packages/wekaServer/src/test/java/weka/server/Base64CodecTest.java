@@ -0,0 +1,169 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    Base64CodecTest.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the streaming base64 codec.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class Base64CodecTest extends TestCase {
+
+  /** The test vectors from RFC 4648 */
+  protected static final String[][] VECTORS = { { "", "" }, { "f", "Zg==" },
+    { "fo", "Zm8=" }, { "foo", "Zm9v" }, { "foob", "Zm9vYg==" },
+    { "fooba", "Zm9vYmE=" }, { "foobar", "Zm9vYmFy" } };
+
+  public Base64CodecTest(String name) {
+    super(name);
+  }
+
+  /**
+   * Encode bytes, writing them in chunks of the given size (a chunk size of
+   * one writes a byte at a time)
+   */
+  protected static String encode(byte[] raw, int chunk) throws IOException {
+    StringWriter out = new StringWriter();
+    Base64Codec.Base64OutputStream b64 =
+      new Base64Codec.Base64OutputStream(out);
+    for (int off = 0; off < raw.length; off += chunk) {
+      if (chunk == 1) {
+        b64.write(raw[off]);
+      } else {
+        b64.write(raw, off, Math.min(chunk, raw.length - off));
+      }
+    }
+    b64.close();
+    return out.toString();
+  }
+
+  protected static byte[] decode(String encoded, int chunk)
+    throws IOException {
+    InputStream in =
+      new Base64Codec.Base64InputStream(new StringReader(encoded));
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    if (chunk == 1) {
+      int b;
+      while ((b = in.read()) >= 0) {
+        result.write(b);
+      }
+    } else {
+      byte[] buf = new byte[chunk];
+      int n;
+      while ((n = in.read(buf)) >= 0) {
+        result.write(buf, 0, n);
+      }
+    }
+    in.close();
+    return result.toByteArray();
+  }
+
+  public void testVectors() throws Exception {
+    for (String[] v : VECTORS) {
+      for (int chunk : new int[] { 1, 2, 1000 }) {
+        assertEquals(v[1], encode(v[0].getBytes("US-ASCII"), chunk));
+        assertEquals(v[0], new String(decode(v[1], chunk), "US-ASCII"));
+      }
+    }
+  }
+
+  public void testAllBytes() throws Exception {
+    byte[] raw = new byte[256];
+    for (int i = 0; i < raw.length; i++) {
+      raw[i] = (byte) i;
+    }
+    String encoded = encode(raw, 1000);
+    assertEquals(344, encoded.length());
+    assertTrue(encoded.startsWith("AAECAwQFBgcICQoLDA0ODxAREhMUFRYXGBkaGxwd"));
+    assertTrue(encoded.endsWith("+fr7/P3+/w=="));
+    assertTrue(Arrays.equals(raw, decode(encoded, 1000)));
+  }
+
+  public void testRoundTrip() throws Exception {
+    Random r = new Random(1);
+    // lengths either side of the encoder's and decoder's buffer sizes
+    for (int len : new int[] { 1, 2, 3, 4, 5, 3071, 3072, 3073, 10000 }) {
+      byte[] raw = new byte[len];
+      r.nextBytes(raw);
+      for (int chunk : new int[] { 1, 2, 7, 4096 }) {
+        String encoded = encode(raw, chunk);
+        assertEquals((len + 2) / 3 * 4, encoded.length());
+        assertTrue(Arrays.equals(raw, decode(encoded, chunk)));
+      }
+    }
+  }
+
+  public void testWhitespaceIgnored() throws Exception {
+    assertEquals("foobar",
+      new String(decode(" Zm9v\r\nYm\tFy\n", 100), "US-ASCII"));
+    assertEquals("fo", new String(decode("Zm8=\n", 100), "US-ASCII"));
+  }
+
+  public void testIllegalCharacter() throws Exception {
+    try {
+      decode("Zm9v*mFy", 100);
+      fail("Illegal character not rejected");
+    } catch (IOException ex) {
+      // expected
+    }
+  }
+
+  public void testObjects() throws Exception {
+    List<String> list = new ArrayList<String>();
+    for (int i = 0; i < 10000; i++) {
+      list.add("item " + i);
+    }
+    assertEquals(list, Base64Codec.decode(Base64Codec.encode(list)));
+
+    for (Compression.Codec codec : new Compression.Codec[] {
+      Compression.NONE, Compression.FAST, Compression.GZIP }) {
+      StringWriter out = new StringWriter();
+      Base64Codec.encode(list, out, codec);
+      assertEquals(codec.getName(), list,
+        Base64Codec.decode(new StringReader(out.toString())));
+    }
+    assertNull(Base64Codec.decode(Base64Codec.encode(null)));
+  }
+
+  public static Test suite() {
+    return new TestSuite(Base64CodecTest.class);
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+  }
+}
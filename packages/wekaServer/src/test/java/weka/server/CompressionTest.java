@@ -0,0 +1,255 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    CompressionTest.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the compression codecs.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class CompressionTest extends TestCase {
+
+  public CompressionTest(String name) {
+    super(name);
+  }
+
+  protected static byte[] compress(byte[] raw, Compression.Codec codec)
+    throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    OutputStream out = Compression.compress(bytes, codec);
+    out.write(raw);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  protected static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buf = new byte[1000];
+    int n;
+    while ((n = in.read(buf)) >= 0) {
+      bytes.write(buf, 0, n);
+    }
+    in.close();
+    return bytes.toByteArray();
+  }
+
+  protected static byte[] decompress(byte[] compressed) throws IOException {
+    return readAll(Compression.decompress(new ByteArrayInputStream(
+      compressed)));
+  }
+
+  /** Text that compresses well, over several blocks of the fast codec */
+  protected static byte[] text(int len) {
+    Random r = new Random(1);
+    StringBuilder b = new StringBuilder();
+    while (b.length() < len) {
+      b.append("@attribute a").append(r.nextInt(100)).append(" numeric\n");
+    }
+    return b.substring(0, len).getBytes();
+  }
+
+  /** Random bytes, which don't compress at all */
+  protected static byte[] noise(int len) {
+    byte[] b = new byte[len];
+    new Random(2).nextBytes(b);
+    return b;
+  }
+
+  protected void checkRoundTrip(byte[] raw) throws Exception {
+    for (Compression.Codec codec : new Compression.Codec[] {
+      Compression.NONE, Compression.FAST, Compression.GZIP,
+      Compression.forName("gzip-1") }) {
+      byte[] compressed = compress(raw, codec);
+      assertTrue(codec.getName(), Arrays.equals(raw, decompress(compressed)));
+      assertTrue(codec.getName(), Arrays.equals(raw, readAll(Compression
+        .decompress(new ByteArrayInputStream(compressed), codec.getName()))));
+    }
+  }
+
+  public void testEmpty() throws Exception {
+    checkRoundTrip(new byte[0]);
+  }
+
+  public void testSmall() throws Exception {
+    checkRoundTrip(new byte[] { 42 });
+    checkRoundTrip("abc".getBytes());
+    checkRoundTrip(text(100));
+  }
+
+  public void testSeveralBlocks() throws Exception {
+    byte[] raw = text(Compression.BLOCK_SIZE * 3 + 17);
+    checkRoundTrip(raw);
+    assertTrue(compress(raw, Compression.FAST).length < raw.length / 2);
+  }
+
+  public void testIncompressible() throws Exception {
+    byte[] raw = noise(Compression.BLOCK_SIZE * 2 + 5);
+    checkRoundTrip(raw);
+    // stored blocks only cost their headers
+    assertTrue(compress(raw, Compression.FAST).length < raw.length + 100);
+  }
+
+  public void testRepetitive() throws Exception {
+    // long matches, and matches overlapping the bytes they copy
+    byte[] raw = new byte[Compression.BLOCK_SIZE + 1000];
+    Arrays.fill(raw, (byte) 'a');
+    checkRoundTrip(raw);
+    for (int i = 0; i < raw.length; i++) {
+      raw[i] = (byte) (i % 3);
+    }
+    checkRoundTrip(raw);
+  }
+
+  public void testByteAtATime() throws Exception {
+    byte[] raw = text(Compression.BLOCK_SIZE + 10);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    OutputStream out = Compression.compress(bytes, Compression.FAST);
+    for (byte b : raw) {
+      out.write(b);
+    }
+    out.close();
+
+    InputStream in =
+      Compression.decompress(new ByteArrayInputStream(bytes.toByteArray()));
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) >= 0) {
+      result.write(b);
+    }
+    assertTrue(Arrays.equals(raw, result.toByteArray()));
+  }
+
+  public void testCorruptionDetected() throws Exception {
+    byte[] raw = text(Compression.BLOCK_SIZE * 2);
+    byte[] compressed = compress(raw, Compression.FAST);
+    Random r = new Random(3);
+    for (int i = 0; i < 500; i++) {
+      byte[] corrupt = compressed.clone();
+      // leave the magic bytes and the end of stream marker alone
+      int pos = 4 + r.nextInt(corrupt.length - 8);
+      corrupt[pos] ^= (byte) (1 + r.nextInt(255));
+      try {
+        decompress(corrupt);
+        fail("Corruption at " + pos + " not detected");
+      } catch (IOException ex) {
+        // expected
+      }
+    }
+  }
+
+  public void testTruncationDetected() throws Exception {
+    byte[] compressed = compress(text(1000), Compression.FAST);
+    try {
+      decompress(Arrays.copyOf(compressed, compressed.length - 10));
+      fail("Truncation not detected");
+    } catch (IOException ex) {
+      // expected
+    }
+  }
+
+  public void testWrongCodecHeader() throws Exception {
+    byte[] compressed = compress(text(1000), Compression.FAST);
+    try {
+      Compression.decompress(new ByteArrayInputStream(compressed), "none");
+      fail("Codec mismatch not detected");
+    } catch (IOException ex) {
+      // expected
+    }
+    try {
+      Compression.decompress(new ByteArrayInputStream(compressed), "lzma");
+      fail("Unknown codec not rejected");
+    } catch (IOException ex) {
+      // expected
+    }
+  }
+
+  public void testNoCodecHeaderMeansGzip() throws Exception {
+    byte[] raw = text(1000);
+    byte[] compressed = compress(raw, Compression.GZIP);
+    assertTrue(Arrays.equals(raw, readAll(Compression.decompress(
+      new ByteArrayInputStream(compressed), null))));
+  }
+
+  public void testUnrecognisedStream() throws Exception {
+    try {
+      decompress("WKC\u0009 not a codec".getBytes());
+      fail("Unknown codec id not rejected");
+    } catch (IOException ex) {
+      // expected
+    }
+    try {
+      decompress(new byte[0]);
+      fail("Empty stream not rejected");
+    } catch (IOException ex) {
+      // expected
+    }
+  }
+
+  public void testDetect() throws Exception {
+    File f = File.createTempFile("compression", ".bin");
+    try {
+      for (Compression.Codec codec : new Compression.Codec[] {
+        Compression.NONE, Compression.FAST, Compression.GZIP }) {
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(compress(text(100), codec));
+        out.close();
+        assertSame(codec, Compression.detect(f));
+      }
+    } finally {
+      f.delete();
+    }
+  }
+
+  public void testForName() throws Exception {
+    assertSame(Compression.FAST, Compression.forName(" Fast "));
+    assertEquals("gzip-9", Compression.forName("gzip-9").toString());
+    try {
+      Compression.forName("gzip-10");
+      fail("Bad gzip level not rejected");
+    } catch (IllegalArgumentException ex) {
+      // expected
+    }
+  }
+
+  public static Test suite() {
+    return new TestSuite(CompressionTest.class);
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+  }
+}
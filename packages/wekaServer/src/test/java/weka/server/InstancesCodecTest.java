@@ -0,0 +1,264 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    InstancesCodecTest.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import weka.core.Attribute;
+import weka.core.BinarySparseInstance;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializedObject;
+import weka.core.SparseInstance;
+import weka.core.Utils;
+
+/**
+ * Tests the compact encoding of instances.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class InstancesCodecTest extends TestCase {
+
+  public InstancesCodecTest(String name) {
+    super(name);
+  }
+
+  protected static ArrayList<String> labels(String prefix, int n) {
+    ArrayList<String> labels = new ArrayList<String>();
+    for (int i = 0; i < n; i++) {
+      labels.add(prefix + i);
+    }
+    return labels;
+  }
+
+  /**
+   * Make a data set with an attribute of every type: a numeric attribute
+   * that fits in floats, one that needs doubles, a small and a large nominal,
+   * a string, a date and a relational attribute
+   */
+  protected static Instances allTypes(int numInstances) {
+    ArrayList<Attribute> relAtts = new ArrayList<Attribute>();
+    relAtts.add(new Attribute("x"));
+    Instances relHeader = new Instances("bag", relAtts, 0);
+
+    ArrayList<Attribute> atts = new ArrayList<Attribute>();
+    atts.add(new Attribute("float"));
+    atts.add(new Attribute("double"));
+    atts.add(new Attribute("nominal", labels("v", 3)));
+    atts.add(new Attribute("bigNominal", labels("w", 300)));
+    atts.add(new Attribute("string", (ArrayList<String>) null));
+    atts.add(new Attribute("date", "yyyy-MM-dd"));
+    atts.add(new Attribute("relational", relHeader));
+    Instances data = new Instances("allTypes", atts, numInstances);
+    data.setClassIndex(2);
+
+    Random r = new Random(1);
+    for (int i = 0; i < numInstances; i++) {
+      double[] values = new double[atts.size()];
+      values[0] = r.nextInt(1000) / 4.0;
+      values[1] = r.nextGaussian();
+      values[2] = r.nextInt(3);
+      values[3] = r.nextInt(300);
+      values[4] = data.attribute(4).addStringValue("s" + r.nextInt(50));
+      values[5] = 1.4e12 + r.nextInt(1000) * 86400000.0;
+      Instances bag = new Instances(relHeader, 2);
+      bag.add(new DenseInstance(1.0, new double[] { r.nextDouble() }));
+      bag.add(new DenseInstance(1.0, new double[] { r.nextDouble() }));
+      values[6] = data.attribute(6).addRelation(bag);
+      if (i % 7 == 0) {
+        // a missing value in every column in turn
+        values[i / 7 % values.length] = Utils.missingValue();
+      }
+      data.add(new DenseInstance(1.0, values));
+    }
+    return data;
+  }
+
+  protected static Instances numeric(String name, int numAttributes) {
+    ArrayList<Attribute> atts = new ArrayList<Attribute>();
+    for (int a = 0; a < numAttributes; a++) {
+      atts.add(new Attribute("a" + a));
+    }
+    return new Instances(name, atts, 0);
+  }
+
+  protected static void assertSameData(Instances expected, Instances actual) {
+    assertEquals(expected.relationName(), actual.relationName());
+    assertEquals(expected.classIndex(), actual.classIndex());
+    assertTrue(expected.equalHeaders(actual));
+    assertEquals(expected.numInstances(), actual.numInstances());
+    for (int i = 0; i < expected.numInstances(); i++) {
+      Instance e = expected.instance(i);
+      Instance a = actual.instance(i);
+      assertSame("instance " + i, e.getClass(), a.getClass());
+      assertEquals("instance " + i, e.weight(), a.weight(), 0);
+      for (int att = 0; att < expected.numAttributes(); att++) {
+        String where = "instance " + i + " attribute " + att;
+        if (e.isMissing(att)) {
+          assertTrue(where, a.isMissing(att));
+          continue;
+        }
+        assertEquals(where, Double.doubleToLongBits(e.value(att)),
+          Double.doubleToLongBits(a.value(att)));
+        Attribute attribute = expected.attribute(att);
+        if (attribute.isString()) {
+          assertEquals(where, e.stringValue(att), a.stringValue(att));
+        } else if (attribute.isRelationValued()) {
+          assertEquals(where, e.relationalValue(att).toString(), a
+            .relationalValue(att).toString());
+        }
+      }
+    }
+  }
+
+  protected static Instances roundTrip(Instances data) throws IOException {
+    Instances decoded = InstancesCodec.fromBytes(InstancesCodec.toBytes(data));
+    assertSameData(data, decoded);
+    return decoded;
+  }
+
+  public void testAllTypes() throws Exception {
+    roundTrip(allTypes(500));
+  }
+
+  public void testEmpty() throws Exception {
+    Instances decoded = roundTrip(allTypes(0));
+    // the decoded instances can still be added to
+    decoded.add(allTypes(1).instance(0));
+    assertEquals(1, decoded.numInstances());
+
+    roundTrip(numeric("noAttributes", 0));
+  }
+
+  public void testWeights() throws Exception {
+    Instances data = allTypes(50);
+    for (int i = 0; i < data.numInstances(); i++) {
+      data.instance(i).setWeight(i * 0.3);
+    }
+    roundTrip(data);
+  }
+
+  public void testSpecialValues() throws Exception {
+    Instances data = numeric("special", 2);
+    double[] special =
+      { 0.0, -0.0, Double.MIN_VALUE, Double.MAX_VALUE,
+        Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Float.MIN_VALUE,
+        Float.MAX_VALUE, 1e300, Utils.missingValue() };
+    for (double v : special) {
+      // the first column fits in floats, the second doesn't
+      data.add(new DenseInstance(1.0, new double[] { (float) v, v }));
+    }
+    roundTrip(data);
+  }
+
+  public void testSparse() throws Exception {
+    Instances data = numeric("sparse", 1000);
+    Random r = new Random(2);
+    for (int i = 0; i < 100; i++) {
+      int[] indices = new int[5];
+      double[] values = new double[5];
+      for (int k = 0; k < 5; k++) {
+        indices[k] = k * 200 + r.nextInt(200);
+        values[k] = k == 2 ? Utils.missingValue() : r.nextDouble();
+      }
+      data.add(new SparseInstance(1.0, values, indices, data.numAttributes()));
+    }
+    // all zero
+    data.add(new SparseInstance(1.0, new double[0], new int[0], data
+      .numAttributes()));
+    roundTrip(data);
+
+    // stays sparse - the values take far less than the 800K of writing
+    // every one
+    int headerSize = InstancesCodec.toBytes(new Instances(data, 0)).length;
+    assertTrue(InstancesCodec.toBytes(data).length - headerSize < 10000);
+  }
+
+  public void testBinarySparse() throws Exception {
+    Instances data = numeric("binary", 200);
+    for (int i = 0; i < 50; i++) {
+      data.add(new BinarySparseInstance(1.0, new int[] { i, i + 1, 150 },
+        data.numAttributes()));
+    }
+    roundTrip(data);
+  }
+
+  public void testMixed() throws Exception {
+    ArrayList<Attribute> atts = new ArrayList<Attribute>();
+    atts.add(new Attribute("num"));
+    atts.add(new Attribute("nom", labels("v", 2)));
+    Instances data = new Instances("mixed", atts, 0);
+    data.add(new DenseInstance(1.0, new double[] { 1.5, 1 }));
+    data.add(new SparseInstance(2.0, new double[] { 0, 1 }));
+    data.add(new BinarySparseInstance(1.0, new int[] { 1 }, 2));
+    data.add(new DenseInstance(1.0, new double[] { Utils.missingValue(),
+      Utils.missingValue() }));
+    data.add(new SparseInstance(1.0, new double[] { Utils.missingValue(),
+      0 }));
+    roundTrip(data);
+  }
+
+  public void testNotEncodedInstances() throws Exception {
+    try {
+      InstancesCodec.decode(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4,
+        5 }));
+      fail("Bad magic not rejected");
+    } catch (IOException ex) {
+      // expected
+    }
+  }
+
+  public void testSerializedInstances() throws Exception {
+    Instances data = allTypes(100);
+    SerializedInstances held = new SerializedInstances(data);
+    assertTrue(held.size() > 0);
+    assertSameData(data, held.getInstances());
+
+    // as held by tasks persisted by older versions
+    assertSameData(data, SerializedInstances.valueOf(new SerializedObject(data))
+      .getInstances());
+    assertSame(held, SerializedInstances.valueOf(held));
+    assertNull(SerializedInstances.valueOf(null));
+    try {
+      SerializedInstances.valueOf(new SerializedObject("not instances"));
+      fail("Non-instances not rejected");
+    } catch (IOException ex) {
+      // expected
+    }
+  }
+
+  public static Test suite() {
+    return new TestSuite(InstancesCodecTest.class);
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+  }
+}
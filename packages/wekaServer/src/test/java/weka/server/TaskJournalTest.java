@@ -0,0 +1,244 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    TaskJournalTest.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import weka.experiment.TaskStatusInfo;
+import weka.server.WekaTaskMap.WekaTaskEntry;
+
+/**
+ * Tests the journal of task state changes and the task index built on it.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class TaskJournalTest extends TestCase {
+
+  /** Holds the journal and index files */
+  protected File m_dir;
+
+  public TaskJournalTest(String name) {
+    super(name);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    m_dir = File.createTempFile("taskJournal", "");
+    m_dir.delete();
+    m_dir.mkdirs();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    TaskRecoveryTest.delete(m_dir);
+  }
+
+  protected static WekaTaskEntry entry(String name, String id) {
+    WekaTaskEntry entry = new WekaTaskEntry(name, id);
+    entry.setServer("slave:8085");
+    entry.setOriginatingServer("master:8085");
+    entry.setRemoteID("remote" + id);
+    entry.setCameFromMaster(true);
+    entry.setLastExecution(new Date(1234567890000L));
+    return entry;
+  }
+
+  protected static void assertSameEntry(WekaTaskEntry expected,
+    WekaTaskEntry actual) {
+    assertEquals(expected.toString(), actual.toString());
+    assertEquals(expected.getServer(), actual.getServer());
+    assertEquals(expected.getOriginatingServer(),
+      actual.getOriginatingServer());
+    assertEquals(expected.getRemoteID(), actual.getRemoteID());
+    assertEquals(expected.getCameFromMaster(), actual.getCameFromMaster());
+    assertEquals(expected.getLastExecution(), actual.getLastExecution());
+  }
+
+  public void testReplay() throws Exception {
+    TaskJournal journal = new TaskJournal(new File(m_dir, "journal"));
+    WekaTaskEntry a = entry("a", "1");
+    // nulls and defaults
+    WekaTaskEntry b = new WekaTaskEntry("b", "2");
+    WekaTaskEntry c = entry("c", "3");
+    journal.append(new TaskIndex.Record(a, TaskStatusInfo.TO_BE_RUN));
+    journal.append(new TaskIndex.Record(b, TaskStatusInfo.PROCESSING));
+    journal.append(new TaskIndex.Record(c, TaskStatusInfo.FINISHED));
+    a.setLastExecution(new Date(1234567899000L));
+    journal.append(new TaskIndex.Record(a, TaskStatusInfo.FAILED));
+    journal.appendRemove(c.toString());
+    assertEquals(5, journal.getNumRecords());
+    journal.close();
+
+    Map<String, TaskIndex.Record> records =
+      new HashMap<String, TaskIndex.Record>();
+    // replayed on top of what is already there
+    records.put(c.toString(), new TaskIndex.Record(c, TaskStatusInfo.FAILED));
+    assertEquals(5, journal.replay(records));
+
+    assertEquals(2, records.size());
+    assertSameEntry(a, records.get(a.toString()).getEntry());
+    assertEquals(TaskStatusInfo.FAILED, records.get(a.toString()).getStatus());
+    assertSameEntry(b, records.get(b.toString()).getEntry());
+    assertEquals(TaskStatusInfo.PROCESSING, records.get(b.toString())
+      .getStatus());
+  }
+
+  public void testEmptyOrMissing() throws Exception {
+    File file = new File(m_dir, "journal");
+    TaskJournal journal = new TaskJournal(file);
+    Map<String, TaskIndex.Record> records =
+      new HashMap<String, TaskIndex.Record>();
+    assertEquals(0, journal.replay(records));
+    assertTrue(records.isEmpty());
+
+    new FileOutputStream(file).close();
+    assertEquals(0, journal.replay(records));
+    assertTrue(records.isEmpty());
+  }
+
+  public void testTornTail() throws Exception {
+    File file = new File(m_dir, "journal");
+    TaskJournal journal = new TaskJournal(file);
+    WekaTaskEntry a = entry("a", "1");
+    WekaTaskEntry b = entry("b", "2");
+    journal.append(new TaskIndex.Record(a, TaskStatusInfo.FINISHED));
+    journal.close();
+    long complete = file.length();
+    journal.append(new TaskIndex.Record(b, TaskStatusInfo.FINISHED));
+    journal.close();
+    long full = file.length();
+
+    // a crash at any point while the second record was being written
+    for (long torn = complete; torn < full; torn++) {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      raf.setLength(torn);
+      raf.close();
+
+      Map<String, TaskIndex.Record> records =
+        new HashMap<String, TaskIndex.Record>();
+      assertEquals("torn at " + torn, 1, journal.replay(records));
+      assertEquals(1, records.size());
+      assertSameEntry(a, records.get(a.toString()).getEntry());
+      // the partial record has been cut off
+      assertEquals(complete, file.length());
+
+      // and records appended afterwards are readable
+      journal.append(new TaskIndex.Record(b, TaskStatusInfo.FAILED));
+      journal.close();
+      records.clear();
+      assertEquals(2, journal.replay(records));
+      assertEquals(TaskStatusInfo.FAILED, records.get(b.toString())
+        .getStatus());
+      assertEquals(full, file.length());
+    }
+  }
+
+  public void testGarbageTail() throws Exception {
+    File file = new File(m_dir, "journal");
+    TaskJournal journal = new TaskJournal(file);
+    WekaTaskEntry a = entry("a", "1");
+    journal.append(new TaskIndex.Record(a, TaskStatusInfo.FINISHED));
+    journal.close();
+    long complete = file.length();
+
+    FileOutputStream out = new FileOutputStream(file, true);
+    out.write(new byte[] { 99, 1, 2, 3 });
+    out.close();
+
+    Map<String, TaskIndex.Record> records =
+      new HashMap<String, TaskIndex.Record>();
+    assertEquals(1, journal.replay(records));
+    assertEquals(1, records.size());
+    assertEquals(complete, file.length());
+  }
+
+  public void testTruncate() throws Exception {
+    File file = new File(m_dir, "journal");
+    TaskJournal journal = new TaskJournal(file);
+    journal.append(new TaskIndex.Record(entry("a", "1"),
+      TaskStatusInfo.FINISHED));
+    assertTrue(journal.size() > 0);
+    journal.truncate();
+    assertEquals(0, journal.size());
+    assertEquals(0, journal.getNumRecords());
+    journal.close();
+
+    Map<String, TaskIndex.Record> records =
+      new HashMap<String, TaskIndex.Record>();
+    assertEquals(0, journal.replay(records));
+    assertTrue(records.isEmpty());
+  }
+
+  public void testIndexReplaysJournalOverSnapshot() throws Exception {
+    File indexFile = new File(m_dir, "tasks.index");
+    WekaTaskEntry a = entry("a", "1");
+    WekaTaskEntry b = entry("b", "2");
+    WekaTaskEntry c = entry("c", "3");
+
+    TaskIndex index = new TaskIndex(indexFile);
+    index.update(a, TaskStatusInfo.TO_BE_RUN);
+    index.update(b, TaskStatusInfo.TO_BE_RUN);
+    index.compact();
+    assertEquals(0, index.getJournal().size());
+
+    // changes since the snapshot are only in the journal
+    index.update(a, TaskStatusInfo.FINISHED);
+    index.remove(b);
+    index.update(c, TaskStatusInfo.FAILED);
+    index.getJournal().close();
+
+    // restart without a clean shutdown
+    TaskIndex restarted = new TaskIndex(indexFile);
+    List<TaskIndex.Record> records = restarted.load();
+    assertEquals(2, records.size());
+    assertEquals(2, restarted.size());
+    for (TaskIndex.Record r : records) {
+      WekaTaskEntry expected = r.getEntry().getName().equals("a") ? a : c;
+      assertSameEntry(expected, r.getEntry());
+      assertEquals(expected == a ? TaskStatusInfo.FINISHED
+        : TaskStatusInfo.FAILED, r.getStatus());
+    }
+
+    // a clean shutdown leaves everything in the snapshot
+    restarted.stop();
+    assertEquals(0, restarted.getJournal().size());
+    assertEquals(2, new TaskIndex(indexFile).load().size());
+  }
+
+  public static Test suite() {
+    return new TestSuite(TaskJournalTest.class);
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+  }
+}
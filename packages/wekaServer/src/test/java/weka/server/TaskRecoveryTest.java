@@ -0,0 +1,215 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    TaskRecoveryTest.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import weka.classifiers.rules.ZeroR;
+import weka.experiment.TaskStatusInfo;
+import weka.gui.explorer.ClassifierPanelRemoteLauncher;
+import weka.server.WekaTaskMap.WekaTaskEntry;
+import weka.server.knowledgeFlow.UnscheduledNamedKnowledgeFlowTask;
+
+/**
+ * Tests that persisted tasks are recovered when the server restarts.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class TaskRecoveryTest extends TestCase {
+
+  /**
+   * A classifier task that has nothing to run - only its status and log
+   * matter here
+   */
+  protected static class StubClassifierTask extends
+    ClassifierPanelRemoteLauncher.ClassifierTask {
+
+    /** For serialization */
+    private static final long serialVersionUID = -7218360417286451094L;
+
+    public StubClassifierTask() {
+      super(new ZeroR(), false, null, null);
+    }
+
+    @Override
+    public void execute() {
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void persistResources() {
+    }
+
+    @Override
+    public void loadResources() {
+    }
+
+    @Override
+    public void loadResult() {
+    }
+
+    @Override
+    public void purge() {
+    }
+
+    @Override
+    public List<File> getPersistedFiles() {
+      return new ArrayList<File>();
+    }
+
+    @Override
+    public File getPersistedResult() {
+      return null;
+    }
+  }
+
+  /** Holds the persisted tasks and the task index */
+  protected File m_dir;
+
+  public TaskRecoveryTest(String name) {
+    super(name);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    m_dir = File.createTempFile("taskRecovery", "");
+    m_dir.delete();
+    m_dir.mkdirs();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    delete(m_dir);
+  }
+
+  protected static void delete(File f) {
+    File[] contents = f.listFiles();
+    if (contents != null) {
+      for (File c : contents) {
+        delete(c);
+      }
+    }
+    f.delete();
+  }
+
+  /**
+   * Persist a task the way the server does
+   *
+   * @param persistDir the directory to persist to
+   * @param index the task index
+   * @param task the task
+   * @param status the status to record in the index
+   * @return the entry for the task
+   * @throws Exception if a problem occurs
+   */
+  protected static WekaTaskEntry persist(File persistDir, TaskIndex index,
+    NamedTask task, int status) throws Exception {
+    WekaTaskEntry entry =
+      new WekaTaskEntry(task.getName(), Long.toString(System.nanoTime()));
+    // has been run, so recovery won't execute it again
+    entry.setLastExecution(new Date());
+
+    ObjectOutputStream oos =
+      new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(
+        new File(persistDir, entry.toString()))));
+    oos.writeObject(new WekaServer.TaskHolder(entry, task));
+    oos.close();
+    index.update(entry, status);
+
+    return entry;
+  }
+
+  public void testRecoverAfterRestart() throws Exception {
+    File persistDir = new File(m_dir, "tasks");
+    persistDir.mkdirs();
+    File indexFile = new File(m_dir, "tasks.index");
+
+    // the persisted copies are older than the index
+    UnscheduledNamedKnowledgeFlowTask kfTask =
+      new UnscheduledNamedKnowledgeFlowTask("kf", "{}", false,
+        new HashMap<String, String>());
+    StubClassifierTask classifierTask = new StubClassifierTask();
+    classifierTask.setName("classifier");
+    classifierTask.getTaskStatus().setExecutionStatus(
+      TaskStatusInfo.PROCESSING);
+
+    TaskIndex index = new TaskIndex(indexFile);
+    WekaTaskEntry kfEntry =
+      persist(persistDir, index, kfTask, TaskStatusInfo.FINISHED);
+    WekaTaskEntry classifierEntry =
+      persist(persistDir, index, classifierTask, TaskStatusInfo.FAILED);
+    index.stop();
+
+    // restart
+    WekaServer server = new WekaServer("localhost", 8099, false, 1);
+    server.m_taskIndex = new TaskIndex(indexFile);
+    TaskRecovery recovery = new TaskRecovery(server, server.m_taskMap);
+    recovery.findTasks(persistDir, server.m_taskIndex);
+    recovery.start(2);
+
+    long deadline = System.currentTimeMillis() + 30000;
+    while (recovery.getNumRemaining() > 0
+      && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+
+    assertEquals(0, recovery.getNumRemaining());
+    assertEquals(0, recovery.getNumFailed());
+    assertEquals(2, recovery.getNumLoaded());
+
+    NamedTask recoveredKF = server.m_taskMap.getTask(kfEntry);
+    assertNotNull(recoveredKF);
+    assertEquals(TaskStatusInfo.FINISHED, recoveredKF.getTaskStatus()
+      .getExecutionStatus());
+    assertNotNull(recoveredKF.getTaskStatus().getStatusMessage());
+
+    NamedTask recoveredClassifier = server.m_taskMap.getTask(classifierEntry);
+    assertNotNull(recoveredClassifier);
+    assertEquals(TaskStatusInfo.FAILED, recoveredClassifier.getTaskStatus()
+      .getExecutionStatus());
+    assertNotNull(recoveredClassifier.getTaskStatus().getStatusMessage());
+
+    server.m_taskIndex.stop();
+  }
+
+  public static Test suite() {
+    return new TestSuite(TaskRecoveryTest.class);
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ *    LineRingBufferTest.java
+ *    Copyright (C) 2016 University of Waikato, Hamilton, New Zealand
+ *
+ */
+
+package weka.server.logging;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Tests the ring buffer of log lines.
+ *
+ * @author Mark Hall (mhall{[at]}pentaho{[dot]}com)
+ * @version $Revision: $
+ */
+public class LineRingBufferTest extends TestCase {
+
+  public LineRingBufferTest(String name) {
+    super(name);
+  }
+
+  protected static List<String> texts(List<LineRingBuffer.Line> lines) {
+    List<String> result = new ArrayList<String>();
+    for (LineRingBuffer.Line l : lines) {
+      result.add(l.getText());
+    }
+    return result;
+  }
+
+  public void testEmpty() {
+    LineRingBuffer buffer = new LineRingBuffer(3);
+    assertEquals(0, buffer.getLastSequence());
+    assertTrue(buffer.snapshot().isEmpty());
+    assertTrue(buffer.since(0).isEmpty());
+
+    // a capacity of zero still holds the last line
+    buffer = new LineRingBuffer(0);
+    assertEquals(1, buffer.capacity());
+    buffer.add("a");
+    buffer.add("b");
+    assertEquals(Arrays.asList("b"), buffer.snapshot());
+  }
+
+  public void testWrapAround() {
+    LineRingBuffer buffer = new LineRingBuffer(3);
+    for (int i = 1; i <= 10; i++) {
+      assertEquals(i, buffer.add("line " + i));
+      assertEquals(i, buffer.getLastSequence());
+      assertEquals(Math.min(i, 3), buffer.snapshot().size());
+    }
+    assertEquals(Arrays.asList("line 8", "line 9", "line 10"),
+      buffer.snapshot());
+  }
+
+  public void testSince() {
+    LineRingBuffer buffer = new LineRingBuffer(5);
+    for (int i = 1; i <= 8; i++) {
+      buffer.add("line " + i);
+    }
+    assertEquals(Arrays.asList("line 7", "line 8"), texts(buffer.since(6)));
+    assertTrue(buffer.since(8).isEmpty());
+    assertTrue(buffer.since(100).isEmpty());
+    // lines that have been overwritten are gone
+    assertEquals(5, buffer.since(0).size());
+    assertEquals(Arrays.asList("line 4", "line 5", "line 6"),
+      texts(buffer.since(3, 6)));
+
+    List<LineRingBuffer.Line> lines = buffer.since(0);
+    for (int i = 0; i < lines.size(); i++) {
+      assertEquals(i + 4, lines.get(i).getSequence());
+    }
+  }
+
+  public void testSharedSequence() {
+    AtomicLong sequence = new AtomicLong();
+    LineRingBuffer a = new LineRingBuffer(10, sequence);
+    LineRingBuffer b = new LineRingBuffer(10, sequence);
+    assertEquals(1, a.add("a1"));
+    assertEquals(2, b.add("b1"));
+    assertEquals(3, b.add("b2"));
+    assertEquals(4, a.add("a2"));
+    assertEquals(4, a.getLastSequence());
+    assertEquals(4, b.getLastSequence());
+
+    assertEquals(Arrays.asList("a2"), texts(a.since(1)));
+    assertEquals(Arrays.asList("b2"), texts(b.since(2)));
+    assertEquals(Arrays.asList("b1", "b2"), texts(b.since(1, 3)));
+    assertTrue(a.since(1, 3).isEmpty());
+    assertEquals(Arrays.asList("a1", "a2"), a.snapshot());
+  }
+
+  /**
+   * Writers add to two buffers sharing a sequence while a reader follows
+   * each buffer by asking for the lines up to the last sequence number it
+   * has seen. No line may be skipped or seen twice.
+   */
+  public void testConcurrentReadersSeeEveryLine() throws Exception {
+    final int numWriters = 4;
+    final int linesPerWriter = 10000;
+    AtomicLong sequence = new AtomicLong();
+    final LineRingBuffer[] buffers =
+      { new LineRingBuffer(numWriters * linesPerWriter, sequence),
+        new LineRingBuffer(numWriters * linesPerWriter, sequence) };
+
+    Thread[] writers = new Thread[numWriters];
+    for (int w = 0; w < numWriters; w++) {
+      final int id = w;
+      writers[w] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < linesPerWriter; i++) {
+            buffers[(id + i) % 2].add(id + ":" + i);
+          }
+        }
+      };
+    }
+    for (Thread t : writers) {
+      t.start();
+    }
+
+    long[] seen = new long[2];
+    int[] numSeen = new int[2];
+    boolean done = false;
+    while (!done) {
+      done = true;
+      for (Thread t : writers) {
+        done &= !t.isAlive();
+      }
+      for (int b = 0; b < 2; b++) {
+        long upTo = buffers[b].getLastSequence();
+        long previous = seen[b];
+        for (LineRingBuffer.Line l : buffers[b].since(seen[b], upTo)) {
+          assertTrue(l.getSequence() > previous);
+          assertTrue(l.getSequence() <= upTo);
+          previous = l.getSequence();
+          numSeen[b]++;
+        }
+        seen[b] = upTo;
+      }
+    }
+
+    assertEquals(numWriters * linesPerWriter, numSeen[0] + numSeen[1]);
+    assertEquals(numWriters * linesPerWriter / 2, numSeen[0]);
+    assertEquals(numWriters * linesPerWriter, sequence.get());
+  }
+
+  public static Test suite() {
+    return new TestSuite(LineRingBufferTest.class);
+  }
+
+  public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+  }
+}